@@ -4,7 +4,7 @@ ${context.getFormTool().getFormOpenTag("messagePosted")}
 			<td  align="center"><b>${context.getOutput("name")}</b></td>
 		</tr>
 		<tr>
-			<td bgcolor="#AACCFF" align="left"><pre>${context.getOutput("messages")}</pre></td>
+			<td bgcolor="#AACCFF" align="left"><pre>${context.getBoundOutput("messages")}</pre></td>
 		</tr>
 		<tr>
 			<td align="center">
@@ -18,6 +18,8 @@
  */
 package com.neocoders.jandal.core;
 
+import java.io.Serializable;
+
 /**
  * Base class for Jandal applications. In your sub-classes, you must implement
  * the {@link onStart()} method, which is called from within Application's
@@ -107,7 +109,9 @@ package com.neocoders.jandal.core;
  * @author lindsay
  * 
  */
-public abstract class Application {
+public abstract class Application implements Cloneable, Serializable {
+
+	private static final long serialVersionUID = 1L;
 
 	void init(ServiceSet serviceSet, Params params) {
 		if (params == null) {
@@ -139,18 +143,13 @@ public abstract class Application {
 	 *             implementation of {@link #onStart()}.
 	 */
 	public final void start() throws JandalCoreException {
-		if (active) {
-			this.exeContext.applicationStopping();
-			this.rootController.destroy();
-			this.active = false;
-			this.exeContext.applicationStarting();
-			this.onStart();
-			if (this.rootController == null) {
-				throw new JandalCoreException(
-						"Application could not start because it has no root Controller");
+		this.exeContext.beginTransaction();
+		try {
+			if (active) {
+				this.exeContext.applicationStopping();
+				this.rootController.destroy();
+				this.active = false;
 			}
-			this.active = true;
-		} else {
 			this.exeContext.applicationStarting();
 			this.onStart();
 			if (this.rootController == null) {
@@ -158,6 +157,8 @@ public abstract class Application {
 						"Application could not start because it has no root Controller");
 			}
 			this.active = true;
+		} finally {
+			this.exeContext.commitTransaction();
 		}
 	}
 
@@ -193,16 +194,21 @@ public abstract class Application {
 	 */
 	public final void restart() throws JandalCoreException {
 		this.assertActive();
-		this.exeContext.applicationStopping();
-		this.rootController.destroy();
-		this.active = false;
-		this.exeContext.applicationStarting();
-		this.onStart();
-		if (this.rootController == null) {
-			throw new JandalCoreException(
-					"Application could not start because it has no root Controller");
+		this.exeContext.beginTransaction();
+		try {
+			this.exeContext.applicationStopping();
+			this.rootController.destroy();
+			this.active = false;
+			this.exeContext.applicationStarting();
+			this.onStart();
+			if (this.rootController == null) {
+				throw new JandalCoreException(
+						"Application could not start because it has no root Controller");
+			}
+			active = true;
+		} finally {
+			this.exeContext.commitTransaction();
 		}
-		active = true;
 	}
 
 	/**
@@ -280,10 +286,10 @@ public abstract class Application {
 	 * Returns the {@link Controller} with given ID. The {@link Controller} is
 	 * found only if it is in the tree of currently running {@link Controller}s,
 	 * otherwise this method returns null. IDs are transient since they are
-	 * generated from hashcodes. Therefore, the ID of a {@link Controller} at a
-	 * given location within the tree will change if that {@link Controller} is
-	 * destroyed and recreated. The Application must be running otherwise an
-	 * exception will be thrown.
+	 * allocated when a {@link Controller} starts. Therefore, the ID of a
+	 * {@link Controller} at a given location within the tree will change if
+	 * that {@link Controller} is destroyed and recreated. The Application must
+	 * be running otherwise an exception will be thrown.
 	 * 
 	 * @param controllerId
 	 *            ID of {@link Controller} .
@@ -296,6 +302,42 @@ public abstract class Application {
 		return this.exeContext.getControllerWithId(controllerId);
 	}
 
+	/**
+	 * Returns the {@link Controller} with the given numeric ID (see
+	 * {@link Controller#getNumericId()}), or null if it is not running. This
+	 * is a constant-time lookup that may be made while the {@link Controller}
+	 * tree is being updated on another thread.
+	 * 
+	 * @param controllerId
+	 *            ID of {@link Controller} .
+	 * @throws JandalCoreException
+	 *             Application not running
+	 */
+	public final Controller getControllerWithId(long controllerId)
+			throws JandalCoreException {
+		assertActive();
+		return this.exeContext.getControllerWithId(controllerId);
+	}
+
+	/**
+	 * Returns true if this application has been started and is running.
+	 */
+	public final boolean isActive() {
+		return active;
+	}
+
+	/**
+	 * Returns a field-for-field copy of this application, for
+	 * {@link PrototypeCopier}.
+	 */
+	final Object shallowCopy() {
+		try {
+			return super.clone();
+		} catch (CloneNotSupportedException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
 	private void assertActive() throws JandalCoreException {
 		if (!active) {
 			throw new JandalCoreException("Application not running");
@@ -327,6 +369,16 @@ public abstract class Application {
 		this.active = false;
 	}
 
+	/**
+	 * Returns the last committed {@link ApplicationSnapshot} of this
+	 * application's {@link Controller}s. A view should take this once and
+	 * render every {@link Controller} from it, so that it sees them all as of
+	 * the same event.
+	 */
+	public final ApplicationSnapshot getApplicationSnapshot() {
+		return this.exeContext.getApplicationSnapshot();
+	}
+
 	/**
 	 * Adds an {@link ApplicationListener} to be notified of events accurring on
 	 * this application.
@@ -342,6 +394,14 @@ public abstract class Application {
 		this.exeContext.removeApplicationListener(appListener);
 	}
 
+	/**
+	 * Sets the {@link ViewEventListener} to be notified of each view event this
+	 * application processes, replacing any set before, or clears it if null.
+	 */
+	public final void setViewEventListener(ViewEventListener listener) {
+		this.exeContext.setViewEventListener(listener);
+	}
+
 	private ApplicationExeContext exeContext;
 
 	private Controller rootController;
@@ -31,9 +31,13 @@ import java.util.*;
 	public ApplicationExeContext(ServiceSet serviceSet, Application app) {
 		this.serviceSet = serviceSet;
 		this.app = app;
-		this.controllerPathMap = new HashMap();
-		this.controllerIdMap = new HashMap();
-		this.appListeners = new LinkedList();
+		this.controllerRegistry = new ControllerRegistry();
+		this.appListeners = NO_LISTENERS;
+		this.transactionDepth = 0;
+		this.changedControllers = new LinkedHashSet();
+		this.updatedControllers = new LinkedHashSet();
+		this.stoppedControllers = new ArrayList();
+		this.appSnapshot = ApplicationSnapshot.EMPTY;
 	}
 
 	/**
@@ -54,14 +58,21 @@ import java.util.*;
 	}
 
 	/**
-	 * Registers a controller that has become active. It must be active when
-	 * this is called.
+	 * Sets the {@link Application}, for a context made before the
+	 * {@link Application} it belongs to was restored.
+	 */
+	void setApplication(Application app) {
+		this.app = app;
+	}
+
+	/**
+	 * Registers a controller that has become active, giving it its ID. It must
+	 * be active when this is called.
 	 * 
 	 */
 	public void registerActiveController(Controller controller) {
 		try {
-			this.controllerPathMap.put(controller.getPath(), controller);
-			this.controllerIdMap.put(controller.getId(), controller);
+			this.controllerRegistry.register(controller, controller.getPath());
 		} catch (JandalCoreException e) {
 			throw new RuntimeException(e);
 		}
@@ -74,66 +85,216 @@ import java.util.*;
 	 */
 	public void deregisterActiveController(Controller controller) {
 		try {
-			this.controllerPathMap.remove(controller.getPath());
-			this.controllerIdMap.remove(controller.getId());
+			this.controllerRegistry.deregister(controller, controller.getPath());
 		} catch (JandalCoreException e) {
 			throw new RuntimeException(e);
 		}
 	}
 
+	/**
+	 * Re-registers a controller of a restored {@link Application} under the
+	 * ID it had when passivated.
+	 */
+	void restoreActiveController(Controller controller)
+			throws JandalCoreException {
+		this.controllerRegistry.restore(controller, controller.getPath());
+	}
+
+	void finishRestore() {
+		this.controllerRegistry.finishRestore();
+	}
+
 	public Controller getControllerOnPath(String path) {
-		return (Controller) this.controllerPathMap.get(path);
+		return this.controllerRegistry.get(path);
+	}
+
+	public Controller getControllerWithId(long controllerId) {
+		return this.controllerRegistry.get(controllerId);
 	}
 
 	public Controller getControllerWithId(String controllerId) {
-		return (Controller) this.controllerIdMap.get(controllerId);
+		return this.controllerRegistry.get(ControllerRegistry
+				.parseId(controllerId));
+	}
+
+	/**
+	 * Adds a listener. Listeners are held in an array that is replaced on each
+	 * change, so that notifications can walk it without locking or
+	 * allocating.
+	 */
+	public synchronized void addApplicationListener(
+			ApplicationListener appListener) {
+		final ApplicationListener[] listeners = this.appListeners;
+		for (int i = 0; i < listeners.length; i++) {
+			if (listeners[i].equals(appListener)) {
+				return;
+			}
+		}
+		final ApplicationListener[] newListeners = new ApplicationListener[listeners.length + 1];
+		System.arraycopy(listeners, 0, newListeners, 0, listeners.length);
+		newListeners[listeners.length] = appListener;
+		this.appListeners = newListeners;
 	}
 
-	public void addApplicationListener(ApplicationListener appListener) {
-		if (!this.appListeners.contains(appListener)) {
-			this.appListeners.add(appListener);
+	public synchronized void removeApplicationListener(
+			ApplicationListener appListener) {
+		final ApplicationListener[] listeners = this.appListeners;
+		for (int i = 0; i < listeners.length; i++) {
+			if (listeners[i].equals(appListener)) {
+				final ApplicationListener[] newListeners = new ApplicationListener[listeners.length - 1];
+				System.arraycopy(listeners, 0, newListeners, 0, i);
+				System.arraycopy(listeners, i + 1, newListeners, i,
+						listeners.length - i - 1);
+				this.appListeners = newListeners;
+				return;
+			}
 		}
 	}
 
-	public void removeApplicationListener(ApplicationListener appListener) {
-		if (this.appListeners.contains(appListener)) {
-			this.appListeners.remove(appListener);
+	public void setViewEventListener(ViewEventListener listener) {
+		this.viewEventListener = listener;
+	}
+
+	public boolean hasViewEventListener() {
+		return this.viewEventListener != null;
+	}
+
+	public void viewEventProcessed(String controllerPath, String eventName,
+			Params params) {
+		final ViewEventListener listener = this.viewEventListener;
+		if (listener != null) {
+			listener.viewEventProcessed(controllerPath, eventName, params);
 		}
 	}
 
 	public void applicationStarting() {
-		for (Iterator i = this.appListeners.iterator(); i.hasNext();) {
-			((ApplicationListener) i.next()).applicationStarting(this.app);
+		final ApplicationListener[] listeners = this.appListeners;
+		for (int i = 0; i < listeners.length; i++) {
+			listeners[i].applicationStarting(this.app);
 		}
 	}
 
 	public void controllerStarting(Controller controller) {
-		for (Iterator i = this.appListeners.iterator(); i.hasNext();) {
-			((ApplicationListener) i.next()).controllerStarting(controller);
+		final ApplicationListener[] listeners = this.appListeners;
+		for (int i = 0; i < listeners.length; i++) {
+			listeners[i].controllerStarting(controller);
 		}
 	}
 
 	public void controllerStopping(Controller controller) {
-		for (Iterator i = this.appListeners.iterator(); i.hasNext();) {
-			((ApplicationListener) i.next()).controllerStopping(controller);
+		final ApplicationListener[] listeners = this.appListeners;
+		for (int i = 0; i < listeners.length; i++) {
+			listeners[i].controllerStopping(controller);
+		}
+		stoppedControllers.add(controller);
+		if (transactionDepth == 0) {
+			publish(Collections.EMPTY_LIST);
+		}
+	}
+
+	/**
+	 * Returns the last published {@link ApplicationSnapshot}.
+	 */
+	public ApplicationSnapshot getApplicationSnapshot() {
+		return appSnapshot;
+	}
+
+	/*
+	 * Publishes the newly committed snapshots of the given controllers
+	 * together, dropping those of controllers stopped since the last time
+	 */
+	private void publish(Collection committed) {
+		appSnapshot = appSnapshot.commit(committed, stoppedControllers);
+		stoppedControllers.clear();
+	}
+
+	/**
+	 * Opens a transaction, within which changes to {@link Controller} outputs
+	 * are held back from views until the outermost transaction is committed.
+	 * Transactions nest.
+	 */
+	public void beginTransaction() {
+		transactionDepth++;
+	}
+
+	/**
+	 * Closes a transaction. When this is the outermost one, commits the
+	 * {@link OutputSnapshot} of each {@link Controller} changed within it,
+	 * publishes them all at once in a new {@link ApplicationSnapshot}, then
+	 * notifies listeners of the updated {@link Controller}s - in one batch for
+	 * a {@link BatchApplicationListener}, otherwise one at a time.
+	 */
+	public void commitTransaction() {
+		if (--transactionDepth > 0) {
+			return;
+		}
+		transactionDepth = 0;
+		for (Iterator i = changedControllers.iterator(); i.hasNext();) {
+			((Controller) i.next()).commitOutputs();
+		}
+		publish(changedControllers);
+		changedControllers.clear();
+		if (updatedControllers.isEmpty()) {
+			return;
+		}
+		final Collection updated = Collections
+				.unmodifiableList(new ArrayList(updatedControllers));
+		updatedControllers.clear();
+		final ApplicationListener[] listeners = this.appListeners;
+		for (int i = 0; i < listeners.length; i++) {
+			if (listeners[i] instanceof BatchApplicationListener) {
+				((BatchApplicationListener) listeners[i])
+						.controllersUpdated(updated);
+			} else {
+				for (Iterator j = updated.iterator(); j.hasNext();) {
+					listeners[i].controllerUpdated((Controller) j.next());
+				}
+			}
 		}
 	}
 
+	/**
+	 * Notes that a {@link Controller}'s outputs, {@link State} or child
+	 * {@link Controller}s have changed, committing them straight away unless a
+	 * transaction is open.
+	 */
+	public void outputsChanged(Controller controller) {
+		if (transactionDepth > 0) {
+			changedControllers.add(controller);
+		} else {
+			controller.commitOutputs();
+			publish(Collections.singletonList(controller));
+		}
+	}
+
+	/**
+	 * Notes that a {@link Controller} has changed {@link State} or written
+	 * output. Within a transaction the {@link Controller} is saved up for the
+	 * notifications at commit, otherwise listeners are notified straight away.
+	 */
 	public void controllerUpdated(Controller controller) {
-		for (Iterator i = this.appListeners.iterator(); i.hasNext();) {
-			((ApplicationListener) i.next()).controllerUpdated(controller);
+		outputsChanged(controller);
+		if (transactionDepth > 0) {
+			updatedControllers.add(controller);
+			return;
+		}
+		final ApplicationListener[] listeners = this.appListeners;
+		for (int i = 0; i < listeners.length; i++) {
+			listeners[i].controllerUpdated(controller);
 		}
 	}
 
 	public void applicationStopping() {
-		for (Iterator i = this.appListeners.iterator(); i.hasNext();) {
-			((ApplicationListener) i.next()).applicationStopping(this.app);
+		final ApplicationListener[] listeners = this.appListeners;
+		for (int i = 0; i < listeners.length; i++) {
+			listeners[i].applicationStopping(this.app);
 		}
 	}
 
 	public void applicationDestroying() {
-		for (Iterator i = this.appListeners.iterator(); i.hasNext();) {
-			((ApplicationListener) i.next()).applicationDestroying(this.app);
+		final ApplicationListener[] listeners = this.appListeners;
+		for (int i = 0; i < listeners.length; i++) {
+			listeners[i].applicationDestroying(this.app);
 		}
 	}
 
@@ -141,9 +302,21 @@ import java.util.*;
 
 	private ServiceSet serviceSet;
 
-	private Map controllerPathMap;
+	private ControllerRegistry controllerRegistry;
+
+	private static final ApplicationListener[] NO_LISTENERS = new ApplicationListener[0];
+
+	private volatile ApplicationListener[] appListeners;
+
+	private volatile ViewEventListener viewEventListener;
+
+	private int transactionDepth;
+
+	private Set changedControllers;
+
+	private Set updatedControllers;
 
-	private Map controllerIdMap;
+	private List stoppedControllers;
 
-	private List appListeners;
+	private volatile ApplicationSnapshot appSnapshot;
 }
@@ -18,18 +18,70 @@
  */
 package com.neocoders.jandal.core;
 
-import org.apache.tools.ant.BuildException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 
 import com.neocoders.jandal.core.JandalCoreException;
 import com.neocoders.jandal.core.Params;
 import com.neocoders.jandal.core.ServiceSet;
-import com.neocoders.jandal.testing.JandalTest;
 
+/**
+ * Creates {@link Application}s of a given class, initialised with a given
+ * {@link ServiceSet}.
+ * <p/>
+ * <b>Pooling</b><p/> A factory may optionally keep a pool of Applications
+ * that are already started, so that {@link #startApplication(Params)} can hand
+ * one straight out instead of running {@link Application#onStart()} within the
+ * caller. The pool is topped up in the background by a single daemon thread
+ * whenever an Application is taken from it. Only Applications started without
+ * parameters come from the pool, since a pooled Application has already been
+ * started with an empty {@link Params}; Applications whose
+ * {@link Application#onStart()} locks {@link Service}s should not be pooled,
+ * since they would hold those locks while idle in the pool.
+ * <p/>
+ * <b>Prototyping</b><p/> A factory may also be set to build the initial
+ * {@link Controller} tree just once, in a prototype Application, and give each
+ * Application started without parameters a copy of that tree (see
+ * {@link PrototypeCopier}) instead of running its {@link Application#onStart()}
+ * and the {@link Controller#onStart()} and {@link State#onEntry()} methods
+ * beneath it. Applications started with parameters are always constructed
+ * normally.
+ * <p/>
+ * <b>Passivation</b><p/> A running Application may be written out to a
+ * stream and dropped from memory while idle, then read back and carry on where
+ * it left off (see {@link ApplicationPassivator}). Everything it holds must be
+ * serializable for this to work.
+ * 
+ * @author lindsay
+ * 
+ */
 public class ApplicationFactory {
 
+	/**
+	 * Default time in milliseconds allowed for an {@link Application}
+	 * constructor to complete.
+	 */
+	public static final long DEFAULT_INSTANTIATION_TIMEOUT = 10000L;
+
 	public ApplicationFactory(String appClassName, ServiceSet serviceSet) {
 		this.appClassName = appClassName;
 		this.serviceSet = serviceSet;
+		this.instantiator = new Instantiator(DEFAULT_INSTANTIATION_TIMEOUT);
+		this.pool = new LinkedBlockingQueue();
+		this.poolSize = 0;
+		this.refilling = new AtomicBoolean(false);
+		this.poolHits = new AtomicLong();
+		this.poolMisses = new AtomicLong();
+		this.poolFailures = new AtomicLong();
+		this.prototyping = false;
+		this.prototypeCopies = new AtomicLong();
 	}
 
 	public String getName() {
@@ -40,103 +92,277 @@ public class ApplicationFactory {
 		return this.appClassName;
 	}
 
-	public synchronized Application newApplication() throws JandalCoreException {
+	/**
+	 * Sets the time in milliseconds allowed for an {@link Application}
+	 * constructor to complete before instantiation fails. Zero or less
+	 * disables the timeout, constructing each Application directly on the
+	 * calling thread.
+	 */
+	public void setInstantiationTimeout(long timeout) {
+		instantiator.setTimeout(timeout);
+	}
+
+	public long getInstantiationTimeout() {
+		return instantiator.getTimeout();
+	}
+
+	/**
+	 * Returns the {@link Instantiator} that creates this factory's
+	 * {@link Application}s, from which instantiation metrics may be read.
+	 */
+	public Instantiator getInstantiator() {
+		return instantiator;
+	}
+
+	public Application newApplication() throws JandalCoreException {
 		return this.newApplication(new Params());
 	}
 
-	public synchronized Application newApplication(Params params)
+	public Application newApplication(Params params)
 			throws JandalCoreException {
-		Class cls = null;
-		try {
-			Application app = (Application) getInstance(appClassName);
-			app.init(this.serviceSet, params);
-			return app;
-		} catch (ClassCastException cce) {
-			throw new BuildException("Failed to instantiate " + appClassName
-					+ " - it is not an implementation of "
-					+ JandalTest.class.getName());
+		final Object instance = instantiator.newInstance(appClassName);
+		if (!(instance instanceof Application)) {
+			throw new JandalCoreException("Failed to instantiate "
+					+ appClassName + " - it is not an implementation of "
+					+ Application.class.getName());
 		}
+		final Application app = (Application) instance;
+		app.init(this.serviceSet, params);
+		return app;
 	}
 
-	private Object getInstance(String className) throws JandalCoreException {
-		final InstantiationThread thread = new InstantiationThread(Thread
-				.currentThread(), className);
-		thread.start();
-		synchronized (this) {
-			try {
-				Thread.sleep(10000L); // TODO: Config param for this
-				throw new JandalCoreException("Failed to instantiate "
-						+ className
-						+ " - constructor timed out - instantiation exceeded "
-						+ 10000 + " milliseconds");
-			} catch (InterruptedException e) {
+	/**
+	 * Creates and starts a new {@link Application}, taking an already-started
+	 * one from the pool when the pool is enabled and no parameters are given.
+	 * 
+	 * @throws JandalCoreException
+	 *             Failed to instantiate or start the Application.
+	 */
+	public Application startApplication(Params params)
+			throws JandalCoreException {
+		if (poolSize > 0 && params.isEmpty()) {
+			final Application app = (Application) pool.poll();
+			refill();
+			if (app != null) {
+				poolHits.incrementAndGet();
+				return app;
 			}
+			poolMisses.incrementAndGet();
 		}
-		final Exception exception = thread.getException();
-		if (exception != null) {
-			throw new JandalCoreException("Failed to instantiate " + className
-					+ " - " + exception.toString(), exception);
+		return newStartedApplication(params);
+	}
+
+	/**
+	 * Writes a running {@link Application} to the given stream, from which
+	 * {@link #activateApplication(InputStream)} can later restore it. The
+	 * {@link Application} must be idle, and is left untouched, so it should be
+	 * discarded without being destroyed once written.
+	 * 
+	 * @throws JandalCoreException
+	 *             Application is not serializable or holds {@link Service}
+	 *             locks.
+	 */
+	public void passivateApplication(Application app, OutputStream out)
+			throws JandalCoreException {
+		ApplicationPassivator.write(app, out);
+	}
+
+	/**
+	 * Restores a running {@link Application} from a stream written by
+	 * {@link #passivateApplication(Application, OutputStream)}, giving it this
+	 * factory's {@link ServiceSet}.
+	 * 
+	 * @throws JandalCoreException
+	 *             Stream is not a passivated Application, or its classes have
+	 *             changed since.
+	 */
+	public Application activateApplication(InputStream in)
+			throws JandalCoreException {
+		return ApplicationPassivator.read(in, this.serviceSet);
+	}
+
+	/**
+	 * Sets whether Applications started without parameters are copied from a
+	 * prototype rather than started from scratch. Only enable this for
+	 * Application classes whose Controllers, States and EventProcessors keep no
+	 * state that is modified in place, since such values are shared with the
+	 * prototype; see {@link PrototypeCopier}.
+	 */
+	public synchronized void setPrototyping(boolean prototyping) {
+		this.prototyping = prototyping;
+		if (!prototyping && prototype != null) {
+			prototype.destroy();
+			prototype = null;
 		}
+	}
 
-		return thread.getInstance();
+	public boolean isPrototyping() {
+		return prototyping;
+	}
 
+	/**
+	 * Returns the number of Applications that were started by copying the
+	 * prototype.
+	 */
+	public long getPrototypeCopies() {
+		return prototypeCopies.get();
 	}
 
 	/*
-	 * Thread in which object is instantiated, so that we can check for timeout
-	 * in parent thread
-	 */
-	private static class InstantiationThread extends Thread {
-		public InstantiationThread(final Thread parent, final String className) {
-			super();
-			this.parent = parent;
-			this.className = className;
-			this.instance = null;
-			this.exception = null;
+	 * Makes and starts an Application, copying the prototype when enabled and
+	 * there are no parameters
+	 */
+	private Application newStartedApplication(Params params)
+			throws JandalCoreException {
+		if (prototyping && params.isEmpty()) {
+			final Application app = PrototypeCopier.copy(getPrototype());
+			prototypeCopies.incrementAndGet();
+			return app;
 		}
+		final Application app = newApplication(params);
+		app.start();
+		return app;
+	}
 
-		public void run() {
-			try {
-				final ClassLoader loader = this.getClass().getClassLoader();
-				final Class c = loader.loadClass(className);
-				this.instance = c.newInstance();
-			} catch (final Exception e) {
-				trimStackTrace(e);
-				this.exception = e;
-			}
-			parent.interrupt();
+	private synchronized Application getPrototype() throws JandalCoreException {
+		if (prototype == null) {
+			final Application app = newApplication(new Params());
+			app.start();
+			prototype = app;
 		}
+		return prototype;
+	}
 
-		/**
-		 * Trims off the last stack trace element in order to hide this class
-		 * from the stack trace. End effect is improved framework transparency.
-		 * 
-		 * @param e
-		 */
-		private void trimStackTrace(Exception e) {
-			StackTraceElement[] trace = e.getStackTrace();
-			StackTraceElement[] trace2 = new StackTraceElement[trace.length - 1];
-			for (int i = 0; i < trace.length - 1; i++) {
-				trace2[i] = trace[i];
+	/**
+	 * Sets the number of started {@link Application}s to keep ready in the
+	 * pool, zero to disable pooling. Shrinking the pool destroys the surplus
+	 * Applications; growing it starts filling the pool in the background.
+	 */
+	public void setPoolSize(int poolSize) {
+		if (poolSize < 0) {
+			throw new IllegalArgumentException("Pool size is negative");
+		}
+		this.poolSize = poolSize;
+		while (pool.size() > poolSize) {
+			final Application app = (Application) pool.poll();
+			if (app != null) {
+				app.destroy();
 			}
-			e.setStackTrace(trace2);
 		}
+		refill();
+	}
 
-		public Object getInstance() {
-			return instance;
-		}
+	public int getPoolSize() {
+		return poolSize;
+	}
 
-		public Exception getException() {
-			return exception;
-		}
+	/**
+	 * Returns the number of started {@link Application}s currently waiting in
+	 * the pool.
+	 */
+	public int getPooledCount() {
+		return pool.size();
+	}
+
+	/**
+	 * Returns the number of parameterless starts that were served from the
+	 * pool.
+	 */
+	public long getPoolHits() {
+		return poolHits.get();
+	}
 
-		private Thread parent;
+	/**
+	 * Returns the number of parameterless starts that found the pool empty
+	 * and had to start an {@link Application} inline.
+	 */
+	public long getPoolMisses() {
+		return poolMisses.get();
+	}
+
+	/**
+	 * Returns the number of {@link Application}s that failed to start while
+	 * refilling the pool.
+	 */
+	public long getPoolFailures() {
+		return poolFailures.get();
+	}
+
+	/**
+	 * Disables the pool and prototyping, stops the refill thread and destroys
+	 * any pooled {@link Application}s and the prototype.
+	 */
+	public void shutdown() {
+		setPoolSize(0);
+		final ExecutorService executor;
+		synchronized (this) {
+			executor = this.refillExecutor;
+			this.refillExecutor = null;
+		}
+		if (executor != null) {
+			executor.shutdownNow();
+		}
+		setPrototyping(false);
+	}
 
-		private String className;
+	/*
+	 * Schedules a background refill of the pool unless one is already running
+	 */
+	private void refill() {
+		if (pool.size() >= poolSize || !refilling.compareAndSet(false, true)) {
+			return;
+		}
+		getRefillExecutor().execute(new Runnable() {
+			public void run() {
+				try {
+					while (pool.size() < poolSize
+							&& !Thread.currentThread().isInterrupted()) {
+						final Application app;
+						try {
+							app = newStartedApplication(new Params());
+						} catch (JandalCoreException e) {
+							/*
+							 * Leave the pool short rather than spin on an
+							 * Application that cannot start; the next take
+							 * will try again
+							 */
+							poolFailures.incrementAndGet();
+							return;
+						}
+						if (pool.size() < poolSize) {
+							pool.offer(app);
+						} else {
+							/*
+							 * Pool shrunk or was shut down while starting
+							 */
+							app.destroy();
+						}
+					}
+				} finally {
+					refilling.set(false);
+				}
 
-		private Object instance;
+				/*
+				 * Catch any take that happened after the last size check
+				 */
+				refill();
+			}
+		});
+	}
 
-		private Exception exception;
+	private synchronized ExecutorService getRefillExecutor() {
+		if (refillExecutor == null) {
+			refillExecutor = Executors
+					.newSingleThreadExecutor(new ThreadFactory() {
+						public Thread newThread(Runnable r) {
+							final Thread thread = new Thread(r,
+									"jandal-application-pool-" + appClassName);
+							thread.setDaemon(true);
+							return thread;
+						}
+					});
+		}
+		return refillExecutor;
 	}
 
 	private String name;
@@ -145,4 +371,26 @@ public class ApplicationFactory {
 
 	private ServiceSet serviceSet;
 
-}
\ No newline at end of file
+	private final Instantiator instantiator;
+
+	private final BlockingQueue pool;
+
+	private volatile int poolSize;
+
+	private final AtomicBoolean refilling;
+
+	private final AtomicLong poolHits;
+
+	private final AtomicLong poolMisses;
+
+	private final AtomicLong poolFailures;
+
+	private ExecutorService refillExecutor;
+
+	private volatile boolean prototyping;
+
+	private Application prototype;
+
+	private final AtomicLong prototypeCopies;
+
+}
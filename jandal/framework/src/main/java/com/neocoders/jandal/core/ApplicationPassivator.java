@@ -0,0 +1,239 @@
+/*
+ * Copyright (C) 2007 Lindsay S. Kay, All rights Reserved.
+ *
+ * This software is provided "as-is", without any express or implied warranty. In no event will the 
+ * author be held liable for any damages arising from the use of this software.
+ *
+ * Permission is granted to anyone to use this software for any purpose, including commercial 
+ * applications, and to alter it and redistribute if freely, subject to the following restrictions:
+ *
+ *  1. The origin of this software must not be misrepresented: you must not claim that you wrote 
+ * 	the original software. if you use this software in a product, an acknowledgement in the product 
+ * 	documentation would be appreciated but is not required.
+ * 
+ *  2. Altered source versions must be plainly marked as such, and must not be misrepresented 
+ * 	as the original software.
+ * 
+  * 3. This notice must not be removed or altered from any source distribution.
+ */
+package com.neocoders.jandal.core;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.NotSerializableException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamClass;
+import java.io.OutputStream;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Writes a running {@link Application} to a stream with Java serialization,
+ * and reads it back as a running {@link Application}, so that an idle
+ * {@link Application} can be dropped from memory and restored when next
+ * needed.
+ * <p/>
+ * The {@link Application}, {@link Controller}s, {@link State}s,
+ * {@link EventProcessor}s and their outputs and fields are written as they
+ * are, so all of them must be serializable. The framework's own machinery is
+ * not written: the execution context and {@link ServiceCache}s are written as
+ * placeholders from which new ones are made when the {@link Application} is
+ * read, {@link OutputSnapshot}s are recommitted, and {@link ResourceAccessor}s
+ * are made again on demand. Each {@link Controller} keeps its ID, so views
+ * rendered before passivation still refer to the right {@link Controller}s
+ * afterwards. Application listeners are not kept.
+ * <p/>
+ * An {@link Application} holding {@link Service} locks cannot be passivated,
+ * since the locks cannot be given back and taken again on its behalf.
+ * 
+ * @author lindsay
+ * 
+ */
+class ApplicationPassivator {
+
+	/**
+	 * Writes the given running {@link Application} to the given stream.
+	 * 
+	 * @throws JandalCoreException
+	 *             Application or its state is not serializable, or it holds
+	 *             {@link Service} locks.
+	 */
+	static void write(Application app, OutputStream out)
+			throws JandalCoreException {
+		if (!app.isActive()) {
+			throw new JandalCoreException(
+					"Application cannot be passivated - it is not active");
+		}
+		try {
+			final ObjectOutputStream oos = new PassivatingOutputStream(out);
+			oos.writeObject(app);
+			oos.flush();
+		} catch (NotSerializableException e) {
+			throw new JandalCoreException(
+					"Application cannot be passivated - not serializable: "
+							+ e.getMessage(), e);
+		} catch (IOException e) {
+			throw new JandalCoreException("Failed to passivate Application: "
+					+ e.getMessage(), e);
+		}
+	}
+
+	/**
+	 * Reads an {@link Application} written by
+	 * {@link #write(Application, OutputStream)} back from the given stream,
+	 * running again with the given {@link ServiceSet}.
+	 * 
+	 * @throws JandalCoreException
+	 *             Stream is not a passivated Application, or refers to
+	 *             classes that can no longer be loaded or have changed.
+	 */
+	static Application read(InputStream in, ServiceSet serviceSet)
+			throws JandalCoreException {
+		final ActivatingInputStream ois;
+		final Application app;
+		try {
+			ois = new ActivatingInputStream(in, serviceSet);
+			app = (Application) ois.readObject();
+		} catch (ClassNotFoundException e) {
+			throw new JandalCoreException("Failed to activate Application: "
+					+ e.getMessage(), e);
+		} catch (ClassCastException e) {
+			throw new JandalCoreException(
+					"Failed to activate Application - stream holds something else",
+					e);
+		} catch (IOException e) {
+			throw new JandalCoreException("Failed to activate Application: "
+					+ e.getMessage(), e);
+		}
+		if (ois.exeContext == null) {
+			throw new JandalCoreException(
+					"Failed to activate Application - no execution context found");
+		}
+		ois.exeContext.setApplication(app);
+		for (Iterator i = ois.serviceCaches.iterator(); i.hasNext();) {
+			((ServiceCache) i.next()).setAppId(app.getId());
+		}
+		restore(ois.exeContext, app.getRootController());
+		ois.exeContext.finishRestore();
+		return app;
+	}
+
+	/*
+	 * Registers a restored Controller and its running descendants under
+	 * their old IDs, and recommits their snapshots
+	 */
+	private static void restore(ApplicationExeContext exeContext,
+			Controller controller) throws JandalCoreException {
+		exeContext.restoreActiveController(controller);
+		controller.commitOutputs();
+		for (Iterator i = controller.getChildControllers().iterator(); i
+				.hasNext();) {
+			restore(exeContext, (Controller) i.next());
+		}
+	}
+
+	/*
+	 * Placeholder written for the execution context
+	 */
+	private static final class ContextPlaceholder implements Serializable {
+		private static final long serialVersionUID = 1L;
+	}
+
+	/*
+	 * Placeholder written for a ServiceCache, remembering where it hangs in
+	 * the tree of caches
+	 */
+	private static final class ServiceCachePlaceholder implements Serializable {
+		private static final long serialVersionUID = 1L;
+
+		ServiceCachePlaceholder(ServiceCache parent) {
+			this.parent = parent;
+		}
+
+		final ServiceCache parent;
+	}
+
+	/*
+	 * Placeholder written for an OutputSnapshot
+	 */
+	private static final class SnapshotPlaceholder implements Serializable {
+		private static final long serialVersionUID = 1L;
+	}
+
+	private static final class PassivatingOutputStream extends
+			ObjectOutputStream {
+
+		PassivatingOutputStream(OutputStream out) throws IOException {
+			super(out);
+			enableReplaceObject(true);
+		}
+
+		protected Object replaceObject(Object obj) throws IOException {
+			if (obj instanceof ApplicationExeContext) {
+				return new ContextPlaceholder();
+			} else if (obj instanceof ServiceCache) {
+				final ServiceCache serviceCache = (ServiceCache) obj;
+				if (serviceCache.holdsLocks()) {
+					throw new NotSerializableException(
+							"Application holds Service locks");
+				}
+				return new ServiceCachePlaceholder(serviceCache.getParent());
+			} else if (obj instanceof OutputSnapshot) {
+				return new SnapshotPlaceholder();
+			} else if (obj instanceof ResourceAccessor) {
+				return null;
+			}
+			return obj;
+		}
+	}
+
+	private static final class ActivatingInputStream extends
+			ObjectInputStream {
+
+		ActivatingInputStream(InputStream in, ServiceSet serviceSet)
+				throws IOException {
+			super(in);
+			this.serviceSet = serviceSet;
+			this.serviceCaches = new ArrayList();
+			enableResolveObject(true);
+		}
+
+		protected Class resolveClass(ObjectStreamClass desc)
+				throws IOException, ClassNotFoundException {
+			try {
+				return Class.forName(desc.getName(), false,
+						ApplicationPassivator.class.getClassLoader());
+			} catch (ClassNotFoundException e) {
+				return super.resolveClass(desc);
+			}
+		}
+
+		protected Object resolveObject(Object obj) throws IOException {
+			if (obj instanceof ContextPlaceholder) {
+				if (exeContext == null) {
+					exeContext = new ApplicationExeContext(serviceSet, null);
+				}
+				return exeContext;
+			} else if (obj instanceof ServiceCachePlaceholder) {
+				final ServiceCache parent = ((ServiceCachePlaceholder) obj).parent;
+				final ServiceCache serviceCache = (parent == null) ? new ServiceCache(
+						null, serviceSet)
+						: new ServiceCache(parent);
+				serviceCaches.add(serviceCache);
+				return serviceCache;
+			} else if (obj instanceof SnapshotPlaceholder) {
+				return OutputSnapshot.EMPTY;
+			}
+			return obj;
+		}
+
+		private final ServiceSet serviceSet;
+
+		private final List serviceCaches;
+
+		private ApplicationExeContext exeContext;
+	}
+}
@@ -0,0 +1,94 @@
+/*
+ * Copyright (C) 2007 Lindsay S. Kay, All rights Reserved.
+ *
+ * This software is provided "as-is", without any express or implied warranty. In no event will the 
+ * author be held liable for any damages arising from the use of this software.
+ *
+ * Permission is granted to anyone to use this software for any purpose, including commercial 
+ * applications, and to alter it and redistribute if freely, subject to the following restrictions:
+ *
+ *  1. The origin of this software must not be misrepresented: you must not claim that you wrote 
+ * 	the original software. if you use this software in a product, an acknowledgement in the product 
+ * 	documentation would be appreciated but is not required.
+ * 
+ *  2. Altered source versions must be plainly marked as such, and must not be misrepresented 
+ * 	as the original software.
+ * 
+  * 3. This notice must not be removed or altered from any source distribution.
+ */
+package com.neocoders.jandal.core;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * Immutable, versioned view of the committed {@link OutputSnapshot}s of all
+ * of an {@link Application}'s {@link Controller}s.
+ * <p/>
+ * When an event finishes, the snapshots of all the {@link Controller}s it
+ * changed are published together as a new view of the whole
+ * {@link Application}. A view that renders from one of these sees every
+ * {@link Controller} as it was after the same event, even when another event
+ * commits part way through the render, whereas snapshots taken from each
+ * {@link Controller} in turn could mix the outputs of different events.
+ * 
+ * @author lindsay
+ * 
+ */
+public final class ApplicationSnapshot {
+
+	static final ApplicationSnapshot EMPTY = new ApplicationSnapshot(0L,
+			Collections.EMPTY_MAP);
+
+	private ApplicationSnapshot(long version, Map outputSnapshots) {
+		this.version = version;
+		this.outputSnapshots = outputSnapshots;
+	}
+
+	/**
+	 * Returns the version of this snapshot, which increases with each commit
+	 * of the {@link Application}.
+	 */
+	public long getVersion() {
+		return version;
+	}
+
+	/**
+	 * Returns the snapshot of the given {@link Controller} as of this
+	 * {@link Application} snapshot. A {@link Controller} that has not been
+	 * committed since its {@link Application} was passivated or copied is not
+	 * held here, and its last committed snapshot is returned instead.
+	 */
+	public OutputSnapshot getOutputSnapshot(Controller controller) {
+		final OutputSnapshot snapshot = (OutputSnapshot) outputSnapshots
+				.get(controller);
+		return (snapshot == null) ? controller.getOutputSnapshot() : snapshot;
+	}
+
+	/**
+	 * Returns the next version of this snapshot, with the last committed
+	 * snapshots of the given {@link Controller}s in place of those held, and
+	 * without the given stopped ones.
+	 */
+	ApplicationSnapshot commit(Collection committed, Collection stopped) {
+		final Map next = new IdentityHashMap(outputSnapshots);
+		for (Iterator i = committed.iterator(); i.hasNext();) {
+			final Controller controller = (Controller) i.next();
+			next.put(controller, controller.getOutputSnapshot());
+		}
+		for (Iterator i = stopped.iterator(); i.hasNext();) {
+			next.remove(i.next());
+		}
+		return new ApplicationSnapshot(version + 1, next);
+	}
+
+	private final long version;
+
+	/*
+	 * Never changed once made
+	 */
+	private final Map outputSnapshots;
+}
@@ -0,0 +1,380 @@
+/*
+ * Copyright (C) 2007 Lindsay S. Kay, All rights Reserved.
+ *
+ * This software is provided "as-is", without any express or implied warranty. In no event will the 
+ * author be held liable for any damages arising from the use of this software.
+ *
+ * Permission is granted to anyone to use this software for any purpose, including commercial 
+ * applications, and to alter it and redistribute if freely, subject to the following restrictions:
+ *
+ *  1. The origin of this software must not be misrepresented: you must not claim that you wrote 
+ * 	the original software. if you use this software in a product, an acknowledgement in the product 
+ * 	documentation would be appreciated but is not required.
+ * 
+ *  2. Altered source versions must be plainly marked as such, and must not be misrepresented 
+ * 	as the original software.
+ * 
+  * 3. This notice must not be removed or altered from any source distribution.
+ */
+package com.neocoders.jandal.core;
+
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Wraps an {@link ApplicationListener} so that it is notified on a background
+ * thread instead of within the request that caused the notification. Add the
+ * wrapper to an {@link Application} in place of the listener it wraps:
+ * 
+ * <pre>
+ * app.addApplicationListener(new AsyncApplicationListener(auditListener, 1024,
+ * 		AsyncApplicationListener.DROP));
+ * </pre>
+ * 
+ * Notifications are queued in a bounded, lock-free {@link RingBuffer} and
+ * delivered to the wrapped listener one at a time, in the order they were
+ * made. When the buffer is full, the {@link #DROP} policy discards the new
+ * notification, while {@link #BLOCK} holds up the notifying thread until the
+ * listener catches up.
+ * <p/>
+ * Since delivery happens after the fact, the {@link Controller}s and
+ * {@link Application} passed to the wrapped listener may have moved on or
+ * stopped by the time it sees them, so only listeners that merely record
+ * notifications, such as for auditing or metrics, should be made
+ * asynchronous. The {@link Controller}s updated by a view event are queued as
+ * one notification, and delivered one at a time unless the wrapped listener is
+ * a {@link BatchApplicationListener}. Exceptions thrown by the wrapped
+ * listener are counted and otherwise ignored.
+ * 
+ * @author lindsay
+ * 
+ */
+public class AsyncApplicationListener implements BatchApplicationListener {
+
+	/**
+	 * Full buffer policy - discard the notification.
+	 */
+	public static final int DROP = 0;
+
+	/**
+	 * Full buffer policy - wait for room in the buffer.
+	 */
+	public static final int BLOCK = 1;
+
+	public static final int DEFAULT_CAPACITY = 1024;
+
+	/**
+	 * Wraps a listener, delivering notifications on the given executor.
+	 * 
+	 * @param listener
+	 *            Listener to notify.
+	 * @param capacity
+	 *            Maximum number of notifications waiting for delivery.
+	 * @param policy
+	 *            {@link #DROP} or {@link #BLOCK}.
+	 * @param executor
+	 *            Executor to deliver on.
+	 */
+	public AsyncApplicationListener(ApplicationListener listener,
+			int capacity, int policy, Executor executor) {
+		if (listener == null) {
+			throw new IllegalArgumentException("Listener is null");
+		}
+		if (policy != DROP && policy != BLOCK) {
+			throw new IllegalArgumentException("Unknown policy: " + policy);
+		}
+		if (executor == null) {
+			throw new IllegalArgumentException("Executor is null");
+		}
+		this.listener = listener;
+		this.policy = policy;
+		this.executor = executor;
+		this.ring = new RingBuffer(capacity);
+		this.scheduled = new AtomicBoolean(false);
+		this.numDelivered = new AtomicLong();
+		this.numDropped = new AtomicLong();
+		this.numFailed = new AtomicLong();
+		this.totalLagNanos = new AtomicLong();
+		this.maxLagNanos = new AtomicLong();
+		this.drainer = new Runnable() {
+			public void run() {
+				drain();
+			}
+		};
+	}
+
+	/**
+	 * Wraps a listener, delivering notifications on a pool shared by all
+	 * asynchronous listeners.
+	 */
+	public AsyncApplicationListener(ApplicationListener listener,
+			int capacity, int policy) {
+		this(listener, capacity, policy, getSharedExecutor());
+	}
+
+	/**
+	 * Wraps a listener with the default capacity and the {@link #DROP}
+	 * policy.
+	 */
+	public AsyncApplicationListener(ApplicationListener listener) {
+		this(listener, DEFAULT_CAPACITY, DROP);
+	}
+
+	public ApplicationListener getListener() {
+		return listener;
+	}
+
+	public void applicationStarting(Application app) {
+		post(APPLICATION_STARTING, app);
+	}
+
+	public void controllerStarting(Controller controller) {
+		post(CONTROLLER_STARTING, controller);
+	}
+
+	public void controllerStopping(Controller controller) {
+		post(CONTROLLER_STOPPING, controller);
+	}
+
+	public void controllerUpdated(Controller controller) {
+		post(CONTROLLER_UPDATED, controller);
+	}
+
+	public void controllersUpdated(Collection controllers) {
+		post(CONTROLLERS_UPDATED, controllers);
+	}
+
+	public void applicationStopping(Application app) {
+		post(APPLICATION_STOPPING, app);
+	}
+
+	public void applicationDestroying(Application app) {
+		post(APPLICATION_DESTROYING, app);
+	}
+
+	/**
+	 * Returns the number of notifications waiting for delivery.
+	 */
+	public int getBacklog() {
+		return ring.size();
+	}
+
+	public int getCapacity() {
+		return ring.capacity();
+	}
+
+	/**
+	 * Returns the number of notifications delivered to the wrapped listener.
+	 */
+	public long getDeliveredCount() {
+		return numDelivered.get();
+	}
+
+	/**
+	 * Returns the number of notifications discarded because the buffer was
+	 * full.
+	 */
+	public long getDroppedCount() {
+		return numDropped.get();
+	}
+
+	/**
+	 * Returns the number of notifications on which the wrapped listener threw
+	 * an exception.
+	 */
+	public long getFailedCount() {
+		return numFailed.get();
+	}
+
+	/**
+	 * Returns the mean time from notification to delivery, in nanoseconds.
+	 */
+	public long getMeanLagNanos() {
+		final long count = numDelivered.get();
+		return (count == 0L) ? 0L : totalLagNanos.get() / count;
+	}
+
+	/**
+	 * Returns the longest time from notification to delivery, in nanoseconds.
+	 */
+	public long getMaxLagNanos() {
+		return maxLagNanos.get();
+	}
+
+	/**
+	 * Returns the time from notification to delivery of the most recently
+	 * delivered notification, in nanoseconds.
+	 */
+	public long getLastLagNanos() {
+		return lastLagNanos;
+	}
+
+	private void post(int type, Object subject) {
+		final Notification notification = new Notification(type, subject);
+		if (Thread.currentThread() == drainingThread) {
+			/*
+			 * Wrapped listener caused a notification - queueing it behind
+			 * ourselves could wait forever under BLOCK
+			 */
+			deliver(notification);
+			return;
+		}
+		while (!ring.offer(notification)) {
+			if (policy == DROP) {
+				numDropped.incrementAndGet();
+				return;
+			}
+			schedule();
+			LockSupport.parkNanos(BLOCK_PARK_NANOS);
+		}
+		schedule();
+	}
+
+	private void schedule() {
+		if (!ring.isEmpty() && scheduled.compareAndSet(false, true)) {
+			executor.execute(drainer);
+		}
+	}
+
+	private void drain() {
+		drainingThread = Thread.currentThread();
+		try {
+			Notification notification;
+			while ((notification = (Notification) ring.poll()) != null) {
+				deliver(notification);
+			}
+		} finally {
+			drainingThread = null;
+			scheduled.set(false);
+			schedule();
+		}
+	}
+
+	private void deliver(Notification notification) {
+		final long lag = System.nanoTime() - notification.postNanos;
+		try {
+			switch (notification.type) {
+			case APPLICATION_STARTING:
+				listener.applicationStarting((Application) notification.subject);
+				break;
+			case CONTROLLER_STARTING:
+				listener.controllerStarting((Controller) notification.subject);
+				break;
+			case CONTROLLER_STOPPING:
+				listener.controllerStopping((Controller) notification.subject);
+				break;
+			case CONTROLLER_UPDATED:
+				listener.controllerUpdated((Controller) notification.subject);
+				break;
+			case CONTROLLERS_UPDATED:
+				if (listener instanceof BatchApplicationListener) {
+					((BatchApplicationListener) listener)
+							.controllersUpdated((Collection) notification.subject);
+				} else {
+					for (Iterator i = ((Collection) notification.subject)
+							.iterator(); i.hasNext();) {
+						listener.controllerUpdated((Controller) i.next());
+					}
+				}
+				break;
+			case APPLICATION_STOPPING:
+				listener.applicationStopping((Application) notification.subject);
+				break;
+			case APPLICATION_DESTROYING:
+				listener
+						.applicationDestroying((Application) notification.subject);
+				break;
+			}
+		} catch (RuntimeException e) {
+			numFailed.incrementAndGet();
+		}
+		numDelivered.incrementAndGet();
+		totalLagNanos.addAndGet(lag);
+		lastLagNanos = lag;
+		for (long max = maxLagNanos.get(); lag > max; max = maxLagNanos.get()) {
+			if (maxLagNanos.compareAndSet(max, lag)) {
+				break;
+			}
+		}
+	}
+
+	private static synchronized Executor getSharedExecutor() {
+		if (sharedExecutor == null) {
+			sharedExecutor = Executors.newCachedThreadPool(new ThreadFactory() {
+				public Thread newThread(Runnable r) {
+					final Thread thread = new Thread(r, "jandal-listener-"
+							+ threadCount.incrementAndGet());
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+		}
+		return sharedExecutor;
+	}
+
+	private static class Notification {
+		Notification(int type, Object subject) {
+			this.type = type;
+			this.subject = subject;
+			this.postNanos = System.nanoTime();
+		}
+
+		final int type;
+
+		final Object subject;
+
+		final long postNanos;
+	}
+
+	private static final int APPLICATION_STARTING = 0;
+
+	private static final int CONTROLLER_STARTING = 1;
+
+	private static final int CONTROLLER_STOPPING = 2;
+
+	private static final int CONTROLLER_UPDATED = 3;
+
+	private static final int CONTROLLERS_UPDATED = 4;
+
+	private static final int APPLICATION_STOPPING = 5;
+
+	private static final int APPLICATION_DESTROYING = 6;
+
+	private static final long BLOCK_PARK_NANOS = 50000L;
+
+	private static final AtomicLong threadCount = new AtomicLong();
+
+	private static Executor sharedExecutor;
+
+	private final ApplicationListener listener;
+
+	private final int policy;
+
+	private final Executor executor;
+
+	private final RingBuffer ring;
+
+	private final AtomicBoolean scheduled;
+
+	private final Runnable drainer;
+
+	private volatile Thread drainingThread;
+
+	private final AtomicLong numDelivered;
+
+	private final AtomicLong numDropped;
+
+	private final AtomicLong numFailed;
+
+	private final AtomicLong totalLagNanos;
+
+	private final AtomicLong maxLagNanos;
+
+	private volatile long lastLagNanos;
+}
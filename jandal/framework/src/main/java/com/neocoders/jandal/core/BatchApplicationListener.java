@@ -0,0 +1,43 @@
+/*
+ * Copyright (C) 2007 Lindsay S. Kay, All rights Reserved.
+ *
+ * This software is provided "as-is", without any express or implied warranty. In no event will the 
+ * author be held liable for any damages arising from the use of this software.
+ *
+ * Permission is granted to anyone to use this software for any purpose, including commercial 
+ * applications, and to alter it and redistribute if freely, subject to the following restrictions:
+ *
+ *  1. The origin of this software must not be misrepresented: you must not claim that you wrote 
+ * 	the original software. if you use this software in a product, an acknowledgement in the product 
+ * 	documentation would be appreciated but is not required.
+ * 
+ *  2. Altered source versions must be plainly marked as such, and must not be misrepresented 
+ * 	as the original software.
+ * 
+  * 3. This notice must not be removed or altered from any source distribution.
+ */
+package com.neocoders.jandal.core;
+
+import java.util.Collection;
+
+/**
+ * An {@link ApplicationListener} that would rather hear of the
+ * {@link Controller}s updated by a view event or {@link Application} start all
+ * together, once the event or start is done, than one at a time.
+ * {@link #controllerUpdated(Controller)} is then only called for updates made
+ * outside of a view event or {@link Application} start.
+ * 
+ * @author lindsay
+ * 
+ */
+public interface BatchApplicationListener extends ApplicationListener {
+
+	/**
+	 * The given {@link Controller}s changed active {@link State} or wrote
+	 * output while a view event was processed or the {@link Application}
+	 * started. Called once when the event or start is done, with each
+	 * {@link Controller} listed once, in the order they were first updated.
+	 * Some of them may have stopped since they were updated.
+	 */
+	public void controllersUpdated(Collection controllers);
+}
@@ -0,0 +1,99 @@
+/*
+ * Copyright (C) 2007 Lindsay S. Kay, All rights Reserved.
+ *
+ * This software is provided "as-is", without any express or implied warranty. In no event will the 
+ * author be held liable for any damages arising from the use of this software.
+ *
+ * Permission is granted to anyone to use this software for any purpose, including commercial 
+ * applications, and to alter it and redistribute if freely, subject to the following restrictions:
+ *
+ *  1. The origin of this software must not be misrepresented: you must not claim that you wrote 
+ * 	the original software. if you use this software in a product, an acknowledgement in the product 
+ * 	documentation would be appreciated but is not required.
+ * 
+ *  2. Altered source versions must be plainly marked as such, and must not be misrepresented 
+ * 	as the original software.
+ * 
+  * 3. This notice must not be removed or altered from any source distribution.
+ */
+
+package com.neocoders.jandal.core;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.HashMap;
+
+/**
+ * A {@link Resource} held in memory, such as a report or export that a
+ * {@link Controller} has generated. It is written straight from its array,
+ * and may be downloaded in ranges.
+ * 
+ * @author lindsay
+ * 
+ */
+public class ByteArrayResource extends Resource {
+
+	/**
+	 * Creates a {@link ByteArrayResource} with content type inferred from file
+	 * name extension.
+	 * 
+	 * @param fileName
+	 *            Name of the file, as the client should see it.
+	 * @param content
+	 *            The file content, which must not be modified afterwards.
+	 */
+	public ByteArrayResource(String fileName, byte[] content) {
+		this(fileName, Utils.getContentType(fileName), content);
+	}
+
+	/**
+	 * Creates a {@link ByteArrayResource} with explicitly specified content
+	 * type.
+	 * 
+	 * @param fileName
+	 *            Name of the file, as the client should see it.
+	 * @param mimeType
+	 *            MIME type
+	 * @param content
+	 *            The file content, which must not be modified afterwards.
+	 */
+	public ByteArrayResource(String fileName, String mimeType, byte[] content) {
+		super(fileName, mimeType, new HashMap());
+		this.content = content;
+		this.lastModified = System.currentTimeMillis();
+	}
+
+	public InputStream getInputStream() throws JandalCoreException {
+		return new ByteArrayInputStream(content);
+	}
+
+	public long getLength() {
+		return content.length;
+	}
+
+	public long getLastModified() {
+		return lastModified;
+	}
+
+	public void write(OutputStream out, long offset, long length)
+			throws JandalCoreException {
+		if (offset >= content.length) {
+			return;
+		}
+		if (length < 0 || offset + length > content.length) {
+			length = content.length - offset;
+		}
+		try {
+			out.write(content, (int) offset, (int) length);
+		} catch (IOException e) {
+			throw new JandalCoreException("IO exception writing resource : \""
+					+ getFileName() + "\"", e);
+		}
+	}
+
+	private final byte[] content;
+
+	private final long lastModified;
+}
@@ -18,7 +18,9 @@
  */
 package com.neocoders.jandal.core;
 
+import java.io.Serializable;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.Map;
@@ -120,7 +122,10 @@ import java.util.Map;
  * @author lindsay
  * 
  */
-public abstract class Controller {
+public abstract class Controller implements Cloneable, Serializable {
+
+	private static final long serialVersionUID = 1L;
+
 	/**
 	 * Creates a controller.
 	 * 
@@ -138,6 +143,7 @@ public abstract class Controller {
 		currentState = null;
 		params = null;
 		outputs = new HashMap();
+		outputSnapshot = OutputSnapshot.EMPTY;
 		resources = null;
 		path = null;
 		active = false;
@@ -170,9 +176,9 @@ public abstract class Controller {
 		this.params = params;
 		this.active = true;
 		this.serviceCache = serviceCache;
+		this.exeContext.registerActiveController(this);
 		this.exeContext.controllerStarting(this);
 		onStart();
-		this.exeContext.registerActiveController(this);
 	}
 
 	/**
@@ -200,9 +206,9 @@ public abstract class Controller {
 		this.params = params;
 		this.active = true;
 		this.serviceCache = serviceCache;
+		this.exeContext.registerActiveController(this);
 		this.exeContext.controllerStarting(this);
 		onStart();
-		this.exeContext.registerActiveController(this);
 	}
 
 	/**
@@ -228,12 +234,29 @@ public abstract class Controller {
 	/**
 	 * Returns ID of this controller instance. Note that this is transient; if
 	 * the controller is destroyed then later instantiated, it will have a
-	 * different ID..
+	 * different ID. IDs are never reused within an {@link Application}.
 	 * 
 	 * 
 	 */
 	public final String getId() throws JandalCoreException {
-		return "" + this.hashCode();
+		return idString;
+	}
+
+	/**
+	 * Returns the ID of this controller instance in numeric form, as used to
+	 * look it up with {@link Application#getControllerWithId(long)}.
+	 */
+	public final long getNumericId() {
+		return id;
+	}
+
+	/**
+	 * Called by the {@link ControllerRegistry} when this controller is
+	 * registered.
+	 */
+	final void setId(long id) {
+		this.id = id;
+		this.idString = Long.toString(id);
 	}
 
 	/**
@@ -305,7 +328,25 @@ public abstract class Controller {
 			throw new RuntimeException("Failed to process view event - "
 					+ "no states defined for controller");
 		}
-		currentState.processViewEvent(eventName, params);
+		/*
+		 * Changes made while processing the event are published to views
+		 * together once it is done
+		 */
+		final ApplicationExeContext exeContext = this.exeContext;
+		/*
+		 * Path is taken first, since the event may stop this controller
+		 */
+		final String path = exeContext.hasViewEventListener() ? getPath()
+				: null;
+		exeContext.beginTransaction();
+		try {
+			currentState.processViewEvent(eventName, params);
+			if (path != null) {
+				exeContext.viewEventProcessed(path, eventName, params);
+			}
+		} finally {
+			exeContext.commitTransaction();
+		}
 	}
 
 	ServiceCache getServiceCache() {
@@ -394,6 +435,29 @@ public abstract class Controller {
 		return value;
 	}
 
+	/**
+	 * Returns the last committed {@link OutputSnapshot} of this controller's
+	 * outputs, current {@link State} name and child controllers. Unlike
+	 * {@link #getOutput(String)}, this may be called while an event is being
+	 * processed on another thread, and still works once this controller is no
+	 * longer active.
+	 */
+	public final OutputSnapshot getOutputSnapshot() {
+		return outputSnapshot;
+	}
+
+	/**
+	 * Publishes the current outputs, {@link State} name and child controllers
+	 * as a new {@link OutputSnapshot}. Called by the execution context when
+	 * changes are committed.
+	 */
+	final void commitOutputs() {
+		outputSnapshot = new OutputSnapshot(++outputVersion,
+				(currentState == null) ? null : currentState.getName(),
+				outputs, (currentState == null) ? Collections.EMPTY_LIST
+						: currentState.getChildControllerList());
+	}
+
 	/**
 	 * Returns the child controller with the given name, or null if not found.
 	 * 
@@ -423,6 +487,19 @@ public abstract class Controller {
 		return this.currentState.getChildControllers();
 	}
 
+	/**
+	 * Returns the controller whose current {@link State} contains this
+	 * controller, or null if this is the root controller.
+	 * 
+	 * @throws JandalCoreException
+	 *             This controller instance is no longer active.
+	 */
+	public final Controller getParentController() throws JandalCoreException {
+		assertActive();
+		return (enclosingState == null) ? null : enclosingState
+				.getEnclosingController();
+	}
+
 	/**
 	 * Returns the {@link Application} that contains this controller.
 	 * 
@@ -823,11 +900,21 @@ public abstract class Controller {
 		 */
 
 		this.unlockMyServices();
-		this.exeContext.controllerStopping(this);
-		exeContext.deregisterActiveController(this);
-		this.active = false;
-		if (currentState != null) {
-			currentState.destroy();
+		/*
+		 * The whole subtree stops within one transaction, so that views see
+		 * it go in a single publish rather than one per controller
+		 */
+		final ApplicationExeContext exeContext = this.exeContext;
+		exeContext.beginTransaction();
+		try {
+			exeContext.controllerStopping(this);
+			exeContext.deregisterActiveController(this);
+			this.active = false;
+			if (currentState != null) {
+				currentState.destroy();
+			}
+		} finally {
+			exeContext.commitTransaction();
 		}
 	}
 
@@ -878,6 +965,18 @@ public abstract class Controller {
 		sb.append(c.getName());
 	}
 
+	/**
+	 * Returns a field-for-field copy of this controller, for
+	 * {@link PrototypeCopier}.
+	 */
+	final Object shallowCopy() {
+		try {
+			return super.clone();
+		} catch (CloneNotSupportedException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
 	private final void assertActive() throws JandalCoreException {
 		if (!active) {
 			throw new JandalCoreException("Controller instance is not active");
@@ -916,7 +1015,11 @@ public abstract class Controller {
 
 	private final Map outputs;
 
-	private ResourceAccessor resources;
+	private volatile OutputSnapshot outputSnapshot;
+
+	private long outputVersion;
+
+	private volatile ResourceAccessor resources;
 
 	private String path;
 
@@ -924,4 +1027,8 @@ public abstract class Controller {
 
 	private ServiceCache serviceCache;
 
+	private long id;
+
+	private String idString;
+
 }
@@ -0,0 +1,215 @@
+/*
+ * Copyright (C) 2007 Lindsay S. Kay, All rights Reserved.
+ *
+ * This software is provided "as-is", without any express or implied warranty. In no event will the 
+ * author be held liable for any damages arising from the use of this software.
+ *
+ * Permission is granted to anyone to use this software for any purpose, including commercial 
+ * applications, and to alter it and redistribute if freely, subject to the following restrictions:
+ *
+ *  1. The origin of this software must not be misrepresented: you must not claim that you wrote 
+ * 	the original software. if you use this software in a product, an acknowledgement in the product 
+ * 	documentation would be appreciated but is not required.
+ * 
+ *  2. Altered source versions must be plainly marked as such, and must not be misrepresented 
+ * 	as the original software.
+ * 
+  * 3. This notice must not be removed or altered from any source distribution.
+ */
+package com.neocoders.jandal.core;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Registry of the running {@link Controller}s within an {@link Application},
+ * giving constant-time lookup by ID or path.
+ * <p/>
+ * Each registered {@link Controller} is put in a slot of an array, and its ID
+ * is made from a serial number that increases with each registration, shifted
+ * up over the slot index. Finding a {@link Controller} by ID is then just an
+ * array read, and an ID left over from a destroyed {@link Controller} never
+ * finds the one that has since taken its slot, because the serial numbers
+ * won't match. Slots are recycled, so the array stays as dense as the tree.
+ * <p/>
+ * Registrations are serialized, but lookups take no lock and may safely run
+ * alongside them, for example while a view renders during event processing.
+ * 
+ * @author lindsay
+ * 
+ */
+class ControllerRegistry {
+
+	/**
+	 * Number of low-order bits of a {@link Controller} ID that hold its slot.
+	 */
+	static final int SLOT_BITS = 24;
+
+	private static final long SLOT_MASK = (1L << SLOT_BITS) - 1;
+
+	private static final int INITIAL_CAPACITY = 16;
+
+	public ControllerRegistry() {
+		this.slots = new AtomicReferenceArray(INITIAL_CAPACITY);
+		this.freeSlots = new int[INITIAL_CAPACITY];
+		this.numFreeSlots = 0;
+		this.numSlotsUsed = 0;
+		this.nextSerial = 1L;
+		this.pathMap = new ConcurrentHashMap();
+	}
+
+	/**
+	 * Gives the controller a slot and a fresh ID.
+	 * 
+	 * @return The ID.
+	 */
+	public synchronized long register(Controller controller, String path) {
+		final int slot;
+		if (numFreeSlots > 0) {
+			slot = freeSlots[--numFreeSlots];
+		} else {
+			if (numSlotsUsed > SLOT_MASK) {
+				throw new IllegalStateException(
+						"Too many controllers running at once");
+			}
+			slot = numSlotsUsed++;
+			if (slot >= slots.length()) {
+				grow();
+			}
+		}
+		final long id = (nextSerial++ << SLOT_BITS) | slot;
+		controller.setId(id);
+		slots.set(slot, controller);
+		pathMap.put(path, controller);
+		return id;
+	}
+
+	/**
+	 * Puts a controller back in the slot it had when its {@link Application}
+	 * was passivated, keeping its ID. Once every controller is back,
+	 * {@link #finishRestore()} must be called.
+	 */
+	public synchronized void restore(Controller controller, String path) {
+		final long id = controller.getNumericId();
+		final int slot = (int) (id & SLOT_MASK);
+		while (slot >= slots.length()) {
+			grow();
+		}
+		slots.set(slot, controller);
+		pathMap.put(path, controller);
+		if (slot >= numSlotsUsed) {
+			numSlotsUsed = slot + 1;
+		}
+		final long serial = id >>> SLOT_BITS;
+		if (serial >= nextSerial) {
+			nextSerial = serial + 1;
+		}
+	}
+
+	/**
+	 * Frees the slots left empty among those restored.
+	 */
+	public synchronized void finishRestore() {
+		numFreeSlots = 0;
+		for (int slot = 0; slot < numSlotsUsed; slot++) {
+			if (slots.get(slot) == null) {
+				if (numFreeSlots == freeSlots.length) {
+					final int[] grown = new int[freeSlots.length * 2];
+					System.arraycopy(freeSlots, 0, grown, 0, numFreeSlots);
+					freeSlots = grown;
+				}
+				freeSlots[numFreeSlots++] = slot;
+			}
+		}
+	}
+
+	public synchronized void deregister(Controller controller, String path) {
+		final long id = controller.getNumericId();
+		final int slot = (int) (id & SLOT_MASK);
+		if (slot < slots.length() && slots.get(slot) == controller) {
+			slots.set(slot, null);
+			if (numFreeSlots == freeSlots.length) {
+				final int[] grown = new int[freeSlots.length * 2];
+				System.arraycopy(freeSlots, 0, grown, 0, numFreeSlots);
+				freeSlots = grown;
+			}
+			freeSlots[numFreeSlots++] = slot;
+		}
+		if (pathMap.get(path) == controller) {
+			pathMap.remove(path);
+		}
+	}
+
+	/**
+	 * Returns the running controller with the given ID, or null if there is
+	 * none.
+	 */
+	public Controller get(long id) {
+		if (id <= 0L) {
+			return null;
+		}
+		final AtomicReferenceArray slots = this.slots;
+		final int slot = (int) (id & SLOT_MASK);
+		if (slot >= slots.length()) {
+			return null;
+		}
+		final Controller controller = (Controller) slots.get(slot);
+		if (controller == null || controller.getNumericId() != id) {
+			return null;
+		}
+		return controller;
+	}
+
+	public Controller get(String path) {
+		return (Controller) pathMap.get(path);
+	}
+
+	/**
+	 * Parses the string form of a {@link Controller} ID, as rendered into
+	 * views, returning zero if it is not a valid ID.
+	 */
+	public static long parseId(String id) {
+		if (id == null) {
+			return 0L;
+		}
+		long value = 0L;
+		final int len = id.length();
+		if (len == 0 || len > 18) {
+			return 0L;
+		}
+		for (int i = 0; i < len; i++) {
+			final char c = id.charAt(i);
+			if (c < '0' || c > '9') {
+				return 0L;
+			}
+			value = value * 10 + (c - '0');
+		}
+		return value;
+	}
+
+	/*
+	 * Copies the slots into a bigger array, then publishes it - must be called
+	 * within a registration
+	 */
+	private void grow() {
+		final AtomicReferenceArray grown = new AtomicReferenceArray(slots
+				.length() * 2);
+		for (int i = 0; i < slots.length(); i++) {
+			grown.set(i, slots.get(i));
+		}
+		slots = grown;
+	}
+
+	private volatile AtomicReferenceArray slots;
+
+	private int[] freeSlots;
+
+	private int numFreeSlots;
+
+	private int numSlotsUsed;
+
+	private long nextSerial;
+
+	private final Map pathMap;
+}
@@ -18,6 +18,7 @@
  */
 package com.neocoders.jandal.core;
 
+import java.io.Serializable;
 import java.util.Iterator;
 
 /**
@@ -146,7 +147,10 @@ import java.util.Iterator;
  * @author lindsay
  * 
  */
-public abstract class EventProcessor {
+public abstract class EventProcessor implements Cloneable, Serializable {
+
+	private static final long serialVersionUID = 1L;
+
 	/**
 	 * Creates event processor for the event of the given name.
 	 * 
@@ -549,6 +553,18 @@ public abstract class EventProcessor {
 		return this.myState.getProperties(propsFileName);
 	}
 
+	/**
+	 * Returns a field-for-field copy of this processor, for
+	 * {@link PrototypeCopier}.
+	 */
+	final Object shallowCopy() {
+		try {
+			return super.clone();
+		} catch (CloneNotSupportedException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
 	private void assertActive() throws JandalCoreException {
 		if (!active) {
 			throw new JandalCoreException("EventProcessor no longer active");
@@ -587,6 +603,41 @@ public abstract class EventProcessor {
 		return this.myState.lockService(className, timeout);
 	}
 
+	/**
+	 * Locks and returns a synchronizable {@link Service} in the given mode,
+	 * giving up after a given timeout elapses. Use {@link Service#LOCK_SHARED}
+	 * when you only need to read from the {@link Service}, so that other
+	 * {@link Application}s reading it at the same time are not shut out, and
+	 * {@link Service#LOCK_EXCLUSIVE} when you need it to yourself. Writers are
+	 * preferred, so once an exclusive lock is requested, no new shared locks
+	 * are granted until it has been got and released.
+	 * 
+	 * @param name
+	 *            Name of {@link Service} implementation.
+	 * @param mode
+	 *            {@link Service#LOCK_EXCLUSIVE} or {@link Service#LOCK_SHARED}
+	 * @param timeout
+	 *            time in milliseconds after which method gives up and returns
+	 *            null
+	 * @return The service if lock got on it in timeout period, else null.
+	 * @throws JandalCoreException
+	 *             No more operations allowed in processor (see
+	 *             {@link EventProcessor#onEvent()} for reason).
+	 * @throws JandalCoreException
+	 *             Name not valid
+	 * @throws JandalCoreException
+	 *             Service not found
+	 * @throws JandalCoreException
+	 *             Service is not synchronized, so locking does not apply to it
+	 * @throws JandalCoreException
+	 *             Unknown lock mode
+	 */
+	protected final Service lockService(final String className,
+			final int mode, long timeout) throws JandalCoreException {
+		assertActive();
+		return this.myState.lockService(className, mode, timeout);
+	}
+
 	/**
 	 * Returns a {@link Service} that was hopefully plugged into the
 	 * {@link Application} when it was instantiated (see
@@ -0,0 +1,98 @@
+/*
+ * Copyright (C) 2007 Lindsay S. Kay, All rights Reserved.
+ *
+ * This software is provided "as-is", without any express or implied warranty. In no event will the 
+ * author be held liable for any damages arising from the use of this software.
+ *
+ * Permission is granted to anyone to use this software for any purpose, including commercial 
+ * applications, and to alter it and redistribute if freely, subject to the following restrictions:
+ *
+ *  1. The origin of this software must not be misrepresented: you must not claim that you wrote 
+ * 	the original software. if you use this software in a product, an acknowledgement in the product 
+ * 	documentation would be appreciated but is not required.
+ * 
+ *  2. Altered source versions must be plainly marked as such, and must not be misrepresented 
+ * 	as the original software.
+ * 
+  * 3. This notice must not be removed or altered from any source distribution.
+ */
+
+package com.neocoders.jandal.core;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.InputStream;
+import java.nio.channels.FileChannel;
+import java.util.HashMap;
+
+/**
+ * A {@link Resource} that is a file in the server's file system. Its length
+ * and modification time are known up front, so it may be downloaded in
+ * ranges, and it is copied to the client through its file channel.
+ * 
+ * @author lindsay
+ * 
+ */
+public class FileResource extends Resource {
+
+	/**
+	 * Creates a {@link FileResource} with content type inferred from file name
+	 * extension.
+	 * 
+	 * @param file
+	 *            The file.
+	 */
+	public FileResource(File file) {
+		this(file, Utils.getContentType(file.getName()));
+	}
+
+	/**
+	 * Creates a {@link FileResource} with explicitly specified content type.
+	 * 
+	 * @param file
+	 *            The file.
+	 * @param mimeType
+	 *            MIME type
+	 */
+	public FileResource(File file, String mimeType) {
+		super(file.getName(), mimeType, new HashMap());
+		this.file = file;
+	}
+
+	public InputStream getInputStream() throws JandalCoreException {
+		try {
+			return new FileInputStream(file);
+		} catch (FileNotFoundException e) {
+			throw new JandalCoreException("Resource file not found: \""
+					+ file.getPath() + "\"", e);
+		}
+	}
+
+	public FileChannel getFileChannel() throws JandalCoreException {
+		try {
+			return new FileInputStream(file).getChannel();
+		} catch (FileNotFoundException e) {
+			throw new JandalCoreException("Resource file not found: \""
+					+ file.getPath() + "\"", e);
+		}
+	}
+
+	public long getLength() {
+		return file.length();
+	}
+
+	public long getLastModified() {
+		final long lastModified = file.lastModified();
+		return lastModified == 0 ? -1 : lastModified;
+	}
+
+	/**
+	 * Returns the file.
+	 */
+	public final File getFile() {
+		return file;
+	}
+
+	private final File file;
+}
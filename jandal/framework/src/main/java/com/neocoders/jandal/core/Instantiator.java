@@ -0,0 +1,242 @@
+/*
+ * Copyright (C) 2007 Lindsay S. Kay, All rights Reserved.
+ *
+ * This software is provided "as-is", without any express or implied warranty. In no event will the 
+ * author be held liable for any damages arising from the use of this software.
+ *
+ * Permission is granted to anyone to use this software for any purpose, including commercial 
+ * applications, and to alter it and redistribute if freely, subject to the following restrictions:
+ *
+ *  1. The origin of this software must not be misrepresented: you must not claim that you wrote 
+ * 	the original software. if you use this software in a product, an acknowledgement in the product 
+ * 	documentation would be appreciated but is not required.
+ * 
+ *  2. Altered source versions must be plainly marked as such, and must not be misrepresented 
+ * 	as the original software.
+ * 
+  * 3. This notice must not be removed or altered from any source distribution.
+ */
+package com.neocoders.jandal.core;
+
+import java.lang.reflect.Constructor;
+import java.lang.reflect.InvocationTargetException;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Instantiates classes by name through their no-argument constructors, as
+ * used by {@link ApplicationFactory} to create {@link Application}s and by
+ * the test runner to create tests and {@link ServiceSet}s.
+ * <p/>
+ * Constructors are looked up once per class and cached. When a timeout is
+ * set, construction runs on a thread from a shared pool while the caller waits
+ * for it, so a hung constructor costs the caller no more than the timeout;
+ * with no timeout, construction runs straight on the calling thread.
+ * <p/>
+ * Each Instantiator keeps count of the instances it has made, along with
+ * their total and longest construction times, and of the failures and
+ * timeouts.
+ * 
+ * @author lindsay
+ * 
+ */
+public class Instantiator {
+
+	/**
+	 * Creates an Instantiator that waits up to the given time for
+	 * constructors to finish.
+	 * 
+	 * @param timeout
+	 *            Time in milliseconds, zero or less for no timeout.
+	 */
+	public Instantiator(long timeout) {
+		this.timeout = timeout;
+		this.numInstances = new AtomicLong();
+		this.numFailures = new AtomicLong();
+		this.numTimeouts = new AtomicLong();
+		this.totalNanos = new AtomicLong();
+		this.maxNanos = new AtomicLong();
+	}
+
+	public final void setTimeout(long timeout) {
+		this.timeout = timeout;
+	}
+
+	public final long getTimeout() {
+		return timeout;
+	}
+
+	/**
+	 * Creates an instance of the named class.
+	 * 
+	 * @throws JandalCoreException
+	 *             Class not found, or it has no accessible no-argument
+	 *             constructor.
+	 * @throws JandalCoreException
+	 *             Constructor threw an exception.
+	 * @throws JandalCoreException
+	 *             Constructor did not finish within the timeout.
+	 */
+	public Object newInstance(final String className)
+			throws JandalCoreException {
+		final Constructor constructor = getConstructor(className);
+		final long start = System.nanoTime();
+		final Object instance;
+		if (timeout <= 0L) {
+			instance = construct(className, constructor);
+		} else {
+			final Future future = getExecutor().submit(new Callable() {
+				public Object call() throws Exception {
+					return construct(className, constructor);
+				}
+			});
+			try {
+				instance = future.get(timeout, TimeUnit.MILLISECONDS);
+			} catch (TimeoutException e) {
+				future.cancel(true);
+				numTimeouts.incrementAndGet();
+				throw new JandalCoreException("Failed to instantiate "
+						+ className
+						+ " - constructor timed out - instantiation exceeded "
+						+ timeout + " milliseconds");
+			} catch (InterruptedException e) {
+				future.cancel(true);
+				Thread.currentThread().interrupt();
+				throw new JandalCoreException("Interrupted while instantiating "
+						+ className, e);
+			} catch (ExecutionException e) {
+				final Throwable cause = e.getCause();
+				if (cause instanceof JandalCoreException) {
+					throw (JandalCoreException) cause;
+				}
+				numFailures.incrementAndGet();
+				throw new JandalCoreException("Failed to instantiate "
+						+ className + " - " + cause, cause);
+			}
+		}
+		record(System.nanoTime() - start);
+		return instance;
+	}
+
+	/**
+	 * Returns the number of instances created.
+	 */
+	public final long getInstanceCount() {
+		return numInstances.get();
+	}
+
+	/**
+	 * Returns the number of instantiations that failed, including those that
+	 * timed out.
+	 */
+	public final long getFailureCount() {
+		return numFailures.get() + numTimeouts.get();
+	}
+
+	/**
+	 * Returns the number of instantiations that timed out.
+	 */
+	public final long getTimeoutCount() {
+		return numTimeouts.get();
+	}
+
+	/**
+	 * Returns the mean time taken to create an instance, in nanoseconds.
+	 */
+	public final long getMeanInstantiationNanos() {
+		final long count = numInstances.get();
+		return (count == 0L) ? 0L : totalNanos.get() / count;
+	}
+
+	/**
+	 * Returns the longest time taken to create an instance, in nanoseconds.
+	 */
+	public final long getMaxInstantiationNanos() {
+		return maxNanos.get();
+	}
+
+	private Object construct(String className, Constructor constructor)
+			throws JandalCoreException {
+		try {
+			return constructor.newInstance((Object[]) null);
+		} catch (InvocationTargetException e) {
+			numFailures.incrementAndGet();
+			final Throwable cause = e.getCause();
+			throw new JandalCoreException("Failed to instantiate " + className
+					+ " - " + cause, cause);
+		} catch (Exception e) {
+			numFailures.incrementAndGet();
+			throw new JandalCoreException("Failed to instantiate " + className
+					+ " - " + e.toString(), e);
+		}
+	}
+
+	private void record(long nanos) {
+		numInstances.incrementAndGet();
+		totalNanos.addAndGet(nanos);
+		for (long max = maxNanos.get(); nanos > max; max = maxNanos.get()) {
+			if (maxNanos.compareAndSet(max, nanos)) {
+				break;
+			}
+		}
+	}
+
+	private static Constructor getConstructor(String className)
+			throws JandalCoreException {
+		Constructor constructor = (Constructor) constructors.get(className);
+		if (constructor != null) {
+			return constructor;
+		}
+		try {
+			final Class c = Instantiator.class.getClassLoader().loadClass(
+					className);
+			constructor = c.getConstructor((Class[]) null);
+		} catch (Exception e) {
+			throw new JandalCoreException("Failed to instantiate " + className
+					+ " - " + e.toString(), e);
+		}
+		constructors.put(className, constructor);
+		return constructor;
+	}
+
+	private static synchronized ExecutorService getExecutor() {
+		if (executor == null) {
+			executor = Executors.newCachedThreadPool(new ThreadFactory() {
+				public Thread newThread(Runnable r) {
+					final Thread thread = new Thread(r, "jandal-instantiator-"
+							+ threadCount.incrementAndGet());
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+		}
+		return executor;
+	}
+
+	private static final Map constructors = new ConcurrentHashMap();
+
+	private static final AtomicLong threadCount = new AtomicLong();
+
+	private static ExecutorService executor;
+
+	private volatile long timeout;
+
+	private final AtomicLong numInstances;
+
+	private final AtomicLong numFailures;
+
+	private final AtomicLong numTimeouts;
+
+	private final AtomicLong totalNanos;
+
+	private final AtomicLong maxNanos;
+}
@@ -18,61 +18,384 @@
  */
 package com.neocoders.jandal.core;
 
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Queued lock on a synchronized {@link Service}, held on behalf of
+ * {@link Application} instances and keyed by their IDs.
+ * <p/>
+ * The lock can be held in one of two modes. In <i>exclusive</i> mode it is held
+ * by a single application. In <i>shared</i> mode it may be held by any number
+ * of applications at once, as long as nobody holds it exclusively. Writers are
+ * preferred: once an application is queued for exclusive access, no new
+ * application is admitted in shared mode until that writer has had its turn,
+ * so a steady stream of readers cannot starve it.
+ * <p/>
+ * Threads that cannot get the lock straight away wait in a queue, each on its
+ * own condition, and are signalled the moment a release makes them grantable,
+ * so there is no polling. When the lock is fair, a free lock is only granted
+ * exclusively to the longest-waiting writer; when it is not fair, an arriving
+ * writer may take a free lock ahead of the queue.
+ * <p/>
+ * The lock is re-entrant per application ID: asking for a lock already held
+ * by the same application succeeds immediately. A single {@link #release()}
+ * frees an exclusive hold, however many times it was acquired, while shared
+ * holds are counted and freed one {@link #releaseShared(String)} at a time.
+ * <p/>
+ * A thread about to block first asks its {@link LockWaitHandler}, if it has
+ * one, which may refuse, in which case it gives up on the lock.
+ * 
+ * @author lindsay
+ * 
+ */
 class Lock {
 	public Lock() {
+		this(false);
+	}
+
+	public Lock(boolean fair) {
+		this.mutex = new ReentrantLock();
+		this.waiters = new LinkedList();
+		this.sharedHolds = new HashMap();
+		this.fair = fair;
 		this.appId = null;
 	}
 
-	public void acquire(String appId) {
-		if (tryAcquire(appId) == false) {
-			try {
-				Thread.sleep(100);
-			} catch (Exception e) {
+	/**
+	 * Acquires the lock exclusively for the given application, waiting for as
+	 * long as it takes. If the calling thread is interrupted while waiting, it
+	 * gives up with its interrupt status set.
+	 * 
+	 * @return true if the lock was acquired.
+	 */
+	public boolean acquire(String appId) {
+		return acquire(appId, false, false, 0L);
+	}
+
+	/**
+	 * Acquires the lock exclusively for the given application, giving up if it
+	 * could not be got within the given timeout. If the calling thread is
+	 * interrupted while waiting, it gives up with its interrupt status set.
+	 * 
+	 * @param timeout
+	 *            Time to wait, in milliseconds.
+	 * @return true if the lock was acquired.
+	 */
+	public boolean acquire(String appId, final long timeout) {
+		return acquire(appId, false, true, TimeUnit.MILLISECONDS
+				.toNanos(timeout));
+	}
+
+	/**
+	 * Acquires the lock exclusively for the given application only if it can
+	 * be granted right now under the fairness policy.
+	 * 
+	 * @return true if the lock was acquired.
+	 */
+	public boolean tryAcquire(String appId) {
+		mutex.lock();
+		try {
+			return await(appId, false, true, 0L);
+		} finally {
+			mutex.unlock();
+		}
+	}
+
+	/**
+	 * Acquires the lock in shared mode for the given application, giving up if
+	 * it could not be got within the given timeout. If the calling thread is
+	 * interrupted while waiting, it gives up with its interrupt status set.
+	 * 
+	 * @param timeout
+	 *            Time to wait, in milliseconds.
+	 * @return true if the lock was acquired.
+	 */
+	public boolean acquireShared(String appId, final long timeout) {
+		return acquire(appId, true, true, TimeUnit.MILLISECONDS
+				.toNanos(timeout));
+	}
+
+	/**
+	 * Acquires the lock in shared mode for the given application only if it
+	 * can be granted right now.
+	 * 
+	 * @return true if the lock was acquired.
+	 */
+	public boolean tryAcquireShared(String appId) {
+		mutex.lock();
+		try {
+			return await(appId, true, true, 0L);
+		} finally {
+			mutex.unlock();
+		}
+	}
+
+	/**
+	 * Frees an exclusive hold on the lock.
+	 */
+	public void release() {
+		mutex.lock();
+		try {
+			appId = null;
+			signalNext();
+		} finally {
+			mutex.unlock();
+		}
+	}
+
+	/**
+	 * Frees one shared hold that the given application has on the lock.
+	 */
+	public void releaseShared(String appId) {
+		mutex.lock();
+		try {
+			final Integer holds = (Integer) sharedHolds.get(appId);
+			if (holds == null) {
+				return;
 			}
+			if (holds.intValue() > 1) {
+				sharedHolds.put(appId, Integer.valueOf(holds.intValue() - 1));
+			} else {
+				sharedHolds.remove(appId);
+			}
+			signalNext();
+		} finally {
+			mutex.unlock();
 		}
 	}
 
-	public boolean acquire(String appId, final long timeout) {
-		long timer = timeout;
-		if (tryAcquire(appId) == false) {
-			try {
-				Thread.sleep(100);
-				timer -= 100;
-				if (timer <= 0) {
-					return false;
+	/**
+	 * Frees every hold, exclusive or shared, that the given application has on
+	 * the lock.
+	 */
+	void releaseIfHeld(String appId) {
+		mutex.lock();
+		try {
+			if (this.appId != null) {
+				if (this.appId.equals(appId)) {
+					this.appId = null;
 				}
-			} catch (Exception e) {
 			}
+			sharedHolds.remove(appId);
+			signalNext();
+		} finally {
+			mutex.unlock();
 		}
-		return true;
 	}
 
-	public synchronized boolean tryAcquire(String appId) {
-		if (this.appId == null) {
-			this.appId = appId;
+	public boolean isLocked() {
+		mutex.lock();
+		try {
+			return (appId != null || !sharedHolds.isEmpty());
+		} finally {
+			mutex.unlock();
+		}
+	}
+
+	/**
+	 * Returns the number of applications currently holding the lock in shared
+	 * mode.
+	 */
+	public int getSharedHolderCount() {
+		mutex.lock();
+		try {
+			return sharedHolds.size();
+		} finally {
+			mutex.unlock();
+		}
+	}
+
+	public void setFair(boolean fair) {
+		mutex.lock();
+		try {
+			this.fair = fair;
+		} finally {
+			mutex.unlock();
+		}
+	}
+
+	public boolean isFair() {
+		mutex.lock();
+		try {
+			return fair;
+		} finally {
+			mutex.unlock();
+		}
+	}
+
+	/**
+	 * Returns the number of threads currently waiting for the lock.
+	 */
+	public int getQueueLength() {
+		mutex.lock();
+		try {
+			return waiters.size();
+		} finally {
+			mutex.unlock();
+		}
+	}
+
+	/*
+	 * Grants the lock straight away if it can, otherwise queues for it once
+	 * the thread's wait handler, if any, has agreed to the wait. The handler
+	 * is called without the mutex held.
+	 */
+	private boolean acquire(String appId, boolean shared, boolean timed,
+			long nanos) {
+		mutex.lock();
+		try {
+			if (await(appId, shared, true, 0L)) {
+				return true;
+			}
+		} finally {
+			mutex.unlock();
+		}
+		if (timed && nanos <= 0L) {
+			return false;
+		}
+		final LockWaitHandler handler = LockWaitHandler.getCurrent();
+		if (handler != null && !handler.beginWait()) {
+			return false;
+		}
+		try {
+			mutex.lock();
+			try {
+				return await(appId, shared, timed, nanos);
+			} finally {
+				mutex.unlock();
+			}
+		} finally {
+			if (handler != null) {
+				handler.endWait();
+			}
+		}
+	}
+
+	/*
+	 * Grants the lock or queues for it. Must be called with the mutex held.
+	 */
+	private boolean await(String appId, boolean shared, boolean timed,
+			long nanos) {
+		if (isGrantable(appId, shared, null)) {
+			grant(appId, shared);
 			return true;
 		}
-		if (this.appId.equals(appId)) {
+		if (timed && nanos <= 0L) {
+			return false;
+		}
+		final Waiter waiter = new Waiter(mutex.newCondition(), appId, shared);
+		waiters.addLast(waiter);
+		boolean acquired = false;
+		try {
+			while (!isGrantable(appId, shared, waiter)) {
+				if (!timed) {
+					waiter.condition.await();
+				} else if (nanos > 0L) {
+					nanos = waiter.condition.awaitNanos(nanos);
+				} else {
+					return false;
+				}
+			}
+			grant(appId, shared);
+			acquired = true;
 			return true;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return false;
+		} finally {
+			waiters.remove(waiter);
+			if (!acquired) {
+				/*
+				 * A writer giving up may unblock readers, and we may have been
+				 * woken for a release we are not taking - pass the wakeup on
+				 */
+				signalNext();
+			}
 		}
-		return false;
 	}
 
-	public synchronized void release() {
-		appId = null;
+	private void grant(String appId, boolean shared) {
+		if (shared) {
+			final Integer holds = (Integer) sharedHolds.get(appId);
+			sharedHolds.put(appId, Integer.valueOf(holds == null ? 1 : holds
+					.intValue() + 1));
+		} else {
+			this.appId = appId;
+		}
 	}
 
-	synchronized void releaseIfHeld(String appId) {
+	private boolean isGrantable(String appId, boolean shared, Waiter waiter) {
 		if (this.appId != null) {
-			if (this.appId.equals(appId)) {
-				release();
+			return this.appId.equals(appId);
+		}
+		if (shared) {
+			/*
+			 * Readers already in may always come back in, otherwise they must
+			 * give way to any queued writer
+			 */
+			return (sharedHolds.containsKey(appId) || getFirstWriter() == null);
+		}
+		for (Iterator i = sharedHolds.keySet().iterator(); i.hasNext();) {
+			if (!i.next().equals(appId)) {
+				return false;
+			}
+		}
+		return (!fair || getFirstWriter() == waiter);
+	}
+
+	private Waiter getFirstWriter() {
+		for (Iterator i = waiters.iterator(); i.hasNext();) {
+			final Waiter waiter = (Waiter) i.next();
+			if (!waiter.shared) {
+				return waiter;
+			}
+		}
+		return null;
+	}
+
+	/*
+	 * Signals the waiters that the current state of the lock lets through - the
+	 * first grantable writer, or every grantable reader
+	 */
+	private void signalNext() {
+		for (Iterator i = waiters.iterator(); i.hasNext();) {
+			final Waiter waiter = (Waiter) i.next();
+			if (isGrantable(waiter.appId, waiter.shared, waiter)) {
+				waiter.condition.signal();
+				if (!waiter.shared) {
+					return;
+				}
 			}
 		}
 	}
 
-	public synchronized boolean isLocked() {
-		return (appId != null);
+	private static class Waiter {
+		public Waiter(Condition condition, String appId, boolean shared) {
+			this.condition = condition;
+			this.appId = appId;
+			this.shared = shared;
+		}
+
+		private final Condition condition;
+
+		private final String appId;
+
+		private final boolean shared;
 	}
 
+	private final ReentrantLock mutex;
+
+	private final LinkedList waiters;
+
+	private final Map sharedHolds;
+
+	private boolean fair;
+
 	private String appId;
 }
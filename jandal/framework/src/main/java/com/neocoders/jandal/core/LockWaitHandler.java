@@ -0,0 +1,63 @@
+/*
+ * Copyright (C) 2007 Lindsay S. Kay, All rights Reserved.
+ *
+ * This software is provided "as-is", without any express or implied warranty. In no event will the 
+ * author be held liable for any damages arising from the use of this software.
+ *
+ * Permission is granted to anyone to use this software for any purpose, including commercial 
+ * applications, and to alter it and redistribute if freely, subject to the following restrictions:
+ *
+ *  1. The origin of this software must not be misrepresented: you must not claim that you wrote 
+ * 	the original software. if you use this software in a product, an acknowledgement in the product 
+ * 	documentation would be appreciated but is not required.
+ * 
+ *  2. Altered source versions must be plainly marked as such, and must not be misrepresented 
+ * 	as the original software.
+ * 
+  * 3. This notice must not be removed or altered from any source distribution.
+ */
+package com.neocoders.jandal.core;
+
+/**
+ * Told when a thread is about to block waiting for the lock on a synchronized
+ * {@link Service}, and when it stops waiting, so that a pool of threads that
+ * may wait on such locks can make up for the threads waiting - otherwise the
+ * waiters could fill the pool while the work that would release the lock
+ * queues behind them.
+ * <p/>
+ * A handler is set for each thread it looks after. Threads without one wait
+ * as usual.
+ * 
+ * @author lindsay
+ * 
+ */
+public abstract class LockWaitHandler {
+
+	private static final ThreadLocal current = new ThreadLocal();
+
+	/**
+	 * Sets the handler for the calling thread, or clears it if null.
+	 */
+	public static void setCurrent(LockWaitHandler handler) {
+		current.set(handler);
+	}
+
+	static LockWaitHandler getCurrent() {
+		return (LockWaitHandler) current.get();
+	}
+
+	/**
+	 * Called on a thread about to wait for a lock it could not get straight
+	 * away, before it blocks.
+	 * 
+	 * @return False to have the thread give up on the lock instead of
+	 *         waiting.
+	 */
+	public abstract boolean beginWait();
+
+	/**
+	 * Called on a thread that has stopped waiting, after a call to
+	 * {@link #beginWait()} that returned true, whether it got the lock or not.
+	 */
+	public abstract void endWait();
+}
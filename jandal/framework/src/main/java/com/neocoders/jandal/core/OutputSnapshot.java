@@ -0,0 +1,112 @@
+/*
+ * Copyright (C) 2007 Lindsay S. Kay, All rights Reserved.
+ *
+ * This software is provided "as-is", without any express or implied warranty. In no event will the 
+ * author be held liable for any damages arising from the use of this software.
+ *
+ * Permission is granted to anyone to use this software for any purpose, including commercial 
+ * applications, and to alter it and redistribute if freely, subject to the following restrictions:
+ *
+ *  1. The origin of this software must not be misrepresented: you must not claim that you wrote 
+ * 	the original software. if you use this software in a product, an acknowledgement in the product 
+ * 	documentation would be appreciated but is not required.
+ * 
+ *  2. Altered source versions must be plainly marked as such, and must not be misrepresented 
+ * 	as the original software.
+ * 
+  * 3. This notice must not be removed or altered from any source distribution.
+ */
+package com.neocoders.jandal.core;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Immutable, versioned view of a {@link Controller}'s outputs, current
+ * {@link State} name and child {@link Controller}s, as last committed.
+ * <p/>
+ * Changes a {@link Controller} makes while processing an event are
+ * committed as a new snapshot when the outermost event finishes, and changes
+ * made outside of an event are committed straight away. Views read snapshots
+ * rather than the live {@link Controller}, so they may render while events are
+ * being processed, without blocking them and without seeing an event half
+ * done.
+ * 
+ * @author lindsay
+ * 
+ */
+public final class OutputSnapshot {
+
+	static final OutputSnapshot EMPTY = new OutputSnapshot(0L, null,
+			Collections.EMPTY_MAP, Collections.EMPTY_LIST);
+
+	OutputSnapshot(long version, String stateName, Map outputs,
+			Collection childControllers) {
+		this.version = version;
+		this.stateName = stateName;
+		this.outputs = Collections.unmodifiableMap(new HashMap(outputs));
+		this.childControllers = Collections.unmodifiableList(new ArrayList(
+				childControllers));
+	}
+
+	/**
+	 * Returns the version of this snapshot, which increases with each commit
+	 * of the {@link Controller}.
+	 */
+	public long getVersion() {
+		return version;
+	}
+
+	/**
+	 * Returns the name of the {@link Controller}'s current {@link State}, or
+	 * null if it had none.
+	 */
+	public String getStateName() {
+		return stateName;
+	}
+
+	/**
+	 * Returns the value of the named output.
+	 * 
+	 * @throws JandalCoreException
+	 *             Name not valid
+	 * @throws JandalCoreException
+	 *             Output not written
+	 */
+	public Object getOutput(String name) throws JandalCoreException {
+		name = Utils.validateName(name, "Controller output name");
+		final Object value = outputs.get(name);
+		if (value == null) {
+			throw new JandalCoreException("Cannot find output \"" + name + "\"");
+		}
+		return value;
+	}
+
+	/**
+	 * Returns the names of the outputs.
+	 */
+	public Set getOutputNames() {
+		return outputs.keySet();
+	}
+
+	/**
+	 * Returns the child {@link Controller}s of the current {@link State}, in
+	 * the order they were added.
+	 */
+	public List getChildControllers() {
+		return childControllers;
+	}
+
+	private final long version;
+
+	private final String stateName;
+
+	private final Map outputs;
+
+	private final List childControllers;
+}
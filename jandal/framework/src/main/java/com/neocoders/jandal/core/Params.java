@@ -18,6 +18,7 @@
  */
 package com.neocoders.jandal.core;
 
+import java.io.Serializable;
 import java.util.*;
 
 /**
@@ -34,7 +35,10 @@ import java.util.*;
  * @author lindsay
  * 
  */
-public class Params {
+public class Params implements Serializable {
+
+	private static final long serialVersionUID = 1L;
+
 	/**
 	 * Creates new parameter set.
 	 * 
@@ -151,6 +155,13 @@ public class Params {
 		return params.get(name);
 	}
 
+	/**
+	 * Returns true if this set contains no parameters.
+	 */
+	public final boolean isEmpty() {
+		return params.isEmpty();
+	}
+
 	/**
 	 * Returns true if parameter with given name is contained.
 	 */
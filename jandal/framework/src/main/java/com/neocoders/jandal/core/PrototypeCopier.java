@@ -0,0 +1,247 @@
+/*
+ * Copyright (C) 2007 Lindsay S. Kay, All rights Reserved.
+ *
+ * This software is provided "as-is", without any express or implied warranty. In no event will the 
+ * author be held liable for any damages arising from the use of this software.
+ *
+ * Permission is granted to anyone to use this software for any purpose, including commercial 
+ * applications, and to alter it and redistribute if freely, subject to the following restrictions:
+ *
+ *  1. The origin of this software must not be misrepresented: you must not claim that you wrote 
+ * 	the original software. if you use this software in a product, an acknowledgement in the product 
+ * 	documentation would be appreciated but is not required.
+ * 
+ *  2. Altered source versions must be plainly marked as such, and must not be misrepresented 
+ * 	as the original software.
+ * 
+  * 3. This notice must not be removed or altered from any source distribution.
+ */
+package com.neocoders.jandal.core;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Copies the running {@link Controller} tree of a started prototype
+ * {@link Application} into a new Application, so that sessions can be created
+ * without replaying every {@link Controller#onStart()} and
+ * {@link State#onEntry()}.
+ * <p/>
+ * Each {@link Application}, {@link Controller}, {@link State} and
+ * {@link EventProcessor} in the prototype is shallow-copied with
+ * {@link Object#clone()}, after which every field of the copy is remapped:
+ * references to other framework objects (including the outer-instance
+ * references of anonymous {@link State}s and {@link EventProcessor}s) are
+ * pointed at their copies, the framework's own maps and lists are copied, and
+ * each copy gets a fresh execution context, {@link ServiceCache}s and
+ * {@link OutputSnapshot}. All
+ * other values, such as outputs and the fields of your own classes, are shared
+ * with the prototype, so an Application is only fit to be a prototype when
+ * those values are never modified in place.
+ * 
+ * @author lindsay
+ * 
+ */
+class PrototypeCopier {
+
+	/**
+	 * Returns a running copy of the given running prototype.
+	 * 
+	 * @throws JandalCoreException
+	 *             Prototype holds {@link Service} locks.
+	 */
+	static Application copy(Application prototype) throws JandalCoreException {
+		return new PrototypeCopier().copyApplication(prototype);
+	}
+
+	private PrototypeCopier() {
+		this.copies = new IdentityHashMap();
+	}
+
+	private Application copyApplication(Application prototype)
+			throws JandalCoreException {
+		this.app = (Application) prototype.shallowCopy();
+		copies.put(prototype, app);
+		remapFields(app);
+		register(app.getRootController());
+		return app;
+	}
+
+	/*
+	 * Registers a copied Controller and its running descendants with the new
+	 * execution context, giving each a fresh ID
+	 */
+	private void register(Controller controller) throws JandalCoreException {
+		exeContext.registerActiveController(controller);
+		controller.commitOutputs();
+		for (Iterator i = controller.getChildControllers().iterator(); i
+				.hasNext();) {
+			register((Controller) i.next());
+		}
+	}
+
+	private void remapFields(Object copy) throws JandalCoreException {
+		final CopyPlan plan = getPlan(copy.getClass());
+		for (int i = 0; i < plan.fields.length; i++) {
+			final Field field = plan.fields[i];
+			try {
+				final Object value = field.get(copy);
+				final Object mapped = map(value, plan.frameworkFields[i]);
+				if (mapped != value) {
+					field.set(copy, mapped);
+				}
+			} catch (IllegalAccessException e) {
+				throw new JandalCoreException("Failed to copy prototype "
+						+ copy.getClass().getName() + " - " + e.toString(), e);
+			}
+		}
+	}
+
+	/*
+	 * Returns the reference fields to remap for the given class, looked up
+	 * once per class
+	 */
+	private static CopyPlan getPlan(Class cls) {
+		CopyPlan plan = (CopyPlan) plans.get(cls);
+		if (plan == null) {
+			final List fields = new ArrayList();
+			final List frameworkFields = new ArrayList();
+			for (Class c = cls; c != Object.class; c = c.getSuperclass()) {
+				final Field[] declared = c.getDeclaredFields();
+				for (int i = 0; i < declared.length; i++) {
+					final Field field = declared[i];
+					if (Modifier.isStatic(field.getModifiers())
+							|| field.getType().isPrimitive()) {
+						continue;
+					}
+					field.setAccessible(true);
+					fields.add(field);
+					frameworkFields.add(Boolean.valueOf(isFrameworkClass(c)));
+				}
+			}
+			plan = new CopyPlan(fields, frameworkFields);
+			plans.put(cls, plan);
+		}
+		return plan;
+	}
+
+	/*
+	 * Maps a field value from the prototype onto its value in the copy
+	 */
+	private Object map(Object value, boolean frameworkField)
+			throws JandalCoreException {
+		if (value == null || value instanceof String) {
+			return value;
+		}
+		Object copy = copies.get(value);
+		if (copy != null) {
+			return copy;
+		}
+		if (value instanceof Controller || value instanceof State
+				|| value instanceof EventProcessor
+				|| value instanceof Application) {
+			copy = shallowCopy(value);
+			copies.put(value, copy);
+			remapFields(copy);
+		} else if (value instanceof ApplicationExeContext) {
+			final ApplicationExeContext context = (ApplicationExeContext) value;
+			exeContext = new ApplicationExeContext(context.getServiceSet(), app);
+			copy = exeContext;
+			copies.put(value, copy);
+		} else if (value instanceof ServiceCache) {
+			final ServiceCache serviceCache = (ServiceCache) value;
+			if (serviceCache.holdsLocks()) {
+				throw new JandalCoreException(
+						"Prototype Application cannot be copied while it holds Service locks");
+			}
+			if (appId == null) {
+				appId = app.getId();
+			}
+			copy = serviceCache.copy((ServiceCache) map(serviceCache
+					.getParent(), true), appId);
+			copies.put(value, copy);
+		} else if (value instanceof OutputSnapshot) {
+			/*
+			 * Refers to the prototype's child Controllers - recommitted once
+			 * the copy is complete
+			 */
+			return OutputSnapshot.EMPTY;
+		} else if (value instanceof ResourceAccessor) {
+			/*
+			 * Owned by the prototype Controller - the copy makes its own on
+			 * demand
+			 */
+			return null;
+		} else if (value instanceof Params) {
+			copy = new Params((Params) value);
+			copies.put(value, copy);
+		} else if (frameworkField && value instanceof Map) {
+			final Map map = new HashMap();
+			copies.put(value, map);
+			for (Iterator i = ((Map) value).entrySet().iterator(); i.hasNext();) {
+				final Map.Entry entry = (Map.Entry) i.next();
+				map.put(entry.getKey(), map(entry.getValue(), false));
+			}
+			copy = map;
+		} else if (frameworkField && value instanceof List) {
+			final List list = new LinkedList();
+			copies.put(value, list);
+			for (Iterator i = ((List) value).iterator(); i.hasNext();) {
+				list.add(map(i.next(), false));
+			}
+			copy = list;
+		} else {
+			return value;
+		}
+		return copy;
+	}
+
+	private static Object shallowCopy(Object value) {
+		if (value instanceof Controller) {
+			return ((Controller) value).shallowCopy();
+		} else if (value instanceof State) {
+			return ((State) value).shallowCopy();
+		} else if (value instanceof EventProcessor) {
+			return ((EventProcessor) value).shallowCopy();
+		}
+		return ((Application) value).shallowCopy();
+	}
+
+	private static boolean isFrameworkClass(Class c) {
+		return c == Controller.class || c == State.class
+				|| c == EventProcessor.class || c == Application.class;
+	}
+
+	private static class CopyPlan {
+		CopyPlan(List fields, List frameworkFields) {
+			this.fields = (Field[]) fields.toArray(new Field[fields.size()]);
+			this.frameworkFields = new boolean[fields.size()];
+			for (int i = 0; i < this.frameworkFields.length; i++) {
+				this.frameworkFields[i] = ((Boolean) frameworkFields.get(i))
+						.booleanValue();
+			}
+		}
+
+		final Field[] fields;
+
+		final boolean[] frameworkFields;
+	}
+
+	private static final Map plans = new ConcurrentHashMap();
+
+	private final Map copies;
+
+	private Application app;
+
+	private ApplicationExeContext exeContext;
+
+	private String appId;
+}
@@ -20,10 +20,14 @@
 package com.neocoders.jandal.core;
 
 import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.util.HashMap;
+import java.util.LinkedList;
 import java.util.Map;
 
 /**
@@ -120,6 +124,44 @@ public abstract class Resource {
 	 */
 	public abstract InputStream getInputStream() throws JandalCoreException;
 
+	/**
+	 * Returns the length of the resource file in bytes, if it is known without
+	 * reading the file. Subclasses that know their length should override
+	 * this, which allows the file to be sent in ranges.
+	 * 
+	 * @return The length, or -1 if not known.
+	 */
+	public long getLength() {
+		return -1;
+	}
+
+	/**
+	 * Returns the time at which the resource file was last modified, in
+	 * milliseconds since the epoch, if known.
+	 * 
+	 * @return The time, or -1 if not known.
+	 */
+	public long getLastModified() {
+		return -1;
+	}
+
+	/**
+	 * Returns a channel through which the resource file may be read at any
+	 * position, if it is a file in the file system. When there is one, it is
+	 * used in preference to the input stream so that ranges are read at their
+	 * position rather than skipped to. It is copied to a file with
+	 * {@link FileChannel#transferTo}, and to any other stream - such as a
+	 * servlet's, which is not a channel - through a pooled buffer. The caller
+	 * closes the channel.
+	 * 
+	 * @return The channel, or null if the file may only be streamed.
+	 * @throws JandalCoreException
+	 *             Problem opening resource file.
+	 */
+	public FileChannel getFileChannel() throws JandalCoreException {
+		return null;
+	}
+
 	/**
 	 * Writes the resource file to the given output stream.
 	 * 
@@ -131,14 +173,42 @@ public abstract class Resource {
 	 *             IO error accessing or reading teh resource file.
 	 */
 	public final void write(final OutputStream out) throws JandalCoreException {
+		write(out, 0, -1);
+	}
+
+	/**
+	 * Writes a range of the resource file to the given output stream.
+	 * 
+	 * @param out
+	 * @param offset
+	 *            Offset of first byte to write.
+	 * @param length
+	 *            Number of bytes to write, or -1 to write to the end of the
+	 *            file.
+	 * @throws JandalCoreException
+	 *             Resource file not found - must have been moved since getting
+	 *             this {@link Resource} object.
+	 * @throws JandalCoreException
+	 *             IO error accessing or reading teh resource file.
+	 */
+	public void write(final OutputStream out, final long offset,
+			final long length) throws JandalCoreException {
 		try {
-			final byte[] buf = new byte[1025];
-			int nRead;
+			final FileChannel channel = this.getFileChannel();
+			if (channel != null) {
+				try {
+					transfer(channel, out, offset, length);
+				} finally {
+					channel.close();
+				}
+				return;
+			}
 			final InputStream inputStream = this.getInputStream();
-			while ((nRead = inputStream.read(buf)) > 0) {
-				out.write(buf, 0, nRead);
+			try {
+				copy(inputStream, out, offset, length);
+			} finally {
+				inputStream.close();
 			}
-			inputStream.close();
 		} catch (FileNotFoundException e) {
 			throw new JandalCoreException("Resource file not found: \""
 					+ fileName + "\"", e);
@@ -148,19 +218,126 @@ public abstract class Resource {
 		}
 	}
 
+	private static void transfer(FileChannel channel, OutputStream out,
+			long offset, long length) throws IOException {
+		long end = channel.size();
+		if (length >= 0 && offset + length < end) {
+			end = offset + length;
+		}
+		long position = offset;
+		if (out instanceof FileOutputStream) {
+			final FileChannel target = ((FileOutputStream) out).getChannel();
+			while (position < end) {
+				final long nWritten = channel.transferTo(position, end
+						- position, target);
+				if (nWritten <= 0) {
+					break;
+				}
+				position += nWritten;
+			}
+			return;
+		}
+
+		/*
+		 * Wrapping the stream in a channel would just copy through a small
+		 * buffer of its own - copy through a pooled one instead
+		 */
+		final byte[] buf = takeBuffer();
+		try {
+			final ByteBuffer buffer = ByteBuffer.wrap(buf);
+			while (position < end) {
+				buffer.clear();
+				if (end - position < buf.length) {
+					buffer.limit((int) (end - position));
+				}
+				final int nRead = channel.read(buffer, position);
+				if (nRead <= 0) {
+					break;
+				}
+				out.write(buf, 0, nRead);
+				position += nRead;
+			}
+		} finally {
+			returnBuffer(buf);
+		}
+	}
+
+	private static void copy(InputStream in, OutputStream out, long offset,
+			long length) throws IOException {
+		final byte[] buf = takeBuffer();
+		try {
+			long toSkip = offset;
+			while (toSkip > 0) {
+				long nSkipped = in.skip(toSkip);
+				if (nSkipped <= 0) {
+					/*
+					 * Some streams won't skip - read and discard instead
+					 */
+					nSkipped = in.read(buf, 0, (int) Math.min(buf.length,
+							toSkip));
+					if (nSkipped < 0) {
+						return;
+					}
+				}
+				toSkip -= nSkipped;
+			}
+			long remaining = length;
+			while (remaining != 0) {
+				final int nWanted = remaining < 0 ? buf.length : (int) Math
+						.min(buf.length, remaining);
+				final int nRead = in.read(buf, 0, nWanted);
+				if (nRead < 0) {
+					break;
+				}
+				out.write(buf, 0, nRead);
+				if (remaining > 0) {
+					remaining -= nRead;
+				}
+			}
+		} finally {
+			returnBuffer(buf);
+		}
+	}
+
+	/*
+	 * Copy buffers are pooled so that large downloads don't each allocate
+	 * their own
+	 */
+	private static byte[] takeBuffer() {
+		synchronized (bufferPool) {
+			if (!bufferPool.isEmpty()) {
+				return (byte[]) bufferPool.removeFirst();
+			}
+		}
+		return new byte[BUFFER_SIZE];
+	}
+
+	private static void returnBuffer(byte[] buf) {
+		synchronized (bufferPool) {
+			if (bufferPool.size() < MAX_POOLED_BUFFERS) {
+				bufferPool.addFirst(buf);
+			}
+		}
+	}
+
 	// TODO: get mime type in some extensible way
 	private static String getMimeType(final String fileName) {
 		final int dotIndex = fileName.lastIndexOf(".");
 		if (dotIndex == -1) {
 			return "unknown";
 		}
-		String ext = fileName.substring(fileName.lastIndexOf(".") + 1, fileName
-				.length() - 1);
+		String ext = fileName.substring(dotIndex + 1);
 		ext = ext.toLowerCase();
 		if (ext.equals("txt")) {
 			return "text/plain";
 		} else if (ext.equals("htm") || ext.equals("html")) {
-			return "image/html";
+			return "text/html";
+		} else if (ext.equals("css")) {
+			return "text/css";
+		} else if (ext.equals("js")) {
+			return "text/javascript";
+		} else if (ext.equals("xml")) {
+			return "text/xml";
 		} else if (ext.equals("svg")) {
 			return "image/svg";
 		} else if (ext.equals("rtx")) {
@@ -228,6 +405,12 @@ public abstract class Resource {
 		return (String) properties.get(name);
 	}
 
+	private static final int BUFFER_SIZE = 64 * 1024;
+
+	private static final int MAX_POOLED_BUFFERS = 16;
+
+	private static final LinkedList bufferPool = new LinkedList();
+
 	private String fileName;
 
 	private String mimeType;
@@ -20,17 +20,17 @@ package com.neocoders.jandal.core;
 
 import java.io.IOException;
 import java.io.InputStream;
-import java.util.HashMap;
 import java.util.Map;
 import java.util.Properties;
 import java.util.StringTokenizer;
+import java.util.concurrent.ConcurrentHashMap;
 
 class ResourceAccessor {
 
 	public ResourceAccessor(Object owner) {
 		super();
 		this.owner = owner;
-		this.propertySetCache = new HashMap();
+		this.propertySetCache = new ConcurrentHashMap();
 	}
 
 	public final Resource getResource(String fileName)
@@ -0,0 +1,140 @@
+/*
+ * Copyright (C) 2007 Lindsay S. Kay, All rights Reserved.
+ *
+ * This software is provided "as-is", without any express or implied warranty. In no event will the 
+ * author be held liable for any damages arising from the use of this software.
+ *
+ * Permission is granted to anyone to use this software for any purpose, including commercial 
+ * applications, and to alter it and redistribute if freely, subject to the following restrictions:
+ *
+ *  1. The origin of this software must not be misrepresented: you must not claim that you wrote 
+ * 	the original software. if you use this software in a product, an acknowledgement in the product 
+ * 	documentation would be appreciated but is not required.
+ * 
+ *  2. Altered source versions must be plainly marked as such, and must not be misrepresented 
+ * 	as the original software.
+ * 
+  * 3. This notice must not be removed or altered from any source distribution.
+ */
+package com.neocoders.jandal.core;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Bounded, lock-free, multi-producer multi-consumer FIFO of objects, as used
+ * by {@link AsyncApplicationListener}.
+ * <p/>
+ * Each slot carries a sequence number that tells producers and consumers
+ * whether it is free to write or ready to read for their current lap of the
+ * ring, so that both sides claim slots with a single compare-and-set and never
+ * block one another.
+ * 
+ * @author lindsay
+ * 
+ */
+class RingBuffer {
+
+	/**
+	 * Creates a ring with room for at least the given number of elements,
+	 * rounded up to a power of two.
+	 */
+	public RingBuffer(int capacity) {
+		if (capacity < 1) {
+			throw new IllegalArgumentException("Capacity is less than one");
+		}
+		int size = 1;
+		while (size < capacity) {
+			size <<= 1;
+		}
+		this.mask = size - 1;
+		this.elements = new AtomicReferenceArray(size);
+		this.sequences = new AtomicLongArray(size);
+		for (int i = 0; i < size; i++) {
+			sequences.set(i, i);
+		}
+		this.head = new AtomicLong();
+		this.tail = new AtomicLong();
+	}
+
+	/**
+	 * Adds an element to the tail, returning false without waiting if the ring
+	 * is full.
+	 */
+	public boolean offer(Object element) {
+		long pos = tail.get();
+		int index;
+		for (;;) {
+			index = (int) (pos & mask);
+			final long diff = sequences.get(index) - pos;
+			if (diff == 0L) {
+				if (tail.compareAndSet(pos, pos + 1)) {
+					break;
+				}
+				pos = tail.get();
+			} else if (diff < 0L) {
+				return false;
+			} else {
+				pos = tail.get();
+			}
+		}
+		elements.set(index, element);
+		sequences.set(index, pos + 1);
+		return true;
+	}
+
+	/**
+	 * Removes and returns the element at the head, or null if the ring is
+	 * empty.
+	 */
+	public Object poll() {
+		long pos = head.get();
+		int index;
+		for (;;) {
+			index = (int) (pos & mask);
+			final long diff = sequences.get(index) - (pos + 1);
+			if (diff == 0L) {
+				if (head.compareAndSet(pos, pos + 1)) {
+					break;
+				}
+				pos = head.get();
+			} else if (diff < 0L) {
+				return null;
+			} else {
+				pos = head.get();
+			}
+		}
+		final Object element = elements.get(index);
+		elements.set(index, null);
+		sequences.set(index, pos + mask + 1);
+		return element;
+	}
+
+	/**
+	 * Returns the number of elements in the ring, which may be stale by the
+	 * time it is used.
+	 */
+	public int size() {
+		final long size = tail.get() - head.get();
+		return (size < 0L) ? 0 : (int) size;
+	}
+
+	public boolean isEmpty() {
+		return size() == 0;
+	}
+
+	public int capacity() {
+		return mask + 1;
+	}
+
+	private final int mask;
+
+	private final AtomicReferenceArray elements;
+
+	private final AtomicLongArray sequences;
+
+	private final AtomicLong head;
+
+	private final AtomicLong tail;
+}
@@ -19,6 +19,18 @@
 package com.neocoders.jandal.core;
 
 public class Service {
+	/**
+	 * Lock mode in which a single {@link Application} has the service to
+	 * itself.
+	 */
+	public static final int LOCK_EXCLUSIVE = 0;
+
+	/**
+	 * Lock mode in which any number of {@link Application}s may use the
+	 * service at once, for as long as nobody holds it exclusively.
+	 */
+	public static final int LOCK_SHARED = 1;
+
 	public Service(String name) {
 		this.name = name;
 		this.lock = new Lock();
@@ -37,6 +49,20 @@ public class Service {
 		return this.synch;
 	}
 
+	/**
+	 * Sets whether the lock on this service is fair. A fair lock is handed to
+	 * waiting {@link Application}s in the order they asked for it, while an
+	 * unfair one may be taken by a newcomer the moment it is released, which
+	 * gives better throughput at the risk of starving a waiter.
+	 */
+	public final void setFairLocking(boolean fair) {
+		this.lock.setFair(fair);
+	}
+
+	public final boolean isFairLocking() {
+		return this.lock.isFair();
+	}
+
 	public void applicationStarted(String appId) {
 	}
 
@@ -28,6 +28,7 @@ class ServiceCache {
 		this.appId = appId;
 		this.serviceSet = serviceSet;
 		this.lockedServices = new HashMap();
+		this.sharedServices = new HashMap();
 	}
 
 	public ServiceCache(ServiceCache parent) {
@@ -35,27 +36,71 @@ class ServiceCache {
 		this.appId = parent.appId;
 		this.serviceSet = parent.serviceSet;
 		this.lockedServices = new HashMap();
+		this.sharedServices = new HashMap();
 	}
 
+	/**
+	 * Locks the named service exclusively, blocking until the lock is handed
+	 * over or the timeout elapses.
+	 * 
+	 * @return The service, or null if the lock could not be got in time.
+	 */
 	public Service lockService(String serviceName, long timeout)
 			throws JandalCoreException {
-		Service service = tryLockService(serviceName);
-		while (service == null) {
-			try {
-				Thread.sleep(100);
-				timeout -= 100;
-				if (timeout <= 0) {
-					return null;
-				}
-			} catch (Exception e) {
+		return lockService(serviceName, Service.LOCK_EXCLUSIVE, timeout);
+	}
+
+	/**
+	 * Locks the named service in the given mode, blocking until the lock is
+	 * handed over or the timeout elapses.
+	 * 
+	 * @param mode
+	 *            {@link Service#LOCK_EXCLUSIVE} or {@link Service#LOCK_SHARED}
+	 * @return The service, or null if the lock could not be got in time.
+	 */
+	public Service lockService(String serviceName, int mode, long timeout)
+			throws JandalCoreException {
+		Service service = getLockableService(serviceName);
+		if (isShared(mode)) {
+			if (!service.getLock().acquireShared(appId, timeout)) {
+				return null;
+			}
+			sharedServices.put(service.hashCode(), service);
+		} else {
+			if (!service.getLock().acquire(appId, timeout)) {
+				return null;
 			}
-			service = tryLockService(serviceName);
+			lockedServices.put(service.hashCode(), service);
 		}
 		return service;
 	}
 
 	public Service tryLockService(final String serviceName)
 			throws JandalCoreException {
+		Service service = getLockableService(serviceName);
+
+		/*
+		 * Try to get immediate lock on service
+		 */
+		boolean locked = lockService(service);
+		if (!locked) {
+			return null;
+		}
+		return service;
+	}
+
+	private boolean isShared(int mode) throws JandalCoreException {
+		if (mode == Service.LOCK_SHARED) {
+			return true;
+		}
+		if (mode == Service.LOCK_EXCLUSIVE) {
+			return false;
+		}
+		throw new JandalCoreException("Unknown service lock mode: " + mode);
+	}
+
+	private Service getLockableService(final String serviceName)
+			throws JandalCoreException {
 
 		/*
 		 * Get service, exception if not found
@@ -87,18 +132,42 @@ class ServiceCache {
 								+ serviceName);
 			}
 		}
-		/*
-		 * Try to get immediate lock on service
-		 */
-		boolean locked = lockService(service);
-		if (!locked) {
-			return null;
-		}
 		return service;
 	}
 
+	/**
+	 * Returns true if this cache holds a lock on any {@link Service}.
+	 */
+	boolean holdsLocks() {
+		return !lockedServices.isEmpty() || !sharedServices.isEmpty();
+	}
+
+	/**
+	 * Sets the ID of the {@link Application} whose locks this cache holds, for
+	 * a cache made before its {@link Application} was restored.
+	 */
+	void setAppId(String appId) {
+		this.appId = appId;
+	}
+
+	ServiceCache getParent() {
+		return parent;
+	}
+
+	/**
+	 * Returns an empty cache like this one for another {@link Application},
+	 * beneath the given parent, or at the root when the parent is null.
+	 */
+	ServiceCache copy(ServiceCache parent, String appId) {
+		if (parent == null) {
+			return new ServiceCache(appId, serviceSet);
+		}
+		return new ServiceCache(parent);
+	}
+
 	private boolean hasLock(Service service) {
-		return (lockedServices.containsKey(service.hashCode()));
+		return (lockedServices.containsKey(service.hashCode()) || sharedServices
+				.containsKey(service.hashCode()));
 	}
 
 	private boolean lockService(Service service) {
@@ -110,15 +179,23 @@ class ServiceCache {
 	}
 
 	private void unlockService(Service service) {
-		service.getLock().release();
-		lockedServices.remove(service.hashCode());
+		if (sharedServices.remove(service.hashCode()) != null) {
+			service.getLock().releaseShared(appId);
+		} else {
+			service.getLock().release();
+			lockedServices.remove(service.hashCode());
+		}
 	}
 
 	public void releaseLocks() {
-		for (Iterator i = lockedServices.keySet().iterator(); i.hasNext();) {
-			Service service = (Service) lockedServices.get(i.next());
-			unlockService(service);
+		for (Iterator i = lockedServices.values().iterator(); i.hasNext();) {
+			((Service) i.next()).getLock().release();
 		}
+		lockedServices.clear();
+		for (Iterator i = sharedServices.values().iterator(); i.hasNext();) {
+			((Service) i.next()).getLock().releaseShared(appId);
+		}
+		sharedServices.clear();
 	}
 
 	public final Service getService(final String serviceName)
@@ -166,4 +243,6 @@ class ServiceCache {
 	private ServiceSet serviceSet;
 
 	private Map lockedServices;
+
+	private Map sharedServices;
 }
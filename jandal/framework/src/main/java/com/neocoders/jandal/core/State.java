@@ -18,6 +18,7 @@
  */
 package com.neocoders.jandal.core;
 
+import java.io.Serializable;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
@@ -114,7 +115,10 @@ import java.util.Set;
  * @author lindsay
  * 
  */
-public abstract class State {
+public abstract class State implements Cloneable, Serializable {
+
+	private static final long serialVersionUID = 1L;
+
 	/**
 	 * Creates a state.
 	 * 
@@ -536,6 +540,7 @@ public abstract class State {
 		}
 		childControllerMap.put(controller.getName(), controller);
 		childControllerList.add(controller);
+		appContext.outputsChanged(enclosingController);
 		controller.start(new ServiceCache(this.serviceCache), appContext, this,
 				params);
 	}
@@ -561,6 +566,14 @@ public abstract class State {
 		return new HashSet(childControllerList);
 	}
 
+	/**
+	 * Returns the live list of child {@link Controller}s, in the order they
+	 * were added.
+	 */
+	final List getChildControllerList() {
+		return childControllerList;
+	}
+
 	/**
 	 * Deletes the child {@link Controller} with the given name. Ordinarily, you
 	 * probably wouldn't want to use this method. For simplicity, it is
@@ -581,6 +594,7 @@ public abstract class State {
 		controller.destroy();
 		childControllerMap.remove(name);
 		childControllerList.remove(controller);
+		appContext.outputsChanged(enclosingController);
 	}
 
 	/**
@@ -752,6 +766,41 @@ public abstract class State {
 		return this.serviceCache.lockService(className, timeout);
 	}
 
+	/**
+	 * Locks and returns a synchronizable {@link Service} in the given mode,
+	 * giving up after a given timeout elapses. Use {@link Service#LOCK_SHARED}
+	 * when you only need to read from the {@link Service}, so that other
+	 * {@link Application}s reading it at the same time are not shut out, and
+	 * {@link Service#LOCK_EXCLUSIVE} when you need it to yourself. Writers are
+	 * preferred, so once an exclusive lock is requested, no new shared locks
+	 * are granted until it has been got and released.
+	 * 
+	 * @param name
+	 *            Name of {@link Service} implementation.
+	 * @param mode
+	 *            {@link Service#LOCK_EXCLUSIVE} or {@link Service#LOCK_SHARED}
+	 * @param timeout
+	 *            time in milliseconds after which method gives up and returns
+	 *            null
+	 * @return The service if lock got on it in timeout period, else null.
+	 * @throws JandalCoreException
+	 *             No more operations allowed in processor (see
+	 *             {@link EventProcessor#onEvent()} for reason).
+	 * @throws JandalCoreException
+	 *             Name not valid
+	 * @throws JandalCoreException
+	 *             Service not found
+	 * @throws JandalCoreException
+	 *             Service is not synchronized, so locking does not apply to it
+	 * @throws JandalCoreException
+	 *             Unknown lock mode
+	 */
+	protected final Service lockService(final String className,
+			final int mode, long timeout) throws JandalCoreException {
+		assertActive();
+		return this.serviceCache.lockService(className, mode, timeout);
+	}
+
 	/**
 	 * Returns a {@link Service} that was hopefully plugged into the
 	 * {@link Application} when it was instantiated (see
@@ -813,6 +862,18 @@ public abstract class State {
 		this.serviceCache.releaseLocks();
 	}
 
+	/**
+	 * Returns a field-for-field copy of this state, for
+	 * {@link PrototypeCopier}.
+	 */
+	final Object shallowCopy() {
+		try {
+			return super.clone();
+		} catch (CloneNotSupportedException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
 	private final void assertActive() throws JandalCoreException {
 		if (!active) {
 			throw new JandalCoreException("State is not active");
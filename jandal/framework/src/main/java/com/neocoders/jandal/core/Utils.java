@@ -37,13 +37,18 @@ class Utils {
 	if (dotIndex == -1) {
 	    return "unknown";
 	}
-	String ext = fileName.substring(fileName.lastIndexOf(".") + 1, fileName
-		.length() - 1);
+	String ext = fileName.substring(dotIndex + 1);
 	ext = ext.toLowerCase();
 	if (ext.equals("txt")) {
 	    return "text/plain";
 	} else if (ext.equals("htm") || ext.equals("html")) {
-	    return "image/html";
+	    return "text/html";
+	} else if (ext.equals("css")) {
+	    return "text/css";
+	} else if (ext.equals("js")) {
+	    return "text/javascript";
+	} else if (ext.equals("xml")) {
+	    return "text/xml";
 	} else if (ext.equals("svg")) {
 	    return "image/svg";
 	} else if (ext.equals("rtx")) {
@@ -0,0 +1,47 @@
+/*
+ * Copyright (C) 2007 Lindsay S. Kay, All rights Reserved.
+ *
+ * This software is provided "as-is", without any express or implied warranty. In no event will the 
+ * author be held liable for any damages arising from the use of this software.
+ *
+ * Permission is granted to anyone to use this software for any purpose, including commercial 
+ * applications, and to alter it and redistribute if freely, subject to the following restrictions:
+ *
+ *  1. The origin of this software must not be misrepresented: you must not claim that you wrote 
+ * 	the original software. if you use this software in a product, an acknowledgement in the product 
+ * 	documentation would be appreciated but is not required.
+ * 
+ *  2. Altered source versions must be plainly marked as such, and must not be misrepresented 
+ * 	as the original software.
+ * 
+  * 3. This notice must not be removed or altered from any source distribution.
+ */
+package com.neocoders.jandal.core;
+
+/**
+ * Notified of each view event an {@link Application} processes through
+ * {@link Controller#fireViewEvent(String, Params)}, eg. to journal it so that
+ * the {@link Application} can be rebuilt later by firing the same events, in
+ * the same order, at a freshly started one.
+ * 
+ * @author lindsay
+ * 
+ */
+public interface ViewEventListener {
+
+	/**
+	 * A view event was fired at the {@link Controller} on the given path and
+	 * processed without error. Called before the changes it made are
+	 * published to the {@link ApplicationListener}s.
+	 * 
+	 * @param controllerPath
+	 *            Path of the {@link Controller}, as it was when the event was
+	 *            fired.
+	 * @param eventName
+	 *            Name of event.
+	 * @param params
+	 *            Parameters for event.
+	 */
+	public void viewEventProcessed(String controllerPath, String eventName,
+			Params params);
+}
@@ -262,84 +262,15 @@ public class JandalUnitTask extends Task {
 	}
 
 	private Object getInstance(String className) throws BuildException {
-		final InstantiationThread thread = new InstantiationThread(Thread
-				.currentThread(), className);
-		thread.start();
-		synchronized (this) {
-			try {
-				Thread.sleep(10000L); // TODO: Config param for this
-				throw new BuildException("Failed to instantiate " + className
-						+ " - constructor timed out - instantiation exceeded "
-						+ 10000 + " milliseconds");
-			} catch (InterruptedException e) {
-			}
-		}
-		final Exception exception = thread.getException();
-		if (exception != null) {
-			throw new BuildException("Failed to instantiate " + className
-					+ " - " + exception.toString(), exception);
+		try {
+			return instantiator.newInstance(className);
+		} catch (JandalCoreException e) {
+			throw new BuildException(e.getMessage(), e.getCause());
 		}
-
-		return thread.getInstance();
-
 	}
 
-	/*
-	 * Thread in which object is instantiated, so that we can check for timeout
-	 * in parent thread
-	 */
-	private static class InstantiationThread extends Thread {
-		public InstantiationThread(final Thread parent, final String className) {
-			super();
-			this.parent = parent;
-			this.className = className;
-			this.instance = null;
-			this.exception = null;
-		}
-
-		public void run() {
-			try {
-				final ClassLoader loader = this.getClass().getClassLoader();
-				final Class c = loader.loadClass(className);
-				this.instance = c.newInstance();
-			} catch (final Exception e) {
-				trimStackTrace(e);
-				this.exception = e;
-			}
-			parent.interrupt();
-		}
-
-		/**
-		 * Trims off the last stack trace element in order to hide this class
-		 * from the stack trace. End effect is improved framework transparency.
-		 * 
-		 * @param e
-		 */
-		private void trimStackTrace(Exception e) {
-			StackTraceElement[] trace = e.getStackTrace();
-			StackTraceElement[] trace2 = new StackTraceElement[trace.length - 1];
-			for (int i = 0; i < trace.length - 1; i++) {
-				trace2[i] = trace[i];
-			}
-			e.setStackTrace(trace2);
-		}
-
-		public Object getInstance() {
-			return instance;
-		}
-
-		public Exception getException() {
-			return exception;
-		}
-
-		private Thread parent;
-
-		private String className;
-
-		private Object instance;
-
-		private Exception exception;
-	}
+	private final Instantiator instantiator = new Instantiator(
+			ApplicationFactory.DEFAULT_INSTANTIATION_TIMEOUT);
 
 	private String reportFilePath;
 
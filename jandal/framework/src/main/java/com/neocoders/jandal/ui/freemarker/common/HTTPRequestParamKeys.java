@@ -65,6 +65,12 @@ public interface HTTPRequestParamKeys {
 	 */
 	public final static String PARAM_RESOURCE_NAME = "_resource_name";
 
+	/**
+	 * Class of the {@link Controller} that a resource is bundled with.
+	 * 
+	 */
+	public final static String PARAM_CONTROLLER_CLASS = "_controller_class";
+
 	/**
 	 * Name of output of a target {@link Controller}.
 	 * 
@@ -84,4 +90,24 @@ public interface HTTPRequestParamKeys {
 	 */
 	public final static String PARAM_EMBEDDED = "_embedded";
 
+	/**
+	 * Version of a static asset, which makes a new URL for each version so
+	 * that clients may cache each one indefinitely.
+	 * 
+	 */
+	public final static String PARAM_VERSION = "_version";
+
+	/**
+	 * Key that must be given to see the footprint report.
+	 * 
+	 */
+	public final static String PARAM_REPORT_KEY = "_report_key";
+
+	/**
+	 * Number of the heaviest sessions and controllers to list in the
+	 * footprint report.
+	 * 
+	 */
+	public final static String PARAM_REPORT_SIZE = "_report_size";
+
 }
@@ -46,4 +46,24 @@ public interface HTTPRequestTypes {
 	 * 
 	 */
 	public final static String RESOURCE_REQUEST = "_resource_request";
+
+	/**
+	 * Request for the client-side script, which needs no session.
+	 * 
+	 */
+	public final static String SCRIPT_REQUEST = "_script_request";
+
+	/**
+	 * Request for a {@link Resource} bundled with a controller class, which
+	 * needs no session.
+	 * 
+	 */
+	public final static String STATIC_RESOURCE_REQUEST = "_static_resource_request";
+
+	/**
+	 * Request for a report of the sessions and controllers retaining the most
+	 * heap, which needs no session but must give the report key.
+	 * 
+	 */
+	public final static String FOOTPRINT_REPORT_REQUEST = "_footprint_report_request";
 }
@@ -22,12 +22,16 @@ package com.neocoders.jandal.ui.freemarker.model;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.BufferedReader;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
 
 import com.neocoders.jandal.core.*;
-import com.neocoders.jandal.ui.freemarker.common.HTTPRequestParamKeys;
-import com.neocoders.jandal.ui.freemarker.common.HTTPRequestTypes;
 import com.neocoders.jandal.ui.freemarker.session.*;
 
+import freemarker.core.Environment;
 import freemarker.template.TemplateModelException;
 
 public class ControllerTemplateModel {
@@ -36,50 +40,76 @@ public class ControllerTemplateModel {
 
 	public ControllerTemplateModel(ApplicationSession applicationSession,
 			ControllerSession controllerSession, RenderCallback renderCallback) {
+		this(applicationSession, controllerSession, renderCallback, false);
+	}
+
+	/**
+	 * Creates a model that, when streaming, has {@link #getChildView(String)}
+	 * write child views straight into the output of the template being
+	 * processed instead of returning them. Child views must then only be
+	 * interpolated directly into the template output, not captured or
+	 * manipulated as strings.
+	 */
+	public ControllerTemplateModel(ApplicationSession applicationSession,
+			ControllerSession controllerSession,
+			RenderCallback renderCallback, boolean streaming) {
+		this(applicationSession, controllerSession, controllerSession
+				.getController().getOutputSnapshot(), renderCallback,
+				streaming);
+	}
+
+	/**
+	 * Creates a model that renders from the given snapshot of the
+	 * controller's outputs, such as one taken from the
+	 * {@link ApplicationSnapshot} that the whole view is rendered from.
+	 */
+	public ControllerTemplateModel(ApplicationSession applicationSession,
+			ControllerSession controllerSession, OutputSnapshot outputSnapshot,
+			RenderCallback renderCallback, boolean streaming) {
 		super();
+		this.streaming = streaming;
 		this.applicationSession = applicationSession;
 		this.controllerSession = controllerSession;
 		this.renderCallback = renderCallback;
+		this.outputSnapshot = outputSnapshot;
+		this.renderedChildren = new ArrayList();
+		this.boundOutputs = new HashSet();
+		this.readOutputs = new HashSet();
+	}
+
+	/**
+	 * Returns the snapshot of the controller's outputs that this model renders
+	 * from, taken when the model was created.
+	 */
+	public final OutputSnapshot getOutputSnapshot() {
+		return outputSnapshot;
+	}
+
+	/**
+	 * Returns the sessions of the child controllers whose views have been
+	 * rendered through {@link #getChildView(String)}, in the order rendered.
+	 */
+	public final List getRenderedChildren() {
+		return renderedChildren;
 	}
 
 	public final String getRequestUri() {
 		return applicationSession.getRequestUri();
 	}
 
+	/**
+	 * Returns the URL of a resource bundled with the controller's class. The
+	 * URL needs no session and changes only when the resource does, so
+	 * clients may cache the resource.
+	 */
 	public final String getResourceUrl(String fileName)
 			throws TemplateModelException {
-
-		/*
-		 * Test if resource can be got
-		 */
 		try {
-			this.controllerSession.getController().getResource(fileName);
+			return renderCallback.getResourceUrl(applicationSession,
+					controllerSession, fileName);
 		} catch (Exception e) {
 			throw new TemplateModelException(e.getMessage(), e);
 		}
-
-		/*
-		 * Render URL
-		 */
-		StringBuffer sb = new StringBuffer();
-		sb.append(applicationSession.getRequestUri());
-		sb.append("?");
-		sb.append(HTTPRequestParamKeys.PARAM_CONTROLLER_ID);
-		sb.append("=");
-		sb.append(controllerSession.getId());
-		sb.append("&");
-		sb.append(HTTPRequestParamKeys.PARAM_CONTROLLER_SYNCH_KEY);
-		sb.append("=");
-		sb.append(controllerSession.getSynchKey());
-		sb.append("&");
-		sb.append(HTTPRequestParamKeys.PARAM_REQUEST_TYPE);
-		sb.append("=");
-		sb.append(HTTPRequestTypes.RESOURCE_REQUEST);
-		sb.append("&");
-		sb.append(HTTPRequestParamKeys.PARAM_RESOURCE_NAME);
-		sb.append("=");
-		sb.append(fileName);
-		return sb.toString();
 	}
 
 	public final String getTextFileResource(String fileName)
@@ -131,9 +161,9 @@ public class ControllerTemplateModel {
 	}
 
 	public final Object getOutput(String name) throws TemplateModelException {
+		readOutputs.add(name);
 		try {
-			Object output = this.controllerSession.getController().getOutput(
-					name);
+			Object output = this.outputSnapshot.getOutput(name);
 			if (output == null) {
 				throw new TemplateModelException(
 						"Controller output not found: \"" + name + "\"");
@@ -144,6 +174,41 @@ public class ControllerTemplateModel {
 		}
 	}
 
+	/**
+	 * Returns the value of a scalar output wrapped in an element that the
+	 * client can find again, so that while nothing else about the controller
+	 * changes, later changes to the output can be sent to the client and
+	 * patched into the element rather than re-rendering the whole view. An
+	 * output read through {@link #getOutput(String)} as well is not patched.
+	 */
+	public final String getBoundOutput(String name)
+			throws TemplateModelException {
+		Object output;
+		try {
+			output = this.outputSnapshot.getOutput(name);
+		} catch (Exception e) {
+			throw new TemplateModelException(e.getMessage(), e);
+		}
+		if (output == null) {
+			throw new TemplateModelException("Controller output not found: \""
+					+ name + "\"");
+		}
+		boundOutputs.add(name);
+		return "<span id=\""
+				+ controllerSession.getBoundOutputElementId(name) + "\">"
+				+ output + "</span>";
+	}
+
+	/**
+	 * Returns the names of the outputs rendered through
+	 * {@link #getBoundOutput(String)} and not read any other way.
+	 */
+	public final Set getBoundOutputNames() {
+		Set names = new HashSet(boundOutputs);
+		names.removeAll(readOutputs);
+		return names;
+	}
+
 	public final DownloadTool getDownloadTool(String name)
 			throws TemplateModelException {
 		Object output = this.getOutput(name);
@@ -162,13 +227,24 @@ public class ControllerTemplateModel {
 	public final String getChildView(String childControllerName)
 			throws TemplateModelException {
 		try {
-			ControllerSession childControllerSession = this.controllerSession
-					.getChildControllerSessionWithName(childControllerName);
+			ControllerSession childControllerSession = getChildControllerSession(
+					childControllerName);
 			if (childControllerSession == null) {
 				throw new TemplateModelException(
 						"Child Controller not found: \"" + childControllerName
 								+ "\"");
 			}
+			renderedChildren.add(childControllerSession);
+			if (streaming) {
+				/*
+				 * Write child view in place, at the point the template has
+				 * reached in its output
+				 */
+				renderCallback.renderController(applicationSession,
+						childControllerSession, Environment
+								.getCurrentEnvironment().getOut());
+				return "";
+			}
 			return renderCallback.renderController(applicationSession,
 					childControllerSession);
 		} catch (Exception e) {
@@ -176,10 +252,35 @@ public class ControllerTemplateModel {
 		}
 	}
 
+	/*
+	 * Finds the child among those of the snapshot rendered from, rather
+	 * than of the live controller, which may have moved on
+	 */
+	private ControllerSession getChildControllerSession(String name) {
+		for (Iterator i = outputSnapshot.getChildControllers().iterator(); i
+				.hasNext();) {
+			Controller child = (Controller) i.next();
+			if (child.getName().equals(name)) {
+				return applicationSession.getControllerSession(child);
+			}
+		}
+		return null;
+	}
+
 	private ApplicationSession applicationSession;
 
 	private RenderCallback renderCallback;
 
 	private ControllerSession controllerSession;
 
+	private OutputSnapshot outputSnapshot;
+
+	private boolean streaming;
+
+	private List renderedChildren;
+
+	private Set boundOutputs;
+
+	private Set readOutputs;
+
 }
@@ -19,9 +19,25 @@
 
 package com.neocoders.jandal.ui.freemarker.model;
 
+import java.io.Writer;
+
 import com.neocoders.jandal.ui.freemarker.session.*;
 
 public interface RenderCallback {
 	public String renderController(ApplicationSession appSession,
 			ControllerSession controller) throws Exception;
+
+	/**
+	 * Renders the view of the given controller straight into the given
+	 * writer.
+	 */
+	public void renderController(ApplicationSession appSession,
+			ControllerSession controller, Writer out) throws Exception;
+
+	/**
+	 * Returns the URL of a resource bundled with the class of the given
+	 * controller.
+	 */
+	public String getResourceUrl(ApplicationSession appSession,
+			ControllerSession controller, String fileName) throws Exception;
 }
@@ -0,0 +1,117 @@
+/*
+ * Copyright (C) 2007 Lindsay S. Kay, All rights Reserved.
+ *
+ * This software is provided "as-is", without any express or implied warranty. In no event will the 
+ * author be held liable for any damages arising from the use of this software.
+ *
+ * Permission is granted to anyone to use this software for any purpose, including commercial 
+ * applications, and to alter it and redistribute if freely, subject to the following restrictions:
+ *
+ *  1. The origin of this software must not be misrepresented: you must not claim that you wrote 
+ * 	the original software. if you use this software in a product, an acknowledgement in the product 
+ * 	documentation would be appreciated but is not required.
+ * 
+ *  2. Altered source versions must be plainly marked as such, and must not be misrepresented 
+ * 	as the original software.
+ * 
+  * 3. This notice must not be removed or altered from any source distribution.
+ */
+
+package com.neocoders.jandal.ui.freemarker.servlet;
+
+/**
+ * The single range of bytes asked for by the Range header of a request.
+ * 
+ * @author lindsay
+ * 
+ */
+final class ByteRange {
+
+	/**
+	 * Stands for a range that lies wholly beyond the end of the content.
+	 */
+	static final ByteRange UNSATISFIABLE = new ByteRange(-1, -1);
+
+	private ByteRange(long first, long last) {
+		this.first = first;
+		this.last = last;
+	}
+
+	/**
+	 * Parses a Range header against content of the given length. Headers that
+	 * are malformed, that are not in bytes, or that ask for several ranges at
+	 * once are ignored, so that the whole content is sent instead.
+	 * 
+	 * @return The range, {@link #UNSATISFIABLE}, or null to send the whole
+	 *         content.
+	 */
+	static ByteRange parse(String header, long length) {
+		if (header == null) {
+			return null;
+		}
+		header = header.trim();
+		if (!header.startsWith("bytes=")) {
+			return null;
+		}
+		final String spec = header.substring("bytes=".length()).trim();
+		if (spec.indexOf(',') != -1) {
+			return null;
+		}
+		final int dashIndex = spec.indexOf('-');
+		if (dashIndex == -1) {
+			return null;
+		}
+		final String firstSpec = spec.substring(0, dashIndex).trim();
+		final String lastSpec = spec.substring(dashIndex + 1).trim();
+		try {
+			if (firstSpec.length() == 0) {
+				/*
+				 * Suffix range - last n bytes
+				 */
+				if (lastSpec.length() == 0) {
+					return null;
+				}
+				final long suffixLength = Long.parseLong(lastSpec);
+				if (suffixLength <= 0 || length <= 0) {
+					/*
+					 * Empty content has no last bytes to send
+					 */
+					return UNSATISFIABLE;
+				}
+				return new ByteRange(Math.max(0, length - suffixLength),
+						length - 1);
+			}
+			final long first = Long.parseLong(firstSpec);
+			long last = lastSpec.length() == 0 ? Long.MAX_VALUE : Long
+					.parseLong(lastSpec);
+			if (first < 0 || last < first) {
+				return null;
+			}
+			if (first >= length) {
+				return UNSATISFIABLE;
+			}
+			if (last >= length) {
+				last = length - 1;
+			}
+			return new ByteRange(first, last);
+		} catch (NumberFormatException e) {
+			return null;
+		}
+	}
+
+	long getFirst() {
+		return first;
+	}
+
+	long getLast() {
+		return last;
+	}
+
+	long getLength() {
+		return last - first + 1;
+	}
+
+	private final long first;
+
+	private final long last;
+}
@@ -0,0 +1,204 @@
+/*
+ * Copyright (C) 2007 Lindsay S. Kay, All rights Reserved.
+ *
+ * This software is provided "as-is", without any express or implied warranty. In no event will the 
+ * author be held liable for any damages arising from the use of this software.
+ *
+ * Permission is granted to anyone to use this software for any purpose, including commercial 
+ * applications, and to alter it and redistribute if freely, subject to the following restrictions:
+ *
+ *  1. The origin of this software must not be misrepresented: you must not claim that you wrote 
+ * 	the original software. if you use this software in a product, an acknowledgement in the product 
+ * 	documentation would be appreciated but is not required.
+ * 
+ *  2. Altered source versions must be plainly marked as such, and must not be misrepresented 
+ * 	as the original software.
+ * 
+  * 3. This notice must not be removed or altered from any source distribution.
+ */
+package com.neocoders.jandal.ui.freemarker.servlet;
+
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+
+import com.neocoders.jandal.ui.freemarker.session.*;
+
+/**
+ * Page for administrators listing the sessions, and the controllers within
+ * them, that retain the most heap, as estimated by a
+ * {@link FootprintEstimator}. Sessions are identified by application ID only,
+ * never by the keys their clients hold.
+ * 
+ * @author lindsay
+ * 
+ */
+final class FootprintReport {
+
+	/**
+	 * Default number of sessions and of controllers listed.
+	 */
+	static final int DEFAULT_SIZE = 20;
+
+	/**
+	 * Most sessions and controllers that may be listed.
+	 */
+	static final int MAX_SIZE = 1000;
+
+	FootprintReport(FootprintEstimator estimator) {
+		this.estimator = estimator;
+	}
+
+	/**
+	 * Estimates each of the given sessions, skipping any given twice, and
+	 * writes the given number of the heaviest sessions and controllers as an
+	 * HTML page.
+	 */
+	void write(List appSessions, int size, PrintWriter out) {
+		final long startMillis = System.currentTimeMillis();
+		final IdentityHashMap estimated = new IdentityHashMap();
+		final List sessions = new ArrayList();
+		final List controllers = new ArrayList();
+		long totalBytes = 0;
+		for (Iterator i = appSessions.iterator(); i.hasNext();) {
+			final ApplicationSession appSession = (ApplicationSession) i
+					.next();
+			if (estimated.put(appSession, appSession) != null) {
+				continue;
+			}
+			final SessionFootprint footprint = estimator.estimate(appSession);
+			sessions.add(footprint);
+			totalBytes += footprint.getTotalBytes();
+			for (Iterator j = footprint.getControllerFootprints().iterator(); j
+					.hasNext();) {
+				controllers.add(new Object[] { footprint, j.next() });
+			}
+		}
+		Collections.sort(sessions, new Comparator() {
+			public int compare(Object o1, Object o2) {
+				return compareBytes(((SessionFootprint) o1).getTotalBytes(),
+						((SessionFootprint) o2).getTotalBytes());
+			}
+		});
+		Collections.sort(controllers, new Comparator() {
+			public int compare(Object o1, Object o2) {
+				return compareBytes(
+						((ControllerFootprint) ((Object[]) o1)[1])
+								.getTotalBytes(),
+						((ControllerFootprint) ((Object[]) o2)[1])
+								.getTotalBytes());
+			}
+		});
+
+		out.println("<html><head><title>Session footprints</title></head><body>");
+		out.println("<h1>Session footprints</h1>");
+		out.print("<p>");
+		out.print(sessions.size());
+		out.print(" sessions, about ");
+		out.print(totalBytes);
+		out.print(" bytes in all, estimated in ");
+		out.print(System.currentTimeMillis() - startMillis);
+		out.println(" ms.</p>");
+
+		out.println("<h2>Heaviest sessions</h2>");
+		out.println("<table border=\"1\"><tr><th>Application</th><th>Bytes</th>"
+				+ "<th>Controllers</th><th>Application</th><th>Fragments</th>"
+				+ "<th>Session</th><th>Last access</th></tr>");
+		for (int i = 0; i < sessions.size() && i < size; i++) {
+			final SessionFootprint footprint = (SessionFootprint) sessions
+					.get(i);
+			out.print("<tr><td>");
+			out.print(footprint.isPassivated() ? "(passivated)"
+					: escape(footprint.getId()));
+			out.print("</td><td>");
+			out.print(footprint.getTotalBytes());
+			out.print("</td><td>");
+			out.print(footprint.getControllerFootprints().size());
+			out.print("</td><td>");
+			out.print(footprint.getApplicationBytes());
+			out.print("</td><td>");
+			out.print(footprint.getFragmentBytes());
+			out.print("</td><td>");
+			out.print(footprint.getSessionBytes());
+			out.print("</td><td>");
+			out.print(escape(new Date(footprint.getLastAccessTime())
+					.toString()));
+			out.println("</td></tr>");
+		}
+		out.println("</table>");
+
+		out.println("<h2>Heaviest controllers</h2>");
+		out.println("<table border=\"1\"><tr><th>Application</th><th>Controller</th>"
+				+ "<th>Bytes</th><th>Outputs</th><th>Largest output</th>"
+				+ "<th>Structure</th><th>Session</th></tr>");
+		for (int i = 0; i < controllers.size() && i < size; i++) {
+			final Object[] pair = (Object[]) controllers.get(i);
+			final SessionFootprint footprint = (SessionFootprint) pair[0];
+			final ControllerFootprint controller = (ControllerFootprint) pair[1];
+			final String largest = controller.getLargestOutputName();
+			out.print("<tr><td>");
+			out.print(escape(footprint.getId()));
+			out.print("</td><td>");
+			out.print(escape(controller.getPath()));
+			out.print("</td><td>");
+			out.print(controller.getTotalBytes());
+			out.print("</td><td>");
+			out.print(controller.getTotalOutputBytes());
+			out.print("</td><td>");
+			if (largest != null) {
+				out.print(escape(largest));
+				out.print(" (");
+				out.print(controller.getOutputBytes().get(largest));
+				out.print(")");
+			}
+			out.print("</td><td>");
+			out.print(controller.getStructureBytes());
+			out.print("</td><td>");
+			out.print(controller.getSessionBytes());
+			out.println("</td></tr>");
+		}
+		out.println("</table>");
+		out.println("</body></html>");
+	}
+
+	/*
+	 * Heaviest first
+	 */
+	private static int compareBytes(long bytes1, long bytes2) {
+		return (bytes1 > bytes2) ? -1 : ((bytes1 < bytes2) ? 1 : 0);
+	}
+
+	private static String escape(String s) {
+		if (s == null) {
+			return "";
+		}
+		final StringBuffer sb = new StringBuffer(s.length());
+		for (int i = 0; i < s.length(); i++) {
+			final char c = s.charAt(i);
+			switch (c) {
+			case '<':
+				sb.append("&lt;");
+				break;
+			case '>':
+				sb.append("&gt;");
+				break;
+			case '&':
+				sb.append("&amp;");
+				break;
+			case '"':
+				sb.append("&quot;");
+				break;
+			default:
+				sb.append(c);
+			}
+		}
+		return sb.toString();
+	}
+
+	private final FootprintEstimator estimator;
+}
@@ -22,6 +22,8 @@
 package com.neocoders.jandal.ui.freemarker.servlet;
 
 import java.io.*;
+import java.net.URLEncoder;
+import java.security.MessageDigest;
 
 import javax.servlet.*;
 import javax.servlet.http.*;
@@ -35,6 +37,10 @@ import java.util.StringTokenizer;
 import org.apache.commons.fileupload.disk.*;
 import org.apache.commons.fileupload.servlet.*;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.zip.Deflater;
 
 import org.apache.commons.fileupload.*;
 
@@ -68,6 +74,102 @@ public class JandalFreeMarkerServlet extends HttpServlet {
 
 	private static final String WINDOW_TITLE_INIT_PARAM_KEY = "window-title";
 
+	private static final String INSTANTIATION_TIMEOUT_INIT_PARAM_KEY = "instantiation-timeout";
+
+	private static final String APPLICATION_POOL_SIZE_INIT_PARAM_KEY = "application-pool-size";
+
+	private static final String PROTOTYPE_APPLICATION_INIT_PARAM_KEY = "prototype-application";
+
+	private static final String SESSION_WORKER_THREADS_INIT_PARAM_KEY = "session-worker-threads";
+
+	private static final String SESSION_LOCK_WAITERS_INIT_PARAM_KEY = "session-lock-waiters";
+
+	private static final String SESSION_QUEUE_DEPTH_INIT_PARAM_KEY = "session-queue-depth";
+
+	private static final String TEMPLATE_UPDATE_DELAY_INIT_PARAM_KEY = "template-update-delay";
+
+	private static final String PRODUCTION_MODE_INIT_PARAM_KEY = "production-mode";
+
+	private static final String STREAMING_RENDER_INIT_PARAM_KEY = "streaming-render";
+
+	private static final String FRAGMENT_CACHE_SIZE_INIT_PARAM_KEY = "fragment-cache-size";
+
+	private static final String RESPONSE_COMPRESSION_INIT_PARAM_KEY = "response-compression";
+
+	private static final String COMPRESSION_MIN_SIZE_INIT_PARAM_KEY = "compression-min-size";
+
+	private static final String COMPRESSION_LEVEL_INIT_PARAM_KEY = "compression-level";
+
+	private static final String MAX_SESSIONS_INIT_PARAM_KEY = "max-sessions";
+
+	private static final String SESSION_HEAP_LIMIT_INIT_PARAM_KEY = "session-heap-limit";
+
+	private static final String SESSION_IDLE_TIMEOUT_INIT_PARAM_KEY = "session-idle-timeout";
+
+	private static final String SESSION_MIN_IDLE_INIT_PARAM_KEY = "session-min-idle";
+
+	private static final String SESSION_PASSIVATION_INIT_PARAM_KEY = "session-passivation";
+
+	private static final String SESSION_PASSIVATE_AFTER_INIT_PARAM_KEY = "session-passivate-after";
+
+	private static final String PASSIVATION_DIRECTORY_INIT_PARAM_KEY = "passivation-directory";
+
+	private static final String PASSIVATION_SEGMENT_SIZE_INIT_PARAM_KEY = "passivation-segment-size";
+
+	private static final String EVENT_JOURNAL_INIT_PARAM_KEY = "event-journal";
+
+	private static final String JOURNAL_DIRECTORY_INIT_PARAM_KEY = "journal-directory";
+
+	private static final String JOURNAL_FLUSH_PERIOD_INIT_PARAM_KEY = "journal-flush-period";
+
+	private static final String JOURNAL_SNAPSHOT_INTERVAL_INIT_PARAM_KEY = "journal-snapshot-interval";
+
+	private static final String JOURNAL_RETENTION_INIT_PARAM_KEY = "journal-retention";
+
+	/**
+	 * Default seconds the journal of a session is kept for its client to come
+	 * back to - a day.
+	 */
+	public static final int DEFAULT_JOURNAL_RETENTION = 24 * 60 * 60;
+
+	/*
+	 * Cookie holding the key of the client's session journal
+	 */
+	private static final String JOURNAL_COOKIE_NAME = "jandal-journal";
+
+	private static final String SESSION_STORE_INIT_PARAM_KEY = "session-store";
+
+	private static final String SESSION_STORE_NAME_INIT_PARAM_KEY = "session-store-name";
+
+	private static final String SESSION_STORE_DIRECTORY_INIT_PARAM_KEY = "session-store-directory";
+
+	private static final String SESSION_NEAR_CACHE_SIZE_INIT_PARAM_KEY = "session-near-cache-size";
+
+	private static final String SHARED_SESSION_TIMEOUT_INIT_PARAM_KEY = "shared-session-timeout";
+
+	/**
+	 * Default seconds a shared session may go unused before it is removed
+	 * from the store.
+	 */
+	public static final int DEFAULT_SHARED_SESSION_TIMEOUT = 30 * 60;
+
+	/*
+	 * Cookie holding the key of the client's shared session
+	 */
+	private static final String SESSION_COOKIE_NAME = "jandal-session";
+
+	private static final String FOOTPRINT_REPORT_KEY_INIT_PARAM_KEY = "footprint-report-key";
+
+	/**
+	 * Default seconds between checks of a cached template for changes.
+	 */
+	public static final int DEFAULT_TEMPLATE_UPDATE_DELAY = 5;
+
+	/*
+	 * Seconds clients may cache a versioned static asset - a year
+	 */
+	private static final int STATIC_ASSET_MAX_AGE = 365 * 24 * 60 * 60;
+
 	/**
 	 * 
 	 */
@@ -129,22 +231,409 @@ public class JandalFreeMarkerServlet extends HttpServlet {
 			this.appFactory = new ApplicationFactory(this.applicationClassName,
 					serviceSet);
 
+			/*
+			 * Milliseconds allowed for the Application constructor -
+			 * optional, zero or less disables the timeout
+			 */
+			this.appFactory.setInstantiationTimeout(getLongInitParam(config,
+					JandalFreeMarkerServlet.INSTANTIATION_TIMEOUT_INIT_PARAM_KEY,
+					ApplicationFactory.DEFAULT_INSTANTIATION_TIMEOUT, false));
+
+			/*
+			 * Whether to copy new Applications from a prototype instead of
+			 * starting each from scratch - optional, off by default
+			 */
+			this.appFactory.setPrototyping(getInitParam(config,
+					JandalFreeMarkerServlet.PROTOTYPE_APPLICATION_INIT_PARAM_KEY,
+					"false", false).equalsIgnoreCase("true"));
+
+			/*
+			 * Number of started Applications to keep ready for new sessions -
+			 * optional, zero disables the pool
+			 */
+			this.appFactory.setPoolSize(getIntInitParam(config,
+					JandalFreeMarkerServlet.APPLICATION_POOL_SIZE_INIT_PARAM_KEY,
+					0, false));
+
+			/*
+			 * Size of the worker pool that runs requests for all sessions, how
+			 * many of its workers may wait for service locks at once, and the
+			 * number of requests each session may have pending - all optional
+			 */
+			final int sessionWorkerThreads = getIntInitParam(config,
+					JandalFreeMarkerServlet.SESSION_WORKER_THREADS_INIT_PARAM_KEY,
+					Runtime.getRuntime().availableProcessors() * 4, false);
+			this.sessionWorkers = SessionMailbox.newWorkerPool(
+					sessionWorkerThreads, getIntInitParam(config,
+							JandalFreeMarkerServlet.SESSION_LOCK_WAITERS_INIT_PARAM_KEY,
+							sessionWorkerThreads, false));
+			this.sessionQueueDepth = getIntInitParam(config,
+					JandalFreeMarkerServlet.SESSION_QUEUE_DEPTH_INIT_PARAM_KEY,
+					SessionMailbox.DEFAULT_MAX_DEPTH, false);
+
+			/*
+			 * Admission of new sessions - the maximum number of live
+			 * sessions, the percentage of the heap that may be in use when
+			 * one starts, and the seconds after which idle sessions are
+			 * evicted are all optional and unlimited by default
+			 */
+			this.maxSessions = getIntInitParam(config,
+					JandalFreeMarkerServlet.MAX_SESSIONS_INIT_PARAM_KEY, 0,
+					false);
+			this.timeout = getIntInitParam(config,
+					JandalFreeMarkerServlet.SESSION_IDLE_TIMEOUT_INIT_PARAM_KEY,
+					0, false);
+			this.sessionRegistry = new SessionRegistry(maxSessions,
+					getIntInitParam(config,
+							JandalFreeMarkerServlet.SESSION_HEAP_LIMIT_INIT_PARAM_KEY,
+							0, false), timeout, getIntInitParam(config,
+							JandalFreeMarkerServlet.SESSION_MIN_IDLE_INIT_PARAM_KEY,
+							SessionRegistry.DEFAULT_MIN_IDLE, false));
+
+			/*
+			 * Passivation of idle sessions to disk instead of evicting them -
+			 * optional, off by default; the seconds idle before passivation,
+			 * the directory for the store and the size of its segment files
+			 * are optional as well
+			 */
+			int sweepSeconds = timeout;
+			if (getInitParam(config,
+					JandalFreeMarkerServlet.SESSION_PASSIVATION_INIT_PARAM_KEY,
+					"false", false).equalsIgnoreCase("true")) {
+				int passivateAfter = getIntInitParam(
+						config,
+						JandalFreeMarkerServlet.SESSION_PASSIVATE_AFTER_INIT_PARAM_KEY,
+						SessionPassivator.DEFAULT_PASSIVATE_AFTER, false);
+				this.passivationStore = new PassivationStore(
+						getPassivationDirectory(config),
+						getIntInitParam(
+								config,
+								JandalFreeMarkerServlet.PASSIVATION_SEGMENT_SIZE_INIT_PARAM_KEY,
+								PassivationStore.DEFAULT_SEGMENT_SIZE, false));
+				this.sessionPassivator = new SessionPassivator(appFactory,
+						passivationStore);
+				sessionRegistry.setPassivator(sessionPassivator,
+						passivateAfter);
+				if (passivateAfter > 0
+						&& (sweepSeconds <= 0 || passivateAfter < sweepSeconds)) {
+					sweepSeconds = passivateAfter;
+				}
+			}
+			if (sweepSeconds > 0) {
+				sessionRegistry.startSweeper(Math.max(1000L,
+						sweepSeconds * 500L));
+			}
+
+			/*
+			 * Journalling of view events, so that sessions can be rebuilt
+			 * after a restart or crash - optional, off by default; the
+			 * directory, the milliseconds between forcing the journals to
+			 * disk, the events between snapshots and the seconds a journal is
+			 * kept for its client to come back are optional as well
+			 */
+			if (getInitParam(config,
+					JandalFreeMarkerServlet.EVENT_JOURNAL_INIT_PARAM_KEY,
+					"false", false).equalsIgnoreCase("true")) {
+				this.journalRetention = getIntInitParam(config,
+						JandalFreeMarkerServlet.JOURNAL_RETENTION_INIT_PARAM_KEY,
+						DEFAULT_JOURNAL_RETENTION, false);
+				this.eventJournal = new EventJournal(
+						appFactory,
+						getJournalDirectory(config),
+						getLongInitParam(
+								config,
+								JandalFreeMarkerServlet.JOURNAL_FLUSH_PERIOD_INIT_PARAM_KEY,
+								EventJournal.DEFAULT_FLUSH_PERIOD, false),
+						getIntInitParam(
+								config,
+								JandalFreeMarkerServlet.JOURNAL_SNAPSHOT_INTERVAL_INIT_PARAM_KEY,
+								EventJournal.DEFAULT_SNAPSHOT_INTERVAL, false));
+				eventJournal.purge(journalRetention * 1000L);
+			}
+
 			/*
 			 * Create FreeMarker configuration
 			 */
 			cfg = new Configuration();
-			cfg.setTemplateUpdateDelay(0); // TODO: get from container property
 			cfg
 					.setTemplateExceptionHandler(TemplateExceptionHandler.RETHROW_HANDLER);
 			cfg.setObjectWrapper(ObjectWrapper.BEANS_WRAPPER);
 			cfg.setDefaultEncoding("ISO-8859-1");
 			cfg.setOutputEncoding("UTF-8");
 			cfg.setLocale(Locale.US); // TODO: get from container property
+
+			/*
+			 * Whether to stream views into the response as they render rather
+			 * than buffering the whole page - optional, off by default, and
+			 * not done for sessions shared through a store. Streamed views
+			 * are sent uncompressed
+			 */
+			this.streamingRender = getInitParam(config,
+					JandalFreeMarkerServlet.STREAMING_RENDER_INIT_PARAM_KEY,
+					"false", false).equalsIgnoreCase("true");
+
+			/*
+			 * Total characters of rendered view fragments each session may
+			 * keep for reuse - optional, off (zero) by default, since capturing
+			 * fragments costs a copy of each as it renders
+			 */
+			this.fragmentCacheSize = getIntInitParam(config,
+					JandalFreeMarkerServlet.FRAGMENT_CACHE_SIZE_INIT_PARAM_KEY,
+					0, false);
+
+			/*
+			 * Store through which sessions are shared with other servlet
+			 * instances, so that requests need not stick to this one -
+			 * optional, off by default; "in-process" for one shared by name
+			 * within this JVM, "file" for one in a directory that JVMs on
+			 * this host can share, or the name of an ApplicationSessionStore
+			 * class. The size of the near-cache of sessions read from the
+			 * store and the seconds a session may go unused are optional as
+			 * well
+			 */
+			String storeType = getInitParam(config,
+					JandalFreeMarkerServlet.SESSION_STORE_INIT_PARAM_KEY,
+					null, false);
+			if (storeType != null) {
+				this.sharedSessions = new SharedSessionCache(
+						appFactory,
+						newSessionStore(config, storeType),
+						getIntInitParam(
+								config,
+								JandalFreeMarkerServlet.SESSION_NEAR_CACHE_SIZE_INIT_PARAM_KEY,
+								SharedSessionCache.DEFAULT_MAX_CACHED, false),
+						sessionWorkers, sessionQueueDepth, fragmentCacheSize);
+				sessionRegistry.setSharedSessions(sharedSessions);
+				sharedSessions.startPurger(getIntInitParam(config,
+						JandalFreeMarkerServlet.SHARED_SESSION_TIMEOUT_INIT_PARAM_KEY,
+						DEFAULT_SHARED_SESSION_TIMEOUT, false) * 1000L);
+			}
+
+			/*
+			 * Key that administrators must give to see the report of the
+			 * sessions retaining the most heap - optional, the report is off
+			 * without one
+			 */
+			this.footprintEstimator = new FootprintEstimator();
+			this.footprintReportKey = getInitParam(config,
+					JandalFreeMarkerServlet.FOOTPRINT_REPORT_KEY_INIT_PARAM_KEY,
+					null, false);
+
+			/*
+			 * Compression of responses for clients that accept it - optional,
+			 * on by default
+			 */
+			if (getInitParam(config,
+					JandalFreeMarkerServlet.RESPONSE_COMPRESSION_INIT_PARAM_KEY,
+					"true", false).equalsIgnoreCase("true")) {
+				this.compressor = new ResponseCompressor(
+						getIntInitParam(
+								config,
+								JandalFreeMarkerServlet.COMPRESSION_MIN_SIZE_INIT_PARAM_KEY,
+								ResponseCompressor.DEFAULT_MIN_SIZE, false),
+						getIntInitParam(
+								config,
+								JandalFreeMarkerServlet.COMPRESSION_LEVEL_INIT_PARAM_KEY,
+								Deflater.DEFAULT_COMPRESSION, false));
+			}
+
+			/*
+			 * Client-side script, served apart from the pages so that clients
+			 * can cache it
+			 */
+			this.ajaxScript = new StaticAsset("ajax.js", "text/javascript",
+					getTextResourceFile("ajax.js").getBytes("ISO-8859-1"),
+					System.currentTimeMillis());
+
+			/*
+			 * Caches of templates and of linked resources by controller class
+			 * - seconds between checks for changes is optional, and production
+			 * mode, which never checks, is off by default
+			 */
+			int updateDelay = getIntInitParam(config,
+					JandalFreeMarkerServlet.TEMPLATE_UPDATE_DELAY_INIT_PARAM_KEY,
+					DEFAULT_TEMPLATE_UPDATE_DELAY, false);
+			boolean production = getInitParam(config,
+					JandalFreeMarkerServlet.PRODUCTION_MODE_INIT_PARAM_KEY,
+					"false", false).equalsIgnoreCase("true");
+			templateCache = new TemplateCache(cfg, updateDelay, production);
+			staticResources = new StaticResourceCache(updateDelay, production);
 		} catch (Exception e) {
 			throw new ServletException(e.getMessage(), e);
 		}
 	}
 
+	/**
+	 * Returns the cache of controller templates, from which template cache
+	 * statistics may be read.
+	 */
+	public TemplateCache getTemplateCache() {
+		return templateCache;
+	}
+
+	/**
+	 * Returns the registry of live application sessions, from which admission
+	 * and eviction statistics may be read.
+	 */
+	public SessionRegistry getSessionRegistry() {
+		return sessionRegistry;
+	}
+
+	/**
+	 * Returns the passivator of idle sessions, from which passivation
+	 * statistics may be read, or null if sessions are not passivated.
+	 */
+	public SessionPassivator getSessionPassivator() {
+		return sessionPassivator;
+	}
+
+	/**
+	 * Returns the journal of view events, from which journalling and recovery
+	 * statistics may be read, or null if sessions are not journalled.
+	 */
+	public EventJournal getEventJournal() {
+		return eventJournal;
+	}
+
+	/**
+	 * Returns the cache of sessions shared with other servlet instances, from
+	 * which its statistics may be read, or null if sessions are not shared.
+	 */
+	public SharedSessionCache getSharedSessionCache() {
+		return sharedSessions;
+	}
+
+	/**
+	 * Returns the estimator of the heap retained by sessions, with which the
+	 * sessions returned by {@link #getSessions()} may be weighed.
+	 */
+	public FootprintEstimator getFootprintEstimator() {
+		return footprintEstimator;
+	}
+
+	/**
+	 * Returns the application sessions held by this servlet, live, passivated
+	 * and shared, as they are now.
+	 */
+	public List getSessions() {
+		final List sessions = sessionRegistry.getSessions();
+		if (sharedSessions != null) {
+			sessions.addAll(sharedSessions.getSessions());
+		}
+		return sessions;
+	}
+
+	/**
+	 * Returns the response compressor, from which compression statistics may
+	 * be read, or null if responses are not compressed.
+	 */
+	public ResponseCompressor getResponseCompressor() {
+		return compressor;
+	}
+
+	/**
+	 * Returns the cache of resources linked to by views, from which its
+	 * statistics may be read.
+	 */
+	public StaticResourceCache getStaticResourceCache() {
+		return staticResources;
+	}
+
+	public void destroy() {
+		/*
+		 * Journal is closed first, so that sessions ended by the shutdown
+		 * keep their journals to be rebuilt from
+		 */
+		if (this.eventJournal != null) {
+			this.eventJournal.close();
+		}
+		if (this.sessionRegistry != null) {
+			this.sessionRegistry.shutdown();
+		}
+		if (this.sharedSessions != null) {
+			this.sharedSessions.shutdown();
+		}
+		if (this.passivationStore != null) {
+			this.passivationStore.close();
+		}
+		if (this.compressor != null) {
+			this.compressor.shutdown();
+		}
+		if (this.appFactory != null) {
+			this.appFactory.shutdown();
+		}
+		if (this.sessionWorkers != null) {
+			this.sessionWorkers.shutdownNow();
+		}
+		super.destroy();
+	}
+
+	/*
+	 * Directory named by init parameter, or else a new one in the container's
+	 * temporary directory for this servlet
+	 */
+	private File getPassivationDirectory(ServletConfig config)
+			throws Exception {
+		String dirName = getInitParam(config,
+				JandalFreeMarkerServlet.PASSIVATION_DIRECTORY_INIT_PARAM_KEY,
+				null, false);
+		if (dirName != null) {
+			return new File(dirName);
+		}
+		File tempDir = (File) config.getServletContext().getAttribute(
+				"javax.servlet.context.tempdir");
+		if (tempDir == null) {
+			tempDir = new File(System.getProperty("java.io.tmpdir"));
+		}
+		File dir = File.createTempFile("jandal-sessions-", "", tempDir);
+		dir.delete();
+		return dir;
+	}
+
+	/*
+	 * Directory named by init parameter, or else one in the container's
+	 * temporary directory named for this servlet, so that the same one is
+	 * found again when it restarts
+	 */
+	private File getJournalDirectory(ServletConfig config) throws Exception {
+		String dirName = getInitParam(config,
+				JandalFreeMarkerServlet.JOURNAL_DIRECTORY_INIT_PARAM_KEY, null,
+				false);
+		if (dirName != null) {
+			return new File(dirName);
+		}
+		File tempDir = (File) config.getServletContext().getAttribute(
+				"javax.servlet.context.tempdir");
+		if (tempDir == null) {
+			tempDir = new File(System.getProperty("java.io.tmpdir"));
+		}
+		return new File(tempDir, "jandal-journal-"
+				+ URLEncoder.encode(config.getServletName(), "UTF-8"));
+	}
+
+	private ApplicationSessionStore newSessionStore(ServletConfig config,
+			String storeType) throws Exception {
+		if (storeType.equals("in-process")) {
+			return InProcessSessionStore.forName(getInitParam(config,
+					JandalFreeMarkerServlet.SESSION_STORE_NAME_INIT_PARAM_KEY,
+					"default", false));
+		}
+		if (storeType.equals("file")) {
+			return new FileSessionStore(new File(getInitParam(config,
+					JandalFreeMarkerServlet.SESSION_STORE_DIRECTORY_INIT_PARAM_KEY,
+					null, true)));
+		}
+		try {
+			final Class storeClass = this.getClass().getClassLoader()
+					.loadClass(storeType);
+			return (ApplicationSessionStore) storeClass.newInstance();
+		} catch (final Exception e) {
+			throw new JandalFreeMarkerServletException(
+					"Problem instantiating ApplicationSessionStore: "
+							+ e.getMessage(), e);
+		}
+	}
+
 	private ServiceSet newServiceSet(final String className) throws Exception {
 		try {
 			final Class setClass = this.getClass().getClassLoader().loadClass(
@@ -261,58 +750,151 @@ public class JandalFreeMarkerServlet extends HttpServlet {
 			final HttpServletResponse response) throws ServletException,
 			IOException {
 
-		HttpSession session = request.getSession();
-		ApplicationSession appSession = (ApplicationSession) session
-				.getAttribute("appSession");
+		final String requestType = request
+				.getParameter(HTTPRequestParamKeys.PARAM_REQUEST_TYPE);
+		if (HTTPRequestTypes.SCRIPT_REQUEST.equals(requestType)) {
+			/*
+			 * Client-side script is the same for every session, so don't
+			 * start one to serve it
+			 */
+			handleScriptRequest(request, response);
+			return;
+		}
+		if (HTTPRequestTypes.STATIC_RESOURCE_REQUEST.equals(requestType)) {
+			/*
+			 * Nor are resources bundled with controller classes tied to a
+			 * session
+			 */
+			handleStaticResourceRequest(request, response);
+			return;
+		}
+		if (HTTPRequestTypes.FOOTPRINT_REPORT_REQUEST.equals(requestType)) {
+			/*
+			 * Report covers all sessions, so is not made within one
+			 */
+			handleFootprintReportRequest(request, response);
+			return;
+		}
 
+		ApplicationSession appSession = null;
 		try {
-			RequestParams params = getRequestParams(request);
+			appSession = findApplicationSession(request);
+			final RequestParams params = getRequestParams(request);
 			if (appSession == null) {
 				/*
 				 * No application session found
 				 */
 				try {
 					this.handleNewApplicationRequest(request, response, params);
+				} catch (ServerAdminBusyException e) {
+					response.setHeader("Retry-After", Integer
+							.toString(SessionRegistry.DEFAULT_MIN_IDLE));
+					response.sendError(
+							HttpServletResponse.SC_SERVICE_UNAVAILABLE, e
+									.getMessage());
 				} catch (Exception e) {
 					response.sendError(
 							HttpServletResponse.SC_INTERNAL_SERVER_ERROR, e
 									.getMessage());
 				}
+			} else if (HTTPRequestTypes.RESOURCE_REQUEST
+					.equals(params.requestType)
+					|| HTTPRequestTypes.DOWNLOAD_REQUEST
+							.equals(params.requestType)) {
+				/*
+				 * Application session found - resources and downloads only
+				 * read committed output snapshots, so they need not wait
+				 * behind events in the session's mailbox, nor hold it up
+				 * while a large download streams out
+				 */
+				handleGet(appSession, params, request, response);
 			} else {
 				/*
-				 * Application session found
+				 * Application session found - handle request in its mailbox.
+				 * View refreshes go in there too, since rendering winds on
+				 * continuation keys and records what was rendered, which
+				 * renders of events must not see half done
 				 */
-
-				if (params.requestType != null) {
-					if (params.requestType.equals(HTTPRequestTypes.VIEW_EVENT)) {
-						throw new SC_BAD_REQUEST_Exception(
-								"View event request method should be POST, not GET");
-					} else if (params.requestType
-							.equals(HTTPRequestTypes.DOWNLOAD_REQUEST)) {
-						handleDownloadRequest(appSession, params, request,
-								response);
-					} else if (params.requestType
-							.equals(HTTPRequestTypes.RESOURCE_REQUEST)) {
-						handleResourceRequest(appSession, params, request,
-								response);
-					} else {
-						throw new Exception("Unknown request type: '"
-								+ params.requestType + "'");
+				final ApplicationSession mailboxSession = appSession;
+				runInMailbox(appSession, response, new MailboxTask() {
+					void run(HttpServletResponse mailboxResponse)
+							throws Exception {
+						handleGet(mailboxSession, params, request,
+								mailboxResponse);
+						writeBack(mailboxSession);
 					}
-				} else {
-					/*
-					 * No request - just refresh view
-					 */
-					this
-							.handleRefreshViewRequest(appSession, request,
-									response);
-				}
+				});
 			}
 		} catch (Exception e) {
 			/*
 			 * Send XML error report to client
 			 */
 			errorResponse(e, request, response, appSession);
+		} finally {
+			if (appSession != null) {
+				appSession.endRequest();
+			}
+		}
+	}
+
+	/*
+	 * Runs work on a request in the session's mailbox, giving it a response
+	 * that hands what it writes back to this thread, which alone writes the
+	 * real response - so that work left running after this thread gives up
+	 * never writes into a response the container has recycled
+	 */
+	private void runInMailbox(ApplicationSession appSession,
+			HttpServletResponse response, final MailboxTask task)
+			throws Exception {
+		final MailboxResponse mailboxResponse = new MailboxResponse(response);
+		final SessionMailbox mailbox = appSession.getMailbox();
+		final Future future = mailbox.submit(new Callable() {
+			public Object call() throws Exception {
+				task.run(mailboxResponse);
+				return null;
+			}
+		}, new Runnable() {
+			public void run() {
+				mailboxResponse.finish();
+			}
+		});
+		mailboxResponse.forward(mailbox, future);
+	}
+
+	/*
+	 * Work on a request, to be run in its session's mailbox
+	 */
+	private static abstract class MailboxTask {
+		abstract void run(HttpServletResponse mailboxResponse)
+				throws Exception;
+	}
+
+	/*
+	 * Handles a GET on an existing application session, from within the
+	 * session's mailbox
+	 */
+	private void handleGet(ApplicationSession appSession, RequestParams params,
+			HttpServletRequest request, HttpServletResponse response)
+			throws Exception {
+		if (params.requestType != null) {
+			if (params.requestType.equals(HTTPRequestTypes.VIEW_EVENT)) {
+				throw new SC_BAD_REQUEST_Exception(
+						"View event request method should be POST, not GET");
+			} else if (params.requestType
+					.equals(HTTPRequestTypes.DOWNLOAD_REQUEST)) {
+				handleDownloadRequest(appSession, params, request, response);
+			} else if (params.requestType
+					.equals(HTTPRequestTypes.RESOURCE_REQUEST)) {
+				handleResourceRequest(appSession, params, request, response);
+			} else {
+				throw new Exception("Unknown request type: '"
+						+ params.requestType + "'");
+			}
+		} else {
+			/*
+			 * No request - just refresh view
+			 */
+			this.handleRefreshViewRequest(appSession, request, response);
 		}
 	}
 
@@ -404,21 +986,46 @@ public class JandalFreeMarkerServlet extends HttpServlet {
 			HttpServletResponse response, ApplicationSession appSession)
 			throws IOException {
 
+		if (response.isCommitted()) {
+			/*
+			 * Part of a streamed view has gone out already, so an error report
+			 * can't take its place, and the session is left as it is - the
+			 * client just gets a truncated page
+			 */
+			e.printStackTrace();
+			try {
+				response.getOutputStream().close();
+			} catch (IllegalStateException ise) {
+				/*
+				 * Response was written through its writer
+				 */
+				response.getWriter().close();
+			}
+			return;
+		}
+
 		/*
 		 * Application session exists - send back an XML error report and
 		 * destroy the session
 		 */
 		if (e instanceof TimeoutException) {
-			renderError("reset", e.getMessage(), response);
+			renderError("reset", e.getMessage(), request, response);
 		} else if (e instanceof OutOfSynchException) {
 			return;
 			// renderError("out-of-synch", e.getMessage(), response);
 		} else if (e instanceof ServerAdminBusyException) {
-			renderError("alert", e.getMessage(), response);
+			renderError("alert", e.getMessage(), request, response);
+			return;
+		} else if (e instanceof SessionConflictException) {
+			/*
+			 * Our copy is dropped already - destroying it would remove the
+			 * other instance's version from the store
+			 */
+			renderError("reset", e.getMessage(), request, response);
 			return;
 		} else {
 			e.printStackTrace();
-			renderError("reset", e.getMessage(), response);
+			renderError("reset", e.getMessage(), request, response);
 		}
 
 		if (appSession != null) {
@@ -432,33 +1039,21 @@ public class JandalFreeMarkerServlet extends HttpServlet {
 	}
 
 	private void renderError(String code, String message,
-			HttpServletResponse response) {
+			HttpServletRequest request, HttpServletResponse response) {
 		try {
-			PrintWriter out = new PrintWriter(response.getOutputStream());
-			response.setContentType("xml");
-			StringBuffer sb = new StringBuffer();
-			sb.append("<?xml version=\"1.0\" encoding=\"ISO-8859-1\"?>\n");
-			sb.append(getResponseXML(code, message));
-			out.print(sb.toString());
+			CharArrayWriter buffer = new CharArrayWriter();
+			UpdateEncoder encoder = UpdateEncoder.forRequest(request, buffer);
+			encoder.error(code, message);
+			response.setContentType(encoder.getContentType());
+			Writer out = new OutputStreamWriter(response.getOutputStream(),
+					encoder.getCharset());
+			buffer.writeTo(out);
 			out.flush();
 		} catch (Exception e) {
 			e.printStackTrace();
 		}
 	}
 
-	private String getResponseXML(String code, String message) {
-		StringBuffer sb = new StringBuffer();
-		sb.append("<response>");
-		sb.append("<code>");
-		sb.append(code);
-		sb.append("</code>");
-		sb.append("<message>");
-		sb.append(message);
-		sb.append("</message>");
-		sb.append("</response>");
-		return sb.toString();
-	}
-
 	/**
 	 * Asserts parameter not null - throws ParameterMissingException if null
 	 * 
@@ -478,9 +1073,7 @@ public class JandalFreeMarkerServlet extends HttpServlet {
 
 	private ApplicationSession getExistingApplicationSession(
 			HttpServletRequest request, RequestParams params) throws Exception {
-		HttpSession session = request.getSession();
-		ApplicationSession appSession = (ApplicationSession) session
-				.getAttribute("appSession");
+		ApplicationSession appSession = findApplicationSession(request);
 		if (appSession == null) {
 			throw new TimeoutException("Application has timed out");
 		}
@@ -521,21 +1114,198 @@ public class JandalFreeMarkerServlet extends HttpServlet {
 				.equalsIgnoreCase("true"));
 
 		/*
-		 * Make new application session
+		 * Make new application session, if there is room for one
 		 */
-		ApplicationSession appSession = new ApplicationSession(getUrl(request),
-				embedded, this.appFactory.newApplication(new Params(
-						params.viewEventCustomFormParams)));
+		sessionRegistry.admit();
+		final Params startParams = new Params(params.viewEventCustomFormParams);
+		SessionJournal journal = null;
+		ApplicationSession appSession;
+		try {
+			Application app = null;
+			if (eventJournal != null) {
+				/*
+				 * Rebuild the session the client had before from its journal,
+				 * if that is still here, or else journal a new one
+				 */
+				journal = eventJournal.reopen(getCookieValue(request,
+						JOURNAL_COOKIE_NAME));
+				if (journal != null) {
+					try {
+						app = journal.replay(startParams);
+					} catch (JandalCoreException e) {
+						journal = null;
+					}
+				}
+				if (journal == null) {
+					try {
+						journal = eventJournal.create(startParams);
+					} catch (Exception e) {
+						/*
+						 * Carry on without one
+						 */
+					}
+				}
+			}
+			if (app == null) {
+				app = this.appFactory.startApplication(startParams);
+			}
+			appSession = new ApplicationSession(getUrl(request), embedded,
+					app, new SessionMailbox(this.sessionWorkers,
+							this.sessionQueueDepth), new FragmentCache(
+							this.fragmentCacheSize));
+		} catch (Exception e) {
+			if (journal != null) {
+				journal.discard();
+			}
+			sessionRegistry.cancel();
+			throw e;
+		}
+		if (journal != null) {
+			appSession.setJournal(journal);
+			addCookie(request, response, JOURNAL_COOKIE_NAME, journal.getKey(),
+					journalRetention);
+		}
 
 		/*
-		 * Put in request session
+		 * Share the session with other servlet instances, if it can be
+		 * written, naming it in a cookie
 		 */
-		HttpSession session = request.getSession();
-		session.setAttribute("appSession", appSession);
+		if (sharedSessions != null) {
+			try {
+				addCookie(request, response, SESSION_COOKIE_NAME,
+						sharedSessions.add(appSession), -1);
+				/*
+				 * Counted by the near-cache from now on
+				 */
+				sessionRegistry.cancel();
+			} catch (Exception e) {
+				/*
+				 * Keep it to this instance
+				 */
+			}
+		}
+		if (appSession.getStoreKey() == null) {
+			/*
+			 * Put in request session
+			 */
+			HttpSession session = request.getSession();
+			session.setAttribute(ApplicationSession.HTTP_SESSION_ATTRIBUTE,
+					appSession);
+			sessionRegistry.add(appSession, session);
+		}
 		/*
 		 * Render initial view
 		 */
-		renderView(appSession, request, response);
+		renderView(appSession, request, response, false);
+	}
+
+	/*
+	 * Value of the client's cookie with the given name, if it has one
+	 */
+	private static String getCookieValue(HttpServletRequest request,
+			String name) {
+		Cookie[] cookies = request.getCookies();
+		if (cookies != null) {
+			for (int i = 0; i < cookies.length; i++) {
+				if (name.equals(cookies[i].getName())) {
+					return cookies[i].getValue();
+				}
+			}
+		}
+		return null;
+	}
+
+	/*
+	 * Sets a cookie for this servlet's path
+	 */
+	private static void addCookie(HttpServletRequest request,
+			HttpServletResponse response, String name, String value,
+			int maxAge) {
+		Cookie cookie = new Cookie(name, value);
+		String cookiePath = request.getContextPath() + request.getServletPath();
+		cookie.setPath(cookiePath.length() > 0 ? cookiePath : "/");
+		cookie.setMaxAge(maxAge);
+		response.addCookie(cookie);
+	}
+
+	/*
+	 * Writes a shared session back to the store if the request changed it -
+	 * called once the request is done, from within the session's mailbox.
+	 * Views are written back before their responses go out, so this only
+	 * catches changes made by requests that render none, and a conflict here
+	 * has nothing to tell the client about
+	 */
+	private void writeBack(ApplicationSession appSession) throws Exception {
+		if (sharedSessions != null) {
+			sharedSessions.writeBack(appSession);
+		}
+	}
+
+	/*
+	 * Writes a shared session back to the store once its view has been
+	 * rendered and before the view is sent, so that the client is never shown
+	 * changes, nor given continuation keys, that another servlet instance's
+	 * write has since lost. Outside the session's mailbox, the write waits its
+	 * turn in there
+	 */
+	private void writeBackBeforeResponse(final ApplicationSession appSession,
+			boolean inMailbox) throws Exception {
+		if (sharedSessions == null || appSession.getStoreKey() == null) {
+			return;
+		}
+		Boolean written;
+		if (inMailbox) {
+			written = Boolean.valueOf(sharedSessions.writeBack(appSession));
+		} else {
+			written = (Boolean) appSession.getMailbox().run(new Callable() {
+				public Object call() throws Exception {
+					return Boolean.valueOf(sharedSessions
+							.writeBack(appSession));
+				}
+			});
+		}
+		if (!written.booleanValue()) {
+			throw new SessionConflictException(
+					"Your session was changed elsewhere - starting again from there");
+		}
+	}
+
+	/*
+	 * Session for the request - the one bound to its HTTP session, or else,
+	 * when sessions are shared, the one its cookie names in the store. No
+	 * HTTP session is started for shared sessions. The request is begun on
+	 * the session found, and the caller must end it.
+	 */
+	private ApplicationSession findApplicationSession(
+			HttpServletRequest request) throws Exception {
+		HttpSession session = request.getSession(sharedSessions == null);
+		ApplicationSession appSession = null;
+		if (session != null) {
+			appSession = (ApplicationSession) session
+					.getAttribute(ApplicationSession.HTTP_SESSION_ATTRIBUTE);
+			if (appSession != null) {
+				/*
+				 * Begun before touching, so that the registry can't pick the
+				 * session to evict once the touch has succeeded
+				 */
+				appSession.beginRequest();
+				if (!sessionRegistry.touch(appSession)) {
+					/*
+					 * Evicted, or lost while passivated
+					 */
+					appSession.endRequest();
+					appSession = null;
+				}
+			}
+		}
+		if (appSession == null && sharedSessions != null) {
+			appSession = sharedSessions.get(getCookieValue(request,
+					SESSION_COOKIE_NAME), getUrl(request));
+			if (appSession != null) {
+				appSession.beginRequest();
+			}
+		}
+		return appSession;
 	}
 
 	public static String getUrl(HttpServletRequest req) {
@@ -606,6 +1376,10 @@ public class JandalFreeMarkerServlet extends HttpServlet {
 		 */
 		controllerSession.getController().fireViewEvent(params.viewEventName,
 				new Params(params.viewEventCustomFormParams));
+		final SessionJournal journal = applicationSession.getJournal();
+		if (journal != null) {
+			journal.snapshotIfDue(applicationSession);
+		}
 
 		/*
 		 * Render new view.
@@ -622,7 +1396,7 @@ public class JandalFreeMarkerServlet extends HttpServlet {
 		/*
 		 * Client requests view of entire application.
 		 */
-		this.renderView(applicationSession, request, response);
+		this.renderView(applicationSession, request, response, true);
 	}
 
 	private void parseViewEventArgs(String argsParam, Map viewEventCustomParams)
@@ -670,8 +1444,8 @@ public class JandalFreeMarkerServlet extends HttpServlet {
 		 */
 		Object value;
 		try {
-			value = controllerSession.getController().getOutput(
-					params.outputName);
+			value = controllerSession.getController().getOutputSnapshot()
+					.getOutput(params.outputName);
 		} catch (JandalCoreException e) {
 			throw new JandalFreeMarkerServletException(
 					"Problem reading Controller output:" + e.getMessage(), e);
@@ -694,9 +1468,94 @@ public class JandalFreeMarkerServlet extends HttpServlet {
 		 * Stream the resource back to the client
 		 */
 		response.setContentType(resource.getMimeType());
+		final long length = resource.getLength();
+		if (length < 0) {
+			/*
+			 * Length not known until the resource is read, so it can only be
+			 * sent whole, compressed if the client accepts that
+			 */
+			OutputStream outStream = getResponseStream(request, response,
+					resource.getMimeType());
+			try {
+				resource.write(outStream);
+				outStream.close();
+			} finally {
+				releaseResponseStream(outStream);
+			}
+			return;
+		}
+		writeRangeableResource(resource, length, request, response);
+	}
+
+	/*
+	 * Writes a resource of known length, honouring conditional and range
+	 * requests. Content is sent uncompressed so that ranges index the bytes
+	 * of the resource itself.
+	 */
+	private void writeRangeableResource(Resource resource, long length,
+			HttpServletRequest request, HttpServletResponse response)
+			throws Exception {
+		long lastModified = resource.getLastModified();
+		String eTag = null;
+		if (lastModified >= 0) {
+			lastModified -= lastModified % 1000;
+			eTag = "\"" + Long.toHexString(lastModified) + "-"
+					+ Long.toHexString(length) + "\"";
+			response.setHeader("ETag", eTag);
+			response.setDateHeader("Last-Modified", lastModified);
+			if (StaticAsset.isNotModified(request, eTag, lastModified)) {
+				response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+				return;
+			}
+		}
+		response.setHeader("Accept-Ranges", "bytes");
+
+		ByteRange range = null;
+		if (isRangeCurrent(request, eTag, lastModified)) {
+			range = ByteRange.parse(request.getHeader("Range"), length);
+		}
+		if (range == ByteRange.UNSATISFIABLE) {
+			response.setHeader("Content-Range", "bytes */" + length);
+			response
+					.sendError(HttpServletResponse.SC_REQUESTED_RANGE_NOT_SATISFIABLE);
+			return;
+		}
+		long offset = 0;
+		long count = length;
+		if (range != null) {
+			offset = range.getFirst();
+			count = range.getLength();
+			response.setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+			response.setHeader("Content-Range", "bytes " + range.getFirst()
+					+ "-" + range.getLast() + "/" + length);
+		}
+		response.setHeader("Content-Length", Long.toString(count));
 		OutputStream outStream = response.getOutputStream();
-		resource.write(outStream);
-		outStream.flush();
+		resource.write(outStream, offset, count);
+		outStream.close();
+	}
+
+	/*
+	 * A range may only be sent if the client's partial copy is of the
+	 * resource as it is now, which it says with If-Range when resuming
+	 */
+	private boolean isRangeCurrent(HttpServletRequest request, String eTag,
+			long lastModified) {
+		final String ifRange = request.getHeader("If-Range");
+		if (ifRange == null) {
+			return true;
+		}
+		if (eTag == null) {
+			return false;
+		}
+		if (ifRange.trim().startsWith("\"")) {
+			return ifRange.trim().equals(eTag);
+		}
+		try {
+			return lastModified == request.getDateHeader("If-Range");
+		} catch (IllegalArgumentException e) {
+			return false;
+		}
 	}
 
 	private void handleResourceRequest(ApplicationSession applicationSession,
@@ -732,51 +1591,268 @@ public class JandalFreeMarkerServlet extends HttpServlet {
 		 */
 		Resource resource = controllerSession.getController().getResource(
 				params.resourceName);
+		if (compressor != null) {
+			/*
+			 * Bundled resources are compressed just once for each version
+			 */
+			compressor.writeResource(request, response, controllerSession
+					.getController().getClass().getName()
+					+ "/" + params.resourceName, resource);
+			return;
+		}
 		response.setContentType(resource.getMimeType());
 		OutputStream out = response.getOutputStream();
 		resource.write(out);
 		out.flush();
 	}
 
+	private void handleScriptRequest(HttpServletRequest request,
+			HttpServletResponse response) throws IOException {
+		writeStaticAsset(request, response, ajaxScript, ajaxScript.getHash()
+				.equals(request.getParameter(HTTPRequestParamKeys.PARAM_VERSION)));
+	}
+
+	private void handleStaticResourceRequest(HttpServletRequest request,
+			HttpServletResponse response) throws IOException {
+		StaticAsset asset = staticResources.getAsset(request
+				.getParameter(HTTPRequestParamKeys.PARAM_CONTROLLER_CLASS),
+				request.getParameter(HTTPRequestParamKeys.PARAM_RESOURCE_NAME));
+		if (asset == null) {
+			response.sendError(HttpServletResponse.SC_NOT_FOUND);
+			return;
+		}
+		writeStaticAsset(request, response, asset, asset.getHash().equals(
+				request.getParameter(HTTPRequestParamKeys.PARAM_VERSION)));
+	}
+
+	/*
+	 * Writes the report of the heaviest sessions and controllers, if it is
+	 * enabled and the right key is given - otherwise, as far as the client
+	 * can tell, there is no such thing
+	 */
+	private void handleFootprintReportRequest(HttpServletRequest request,
+			HttpServletResponse response) throws IOException {
+		final String key = request
+				.getParameter(HTTPRequestParamKeys.PARAM_REPORT_KEY);
+		if (footprintReportKey == null
+				|| key == null
+				|| !MessageDigest.isEqual(footprintReportKey.getBytes("UTF-8"),
+						key.getBytes("UTF-8"))) {
+			response.sendError(HttpServletResponse.SC_NOT_FOUND);
+			return;
+		}
+		int size = FootprintReport.DEFAULT_SIZE;
+		final String sizeParam = request
+				.getParameter(HTTPRequestParamKeys.PARAM_REPORT_SIZE);
+		if (sizeParam != null) {
+			try {
+				size = Math.max(1, Math.min(FootprintReport.MAX_SIZE, Integer
+						.parseInt(sizeParam)));
+			} catch (NumberFormatException e) {
+				response.sendError(HttpServletResponse.SC_BAD_REQUEST,
+						"Report size is not an integer");
+				return;
+			}
+		}
+		response.setContentType("text/html; charset=UTF-8");
+		response.setHeader("Cache-Control", "no-store");
+		final PrintWriter out = response.getWriter();
+		new FootprintReport(footprintEstimator).write(getSessions(), size, out);
+		out.flush();
+	}
+
+	/*
+	 * Returns a session-independent URL for a resource bundled with the class
+	 * of the given controller, which changes when the resource does
+	 */
+	private String getStaticResourceUrl(ApplicationSession appSession,
+			ControllerSession controllerSession, String fileName)
+			throws Exception {
+		Controller controller = controllerSession.getController();
+		StaticAsset asset = staticResources.getAsset(controller, fileName);
+		StringBuffer sb = new StringBuffer();
+		sb.append(appSession.getRequestUri());
+		sb.append("?");
+		sb.append(HTTPRequestParamKeys.PARAM_REQUEST_TYPE);
+		sb.append("=");
+		sb.append(HTTPRequestTypes.STATIC_RESOURCE_REQUEST);
+		sb.append("&");
+		sb.append(HTTPRequestParamKeys.PARAM_CONTROLLER_CLASS);
+		sb.append("=");
+		sb.append(URLEncoder.encode(controller.getClass().getName(), "UTF-8"));
+		sb.append("&");
+		sb.append(HTTPRequestParamKeys.PARAM_RESOURCE_NAME);
+		sb.append("=");
+		sb.append(URLEncoder.encode(fileName.trim(), "UTF-8"));
+		sb.append("&");
+		sb.append(HTTPRequestParamKeys.PARAM_VERSION);
+		sb.append("=");
+		sb.append(asset.getHash());
+		return sb.toString();
+	}
+
+	/*
+	 * Writes content that doesn't change while the servlet runs, or just tells
+	 * the client that its copy is current. Content asked for by its current
+	 * version may be cached indefinitely, since a new version gets a new URL,
+	 * otherwise the client must check back each time.
+	 */
+	private void writeStaticAsset(HttpServletRequest request,
+			HttpServletResponse response, StaticAsset asset, boolean versioned)
+			throws IOException {
+		response.setHeader("ETag", asset.getETag());
+		response.setDateHeader("Last-Modified", asset.getLastModified());
+		if (versioned) {
+			response.setHeader("Cache-Control", "public, max-age="
+					+ STATIC_ASSET_MAX_AGE);
+			response.setDateHeader("Expires", System.currentTimeMillis()
+					+ STATIC_ASSET_MAX_AGE * 1000L);
+		} else {
+			response.setHeader("Cache-Control", "no-cache");
+		}
+		if (asset.isNotModified(request)) {
+			response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+			return;
+		}
+		if (compressor != null) {
+			compressor.writeStatic(request, response, asset.getKey() + ":"
+					+ asset.getHash(), asset.getContentType(), asset
+					.getContent());
+			return;
+		}
+		response.setContentType(asset.getContentType());
+		response.setContentLength(asset.getContent().length);
+		OutputStream out = response.getOutputStream();
+		out.write(asset.getContent());
+		out.flush();
+	}
+
 	private void handleRefreshViewRequest(
 			ApplicationSession applicationSession, HttpServletRequest request,
 			HttpServletResponse response) throws Exception {
-		renderView(applicationSession, request, response);
+		renderView(applicationSession, request, response, true);
 	}
 
 	private void renderViewAJAX(ApplicationSession applicationSession,
 			HttpServletRequest request, HttpServletResponse response)
 			throws Exception {
-		String output = renderApplicationAJAX(applicationSession);
-		PrintWriter out = new PrintWriter(response.getOutputStream());
-		response.setContentType("xml");
-		out.print(output);
-		out.flush();
+		/*
+		 * Buffer the update so that an error part-way through can still be
+		 * reported in its place
+		 */
+		CharArrayWriter buffer = new CharArrayWriter();
+		UpdateEncoder encoder = UpdateEncoder.forRequest(request, buffer);
+		renderApplicationAJAX(applicationSession, encoder);
+		writeBackBeforeResponse(applicationSession, true);
+		OutputStream stream = getResponseStream(request, response, encoder
+				.getContentType());
+		try {
+			Writer out = new OutputStreamWriter(stream, encoder.getCharset());
+			response.setContentType(encoder.getContentType());
+			buffer.writeTo(out);
+			out.close();
+		} finally {
+			releaseResponseStream(stream);
+		}
 	}
 
+	/*
+	 * Renders the whole view - from within the session's mailbox, or not.
+	 * Views of shared sessions are not streamed, since they must be written
+	 * back before any of the view goes out
+	 */
 	private void renderView(ApplicationSession applicationSession,
-			HttpServletRequest request, HttpServletResponse response)
-			throws Exception {
+			HttpServletRequest request, HttpServletResponse response,
+			boolean inMailbox) throws Exception {
+		if (streamingRender && applicationSession.getStoreKey() == null) {
+			streamView(applicationSession, request, response);
+			return;
+		}
 		String output = renderApplication(applicationSession);
+		writeBackBeforeResponse(applicationSession, inMailbox);
 
 		// System.out.println(this.hashCode() + " renderView: app = "
 		// + this.applicationClassName + " output = " + output);
-		PrintWriter out = new PrintWriter(response.getOutputStream());
-		response.setContentType("text/html");
+		OutputStream stream = getResponseStream(request, response,
+				"text/html");
+		try {
+			PrintWriter out = new PrintWriter(stream);
+			response.setContentType("text/html");
 
-		/*
-		 * Do not render header, footer and JavaScript if application view is
-		 * embedded in a page
-		 */
-		boolean embedded = applicationSession.getEmbedded();
-		if (!embedded) {
-			renderHead(out);
+			/*
+			 * Do not render header, footer and JavaScript if application view
+			 * is embedded in a page
+			 */
+			boolean embedded = applicationSession.getEmbedded();
+			if (!embedded) {
+				renderHead(out);
+			}
+			out.print(output);
+			if (!embedded) {
+				renderTail(request, out);
+			}
+			out.close();
+		} finally {
+			releaseResponseStream(stream);
 		}
-		out.print(output);
-		if (!embedded) {
-			renderTail(request, out);
+	}
+
+	/**
+	 * Renders the view straight into the response, flushing the head first so
+	 * that the client can start on it while the rest renders. With no content
+	 * length set, the container sends the response in chunks as its buffer
+	 * fills. Flushing the head means the view goes out uncompressed, since
+	 * compression would hold it back - see {@link ResponseCompressor}.
+	 */
+	private void streamView(ApplicationSession applicationSession,
+			HttpServletRequest request, HttpServletResponse response)
+			throws Exception {
+		OutputStream stream = getResponseStream(request, response,
+				"text/html");
+		try {
+			PrintWriter out = new PrintWriter(stream);
+			response.setContentType("text/html");
+			boolean embedded = applicationSession.getEmbedded();
+			if (!embedded) {
+				renderHead(out);
+				out.flush();
+			}
+			ControllerSession rootControllerSession = applicationSession
+					.getControllerSession(applicationSession.getApplication()
+							.getRootController());
+			renderController(applicationSession, rootControllerSession,
+					applicationSession.getApplication()
+							.getApplicationSnapshot(), true, out);
+			if (!embedded) {
+				renderTail(request, out);
+			}
+			out.close();
+		} finally {
+			releaseResponseStream(stream);
+		}
+	}
+
+	/*
+	 * Returns the stream to write a response of the given content type into,
+	 * compressing it if the client accepts that
+	 */
+	private OutputStream getResponseStream(HttpServletRequest request,
+			HttpServletResponse response, String contentType)
+			throws IOException {
+		if (compressor == null) {
+			return response.getOutputStream();
+		}
+		return compressor.getOutputStream(request, response, contentType);
+	}
+
+	/*
+	 * Gives back the Deflater of a response stream left unfinished by an
+	 * error - a no-op once the stream is closed
+	 */
+	private void releaseResponseStream(OutputStream stream) {
+		if (compressor != null) {
+			compressor.release(stream);
 		}
-		out.flush();
 	}
 
 	private final void renderHead(final PrintWriter out)
@@ -787,7 +1863,15 @@ public class JandalFreeMarkerServlet extends HttpServlet {
 		out.println("</TITLE>");
 		out.println("</HEAD>");
 		out.println("<BODY>");
-		out.println(getTextResourceFile("ajax.js"));
+		out.print("<script type=\"text/javascript\" language=\"javascript\" src=\"?");
+		out.print(HTTPRequestParamKeys.PARAM_REQUEST_TYPE);
+		out.print("=");
+		out.print(HTTPRequestTypes.SCRIPT_REQUEST);
+		out.print("&amp;");
+		out.print(HTTPRequestParamKeys.PARAM_VERSION);
+		out.print("=");
+		out.print(ajaxScript.getHash());
+		out.println("\"></script>");
 	}
 
 	private final void renderFieldAssign(final String fieldName,
@@ -815,117 +1899,203 @@ public class JandalFreeMarkerServlet extends HttpServlet {
 	 * POST - client event, download request or resource request within existing
 	 * session
 	 */
-	public void doPost(HttpServletRequest request, HttpServletResponse response)
-			throws ServletException, IOException {
+	public void doPost(final HttpServletRequest request,
+			final HttpServletResponse response) throws ServletException,
+			IOException {
 
 		ApplicationSession applicationSession = null;
 
 		try {
-			RequestParams params = getRequestParams(request);
+			final RequestParams params = getRequestParams(request);
 			/*
 			 * Get application session
 			 */
 			applicationSession = getExistingApplicationSession(request, params);
 
 			/*
-			 * Handle post
+			 * Handle post in the session's mailbox
 			 * 
 			 */
-			if (params.requestType != null) {
-				if (params.requestType.equals(HTTPRequestTypes.VIEW_EVENT)) {
-					handleViewEventRequest(applicationSession, params, request,
-							response);
-				} else if (params.requestType
-						.equals(HTTPRequestTypes.DOWNLOAD_REQUEST)) {
-					handleDownloadRequest(applicationSession, params, request,
-							response);
-				} else if (params.requestType
-						.equals(HTTPRequestTypes.RESOURCE_REQUEST)) {
-					handleResourceRequest(applicationSession, params, request,
-							response);
-				} else {
-					throw new Exception("Unknown POST request type: '"
-							+ params.requestType + "'");
+			final ApplicationSession mailboxSession = applicationSession;
+			runInMailbox(applicationSession, response, new MailboxTask() {
+				void run(HttpServletResponse mailboxResponse) throws Exception {
+					handlePost(mailboxSession, params, request,
+							mailboxResponse);
+					writeBack(mailboxSession);
 				}
-			} else {
-				/*
-				 * POST always requires request parameter
-				 */
-				throw new JandalFreeMarkerServletException(
-						"POST request parameter missing");
-			}
+			});
 		} catch (Exception e) {
 			/*
 			 * Might have application session if we're lucky
 			 */
 			this.errorResponse(e, request, response, applicationSession);
+		} finally {
+			if (applicationSession != null) {
+				applicationSession.endRequest();
+			}
+		}
+	}
+
+	/*
+	 * Handles a POST on an existing application session, from within the
+	 * session's mailbox
+	 */
+	private void handlePost(ApplicationSession applicationSession,
+			RequestParams params, HttpServletRequest request,
+			HttpServletResponse response) throws Exception {
+		if (params.requestType != null) {
+			if (params.requestType.equals(HTTPRequestTypes.VIEW_EVENT)) {
+				handleViewEventRequest(applicationSession, params, request,
+						response);
+			} else if (params.requestType
+					.equals(HTTPRequestTypes.DOWNLOAD_REQUEST)) {
+				handleDownloadRequest(applicationSession, params, request,
+						response);
+			} else if (params.requestType
+					.equals(HTTPRequestTypes.RESOURCE_REQUEST)) {
+				handleResourceRequest(applicationSession, params, request,
+						response);
+			} else {
+				throw new Exception("Unknown POST request type: '"
+						+ params.requestType + "'");
+			}
+		} else {
+			/*
+			 * POST always requires request parameter
+			 */
+			throw new JandalFreeMarkerServletException(
+					"POST request parameter missing");
 		}
 	}
 
 	private String renderApplication(ApplicationSession applicationSession)
 			throws Exception {
 		boolean divTags = true;
-		String rootControllerId = applicationSession.getApplication()
-				.getRootController().getId();
 		ControllerSession rootControllerSession = applicationSession
-				.getControllerSessionWithId(rootControllerId);
+				.getControllerSession(applicationSession.getApplication()
+						.getRootController());
 		return renderController(applicationSession, rootControllerSession,
+				applicationSession.getApplication().getApplicationSnapshot(),
 				divTags);
 	}
 
-	private String renderApplicationAJAX(ApplicationSession applicationSession)
-			throws Exception {
-		StringBuffer sb = new StringBuffer();
-		sb.append("<?xml version=\"1.0\" encoding=\"ISO-8859-1\"?>\n");
-		sb.append("<update>");
-		String rootControllerId = applicationSession.getApplication()
-				.getRootController().getId();
-		ControllerSession rootControllerSession = applicationSession
-				.getControllerSessionWithId(rootControllerId);
-		renderControllerAJAX(sb, applicationSession, rootControllerSession);
-		sb.append("</update>");
-		return sb.toString();
+	private void renderApplicationAJAX(ApplicationSession applicationSession,
+			UpdateEncoder encoder) throws Exception {
+		encoder.begin();
+		/*
+		 * Every controller is rendered as of the same commit
+		 */
+		ApplicationSnapshot appSnapshot = applicationSession.getApplication()
+				.getApplicationSnapshot();
+		/*
+		 * Render only the topmost fresh controllers, straight from the index of
+		 * unrendered sessions rather than by searching the tree for them.
+		 * Patching the bound outputs of a controller instead of rendering it
+		 * leaves any fresh controllers beneath it to be found on another pass.
+		 */
+		boolean patched = true;
+		while (patched) {
+			patched = false;
+			for (Iterator i = applicationSession
+					.getUnrenderedControllerSessions().iterator(); i.hasNext();) {
+				ControllerSession controllerSession = (ControllerSession) i
+						.next();
+				if (controllerSession.getRendered()) {
+					continue;
+				}
+				if (patchOutputsAJAX(encoder, controllerSession, appSnapshot)) {
+					patched = true;
+				} else {
+					renderControllerAJAX(encoder, applicationSession,
+							controllerSession, appSnapshot);
+				}
+			}
+		}
+		encoder.end();
 	}
 
-	private void renderControllerAJAX(StringBuffer sb, ApplicationSession as,
-			ControllerSession cs) throws Exception {
-		if (!cs.getRendered()) {
-			/*
-			 * Given controller is fresh - render update for AJAX
-			 * 
-			 */
-			sb.append("<controller>");
-			sb.append("<id>" + cs.getController().getId() + "</id>");
-			sb.append("<content>");
-			sb.append("<![CDATA[");
-			/*
-			 * DIV tag not needed around views fragment for this controller
-			 * subtree because we are inserting it all between existing DIV
-			 * tags. Sub-controller views within the fragment will be wrapped by
-			 * DIV tags though.
-			 */
-			boolean divTags = false;
-			sb.append(renderController(as, cs, divTags));
-			sb.append("]]>");
-			sb.append("</content>");
-			sb.append("</controller>");
-			return;
+	/*
+	 * Appends updates for just the changed outputs of the given controller if
+	 * they are all bound to client elements, returning false if the controller
+	 * must be rendered instead
+	 */
+	private boolean patchOutputsAJAX(UpdateEncoder encoder,
+			ControllerSession cs, ApplicationSnapshot appSnapshot)
+			throws Exception {
+		OutputSnapshot snapshot = appSnapshot.getOutputSnapshot(cs
+				.getController());
+		Map changes = cs.getBoundOutputChanges(snapshot);
+		if (changes == null) {
+			return false;
+		}
+		for (Iterator i = changes.entrySet().iterator(); i.hasNext();) {
+			Map.Entry change = (Map.Entry) i.next();
+			encoder.output(cs.getBoundOutputElementId((String) change
+					.getKey()), String.valueOf(change.getValue()));
 		}
+		cs.setRenderedOutputs(snapshot, cs.getBoundOutputNames());
+		cs.setRendered(snapshot);
+		return true;
+	}
 
+	private void renderControllerAJAX(UpdateEncoder encoder,
+			ApplicationSession as, ControllerSession cs,
+			ApplicationSnapshot appSnapshot) throws Exception {
+		/*
+		 * Given controller is fresh - render update for AJAX
+		 * 
+		 */
+		Writer out = encoder.beginController(cs.getController().getId());
 		/*
-		 * Given controller not rendered - now try child controllers
+		 * DIV tag not needed around views fragment for this controller subtree
+		 * because we are inserting it all between existing DIV tags.
+		 * Sub-controller views within the fragment will be wrapped by DIV tags
+		 * though.
 		 */
-		for (Iterator i = cs.getController().getChildControllers().iterator(); i
-				.hasNext();) {
-			Controller child = (Controller) i.next();
-			ControllerSession childCs = as.getControllerSessionWithId(child
-					.getId());
-			renderControllerAJAX(sb, as, childCs);
-		}
+		boolean divTags = false;
+		renderController(as, cs, appSnapshot, divTags, out);
+		encoder.endController();
 	}
 
 	private String renderController(final ApplicationSession appSession,
-			final ControllerSession controllerSession, boolean divTags)
+			final ControllerSession controllerSession,
+			ApplicationSnapshot appSnapshot, boolean divTags)
+			throws Exception {
+		StringWriter writer = new StringWriter();
+		renderController(appSession, controllerSession, appSnapshot, divTags,
+				writer);
+		return writer.toString();
+	}
+
+	private void renderController(final ApplicationSession appSession,
+			final ControllerSession controllerSession,
+			ApplicationSnapshot appSnapshot, boolean divTags, Writer out)
+			throws Exception {
+		Controller controller = controllerSession.getController();
+		if (divTags) {
+			out.write("\n<div id=\"" + controller.getId() + "\">\n");
+		}
+		FragmentCache fragmentCache = appSession.getFragmentCache();
+		String fragment = fragmentCache.get(controllerSession, appSnapshot);
+		if (fragment != null) {
+			/*
+			 * Nothing in this subtree has changed since it was last rendered,
+			 * so neither has the continuation key within it
+			 */
+			controllerSession.setRendered(appSnapshot
+					.getOutputSnapshot(controller));
+			out.write(fragment);
+		} else {
+			renderFragment(appSession, controllerSession, appSnapshot, out);
+		}
+		if (divTags) {
+			out.write("\n</div>\n");
+		}
+	}
+
+	private void renderFragment(final ApplicationSession appSession,
+			final ControllerSession controllerSession,
+			final ApplicationSnapshot appSnapshot, Writer out)
 			throws Exception {
 		/*
 		 * Wind on the continuation key
@@ -933,32 +2103,81 @@ public class JandalFreeMarkerServlet extends HttpServlet {
 		controllerSession.nextSynchKey();
 
 		ControllerTemplateModel templateTool = new ControllerTemplateModel(
-				appSession, controllerSession, new RenderCallback() {
+				appSession, controllerSession, appSnapshot
+						.getOutputSnapshot(controllerSession.getController()),
+				new RenderCallback() {
 
 					public String renderController(
 							ApplicationSession appSession,
 							ControllerSession controllerSession)
 							throws Exception {
 						return JandalFreeMarkerServlet.this.renderController(
-								appSession, controllerSession, true);
+								appSession, controllerSession, appSnapshot,
+								true);
 					}
-				});
-		controllerSession.setRendered(true);
-		return renderControllerTemplate(appSession, controllerSession,
-				templateTool, divTags);
+
+					public void renderController(
+							ApplicationSession appSession,
+							ControllerSession controllerSession, Writer out)
+							throws Exception {
+						JandalFreeMarkerServlet.this.renderController(
+								appSession, controllerSession, appSnapshot,
+								true, out);
+					}
+
+					public String getResourceUrl(
+							ApplicationSession appSession,
+							ControllerSession controllerSession,
+							String fileName) throws Exception {
+						return getStaticResourceUrl(appSession,
+								controllerSession, fileName);
+					}
+				}, streamingRender);
+		/*
+		 * Only if no event has committed since the snapshot - otherwise the
+		 * view rendered is already out of date
+		 */
+		controllerSession.setRendered(templateTool.getOutputSnapshot());
+		FragmentCache fragmentCache = appSession.getFragmentCache();
+		if (!fragmentCache.isEnabled()) {
+			renderControllerTemplate(appSession, controllerSession,
+					templateTool, out);
+			controllerSession.setRenderedOutputs(templateTool
+					.getOutputSnapshot(), templateTool.getBoundOutputNames());
+			return;
+		}
+
+		/*
+		 * Capture the fragment for the cache as it passes on to the writer,
+		 * giving up once it is too big to be cached, so that each level of
+		 * nesting copies at most that much of the page
+		 */
+		TeeWriter fragment = new TeeWriter(out, fragmentCache.getMaxChars());
+		renderControllerTemplate(appSession, controllerSession, templateTool,
+				fragment);
+		controllerSession.setRenderedOutputs(templateTool.getOutputSnapshot(),
+				templateTool.getBoundOutputNames());
+		String text = fragment.getCopy();
+		if (text == null) {
+			fragmentCache.remove(controllerSession);
+			return;
+		}
+		fragmentCache.put(controllerSession, text, templateTool
+				.getOutputSnapshot().getVersion(), templateTool
+				.getRenderedChildren());
 	}
 
-	private String renderControllerTemplate(
+	private void renderControllerTemplate(
 			final ApplicationSession applicationSession,
 			ControllerSession controllerSession,
-			ControllerTemplateModel templateModel, boolean divTags)
-			throws Exception {
+			ControllerTemplateModel templateModel, Writer out) throws Exception {
 
 		Controller controller = controllerSession.getController();
 
 		Object templateName;
 		try {
-			templateName = controller.getOutput(templateOutputName);
+			templateName = templateModel.getOutputSnapshot().getOutput(
+					templateOutputName);
 		} catch (JandalCoreException e1) {
 			throw new JandalFreeMarkerServletException(
 					"Problem reading Controller template name output:"
@@ -974,30 +2193,16 @@ public class JandalFreeMarkerServlet extends HttpServlet {
 		}
 		String templateNameStr = ((String) templateName).trim();
 
-		/*
-		 * Going to look for template bundled with Controller's class file
-		 */
-		cfg.setClassForTemplateLoading(controller.getClass(), "");
-
 		try {
 			/*
-			 * Process template
+			 * Process template bundled with Controller's class file
 			 */
-			Template t = cfg.getTemplate(templateNameStr);
-			StringWriter writer = new StringWriter();
+			Template t = templateCache.getTemplate(controller.getClass(),
+					templateNameStr);
 			Map templateData = new HashMap();
 
 			templateData.put(templateContextName, templateModel);
-			t.process(templateData, writer);
-			StringBuffer sb = new StringBuffer();
-			if (divTags) {
-				sb.append("\n<div id=\"" + controller.getId() + "\">\n");
-			}
-			sb.append(writer.toString());
-			if (divTags) {
-				sb.append("\n</div>\n");
-			}
-			return sb.toString();
+			t.process(templateData, out);
 		} catch (TemplateException e) {
 
 			/*
@@ -1044,12 +2249,44 @@ public class JandalFreeMarkerServlet extends HttpServlet {
 
 	private int maxSessions;
 
+	private SessionRegistry sessionRegistry;
+
+	private PassivationStore passivationStore;
+
+	private SessionPassivator sessionPassivator;
+
+	private EventJournal eventJournal;
+
+	private SharedSessionCache sharedSessions;
+
+	private FootprintEstimator footprintEstimator;
+
+	private String footprintReportKey;
+
+	private int journalRetention;
+
 	private String applicationClassName;
 
 	private ServiceSet serviceSet;
 
 	private Configuration cfg;
 
+	private TemplateCache templateCache;
+
+	private boolean streamingRender;
+
+	private int fragmentCacheSize;
+
+	private ResponseCompressor compressor;
+
+	private StaticAsset ajaxScript;
+
+	private StaticResourceCache staticResources;
+
 	private ApplicationFactory appFactory;
 
+	private ExecutorService sessionWorkers;
+
+	private int sessionQueueDepth;
+
 }
@@ -0,0 +1,499 @@
+/*
+ * Copyright (C) 2007 Lindsay S. Kay, All rights Reserved.
+ *
+ * This software is provided "as-is", without any express or implied warranty. In no event will the 
+ * author be held liable for any damages arising from the use of this software.
+ *
+ * Permission is granted to anyone to use this software for any purpose, including commercial 
+ * applications, and to alter it and redistribute if freely, subject to the following restrictions:
+ *
+ *  1. The origin of this software must not be misrepresented: you must not claim that you wrote 
+ * 	the original software. if you use this software in a product, an acknowledgement in the product 
+ * 	documentation would be appreciated but is not required.
+ * 
+ *  2. Altered source versions must be plainly marked as such, and must not be misrepresented 
+ * 	as the original software.
+ * 
+  * 3. This notice must not be removed or altered from any source distribution.
+ */
+package com.neocoders.jandal.ui.freemarker.servlet;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import javax.servlet.ServletOutputStream;
+import javax.servlet.http.Cookie;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpServletResponseWrapper;
+
+import com.neocoders.jandal.ui.freemarker.session.SessionMailbox;
+
+/**
+ * Response handed to a request's work in its session's {@link SessionMailbox},
+ * which runs on a worker thread, so that only the thread the container gave
+ * the request ever touches the real response.
+ * <p/>
+ * Headers, status and cookies set here are recorded, and the body is
+ * buffered. What has been written goes over to the request's thread in
+ * chunks - when the body is flushed, so that streamed views still stream,
+ * and otherwise whenever enough of it has built up - and the request's
+ * thread, waiting in {@link #forward(SessionMailbox, Future)}, applies the
+ * recorded calls to the real response and writes the chunk. Whatever is left
+ * when the work ends is only sent if it succeeds, so that a failure that has
+ * not committed anything can still be reported in its place.
+ * <p/>
+ * A request's thread that stops waiting, because it was interrupted or the
+ * client went away, abandons the response, after which anything more the work
+ * writes fails with an {@link IOException} instead of reaching a response the
+ * container may have recycled.
+ * 
+ * @author lindsay
+ * 
+ */
+class MailboxResponse extends HttpServletResponseWrapper {
+
+	/*
+	 * Body bytes held before they are handed over without a flush
+	 */
+	private static final int CHUNK_SIZE = 32 * 1024;
+
+	/*
+	 * Chunks that may be handed over before the worker waits for the
+	 * request's thread to catch up
+	 */
+	private static final int MAX_CHUNKS = 4;
+
+	MailboxResponse(HttpServletResponse response) {
+		super(response);
+		this.response = response;
+		this.chunks = new LinkedBlockingQueue(MAX_CHUNKS);
+		this.ops = new ArrayList();
+		this.body = new ByteArrayOutputStream();
+		this.headerNames = new HashSet();
+		this.out = new ServletOutputStream() {
+			public void write(int b) throws IOException {
+				write(new byte[] { (byte) b }, 0, 1);
+			}
+
+			public void write(byte[] b, int off, int len) throws IOException {
+				writeBody(b, off, len);
+			}
+
+			public void flush() throws IOException {
+				if (!finishing) {
+					handOver(true);
+				}
+			}
+
+			public void close() throws IOException {
+				flush();
+			}
+		};
+	}
+
+	/**
+	 * Sends what the work in the mailbox writes to this response on to the
+	 * real one as it comes, from the request's thread, then returns the
+	 * work's result.
+	 * 
+	 * @throws Exception
+	 *             Exception thrown by the work, or by the real response, or
+	 *             interrupted.
+	 */
+	Object forward(SessionMailbox mailbox, Future future) throws Exception {
+		Chunk chunk;
+		try {
+			while (!(chunk = (Chunk) chunks.take()).last) {
+				chunk.writeTo(response);
+			}
+		} catch (InterruptedException e) {
+			abandon();
+			mailbox.withdraw(future);
+			throw e;
+		} catch (IOException e) {
+			/*
+			 * Client has gone - the work runs on, but can write no more
+			 */
+			abandon();
+			throw e;
+		}
+		final Object result = mailbox.await(future);
+		chunk.writeTo(response);
+		return result;
+	}
+
+	/**
+	 * Hands over what is left once the work is done, however it ended. To be
+	 * run by the mailbox when the work is done.
+	 */
+	void finish() {
+		if (abandoned) {
+			return;
+		}
+		finishing = true;
+		if (writer != null) {
+			writer.flush();
+		}
+		try {
+			put(new Chunk(ops, body.toByteArray(), false, true));
+		} catch (IOException e) {
+			/*
+			 * Abandoned meanwhile
+			 */
+		}
+	}
+
+	private void abandon() {
+		abandoned = true;
+		chunks.clear();
+	}
+
+	private void writeBody(byte[] b, int off, int len) throws IOException {
+		if (abandoned) {
+			throw new IOException("Response abandoned");
+		}
+		if (sent) {
+			/*
+			 * Error or redirect sent - the body goes nowhere
+			 */
+			return;
+		}
+		body.write(b, off, len);
+		if (body.size() >= CHUNK_SIZE) {
+			handOver(false);
+		}
+	}
+
+	/*
+	 * Passes what has been recorded so far over to the request's thread,
+	 * which commits the real response
+	 */
+	private void handOver(boolean flush) throws IOException {
+		if (committed && ops.isEmpty() && body.size() == 0) {
+			return;
+		}
+		final Chunk chunk = new Chunk(ops, body.toByteArray(), flush, false);
+		ops = new ArrayList();
+		body.reset();
+		committed = true;
+		put(chunk);
+	}
+
+	private void put(Chunk chunk) throws IOException {
+		try {
+			while (!chunks.offer(chunk, 100L, TimeUnit.MILLISECONDS)) {
+				if (abandoned) {
+					throw new IOException("Response abandoned");
+				}
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted handing over response");
+		}
+	}
+
+	private void record(Op op) {
+		ops.add(op);
+	}
+
+	public ServletOutputStream getOutputStream() {
+		return out;
+	}
+
+	public PrintWriter getWriter() throws IOException {
+		if (writer == null) {
+			writer = new PrintWriter(new OutputStreamWriter(out,
+					getCharacterEncoding()));
+		}
+		return writer;
+	}
+
+	public void flushBuffer() throws IOException {
+		if (writer != null) {
+			writer.flush();
+		}
+		handOver(true);
+	}
+
+	public boolean isCommitted() {
+		return committed || sent;
+	}
+
+	public void reset() {
+		if (isCommitted()) {
+			throw new IllegalStateException("Response committed");
+		}
+		ops.clear();
+		body.reset();
+		headerNames.clear();
+		contentType = null;
+		charset = null;
+		record(new Op() {
+			void apply(HttpServletResponse response) {
+				response.reset();
+			}
+		});
+	}
+
+	public void resetBuffer() {
+		if (isCommitted()) {
+			throw new IllegalStateException("Response committed");
+		}
+		body.reset();
+	}
+
+	public int getBufferSize() {
+		return CHUNK_SIZE;
+	}
+
+	public void setBufferSize(int size) {
+		/*
+		 * Chunks are handed over at a fixed size
+		 */
+	}
+
+	public String getContentType() {
+		return contentType;
+	}
+
+	public void setContentType(final String type) {
+		contentType = type;
+		if (type != null) {
+			final int i = type.toLowerCase().indexOf("charset=");
+			if (i >= 0) {
+				charset = type.substring(i + "charset=".length()).trim();
+			}
+		}
+		record(new Op() {
+			void apply(HttpServletResponse response) {
+				response.setContentType(type);
+			}
+		});
+	}
+
+	public String getCharacterEncoding() {
+		return (charset == null) ? "ISO-8859-1" : charset;
+	}
+
+	public void setCharacterEncoding(final String charset) {
+		this.charset = charset;
+		record(new Op() {
+			void apply(HttpServletResponse response) {
+				response.setCharacterEncoding(charset);
+			}
+		});
+	}
+
+	public void setContentLength(final int length) {
+		record(new Op() {
+			void apply(HttpServletResponse response) {
+				response.setContentLength(length);
+			}
+		});
+	}
+
+	public void setLocale(final Locale locale) {
+		record(new Op() {
+			void apply(HttpServletResponse response) {
+				response.setLocale(locale);
+			}
+		});
+	}
+
+	public void setStatus(final int status) {
+		record(new Op() {
+			void apply(HttpServletResponse response) {
+				response.setStatus(status);
+			}
+		});
+	}
+
+	public void setStatus(final int status, final String message) {
+		record(new Op() {
+			void apply(HttpServletResponse response) {
+				response.setStatus(status, message);
+			}
+		});
+	}
+
+	public void sendError(final int status) {
+		sent = true;
+		record(new Op() {
+			void apply(HttpServletResponse response) throws IOException {
+				response.sendError(status);
+			}
+		});
+	}
+
+	public void sendError(final int status, final String message) {
+		sent = true;
+		record(new Op() {
+			void apply(HttpServletResponse response) throws IOException {
+				response.sendError(status, message);
+			}
+		});
+	}
+
+	public void sendRedirect(final String location) {
+		sent = true;
+		record(new Op() {
+			void apply(HttpServletResponse response) throws IOException {
+				response.sendRedirect(location);
+			}
+		});
+	}
+
+	public void addCookie(final Cookie cookie) {
+		record(new Op() {
+			void apply(HttpServletResponse response) {
+				response.addCookie(cookie);
+			}
+		});
+	}
+
+	public boolean containsHeader(String name) {
+		return headerNames.contains(name.toLowerCase());
+	}
+
+	public void setHeader(final String name, final String value) {
+		headerNames.add(name.toLowerCase());
+		record(new Op() {
+			void apply(HttpServletResponse response) {
+				response.setHeader(name, value);
+			}
+		});
+	}
+
+	public void addHeader(final String name, final String value) {
+		headerNames.add(name.toLowerCase());
+		record(new Op() {
+			void apply(HttpServletResponse response) {
+				response.addHeader(name, value);
+			}
+		});
+	}
+
+	public void setDateHeader(final String name, final long date) {
+		headerNames.add(name.toLowerCase());
+		record(new Op() {
+			void apply(HttpServletResponse response) {
+				response.setDateHeader(name, date);
+			}
+		});
+	}
+
+	public void addDateHeader(final String name, final long date) {
+		headerNames.add(name.toLowerCase());
+		record(new Op() {
+			void apply(HttpServletResponse response) {
+				response.addDateHeader(name, date);
+			}
+		});
+	}
+
+	public void setIntHeader(final String name, final int value) {
+		headerNames.add(name.toLowerCase());
+		record(new Op() {
+			void apply(HttpServletResponse response) {
+				response.setIntHeader(name, value);
+			}
+		});
+	}
+
+	public void addIntHeader(final String name, final int value) {
+		headerNames.add(name.toLowerCase());
+		record(new Op() {
+			void apply(HttpServletResponse response) {
+				response.addIntHeader(name, value);
+			}
+		});
+	}
+
+	/*
+	 * Call recorded against the response, to be made on the real one
+	 */
+	private static abstract class Op {
+		abstract void apply(HttpServletResponse response) throws IOException;
+	}
+
+	/*
+	 * Recorded calls and body bytes handed over together
+	 */
+	private static final class Chunk {
+		Chunk(List ops, byte[] bytes, boolean flush, boolean last) {
+			this.ops = ops;
+			this.bytes = bytes;
+			this.flush = flush;
+			this.last = last;
+		}
+
+		void writeTo(HttpServletResponse response) throws IOException {
+			for (Iterator i = ops.iterator(); i.hasNext();) {
+				((Op) i.next()).apply(response);
+			}
+			if (bytes.length > 0) {
+				response.getOutputStream().write(bytes);
+			}
+			if (flush) {
+				response.getOutputStream().flush();
+			}
+		}
+
+		private final List ops;
+
+		private final byte[] bytes;
+
+		private final boolean flush;
+
+		/*
+		 * True for what is left when the work is done
+		 */
+		final boolean last;
+	}
+
+	private final HttpServletResponse response;
+
+	private final BlockingQueue chunks;
+
+	private final ServletOutputStream out;
+
+	/*
+	 * The rest is only used by the worker, apart from abandoned
+	 */
+	private List ops;
+
+	private final ByteArrayOutputStream body;
+
+	private final Set headerNames;
+
+	private PrintWriter writer;
+
+	/*
+	 * Set once the work is done, when flushing the writer must not hand
+	 * anything over
+	 */
+	private boolean finishing;
+
+	private String contentType;
+
+	private String charset;
+
+	private boolean committed;
+
+	private boolean sent;
+
+	private volatile boolean abandoned;
+}
@@ -0,0 +1,635 @@
+/*
+ * Copyright (C) 2007 Lindsay S. Kay, All rights Reserved.
+ *
+ * This software is provided "as-is", without any express or implied warranty. In no event will the 
+ * author be held liable for any damages arising from the use of this software.
+ *
+ * Permission is granted to anyone to use this software for any purpose, including commercial 
+ * applications, and to alter it and redistribute if freely, subject to the following restrictions:
+ *
+ *  1. The origin of this software must not be misrepresented: you must not claim that you wrote 
+ * 	the original software. if you use this software in a product, an acknowledgement in the product 
+ * 	documentation would be appreciated but is not required.
+ * 
+ *  2. Altered source versions must be plainly marked as such, and must not be misrepresented 
+ * 	as the original software.
+ * 
+  * 3. This notice must not be removed or altered from any source distribution.
+ */
+package com.neocoders.jandal.ui.freemarker.servlet;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Map;
+import java.util.Queue;
+import java.util.StringTokenizer;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import com.neocoders.jandal.core.JandalCoreException;
+import com.neocoders.jandal.core.Resource;
+
+/**
+ * Compresses responses with gzip or deflate, whichever the client accepts,
+ * when their content type is worth compressing.
+ * <p/>
+ * Responses are buffered until they reach a minimum size, so that small ones
+ * go out as they are, with a content length. A response flushed explicitly
+ * while still buffered is taken to be streaming, and goes out uncompressed
+ * from then on - {@link DeflaterOutputStream#flush()} cannot push out pending
+ * compressed output before Java 7, so compressing it would hold back
+ * everything written since the last full block, defeating the flush. Streamed
+ * responses therefore trade compression for latency. {@link Deflater}s are pooled
+ * and reused rather than created for each response, since each holds a
+ * sizeable block of native memory.
+ * <p/>
+ * Resources bundled with controller classes are compressed once per encoding
+ * and the compressed bytes kept for later requests, along with a hash of the
+ * content they were compressed from, so that a resource reloaded since is
+ * compressed again rather than served stale.
+ * <p/>
+ * A response stream that cannot be finished, because rendering failed part
+ * way, must be given to {@link #release(OutputStream)} so that its
+ * {@link Deflater} goes back to the pool.
+ * 
+ * @author lindsay
+ * 
+ */
+public class ResponseCompressor {
+
+	public static final int DEFAULT_MIN_SIZE = 1024;
+
+	private static final String GZIP = "gzip";
+
+	private static final String DEFLATE = "deflate";
+
+	/*
+	 * Header of a gzip member with no optional fields
+	 */
+	private static final byte[] GZIP_HEADER = new byte[] { 0x1f, (byte) 0x8b,
+			Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, 0 };
+
+	/**
+	 * Creates a compressor.
+	 * 
+	 * @param minSize
+	 *            Size in bytes below which responses are not compressed.
+	 * @param level
+	 *            {@link Deflater} compression level.
+	 */
+	public ResponseCompressor(int minSize, int level) {
+		this.minSize = minSize;
+		this.level = level;
+		this.gzipDeflaters = new ConcurrentLinkedQueue();
+		this.deflateDeflaters = new ConcurrentLinkedQueue();
+		this.resources = new ConcurrentHashMap();
+		this.numCompressed = new AtomicLong();
+		this.numUncompressed = new AtomicLong();
+		this.numPrecompressedHits = new AtomicLong();
+		this.bytesIn = new AtomicLong();
+		this.bytesOut = new AtomicLong();
+	}
+
+	/**
+	 * Returns a stream to write a response of the given content type into,
+	 * which compresses it if the request accepts a compressed encoding and
+	 * the response turns out to be big enough. The stream must be closed to
+	 * finish the response.
+	 */
+	public OutputStream getOutputStream(HttpServletRequest request,
+			HttpServletResponse response, String contentType)
+			throws IOException {
+		if (!isCompressible(contentType)) {
+			return response.getOutputStream();
+		}
+		response.setHeader("Vary", "Accept-Encoding");
+		final String encoding = getEncoding(request);
+		if (encoding == null) {
+			return response.getOutputStream();
+		}
+		return new CompressingStream(response, encoding);
+	}
+
+	/**
+	 * Releases the {@link Deflater} of a stream returned by
+	 * {@link #getOutputStream} that will not be closed, because the response
+	 * failed part way. Does nothing for streams that have been closed, or
+	 * that are not compressing.
+	 */
+	public void release(OutputStream out) {
+		if (out instanceof CompressingStream) {
+			((CompressingStream) out).abandon();
+		}
+	}
+
+	/**
+	 * Writes a resource bundled with a controller class to the response,
+	 * compressed if the request accepts a compressed encoding, using the
+	 * compressed bytes kept from an earlier request where there are some and
+	 * the resource is unchanged since.
+	 * 
+	 * @param key
+	 *            Identifies the resource among all those bundled with
+	 *            controller classes.
+	 */
+	public void writeResource(HttpServletRequest request,
+			HttpServletResponse response, String key, Resource resource)
+			throws IOException, JandalCoreException {
+		final String contentType = resource.getMimeType();
+		response.setContentType(contentType);
+		if (!isCompressible(contentType)) {
+			writeUncompressed(response, resource);
+			return;
+		}
+		response.setHeader("Vary", "Accept-Encoding");
+		final String encoding = getEncoding(request);
+		if (encoding == null) {
+			writeUncompressed(response, resource);
+			return;
+		}
+		final ByteArrayOutputStream raw = new ByteArrayOutputStream();
+		resource.write(raw);
+		final byte[] bytes = raw.toByteArray();
+		final String hash = StaticAsset.hash(bytes);
+		final String encodedKey = encoding + ":" + key;
+		CompressedResource compressed = (CompressedResource) resources
+				.get(encodedKey);
+		if (compressed != null && hash.equals(compressed.hash)) {
+			numPrecompressedHits.incrementAndGet();
+		} else {
+			/*
+			 * Replaces any copy compressed from an earlier version
+			 */
+			compressed = compress(bytes, encoding);
+			compressed.hash = hash;
+			resources.put(encodedKey, compressed);
+		}
+		writeCompressed(response, compressed, encoding);
+	}
+
+	/**
+	 * Writes content that does not change while the servlet runs to the
+	 * response, with a content length, compressed if the request accepts a
+	 * compressed encoding, using the compressed bytes kept from an earlier
+	 * request where there are some.
+	 * 
+	 * @param key
+	 *            Identifies the content among all such content.
+	 */
+	public void writeStatic(HttpServletRequest request,
+			HttpServletResponse response, String key, String contentType,
+			byte[] bytes) throws IOException {
+		response.setContentType(contentType);
+		final String encoding;
+		if (isCompressible(contentType)) {
+			response.setHeader("Vary", "Accept-Encoding");
+			encoding = getEncoding(request);
+		} else {
+			encoding = null;
+		}
+		if (encoding == null) {
+			writeCompressed(response, new CompressedResource(bytes, false),
+					null);
+			return;
+		}
+		final String encodedKey = encoding + ":" + key;
+		CompressedResource compressed = (CompressedResource) resources
+				.get(encodedKey);
+		if (compressed != null) {
+			numPrecompressedHits.incrementAndGet();
+		} else {
+			compressed = compress(bytes, encoding);
+			resources.put(encodedKey, compressed);
+		}
+		writeCompressed(response, compressed, encoding);
+	}
+
+	private void writeCompressed(HttpServletResponse response,
+			CompressedResource compressed, String encoding) throws IOException {
+		if (compressed.encoded) {
+			response.setHeader("Content-Encoding", encoding);
+			numCompressed.incrementAndGet();
+		} else {
+			numUncompressed.incrementAndGet();
+		}
+		response.setContentLength(compressed.bytes.length);
+		OutputStream out = response.getOutputStream();
+		out.write(compressed.bytes);
+		out.flush();
+	}
+
+	private CompressedResource compress(byte[] bytes, String encoding)
+			throws IOException {
+		if (bytes.length < minSize) {
+			/*
+			 * Too small to be worth compressing - remember that too
+			 */
+			return new CompressedResource(bytes, false);
+		}
+		ByteArrayOutputStream compressed = new ByteArrayOutputStream(
+				bytes.length / 2);
+		OutputStream out = new EncodingStream(compressed, encoding);
+		out.write(bytes);
+		out.close();
+		bytesIn.addAndGet(bytes.length);
+		bytesOut.addAndGet(compressed.size());
+		if (compressed.size() >= bytes.length) {
+			return new CompressedResource(bytes, false);
+		}
+		return new CompressedResource(compressed.toByteArray(), true);
+	}
+
+	private void writeUncompressed(HttpServletResponse response,
+			Resource resource) throws IOException, JandalCoreException {
+		numUncompressed.incrementAndGet();
+		OutputStream out = response.getOutputStream();
+		resource.write(out);
+		out.flush();
+	}
+
+	/**
+	 * Returns true if responses of the given content type are worth
+	 * compressing, which excludes images and archives that are compressed
+	 * already.
+	 */
+	public static boolean isCompressible(String contentType) {
+		if (contentType == null) {
+			return false;
+		}
+		contentType = contentType.toLowerCase();
+		return contentType.startsWith("text/") || contentType.equals("xml")
+				|| contentType.indexOf("xml") >= 0
+				|| contentType.indexOf("json") >= 0
+				|| contentType.indexOf("javascript") >= 0;
+	}
+
+	/*
+	 * Returns the compressed encoding preferred by the request, or null if it
+	 * accepts none
+	 */
+	private static String getEncoding(HttpServletRequest request) {
+		final String accept = request.getHeader("Accept-Encoding");
+		if (accept == null) {
+			return null;
+		}
+		boolean deflate = false;
+		StringTokenizer strtok = new StringTokenizer(accept, ",");
+		while (strtok.hasMoreTokens()) {
+			String coding = strtok.nextToken().trim().toLowerCase();
+			int semi = coding.indexOf(';');
+			if (semi >= 0) {
+				String param = coding.substring(semi + 1).trim();
+				coding = coding.substring(0, semi).trim();
+				if (param.startsWith("q=")) {
+					try {
+						if (Float.parseFloat(param.substring(2)) <= 0) {
+							continue;
+						}
+					} catch (NumberFormatException e) {
+						continue;
+					}
+				}
+			}
+			if (coding.equals(GZIP) || coding.equals("x-gzip")) {
+				return GZIP;
+			}
+			if (coding.equals(DEFLATE)) {
+				deflate = true;
+			}
+		}
+		return deflate ? DEFLATE : null;
+	}
+
+	private Deflater getDeflater(String encoding) {
+		final Queue pool = (GZIP.equals(encoding)) ? gzipDeflaters
+				: deflateDeflaters;
+		Deflater deflater = (Deflater) pool.poll();
+		if (deflater == null) {
+			/*
+			 * Raw deflate for gzip, which frames it itself, zlib for deflate
+			 */
+			deflater = new Deflater(level, GZIP.equals(encoding));
+		}
+		return deflater;
+	}
+
+	private void releaseDeflater(String encoding, Deflater deflater) {
+		deflater.reset();
+		((GZIP.equals(encoding)) ? gzipDeflaters : deflateDeflaters)
+				.offer(deflater);
+	}
+
+	/**
+	 * Frees the pooled {@link Deflater}s.
+	 */
+	public void shutdown() {
+		Deflater deflater;
+		while ((deflater = (Deflater) gzipDeflaters.poll()) != null) {
+			deflater.end();
+		}
+		while ((deflater = (Deflater) deflateDeflaters.poll()) != null) {
+			deflater.end();
+		}
+	}
+
+	public int getMinSize() {
+		return minSize;
+	}
+
+	/**
+	 * Returns the number of responses sent compressed.
+	 */
+	public long getCompressedCount() {
+		return numCompressed.get();
+	}
+
+	/**
+	 * Returns the number of compressible responses sent uncompressed, because
+	 * the client did not accept compression or they were too small.
+	 */
+	public long getUncompressedCount() {
+		return numUncompressed.get();
+	}
+
+	/**
+	 * Returns the number of bundled resources sent from compressed bytes kept
+	 * from earlier requests.
+	 */
+	public long getPrecompressedHits() {
+		return numPrecompressedHits.get();
+	}
+
+	/**
+	 * Returns the total bytes compressed.
+	 */
+	public long getBytesIn() {
+		return bytesIn.get();
+	}
+
+	/**
+	 * Returns the total bytes those compressed to.
+	 */
+	public long getBytesOut() {
+		return bytesOut.get();
+	}
+
+	/*
+	 * Compresses into a stream with the given encoding, using a pooled
+	 * Deflater that goes back to the pool on close
+	 */
+	private final class EncodingStream extends DeflaterOutputStream {
+
+		EncodingStream(OutputStream out, String encoding) throws IOException {
+			super(out, getDeflater(encoding), 8192);
+			this.encoding = encoding;
+			if (GZIP.equals(encoding)) {
+				this.crc = new CRC32();
+				out.write(GZIP_HEADER);
+			} else {
+				this.crc = null;
+			}
+		}
+
+		public void write(int b) throws IOException {
+			write(new byte[] { (byte) b }, 0, 1);
+		}
+
+		public void write(byte[] b, int off, int len) throws IOException {
+			if (crc != null) {
+				crc.update(b, off, len);
+			}
+			super.write(b, off, len);
+		}
+
+		/*
+		 * Gives back the Deflater without finishing the stream
+		 */
+		void abandon() {
+			if (closed) {
+				return;
+			}
+			closed = true;
+			releaseDeflater(encoding, def);
+		}
+
+		public void close() throws IOException {
+			if (closed) {
+				return;
+			}
+			closed = true;
+			try {
+				finish();
+				if (crc != null) {
+					writeInt((int) crc.getValue());
+					writeInt(def.getTotalIn());
+				}
+				out.flush();
+			} finally {
+				releaseDeflater(encoding, def);
+			}
+		}
+
+		private void writeInt(int i) throws IOException {
+			out.write(i & 0xff);
+			out.write((i >> 8) & 0xff);
+			out.write((i >> 16) & 0xff);
+			out.write((i >> 24) & 0xff);
+		}
+
+		private final String encoding;
+
+		private final CRC32 crc;
+
+		private boolean closed;
+	}
+
+	/*
+	 * Buffers a response until it reaches the minimum size, then sets the
+	 * content encoding and compresses the rest of it on the way through -
+	 * unless it is flushed first, when it passes through uncompressed
+	 */
+	private final class CompressingStream extends OutputStream {
+
+		CompressingStream(HttpServletResponse response, String encoding) {
+			this.response = response;
+			this.encoding = encoding;
+			this.buffer = new ByteArrayOutputStream(minSize);
+		}
+
+		public void write(int b) throws IOException {
+			write(new byte[] { (byte) b }, 0, 1);
+		}
+
+		public void write(byte[] b, int off, int len) throws IOException {
+			if (closed) {
+				throw new IOException("Stream closed");
+			}
+			if (compressed != null) {
+				compressed.write(b, off, len);
+				size += len;
+				return;
+			}
+			if (uncompressed != null) {
+				uncompressed.write(b, off, len);
+				return;
+			}
+			buffer.write(b, off, len);
+			if (buffer.size() >= minSize) {
+				response.setHeader("Content-Encoding", encoding);
+				compressed = new EncodingStream(new CountingStream(response
+						.getOutputStream()), encoding);
+				size = buffer.size();
+				buffer.writeTo(compressed);
+				buffer = null;
+			}
+		}
+
+		/**
+		 * Sends what has been buffered so far uncompressed, and the rest of
+		 * the response with it, so that the client gets it now. Once
+		 * compressing, this only flushes the compressed blocks completed so
+		 * far.
+		 */
+		public void flush() throws IOException {
+			if (compressed != null) {
+				compressed.flush();
+				return;
+			}
+			if (uncompressed == null) {
+				if (buffer.size() == 0) {
+					return;
+				}
+				uncompressed = response.getOutputStream();
+				buffer.writeTo(uncompressed);
+				buffer = null;
+			}
+			uncompressed.flush();
+		}
+
+		/*
+		 * Drops the response, giving back the Deflater if compressing
+		 */
+		void abandon() {
+			if (closed) {
+				return;
+			}
+			closed = true;
+			if (compressed != null) {
+				compressed.abandon();
+			}
+		}
+
+		public void close() throws IOException {
+			if (closed) {
+				return;
+			}
+			closed = true;
+			if (compressed != null) {
+				compressed.close();
+				numCompressed.incrementAndGet();
+				bytesIn.addAndGet(size);
+				return;
+			}
+			numUncompressed.incrementAndGet();
+			if (uncompressed != null) {
+				uncompressed.flush();
+				return;
+			}
+			response.setContentLength(buffer.size());
+			OutputStream out = response.getOutputStream();
+			buffer.writeTo(out);
+			out.flush();
+		}
+
+		private final HttpServletResponse response;
+
+		private final String encoding;
+
+		private ByteArrayOutputStream buffer;
+
+		private EncodingStream compressed;
+
+		/*
+		 * Response stream written straight to once flushed while buffering
+		 */
+		private OutputStream uncompressed;
+
+		private long size;
+
+		private boolean closed;
+	}
+
+	private static final class CompressedResource {
+		CompressedResource(byte[] bytes, boolean encoded) {
+			this.bytes = bytes;
+			this.encoded = encoded;
+		}
+
+		final byte[] bytes;
+
+		/*
+		 * False when the bytes are uncompressed
+		 */
+		final boolean encoded;
+
+		/*
+		 * Hash of the content of a bundled resource, set before the
+		 * resource is shared through the map
+		 */
+		String hash;
+	}
+
+	/*
+	 * Counts compressed bytes on their way to the response
+	 */
+	private final class CountingStream extends OutputStream {
+
+		CountingStream(OutputStream out) {
+			this.out = out;
+		}
+
+		public void write(int b) throws IOException {
+			out.write(b);
+			bytesOut.incrementAndGet();
+		}
+
+		public void write(byte[] b, int off, int len) throws IOException {
+			out.write(b, off, len);
+			bytesOut.addAndGet(len);
+		}
+
+		public void flush() throws IOException {
+			out.flush();
+		}
+
+		private final OutputStream out;
+	}
+
+	private final int minSize;
+
+	private final int level;
+
+	private final Queue gzipDeflaters;
+
+	private final Queue deflateDeflaters;
+
+	private final Map resources;
+
+	private final AtomicLong numCompressed;
+
+	private final AtomicLong numUncompressed;
+
+	private final AtomicLong numPrecompressedHits;
+
+	private final AtomicLong bytesIn;
+
+	private final AtomicLong bytesOut;
+}
@@ -0,0 +1,143 @@
+/*
+ * Copyright (C) 2007 Lindsay S. Kay, All rights Reserved.
+ *
+ * This software is provided "as-is", without any express or implied warranty. In no event will the 
+ * author be held liable for any damages arising from the use of this software.
+ *
+ * Permission is granted to anyone to use this software for any purpose, including commercial 
+ * applications, and to alter it and redistribute if freely, subject to the following restrictions:
+ *
+ *  1. The origin of this software must not be misrepresented: you must not claim that you wrote 
+ * 	the original software. if you use this software in a product, an acknowledgement in the product 
+ * 	documentation would be appreciated but is not required.
+ * 
+ *  2. Altered source versions must be plainly marked as such, and must not be misrepresented 
+ * 	as the original software.
+ * 
+  * 3. This notice must not be removed or altered from any source distribution.
+ */
+package com.neocoders.jandal.ui.freemarker.servlet;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.StringTokenizer;
+
+import javax.servlet.http.HttpServletRequest;
+
+/**
+ * Content that does not change while the servlet runs, held in memory along
+ * with a hash of the content that serves both as its entity tag and as a
+ * version to put in its URL, so that clients may cache it for as long as
+ * they like and still pick up a new version when there is one.
+ * 
+ * @author lindsay
+ * 
+ */
+final class StaticAsset {
+
+	StaticAsset(String key, String contentType, byte[] content,
+			long lastModified) {
+		this.key = key;
+		this.contentType = contentType;
+		this.content = content;
+		this.lastModified = lastModified - lastModified % 1000;
+		this.hash = hash(content);
+		this.eTag = "\"" + hash + "\"";
+	}
+
+	/*
+	 * Hex MD5 of the given content - package-private for ResponseCompressor
+	 */
+	static String hash(byte[] content) {
+		final MessageDigest digest;
+		try {
+			digest = MessageDigest.getInstance("MD5");
+		} catch (NoSuchAlgorithmException e) {
+			throw new RuntimeException(e);
+		}
+		final byte[] bytes = digest.digest(content);
+		final StringBuffer sb = new StringBuffer();
+		for (int i = 0; i < bytes.length; i++) {
+			sb.append(Character.forDigit((bytes[i] >> 4) & 0xf, 16));
+			sb.append(Character.forDigit(bytes[i] & 0xf, 16));
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * Returns true if the given request is conditional on a copy of this
+	 * content that the client has already, by entity tag, or failing that by
+	 * modification date.
+	 */
+	boolean isNotModified(HttpServletRequest request) {
+		return isNotModified(request, eTag, lastModified);
+	}
+
+	/**
+	 * Returns true if the given request is conditional on a copy of some
+	 * content with the given entity tag and modification date.
+	 */
+	static boolean isNotModified(HttpServletRequest request, String eTag,
+			long lastModified) {
+		final String ifNoneMatch = request.getHeader("If-None-Match");
+		if (ifNoneMatch != null) {
+			StringTokenizer strtok = new StringTokenizer(ifNoneMatch, ",");
+			while (strtok.hasMoreTokens()) {
+				String tag = strtok.nextToken().trim();
+				if (tag.startsWith("W/")) {
+					tag = tag.substring(2);
+				}
+				if (tag.equals("*") || tag.equals(eTag)) {
+					return true;
+				}
+			}
+			return false;
+		}
+		try {
+			final long ifModifiedSince = request
+					.getDateHeader("If-Modified-Since");
+			return ifModifiedSince != -1 && lastModified <= ifModifiedSince;
+		} catch (IllegalArgumentException e) {
+			return false;
+		}
+	}
+
+	String getKey() {
+		return key;
+	}
+
+	String getContentType() {
+		return contentType;
+	}
+
+	byte[] getContent() {
+		return content;
+	}
+
+	long getLastModified() {
+		return lastModified;
+	}
+
+	/**
+	 * Returns the hash of the content as hex digits.
+	 */
+	String getHash() {
+		return hash;
+	}
+
+	String getETag() {
+		return eTag;
+	}
+
+	private final String key;
+
+	private final String contentType;
+
+	private final byte[] content;
+
+	private final long lastModified;
+
+	private final String hash;
+
+	private final String eTag;
+}
@@ -0,0 +1,168 @@
+/*
+ * Copyright (C) 2007 Lindsay S. Kay, All rights Reserved.
+ *
+ * This software is provided "as-is", without any express or implied warranty. In no event will the 
+ * author be held liable for any damages arising from the use of this software.
+ *
+ * Permission is granted to anyone to use this software for any purpose, including commercial 
+ * applications, and to alter it and redistribute if freely, subject to the following restrictions:
+ *
+ *  1. The origin of this software must not be misrepresented: you must not claim that you wrote 
+ * 	the original software. if you use this software in a product, an acknowledgement in the product 
+ * 	documentation would be appreciated but is not required.
+ * 
+ *  2. Altered source versions must be plainly marked as such, and must not be misrepresented 
+ * 	as the original software.
+ * 
+  * 3. This notice must not be removed or altered from any source distribution.
+ */
+package com.neocoders.jandal.ui.freemarker.servlet;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.neocoders.jandal.core.Controller;
+import com.neocoders.jandal.core.JandalCoreException;
+import com.neocoders.jandal.core.Resource;
+
+/**
+ * Holds in memory the resources bundled with controller classes that views
+ * have linked to, keyed by controller class and file name, so that they can
+ * be served without a session and cached by clients.
+ * <p/>
+ * A resource is loaded when a view first asks for a link to it, and only
+ * resources loaded that way can be served, so that requests without a
+ * session can't reach anything else on the class path. Links carry the hash
+ * of the resource's content, giving each version its own URL.
+ * <p/>
+ * A resource is linked to as loaded until the update delay has passed since
+ * it was loaded, after which it is loaded again in case it has changed. In
+ * production mode resources are never loaded again.
+ * 
+ * @author lindsay
+ * 
+ */
+public class StaticResourceCache {
+
+	/**
+	 * Creates a cache.
+	 * 
+	 * @param updateDelay
+	 *            Seconds to link to a loaded resource before loading it again.
+	 * @param production
+	 *            True to never load resources again.
+	 */
+	public StaticResourceCache(int updateDelay, boolean production) {
+		this.updateDelayNanos = updateDelay * 1000000000L;
+		this.production = production;
+		this.assets = new ConcurrentHashMap();
+		this.numHits = new AtomicLong();
+		this.numLoads = new AtomicLong();
+		this.numNotFound = new AtomicLong();
+	}
+
+	/**
+	 * Returns the named resource bundled with the given controller's class,
+	 * loading it if not loaded or due to be checked for changes.
+	 */
+	StaticAsset getAsset(Controller controller, String fileName)
+			throws JandalCoreException {
+		final String key = getKey(controller.getClass().getName(), fileName);
+		final CachedAsset cached = (CachedAsset) assets.get(key);
+		final long now = System.nanoTime();
+		if (cached != null
+				&& (production || now - cached.loadedNanos < updateDelayNanos)) {
+			return cached.asset;
+		}
+		final Resource resource = controller.getResource(fileName);
+		final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		resource.write(bytes);
+		numLoads.incrementAndGet();
+		StaticAsset asset = new StaticAsset(key, resource.getMimeType(), bytes
+				.toByteArray(), System.currentTimeMillis());
+		if (cached != null && cached.asset.getHash().equals(asset.getHash())) {
+			/*
+			 * Unchanged - keep its modification date
+			 */
+			asset = cached.asset;
+		}
+		assets.put(key, new CachedAsset(asset, now));
+		return asset;
+	}
+
+	/**
+	 * Returns a loaded resource for a request, or null if no view has linked
+	 * to it.
+	 */
+	StaticAsset getAsset(String controllerClassName, String fileName) {
+		if (controllerClassName == null || fileName == null) {
+			numNotFound.incrementAndGet();
+			return null;
+		}
+		final CachedAsset cached = (CachedAsset) assets.get(getKey(
+				controllerClassName, fileName.trim()));
+		if (cached == null) {
+			numNotFound.incrementAndGet();
+			return null;
+		}
+		numHits.incrementAndGet();
+		return cached.asset;
+	}
+
+	private static String getKey(String controllerClassName, String fileName) {
+		return controllerClassName + "/" + fileName;
+	}
+
+	/**
+	 * Returns the number of requests answered from the cache.
+	 */
+	public long getHitCount() {
+		return numHits.get();
+	}
+
+	/**
+	 * Returns the number of times resources were loaded.
+	 */
+	public long getLoadCount() {
+		return numLoads.get();
+	}
+
+	/**
+	 * Returns the number of requests for resources that no view linked to.
+	 */
+	public long getNotFoundCount() {
+		return numNotFound.get();
+	}
+
+	/**
+	 * Returns the number of resources held.
+	 */
+	public int getSize() {
+		return assets.size();
+	}
+
+	private static class CachedAsset {
+		CachedAsset(StaticAsset asset, long loadedNanos) {
+			this.asset = asset;
+			this.loadedNanos = loadedNanos;
+		}
+
+		final StaticAsset asset;
+
+		final long loadedNanos;
+	}
+
+	private final long updateDelayNanos;
+
+	private final boolean production;
+
+	private final Map assets;
+
+	private final AtomicLong numHits;
+
+	private final AtomicLong numLoads;
+
+	private final AtomicLong numNotFound;
+}
@@ -0,0 +1,100 @@
+/*
+ * Copyright (C) 2007 Lindsay S. Kay, All rights Reserved.
+ *
+ * This software is provided "as-is", without any express or implied warranty. In no event will the 
+ * author be held liable for any damages arising from the use of this software.
+ *
+ * Permission is granted to anyone to use this software for any purpose, including commercial 
+ * applications, and to alter it and redistribute if freely, subject to the following restrictions:
+ *
+ *  1. The origin of this software must not be misrepresented: you must not claim that you wrote 
+ * 	the original software. if you use this software in a product, an acknowledgement in the product 
+ * 	documentation would be appreciated but is not required.
+ * 
+ *  2. Altered source versions must be plainly marked as such, and must not be misrepresented 
+ * 	as the original software.
+ * 
+  * 3. This notice must not be removed or altered from any source distribution.
+ */
+package com.neocoders.jandal.ui.freemarker.servlet;
+
+import java.io.IOException;
+import java.io.Writer;
+
+/**
+ * Writer that passes everything written to it on to another writer, keeping a
+ * copy of it for as long as that stays within a limit, used to capture a view
+ * fragment for the session's fragment cache as it renders. A fragment too big
+ * to be cached is not copied beyond the limit.
+ * 
+ * @author lindsay
+ * 
+ */
+class TeeWriter extends Writer {
+
+	TeeWriter(Writer out, int maxCopied) {
+		this.out = out;
+		this.maxCopied = maxCopied;
+		this.copy = new StringBuffer();
+	}
+
+	public void write(char[] cbuf, int off, int len) throws IOException {
+		out.write(cbuf, off, len);
+		if (reserve(len)) {
+			copy.append(cbuf, off, len);
+		}
+	}
+
+	public void write(String str, int off, int len) throws IOException {
+		out.write(str, off, len);
+		if (reserve(len)) {
+			copy.append(str, off, off + len);
+		}
+	}
+
+	public void write(int c) throws IOException {
+		out.write(c);
+		if (reserve(1)) {
+			copy.append((char) c);
+		}
+	}
+
+	/*
+	 * Returns true if the given number of characters still fit in the copy,
+	 * otherwise drops it
+	 */
+	private boolean reserve(int len) {
+		if (copy == null) {
+			return false;
+		}
+		if (copy.length() + len > maxCopied) {
+			copy = null;
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Returns the copy of everything written, or null if it outgrew the limit.
+	 */
+	String getCopy() {
+		return (copy == null) ? null : copy.toString();
+	}
+
+	public void flush() throws IOException {
+		out.flush();
+	}
+
+	/**
+	 * Does not close the writer, which belongs to the caller.
+	 */
+	public void close() throws IOException {
+		flush();
+	}
+
+	private final Writer out;
+
+	private final int maxCopied;
+
+	private StringBuffer copy;
+}
@@ -0,0 +1,199 @@
+/*
+ * Copyright (C) 2007 Lindsay S. Kay, All rights Reserved.
+ *
+ * This software is provided "as-is", without any express or implied warranty. In no event will the 
+ * author be held liable for any damages arising from the use of this software.
+ *
+ * Permission is granted to anyone to use this software for any purpose, including commercial 
+ * applications, and to alter it and redistribute if freely, subject to the following restrictions:
+ *
+ *  1. The origin of this software must not be misrepresented: you must not claim that you wrote 
+ * 	the original software. if you use this software in a product, an acknowledgement in the product 
+ * 	documentation would be appreciated but is not required.
+ * 
+ *  2. Altered source versions must be plainly marked as such, and must not be misrepresented 
+ * 	as the original software.
+ * 
+  * 3. This notice must not be removed or altered from any source distribution.
+ */
+package com.neocoders.jandal.ui.freemarker.servlet;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import freemarker.cache.MruCacheStorage;
+import freemarker.template.Configuration;
+import freemarker.template.Template;
+
+/**
+ * Resolves the FreeMarker templates bundled with controller classes, caching
+ * each parsed {@link Template} by controller class and template name.
+ * <p/>
+ * Each controller class gets its own copy of the servlet's
+ * {@link Configuration}, set to load templates from beside that class, so the
+ * shared {@link Configuration} is never modified while rendering and
+ * templates of the same name bundled with different classes do not collide.
+ * <p/>
+ * A cached template is used as-is until the update delay has passed since it
+ * was last checked, after which FreeMarker is asked to check the template file
+ * for changes and reload it if needed. In production mode templates are never
+ * checked again once loaded.
+ * 
+ * @author lindsay
+ * 
+ */
+public class TemplateCache {
+
+	/**
+	 * Creates a cache.
+	 * 
+	 * @param cfg
+	 *            Configuration on which each controller class's configuration
+	 *            is based.
+	 * @param updateDelay
+	 *            Seconds to use a cached template before checking it for
+	 *            changes again.
+	 * @param production
+	 *            True to never check cached templates for changes.
+	 */
+	public TemplateCache(Configuration cfg, int updateDelay, boolean production) {
+		this.cfg = cfg;
+		this.updateDelayNanos = updateDelay * 1000000000L;
+		this.production = production;
+		this.classTemplates = new ConcurrentHashMap();
+		this.numHits = new AtomicLong();
+		this.numMisses = new AtomicLong();
+		this.numChecks = new AtomicLong();
+	}
+
+	/**
+	 * Returns the named template bundled with the given controller class.
+	 * 
+	 * @throws IOException
+	 *             Template not found or failed to parse.
+	 */
+	public Template getTemplate(Class controllerClass, String name)
+			throws IOException {
+		final ClassTemplates templates = getClassTemplates(controllerClass);
+		final CachedTemplate cached = (CachedTemplate) templates.templates
+				.get(name);
+		final long now = System.nanoTime();
+		if (cached != null) {
+			if (production || now - cached.checkedNanos < updateDelayNanos) {
+				numHits.incrementAndGet();
+				return cached.template;
+			}
+			numChecks.incrementAndGet();
+		}
+		final Template template = templates.cfg.getTemplate(name);
+		if (cached != null && cached.template == template) {
+			numHits.incrementAndGet();
+		} else {
+			numMisses.incrementAndGet();
+		}
+		templates.templates.put(name, new CachedTemplate(template, now));
+		return template;
+	}
+
+	/**
+	 * Discards all cached templates.
+	 */
+	public void clear() {
+		classTemplates.clear();
+	}
+
+	/**
+	 * Returns the number of lookups answered with an already-parsed template.
+	 */
+	public long getHitCount() {
+		return numHits.get();
+	}
+
+	/**
+	 * Returns the number of lookups that had to load and parse a template.
+	 */
+	public long getMissCount() {
+		return numMisses.get();
+	}
+
+	/**
+	 * Returns the number of times a cached template was checked for changes.
+	 */
+	public long getCheckCount() {
+		return numChecks.get();
+	}
+
+	public boolean isProduction() {
+		return production;
+	}
+
+	public int getUpdateDelay() {
+		return (int) (updateDelayNanos / 1000000000L);
+	}
+
+	private ClassTemplates getClassTemplates(Class controllerClass) {
+		ClassTemplates templates = (ClassTemplates) classTemplates
+				.get(controllerClass);
+		if (templates == null) {
+			final Configuration classCfg = (Configuration) cfg.clone();
+			/*
+			 * Clones share the original's cache storage - give this one its
+			 * own so that equally named templates of other classes don't
+			 * collide. A class has only a few templates, so all are held
+			 * strongly and none are ever let go
+			 */
+			classCfg.setCacheStorage(new MruCacheStorage(Integer.MAX_VALUE, 0));
+			classCfg.setClassForTemplateLoading(controllerClass, "");
+			/*
+			 * We decide when a template is stale - when we ask, FreeMarker
+			 * must check
+			 */
+			classCfg.setTemplateUpdateDelay(0);
+			templates = new ClassTemplates(classCfg);
+			final ClassTemplates existing = (ClassTemplates) classTemplates
+					.putIfAbsent(controllerClass, templates);
+			if (existing != null) {
+				templates = existing;
+			}
+		}
+		return templates;
+	}
+
+	private static class ClassTemplates {
+		ClassTemplates(Configuration cfg) {
+			this.cfg = cfg;
+			this.templates = new ConcurrentHashMap();
+		}
+
+		final Configuration cfg;
+
+		final Map templates;
+	}
+
+	private static class CachedTemplate {
+		CachedTemplate(Template template, long checkedNanos) {
+			this.template = template;
+			this.checkedNanos = checkedNanos;
+		}
+
+		final Template template;
+
+		final long checkedNanos;
+	}
+
+	private final Configuration cfg;
+
+	private final long updateDelayNanos;
+
+	private final boolean production;
+
+	private final ConcurrentHashMap classTemplates;
+
+	private final AtomicLong numHits;
+
+	private final AtomicLong numMisses;
+
+	private final AtomicLong numChecks;
+}
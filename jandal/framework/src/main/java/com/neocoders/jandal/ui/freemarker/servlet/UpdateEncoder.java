@@ -0,0 +1,93 @@
+/*
+ * Copyright (C) 2007 Lindsay S. Kay, All rights Reserved.
+ *
+ * This software is provided "as-is", without any express or implied warranty. In no event will the 
+ * author be held liable for any damages arising from the use of this software.
+ *
+ * Permission is granted to anyone to use this software for any purpose, including commercial 
+ * applications, and to alter it and redistribute if freely, subject to the following restrictions:
+ *
+ *  1. The origin of this software must not be misrepresented: you must not claim that you wrote 
+ * 	the original software. if you use this software in a product, an acknowledgement in the product 
+ * 	documentation would be appreciated but is not required.
+ * 
+ *  2. Altered source versions must be plainly marked as such, and must not be misrepresented 
+ * 	as the original software.
+ * 
+  * 3. This notice must not be removed or altered from any source distribution.
+ */
+package com.neocoders.jandal.ui.freemarker.servlet;
+
+import java.io.IOException;
+import java.io.Writer;
+
+import javax.servlet.http.HttpServletRequest;
+
+/**
+ * Writes the response to an AJAX request - the views of the controllers
+ * rendered again and the changed values of bound outputs, or an error - in
+ * one of the formats that the client may ask for.
+ * <p/>
+ * Controller views are rendered straight into the writer returned by
+ * {@link #beginController(String)}, which encodes them on the way through, so
+ * that no copy of a view is made just to encode it.
+ * 
+ * @author lindsay
+ * 
+ */
+abstract class UpdateEncoder {
+
+	/**
+	 * Returns an encoder for the format the given request accepts: JSON when
+	 * the client accepts "application/json", otherwise XML.
+	 */
+	static UpdateEncoder forRequest(HttpServletRequest request, Writer out) {
+		String accept = request.getHeader("Accept");
+		if (accept != null && accept.indexOf(JSONUpdateEncoder.CONTENT_TYPE) >= 0) {
+			return new JSONUpdateEncoder(out);
+		}
+		return new XMLUpdateEncoder(out);
+	}
+
+	UpdateEncoder(Writer out) {
+		this.out = out;
+	}
+
+	abstract String getContentType();
+
+	/**
+	 * Returns the charset the update must be sent in.
+	 */
+	abstract String getCharset();
+
+	/**
+	 * Begins an update.
+	 */
+	abstract void begin() throws IOException;
+
+	/**
+	 * Begins the new view of a controller, returning the writer to render the
+	 * view into.
+	 */
+	abstract Writer beginController(String id) throws IOException;
+
+	abstract void endController() throws IOException;
+
+	/**
+	 * Writes the new value of an output bound to the client element with the
+	 * given ID.
+	 */
+	abstract void output(String id, String value) throws IOException;
+
+	/**
+	 * Ends an update.
+	 */
+	abstract void end() throws IOException;
+
+	/**
+	 * Writes an error report in place of an update.
+	 */
+	abstract void error(String code, String message) throws IOException;
+
+	protected final Writer out;
+}
@@ -0,0 +1,164 @@
+/*
+ * Copyright (C) 2007 Lindsay S. Kay, All rights Reserved.
+ *
+ * This software is provided "as-is", without any express or implied warranty. In no event will the 
+ * author be held liable for any damages arising from the use of this software.
+ *
+ * Permission is granted to anyone to use this software for any purpose, including commercial 
+ * applications, and to alter it and redistribute if freely, subject to the following restrictions:
+ *
+ *  1. The origin of this software must not be misrepresented: you must not claim that you wrote 
+ * 	the original software. if you use this software in a product, an acknowledgement in the product 
+ * 	documentation would be appreciated but is not required.
+ * 
+ *  2. Altered source versions must be plainly marked as such, and must not be misrepresented 
+ * 	as the original software.
+ * 
+  * 3. This notice must not be removed or altered from any source distribution.
+ */
+package com.neocoders.jandal.ui.freemarker.servlet;
+
+import java.io.IOException;
+import java.io.Writer;
+
+/**
+ * Writes AJAX updates as XML, with views and output values in CDATA sections.
+ * 
+ * @author lindsay
+ * 
+ */
+class XMLUpdateEncoder extends UpdateEncoder {
+
+	XMLUpdateEncoder(Writer out) {
+		super(out);
+		this.cdata = new CDATAWriter(out);
+	}
+
+	String getContentType() {
+		return "xml";
+	}
+
+	/*
+	 * As declared at the head of each update
+	 */
+	String getCharset() {
+		return "ISO-8859-1";
+	}
+
+	void begin() throws IOException {
+		out.write("<?xml version=\"1.0\" encoding=\"ISO-8859-1\"?>\n");
+		out.write("<update>");
+	}
+
+	Writer beginController(String id) throws IOException {
+		out.write("<controller>");
+		out.write("<id>");
+		out.write(id);
+		out.write("</id>");
+		out.write("<content>");
+		out.write("<![CDATA[");
+		cdata.reset();
+		return cdata;
+	}
+
+	void endController() throws IOException {
+		out.write("]]>");
+		out.write("</content>");
+		out.write("</controller>");
+	}
+
+	void output(String id, String value) throws IOException {
+		out.write("<output>");
+		out.write("<id>");
+		out.write(id);
+		out.write("</id>");
+		out.write("<value>");
+		out.write("<![CDATA[");
+		cdata.reset();
+		cdata.write(value);
+		out.write("]]>");
+		out.write("</value>");
+		out.write("</output>");
+	}
+
+	void end() throws IOException {
+		out.write("</update>");
+	}
+
+	void error(String code, String message) throws IOException {
+		out.write("<?xml version=\"1.0\" encoding=\"ISO-8859-1\"?>\n");
+		out.write("<response>");
+		out.write("<code>");
+		out.write(code);
+		out.write("</code>");
+		out.write("<message>");
+		out.write(String.valueOf(message));
+		out.write("</message>");
+		out.write("</response>");
+	}
+
+	/*
+	 * Passes text on into a CDATA section, splitting the section wherever the
+	 * text would otherwise end it early
+	 */
+	private static final class CDATAWriter extends Writer {
+
+		CDATAWriter(Writer out) {
+			this.out = out;
+		}
+
+		void reset() {
+			brackets = 0;
+		}
+
+		public void write(int c) throws IOException {
+			if (c == '>' && brackets >= 2) {
+				out.write("]]><![CDATA[");
+			}
+			brackets = (c == ']') ? brackets + 1 : 0;
+			out.write(c);
+		}
+
+		public void write(char[] cbuf, int off, int len) throws IOException {
+			int start = off;
+			for (int i = off; i < off + len; i++) {
+				char c = cbuf[i];
+				if (c == '>' && brackets >= 2) {
+					out.write(cbuf, start, i - start);
+					out.write("]]><![CDATA[");
+					start = i;
+				}
+				brackets = (c == ']') ? brackets + 1 : 0;
+			}
+			out.write(cbuf, start, off + len - start);
+		}
+
+		public void write(String str, int off, int len) throws IOException {
+			int start = off;
+			for (int i = off; i < off + len; i++) {
+				char c = str.charAt(i);
+				if (c == '>' && brackets >= 2) {
+					out.write(str, start, i - start);
+					out.write("]]><![CDATA[");
+					start = i;
+				}
+				brackets = (c == ']') ? brackets + 1 : 0;
+			}
+			out.write(str, start, off + len - start);
+		}
+
+		public void flush() throws IOException {
+			out.flush();
+		}
+
+		public void close() throws IOException {
+			flush();
+		}
+
+		private final Writer out;
+
+		private int brackets;
+	}
+
+	private final CDATAWriter cdata;
+}
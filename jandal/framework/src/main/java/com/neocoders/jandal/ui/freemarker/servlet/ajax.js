@@ -1,9 +1,10 @@
-<script type="text/javascript" language="javascript">
-
 var jandalRequestLocked = false;
 var jandalAlertHandler = null
 var jandalResetHandler = null;
 
+// Ask for updates as JSON rather than XML where the browser can parse it natively
+var jandalUseJSON = (typeof JSON != "undefined" && typeof JSON.parse == "function");
+
 function jandalPostEvent(
 	_controller_id, 
 	_controller_synch_key, 
@@ -81,6 +82,11 @@ function jandalMakePOSTRequest(parameters) {
   	xmlHttp.onreadystatechange = function() {
       	if (xmlHttp.readyState == 4) {
          	if (xmlHttp.status == 200) {
+					var contentType = xmlHttp.getResponseHeader("Content-Type");
+					if (contentType != null && contentType.indexOf("json") >= 0) {
+						jandalApplyJSONUpdate(JSON.parse(xmlHttp.responseText));
+						return;
+					}
  					var xmldoc = xmlHttp.responseXML;
 					var responses = xmldoc.getElementsByTagName("response");
 					for (j=0; j<responses.length; j++) {
@@ -121,6 +127,17 @@ function jandalMakePOSTRequest(parameters) {
 						content=updates[j].getElementsByTagName("content")[0].firstChild.nodeValue;
 						document.getElementById(id).innerHTML=content;
       				}
+
+					// Changed outputs bound to elements within views that are otherwise unchanged
+					var outputs = xmldoc.getElementsByTagName("output");
+					for (j=0;j<outputs.length;j++) {
+  						id=outputs[j].getElementsByTagName("id")[0].firstChild.nodeValue;
+						var value=outputs[j].getElementsByTagName("value")[0].firstChild;
+						var element=document.getElementById(id);
+						if (element != null) {
+							element.innerHTML=(value != null) ? value.nodeValue : "";
+						}
+      				}
          	} else {
             	alert('There was a problem with the request.');
          	}
@@ -132,11 +149,55 @@ function jandalMakePOSTRequest(parameters) {
 	//
 	xmlHttp.open('POST', window.location, true);
   	xmlHttp.setRequestHeader("Content-type", "application/x-www-form-urlencoded");
+	if (jandalUseJSON) {
+		xmlHttp.setRequestHeader("Accept", "application/json");
+	}
    	xmlHttp.setRequestHeader("Content-length", parameters.length);
    	xmlHttp.setRequestHeader("Connection", "close");
    	xmlHttp.send(parameters);
 }
 
+function jandalApplyJSONUpdate(update) {
+	var response = update.response;
+	if (response) {
+		switch (response.code){
+			case "alert":
+				if (jandalAlertHandler != null) {
+					jandalAlertHandler(response.message);
+				} else
+				{ 
+					alert(response.message);
+				}	
+				break;
+
+			case "reset": 
+				if (jandalResetHandler != null) {
+					jandalResetHandler(response.message);
+				} else
+				{ 
+					alert(response.message);	
+					window.location.href=window.location.href;
+				}
+				return;
+			
+			default : 
+				alert(response.message + " - resetting - check log for details");
+				window.location.href=window.location.href;
+				return;
+		}
+		return;
+	}
+	var updates = update.updates;
+	for (j=0;j<updates.length;j++) {
+		var element = document.getElementById(updates[j].id);
+		if (updates[j].content != null) {
+			element.innerHTML = updates[j].content;
+		} else if (element != null) {
+			// Changed output bound to an element within a view that is otherwise unchanged
+			element.innerHTML = updates[j].value;
+		}
+	}
+}
 
 function jandalPostForm(form) {
 	var paramStr = "";
@@ -188,5 +249,4 @@ function jandalPostForm(form) {
 	paramStr += "_ajax_enabled=true&";
 	jandalMakePOSTRequest(paramStr);
 };
-</script>
 
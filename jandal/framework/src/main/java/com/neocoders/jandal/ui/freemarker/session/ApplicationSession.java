@@ -18,40 +18,99 @@
  */
 package com.neocoders.jandal.ui.freemarker.session;
 
-import java.util.*;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import com.neocoders.jandal.core.*;
 
 public class ApplicationSession {
+
+	/**
+	 * Name of the HTTP session attribute holding the application session.
+	 */
+	public static final String HTTP_SESSION_ATTRIBUTE = "appSession";
+
 	public ApplicationSession(String url, boolean embedded, Application app)
 			throws JandalCoreException {
+		this(url, embedded, app, new SessionMailbox());
+	}
+
+	/**
+	 * Creates a session whose requests are to be run through the given
+	 * {@link SessionMailbox}, with no {@link FragmentCache}.
+	 */
+	public ApplicationSession(String url, boolean embedded, Application app,
+			SessionMailbox mailbox) throws JandalCoreException {
+		this(url, embedded, app, mailbox, new FragmentCache(0));
+	}
+
+	/**
+	 * Creates a session whose requests are to be run through the given
+	 * {@link SessionMailbox}, and whose rendered view fragments are to be kept
+	 * in the given {@link FragmentCache}.
+	 */
+	public ApplicationSession(String url, boolean embedded, Application app,
+			SessionMailbox mailbox, FragmentCache fragmentCache)
+			throws JandalCoreException {
+		this(url, embedded, mailbox, fragmentCache);
+		attach(app);
+	}
+
+	/*
+	 * Creates a session with no application yet, to be given one read from a
+	 * store with activated
+	 */
+	ApplicationSession(String url, boolean embedded, SessionMailbox mailbox,
+			FragmentCache fragmentCache) {
 		this.url = url;
+		this.mailbox = mailbox;
+		this.fragmentCache = fragmentCache;
 		this.embedded = embedded;
-		this.controllersMap = new HashMap();
+		this.lastAccessTime = System.currentTimeMillis();
+		this.passivationRefusedTime = -1;
+		this.destroyed = new AtomicBoolean(false);
+		this.activeRequests = new AtomicInteger();
+	}
+
+	/*
+	 * Takes on a running or new Application, creating sessions for its
+	 * Controllers as they start
+	 */
+	private void attach(Application app) throws JandalCoreException {
+		this.controllersMap = new ConcurrentHashMap();
+		this.unrenderedSessions = new ConcurrentHashMap();
 		this.application = app;
-		app.addApplicationListener(new ApplicationListener() {
+		if (journal != null) {
+			app.setViewEventListener(journal);
+		}
+		app.addApplicationListener(new BatchApplicationListener() {
 
 			public void applicationStopping(Application app) {
 			}
 
 			public void controllerStarting(Controller controller) {
-				ControllerSession cf = new ControllerSession(
-						ApplicationSession.this, controller);
+				dirty = true;
 				try {
-					controllersMap.put(controller.getId(), cf);
-					if (controller.isRoot()) {
-						rootControllerSession = cf;
-					}
+					addControllerSession(controller);
 				} catch (JandalCoreException e) {
 					throw new RuntimeException(e);
 				}
 			}
 
 			public void controllerStopping(Controller controller) {
-				try {
-					controllersMap.remove(controller.getId());
-				} catch (JandalCoreException e) {
-					throw new RuntimeException(e);
+				dirty = true;
+				final ControllerSession controllerSession = (ControllerSession) controllersMap
+						.remove(controller);
+				if (controllerSession != null) {
+					unrenderedSessions.remove(controllerSession);
+					ApplicationSession.this.fragmentCache
+							.remove(controllerSession);
 				}
 			}
 
@@ -62,15 +121,108 @@ public class ApplicationSession {
 			}
 
 			public void controllerUpdated(Controller controller) {
-				try {
-					((ControllerSession) controllersMap.get(controller.getId()))
-							.setRendered(false);
-				} catch (JandalCoreException e) {
-					throw new RuntimeException(e);
+				dirty = true;
+				((ControllerSession) controllersMap.get(controller))
+						.setRendered(false);
+			}
+
+			public void controllersUpdated(Collection controllers) {
+				dirty = true;
+				for (Iterator i = controllers.iterator(); i.hasNext();) {
+					final ControllerSession controllerSession = (ControllerSession) controllersMap
+							.get(i.next());
+					/*
+					 * Controller may have stopped since it was updated
+					 */
+					if (controllerSession != null) {
+						controllerSession.setRendered(false);
+					}
 				}
 			}
 		});
-		this.application.start();
+		if (this.application.isActive()) {
+			/*
+			 * Application came already started, eg. from a pool or back from
+			 * passivation, so its Controllers started before we were
+			 * listening
+			 */
+			addControllerSessions(this.application.getRootController());
+		} else {
+			this.application.start();
+		}
+	}
+
+	/*
+	 * Creates sessions for a running Controller and its running descendants
+	 */
+	private void addControllerSessions(Controller controller)
+			throws JandalCoreException {
+		addControllerSession(controller);
+		for (Iterator i = controller.getChildControllers().iterator(); i
+				.hasNext();) {
+			addControllerSessions((Controller) i.next());
+		}
+	}
+
+	/*
+	 * Creates a session for a starting Controller, under the session of its
+	 * parent
+	 */
+	private void addControllerSession(Controller controller)
+			throws JandalCoreException {
+		final ControllerSession cf;
+		if (controller.isRoot()) {
+			cf = new ControllerSession(this, controller);
+			rootControllerSession = cf;
+		} else {
+			cf = new ControllerSession(getControllerSession(controller
+					.getParentController()), controller);
+		}
+		controllersMap.put(controller, cf);
+		unrenderedSessions.put(cf, cf);
+	}
+
+	/*
+	 * Keeps the index of unrendered sessions up to date
+	 */
+	void renderedChanged(ControllerSession controllerSession, boolean rendered) {
+		if (rendered) {
+			unrenderedSessions.remove(controllerSession);
+		} else if (controllersMap.containsKey(controllerSession
+				.getController())) {
+			unrenderedSessions.put(controllerSession, controllerSession);
+		}
+	}
+
+	/**
+	 * Returns the sessions of the controllers whose views are out of date and
+	 * must be rendered again, leaving out those within the view of another
+	 * such controller, since rendering that controller renders them as well.
+	 * <p/>
+	 * Unrendered sessions are indexed as they change, so this takes time in
+	 * proportion to the number of them rather than to the size of the
+	 * controller tree.
+	 */
+	public Collection getUnrenderedControllerSessions() {
+		List list = new ArrayList();
+		for (Iterator i = unrenderedSessions.keySet().iterator(); i.hasNext();) {
+			ControllerSession controllerSession = (ControllerSession) i.next();
+			if (!hasUnrenderedAncestor(controllerSession)) {
+				list.add(controllerSession);
+			}
+		}
+		return list;
+	}
+
+	private boolean hasUnrenderedAncestor(ControllerSession controllerSession) {
+		for (ControllerSession parent = controllerSession
+				.getParentControllerSession(); parent != null; parent = parent
+				.getParentControllerSession()) {
+			if (!parent.getRendered()) {
+				return true;
+			}
+		}
+		return false;
 	}
 
 	public String getId() {
@@ -85,6 +237,22 @@ public class ApplicationSession {
 		return this.embedded;
 	}
 
+	/**
+	 * Returns the {@link SessionMailbox} through which requests on this
+	 * session are run one at a time.
+	 */
+	public SessionMailbox getMailbox() {
+		return mailbox;
+	}
+
+	/**
+	 * Returns the cache of view fragments rendered for this session's
+	 * controllers.
+	 */
+	public FragmentCache getFragmentCache() {
+		return fragmentCache;
+	}
+
 	public Application getApplication() {
 		return application;
 	}
@@ -93,12 +261,250 @@ public class ApplicationSession {
 		return (ControllerSession) this.rootControllerSession;
 	}
 
+	/**
+	 * Returns the session for the running {@link Controller} with the given
+	 * ID, as rendered into the view, or null if there is none.
+	 */
 	public ControllerSession getControllerSessionWithId(String id) {
-		return (ControllerSession) this.controllersMap.get(id);
+		try {
+			final Controller controller = application.getControllerWithId(id);
+			if (controller == null) {
+				return null;
+			}
+			return getControllerSession(controller);
+		} catch (JandalCoreException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Returns the session for the given running {@link Controller}, or null if
+	 * it is not running.
+	 */
+	public ControllerSession getControllerSession(Controller controller) {
+		return (ControllerSession) this.controllersMap.get(controller);
+	}
+
+	/*
+	 * Returns the sessions of all running controllers
+	 */
+	Collection getControllerSessions() {
+		return controllersMap.values();
+	}
+
+	/**
+	 * Notes that the session has just been used.
+	 */
+	public void touch() {
+		lastAccessTime = System.currentTimeMillis();
+	}
+
+	/**
+	 * Notes that a request has started on the session, whether or not it goes
+	 * through the mailbox, so that the session is not evicted or passivated
+	 * from under it. Must be followed by {@link #endRequest}.
+	 */
+	public void beginRequest() {
+		activeRequests.incrementAndGet();
+	}
+
+	/**
+	 * Notes that a request begun with {@link #beginRequest} has finished.
+	 */
+	public void endRequest() {
+		activeRequests.decrementAndGet();
+	}
+
+	/**
+	 * Returns the number of requests in progress on the session.
+	 */
+	public int getActiveRequestCount() {
+		return activeRequests.get();
+	}
+
+	/**
+	 * Returns the time the session was last used, in milliseconds since the
+	 * epoch.
+	 */
+	public long getLastAccessTime() {
+		return lastAccessTime;
+	}
+
+	/**
+	 * Sets the journal to which the view events processed by the application
+	 * are to be written, so that the session can be rebuilt from it later.
+	 */
+	public synchronized void setJournal(SessionJournal journal) {
+		this.journal = journal;
+		if (application != null) {
+			application.setViewEventListener(journal);
+		}
+	}
+
+	/**
+	 * Returns the session's journal, or null if it is not journalled.
+	 */
+	public SessionJournal getJournal() {
+		return journal;
+	}
+
+	/*
+	 * Notes that the session has changed since it was last written to its
+	 * store - also set by ControllerSession when it renders
+	 */
+	void markDirty() {
+		dirty = true;
 	}
 
-	public void destroy() {
-		application.destroy();
+	boolean isDirty() {
+		return dirty;
+	}
+
+	void setDirty(boolean dirty) {
+		this.dirty = dirty;
+	}
+
+	/*
+	 * Shares the session through the given cache, under the given key in its
+	 * store
+	 */
+	void setShared(SharedSessionCache sharedSessions, String storeKey,
+			long storeVersion) {
+		this.sharedSessions = sharedSessions;
+		this.storeKey = storeKey;
+		this.storeVersion = storeVersion;
+		this.storeTime = System.currentTimeMillis();
+	}
+
+	SharedSessionCache getSharedSessions() {
+		return sharedSessions;
+	}
+
+	/**
+	 * Returns the key of the session in a shared {@link ApplicationSessionStore},
+	 * or null if it is not shared.
+	 */
+	public String getStoreKey() {
+		return storeKey;
+	}
+
+	/*
+	 * Version of the session in its store that this copy was read or written
+	 * as
+	 */
+	long getStoreVersion() {
+		return storeVersion;
+	}
+
+	void setStoreVersion(long storeVersion) {
+		this.storeVersion = storeVersion;
+		this.storeTime = System.currentTimeMillis();
+	}
+
+	/*
+	 * Time the session was last written or touched in its store
+	 */
+	long getStoreTime() {
+		return storeTime;
+	}
+
+	void setStoreTime(long storeTime) {
+		this.storeTime = storeTime;
+	}
+
+	void setRegistry(SessionRegistry registry) {
+		this.registry = registry;
+	}
+
+	/**
+	 * Returns true if the application has been passivated, in which case it
+	 * must be activated before the session is used.
+	 */
+	public boolean isPassivated() {
+		return passivator != null;
+	}
+
+	boolean isDestroyed() {
+		return destroyed.get();
+	}
+
+	/*
+	 * Marks the session as taken by its registry to be destroyed, so that it
+	 * is not handed to a request in the meantime - called with the registry
+	 * locked
+	 */
+	void setEvicting() {
+		evicting = true;
+	}
+
+	boolean isEvicting() {
+		return evicting;
+	}
+
+	/*
+	 * Drops the application, which the given passivator has written to the
+	 * given record of its store, along with the controller sessions and
+	 * rendered fragments - called with this session locked
+	 */
+	void passivated(SessionPassivator passivator, long record) {
+		this.passivator = passivator;
+		this.passivatedRecord = record;
+		this.application = null;
+		this.controllersMap = new ConcurrentHashMap();
+		this.unrenderedSessions = new ConcurrentHashMap();
+		this.rootControllerSession = null;
+		this.fragmentCache.clear();
+	}
+
+	long getPassivatedRecord() {
+		return passivatedRecord;
+	}
+
+	/*
+	 * Access time at which passivation was last refused, so that it isn't
+	 * tried again until the session has been used
+	 */
+	long getPassivationRefusedTime() {
+		return passivationRefusedTime;
+	}
+
+	void setPassivationRefusedTime(long time) {
+		this.passivationRefusedTime = time;
+	}
+
+	/*
+	 * Takes on the application read back from the passivation store - called
+	 * with this session locked. The passivator is cleared last, so that
+	 * threads which find the session active see it whole.
+	 */
+	void activated(Application app) throws JandalCoreException {
+		attach(app);
+		this.passivatedRecord = -1;
+		this.passivator = null;
+	}
+
+	/**
+	 * Destroys the application, or discards it if passivated, along with its
+	 * journal and its record in a shared store. Only the first call has any
+	 * effect.
+	 */
+	public synchronized void destroy() {
+		if (destroyed.compareAndSet(false, true)) {
+			if (registry != null) {
+				registry.remove(this);
+			}
+			if (passivator != null) {
+				passivator.discard(this);
+			} else {
+				application.destroy();
+			}
+			if (journal != null) {
+				journal.discard();
+			}
+			if (sharedSessions != null) {
+				sharedSessions.remove(this);
+			}
+		}
 	}
 
 	private String url;
@@ -109,5 +515,39 @@ public class ApplicationSession {
 
 	private Map controllersMap;
 
-	private ControllerSession rootControllerSession;
+	private Map unrenderedSessions;
+
+	private volatile ControllerSession rootControllerSession;
+
+	private SessionMailbox mailbox;
+
+	private FragmentCache fragmentCache;
+
+	private volatile long lastAccessTime;
+
+	private volatile SessionRegistry registry;
+
+	private volatile SessionPassivator passivator;
+
+	private volatile SessionJournal journal;
+
+	private volatile boolean dirty;
+
+	private SharedSessionCache sharedSessions;
+
+	private String storeKey;
+
+	private volatile long storeVersion;
+
+	private volatile long storeTime;
+
+	private long passivatedRecord;
+
+	private long passivationRefusedTime;
+
+	private final AtomicBoolean destroyed;
+
+	private volatile boolean evicting;
+
+	private final AtomicInteger activeRequests;
 }
@@ -0,0 +1,88 @@
+/*
+ * Copyright (C) 2007 Lindsay S. Kay, All rights Reserved.
+ *
+ * This software is provided "as-is", without any express or implied warranty. In no event will the 
+ * author be held liable for any damages arising from the use of this software.
+ *
+ * Permission is granted to anyone to use this software for any purpose, including commercial 
+ * applications, and to alter it and redistribute if freely, subject to the following restrictions:
+ *
+ *  1. The origin of this software must not be misrepresented: you must not claim that you wrote 
+ * 	the original software. if you use this software in a product, an acknowledgement in the product 
+ * 	documentation would be appreciated but is not required.
+ * 
+ *  2. Altered source versions must be plainly marked as such, and must not be misrepresented 
+ * 	as the original software.
+ * 
+  * 3. This notice must not be removed or altered from any source distribution.
+ */
+package com.neocoders.jandal.ui.freemarker.session;
+
+import java.io.IOException;
+
+/**
+ * Store of serialized {@link ApplicationSession}s that several servlet
+ * instances, on one or more JVMs, can share, so that a client's requests need
+ * not all go to the one that started its session, and sessions outlive the
+ * servlet instances that hold them.
+ * <p/>
+ * Each session is stored under a key as a record with a version, which goes up
+ * by one each time it is written. Writes are optimistic: a record is only
+ * replaced when the writer names the version it read, so of two instances
+ * that change the same session at once, only the first to write succeeds.
+ * <p/>
+ * Implementations must be safe to call from many threads at once.
+ * 
+ * @author lindsay
+ * 
+ */
+public interface ApplicationSessionStore {
+
+	/**
+	 * Returns the current version of the record with the given key, or -1 if
+	 * there is none. This is called on each request, so should be cheap.
+	 */
+	public long getVersion(String key) throws IOException;
+
+	/**
+	 * Returns the record with the given key, or null if there is none.
+	 */
+	public StoredSession load(String key) throws IOException;
+
+	/**
+	 * Writes the record with the given key, if its current version is the
+	 * given one.
+	 * 
+	 * @param expectedVersion
+	 *            Version the writer read, or zero if the record is new.
+	 * @return The new version of the record, or -1 if its current version was
+	 *         not the expected one, in which case nothing was written.
+	 */
+	public long store(String key, long expectedVersion, byte[] data)
+			throws IOException;
+
+	/**
+	 * Notes that the record with the given key is still in use, although it
+	 * has not been written, so that it is not purged.
+	 */
+	public void touch(String key) throws IOException;
+
+	/**
+	 * Removes the record with the given key, if there is one.
+	 */
+	public void remove(String key) throws IOException;
+
+	/**
+	 * Removes the records that have not been written or touched within the
+	 * given time.
+	 * 
+	 * @return Number of records removed.
+	 */
+	public int purge(long maxIdleMillis) throws IOException;
+
+	/**
+	 * Releases whatever the store holds for this servlet instance. Records
+	 * are kept for the other instances sharing the store.
+	 */
+	public void close();
+}
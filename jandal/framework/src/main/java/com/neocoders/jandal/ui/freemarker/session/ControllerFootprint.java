@@ -0,0 +1,128 @@
+/*
+ * Copyright (C) 2007 Lindsay S. Kay, All rights Reserved.
+ *
+ * This software is provided "as-is", without any express or implied warranty. In no event will the 
+ * author be held liable for any damages arising from the use of this software.
+ *
+ * Permission is granted to anyone to use this software for any purpose, including commercial 
+ * applications, and to alter it and redistribute if freely, subject to the following restrictions:
+ *
+ *  1. The origin of this software must not be misrepresented: you must not claim that you wrote 
+ * 	the original software. if you use this software in a product, an acknowledgement in the product 
+ * 	documentation would be appreciated but is not required.
+ * 
+ *  2. Altered source versions must be plainly marked as such, and must not be misrepresented 
+ * 	as the original software.
+ * 
+  * 3. This notice must not be removed or altered from any source distribution.
+ */
+package com.neocoders.jandal.ui.freemarker.session;
+
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Estimated heap retained by one {@link com.neocoders.jandal.core.Controller}
+ * of a session, as found by {@link FootprintEstimator}.
+ * 
+ * @author lindsay
+ * 
+ */
+public class ControllerFootprint {
+
+	ControllerFootprint(String path) {
+		this.path = path;
+		this.outputBytes = new LinkedHashMap();
+	}
+
+	/**
+	 * Returns the path of the controller.
+	 */
+	public String getPath() {
+		return path;
+	}
+
+	/**
+	 * Returns the estimated bytes retained by each output, as a map of output
+	 * name to Long. An object shared by several outputs is counted against
+	 * the first.
+	 */
+	public Map getOutputBytes() {
+		return Collections.unmodifiableMap(outputBytes);
+	}
+
+	/**
+	 * Returns the estimated bytes retained by the controller's outputs.
+	 */
+	public long getTotalOutputBytes() {
+		long total = 0;
+		for (Iterator i = outputBytes.values().iterator(); i.hasNext();) {
+			total += ((Long) i.next()).longValue();
+		}
+		return total;
+	}
+
+	/**
+	 * Returns the name of the output retaining the most, or null if the
+	 * controller has no outputs.
+	 */
+	public String getLargestOutputName() {
+		String largest = null;
+		long largestBytes = -1;
+		for (Iterator i = outputBytes.entrySet().iterator(); i.hasNext();) {
+			final Map.Entry entry = (Map.Entry) i.next();
+			final long bytes = ((Long) entry.getValue()).longValue();
+			if (bytes > largestBytes) {
+				largest = (String) entry.getKey();
+				largestBytes = bytes;
+			}
+		}
+		return largest;
+	}
+
+	/**
+	 * Returns the estimated bytes retained by the controller itself, its
+	 * states, event processors and the maps and lists holding them, not
+	 * counting outputs.
+	 */
+	public long getStructureBytes() {
+		return structureBytes;
+	}
+
+	/**
+	 * Returns the estimated bytes retained by the controller's
+	 * {@link ControllerSession}.
+	 */
+	public long getSessionBytes() {
+		return sessionBytes;
+	}
+
+	/**
+	 * Returns the estimated bytes retained by the controller altogether.
+	 */
+	public long getTotalBytes() {
+		return structureBytes + sessionBytes + getTotalOutputBytes();
+	}
+
+	void addOutput(String name, long bytes) {
+		outputBytes.put(name, Long.valueOf(bytes));
+	}
+
+	void setStructureBytes(long structureBytes) {
+		this.structureBytes = structureBytes;
+	}
+
+	void setSessionBytes(long sessionBytes) {
+		this.sessionBytes = sessionBytes;
+	}
+
+	private final String path;
+
+	private final Map outputBytes;
+
+	private long structureBytes;
+
+	private long sessionBytes;
+}
@@ -19,9 +19,14 @@
 package com.neocoders.jandal.ui.freemarker.session;
 
 import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
 
 import com.neocoders.jandal.core.*;
 
@@ -31,7 +36,7 @@ public class ControllerSession {
 		this.appSession = appSession;
 		this.parentControllerSession = null;
 		this.controller = controller;
-		this.nextSynchKey = 0L;
+		this.nextSynchKey = new AtomicLong();
 	}
 
 	public ControllerSession(ControllerSession parentControllerSession,
@@ -39,7 +44,7 @@ public class ControllerSession {
 		this.appSession = parentControllerSession.getApplicationSession();
 		this.parentControllerSession = parentControllerSession;
 		this.controller = controller;
-		this.nextSynchKey = 0L;
+		this.nextSynchKey = new AtomicLong();
 	}
 
 	public String getId() {
@@ -66,17 +71,27 @@ public class ControllerSession {
 		return this.appSession;
 	}
 
+	/**
+	 * Returns the session of the parent controller, or null if this is the
+	 * session of the root controller.
+	 */
+	public ControllerSession getParentControllerSession() {
+		return this.parentControllerSession;
+	}
+
 	public Collection getChildControllerSessions() {
 		List list = new LinkedList();
-		try {
-			for (Iterator i = controller.getChildControllers().iterator(); i
-					.hasNext();) {
-				Controller childController = (Controller) i.next();
-				list.add(this.appSession.getControllerSessionWithId(childController
-						.getId()));
+		for (Iterator i = controller.getOutputSnapshot().getChildControllers()
+				.iterator(); i.hasNext();) {
+			Controller childController = (Controller) i.next();
+			ControllerSession childSession = this.appSession
+					.getControllerSession(childController);
+			/*
+			 * Snapshot may name a child that has since been stopped
+			 */
+			if (childSession != null) {
+				list.add(childSession);
 			}
-		} catch (JandalCoreException e) {
-			throw new RuntimeException(e);
 		}
 		return list;
 	}
@@ -87,8 +102,7 @@ public class ControllerSession {
 			if (childController == null) {
 				return null;
 			}
-			return this.appSession
-					.getControllerSessionWithId(childController.getId());
+			return this.appSession.getControllerSession(childController);
 		} catch (JandalCoreException e) {
 			throw new RuntimeException(e);
 		}
@@ -102,16 +116,116 @@ public class ControllerSession {
 		return rendered;
 	}
 
-	public void setRendered(boolean rendered) {
+	public synchronized void setRendered(boolean rendered) {
 		this.rendered = rendered;
+		this.appSession.renderedChanged(this, rendered);
+	}
+
+	/**
+	 * Marks the view rendered from the given snapshot, unless the controller
+	 * has committed a newer one since. The view is then already stale and
+	 * stays unrendered, even if the event that made it stale has yet to mark
+	 * it so, since that happens only after the newer snapshot is committed.
+	 */
+	public synchronized void setRendered(OutputSnapshot snapshot) {
+		if (controller.getOutputSnapshot().getVersion() == snapshot
+				.getVersion()) {
+			setRendered(true);
+		}
+	}
+
+	/**
+	 * Returns the ID of the client element that holds the value of the given
+	 * output, as rendered by the template model's getBoundOutput.
+	 */
+	public String getBoundOutputElementId(String outputName) {
+		return "jandal." + getId() + "." + outputName;
+	}
+
+	/**
+	 * Records the outputs the view was last rendered from, along with the
+	 * names of the outputs that it binds to client elements.
+	 */
+	public void setRenderedOutputs(OutputSnapshot snapshot,
+			Set boundOutputNames) {
+		this.renderedOutputs = new RenderedOutputs(snapshot, boundOutputNames);
+	}
+
+	/**
+	 * Returns the names of the outputs that the view binds to client
+	 * elements, as last rendered.
+	 */
+	public Set getBoundOutputNames() {
+		final RenderedOutputs rendered = this.renderedOutputs;
+		return (rendered == null) ? Collections.EMPTY_SET
+				: rendered.boundOutputNames;
+	}
+
+	/**
+	 * Returns the outputs that have changed since the view was last rendered,
+	 * mapped to their new values, when all of them are bound to client
+	 * elements and nothing else about the controller has changed, so that
+	 * the view can be brought up to date by patching those elements. Returns
+	 * null if the view must be rendered again - which includes when no output
+	 * compares changed, since an output mutated in place still equals itself,
+	 * and the controller would not be asking to be rendered otherwise.
+	 */
+	public Map getBoundOutputChanges(OutputSnapshot snapshot) {
+		final RenderedOutputs rendered = this.renderedOutputs;
+		if (rendered == null || rendered.boundOutputNames.isEmpty()) {
+			return null;
+		}
+		final OutputSnapshot last = rendered.snapshot;
+		if (!equal(last.getStateName(), snapshot.getStateName())
+				|| !last.getChildControllers().equals(
+						snapshot.getChildControllers())
+				|| !last.getOutputNames().equals(snapshot.getOutputNames())) {
+			return null;
+		}
+		Map changes = new HashMap();
+		try {
+			for (Iterator i = snapshot.getOutputNames().iterator(); i
+					.hasNext();) {
+				String name = (String) i.next();
+				Object value = snapshot.getOutput(name);
+				if (!equal(last.getOutput(name), value)) {
+					if (!rendered.boundOutputNames.contains(name)) {
+						return null;
+					}
+					changes.put(name, value);
+				}
+			}
+		} catch (JandalCoreException e) {
+			return null;
+		}
+		return changes.isEmpty() ? null : changes;
+	}
+
+	private static boolean equal(Object a, Object b) {
+		return (a == null) ? (b == null) : a.equals(b);
 	}
 
 	public void nextSynchKey() {
-		this.nextSynchKey++;
+		this.nextSynchKey.incrementAndGet();
+		this.appSession.markDirty();
 	}
 
 	public String getSynchKey() {
-		return "" + nextSynchKey;
+		return "" + nextSynchKey.get();
+	}
+
+	long getSynchKeyNumber() {
+		return nextSynchKey.get();
+	}
+
+	/**
+	 * Puts back the continuation key and rendered flag that the session of the
+	 * same controller had before its application was passivated, so that the
+	 * view the client holds stays valid.
+	 */
+	void restore(long synchKey, boolean rendered) {
+		nextSynchKey.set(synchKey);
+		setRendered(rendered);
 	}
 
 	private ApplicationSession appSession;
@@ -120,7 +234,20 @@ public class ControllerSession {
 
 	private Controller controller;
 
-	private boolean rendered;
+	private volatile boolean rendered;
+
+	private final AtomicLong nextSynchKey;
+
+	private volatile RenderedOutputs renderedOutputs;
 
-	private long nextSynchKey;
+	private static final class RenderedOutputs {
+		RenderedOutputs(OutputSnapshot snapshot, Set boundOutputNames) {
+			this.snapshot = snapshot;
+			this.boundOutputNames = boundOutputNames;
+		}
+
+		final OutputSnapshot snapshot;
+
+		final Set boundOutputNames;
+	}
 }
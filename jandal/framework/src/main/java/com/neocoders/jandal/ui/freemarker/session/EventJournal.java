@@ -0,0 +1,341 @@
+/*
+ * Copyright (C) 2007 Lindsay S. Kay, All rights Reserved.
+ *
+ * This software is provided "as-is", without any express or implied warranty. In no event will the 
+ * author be held liable for any damages arising from the use of this software.
+ *
+ * Permission is granted to anyone to use this software for any purpose, including commercial 
+ * applications, and to alter it and redistribute if freely, subject to the following restrictions:
+ *
+ *  1. The origin of this software must not be misrepresented: you must not claim that you wrote 
+ * 	the original software. if you use this software in a product, an acknowledgement in the product 
+ * 	documentation would be appreciated but is not required.
+ * 
+ *  2. Altered source versions must be plainly marked as such, and must not be misrepresented 
+ * 	as the original software.
+ * 
+  * 3. This notice must not be removed or altered from any source distribution.
+ */
+package com.neocoders.jandal.ui.freemarker.session;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.neocoders.jandal.core.*;
+
+/**
+ * Local disk journal of the view events processed by the {@link Application}s
+ * of {@link ApplicationSession}s, from which a session can be rebuilt after
+ * its HTTP session is lost, eg. when the servlet is restarted or the server
+ * crashed.
+ * <p/>
+ * Each session gets a {@link SessionJournal}, named by a random key that the
+ * client holds on to, which keeps a file of the parameters its
+ * {@link Application} was started with followed by each view event it
+ * processed. Events are written as they are processed, but forced to disk
+ * only every so often for all sessions at once, so a crash may lose the last
+ * few of them. A session is rebuilt by firing its events, in order, at a
+ * freshly started {@link Application}, so this relies on the
+ * {@link Application} doing the same thing each time it is given the same
+ * events.
+ * <p/>
+ * To keep rebuilding quick, every so many events the {@link Application} is
+ * written to a snapshot with
+ * {@link ApplicationFactory#passivateApplication(Application, java.io.OutputStream)}
+ * and the events before it are dropped from the file, so a rebuild starts
+ * from the latest snapshot instead. An {@link Application} that cannot be
+ * written just keeps all of its events.
+ * <p/>
+ * A session's files are deleted when it ends, but are kept when the journal
+ * is closed, so that sessions can be rebuilt when the servlet starts again.
+ * 
+ * @author lindsay
+ * 
+ */
+public class EventJournal {
+
+	/**
+	 * Default milliseconds between forcing written events to disk.
+	 */
+	public static final long DEFAULT_FLUSH_PERIOD = 200;
+
+	/**
+	 * Default number of events between snapshots.
+	 */
+	public static final int DEFAULT_SNAPSHOT_INTERVAL = 100;
+
+	/**
+	 * Creates a journal.
+	 * 
+	 * @param appFactory
+	 *            Factory that makes the sessions' {@link Application}s.
+	 * @param dir
+	 *            Directory for journal and snapshot files, created if need
+	 *            be.
+	 * @param flushPeriod
+	 *            Milliseconds between forcing written events to disk.
+	 * @param snapshotInterval
+	 *            Number of events between snapshots, or zero for none.
+	 * @throws IOException
+	 *             Directory could not be created.
+	 */
+	public EventJournal(ApplicationFactory appFactory, File dir,
+			long flushPeriod, int snapshotInterval) throws IOException {
+		if (flushPeriod < 1) {
+			throw new IllegalArgumentException("Flush period is less than one");
+		}
+		if (!dir.isDirectory() && !dir.mkdirs()) {
+			throw new IOException("Cannot create journal directory: "
+					+ dir.getPath());
+		}
+		this.appFactory = appFactory;
+		this.dir = dir;
+		this.snapshotInterval = snapshotInterval;
+		this.journals = new ConcurrentHashMap();
+		this.numEvents = new AtomicLong();
+		this.numFlushes = new AtomicLong();
+		this.numSnapshots = new AtomicLong();
+		this.numRecoveries = new AtomicLong();
+		this.numRecoveryFailures = new AtomicLong();
+		this.numReplayed = new AtomicLong();
+		this.timer = new Timer("jandal-journal-flusher", true);
+		this.timer.schedule(new TimerTask() {
+			public void run() {
+				flush();
+			}
+		}, flushPeriod, flushPeriod);
+	}
+
+	/**
+	 * Starts a journal for a new session.
+	 * 
+	 * @param startParams
+	 *            Parameters the session's {@link Application} is started with.
+	 * @throws JandalCoreException
+	 *             A parameter is not a string, so could not be journalled.
+	 * @throws IOException
+	 *             Journal file could not be written.
+	 */
+	public SessionJournal create(Params startParams)
+			throws JandalCoreException, IOException {
+		assertOpen();
+		SessionJournal journal;
+		do {
+			journal = new SessionJournal(this, SessionKeys.newKey());
+		} while (journals.putIfAbsent(journal.getKey(), journal) != null
+				|| journal.exists());
+		try {
+			journal.create(startParams);
+		} catch (JandalCoreException e) {
+			journals.remove(journal.getKey());
+			throw e;
+		} catch (IOException e) {
+			journals.remove(journal.getKey());
+			journal.delete();
+			throw e;
+		}
+		return journal;
+	}
+
+	/**
+	 * Takes up the journal with the given key, so that its session can be
+	 * rebuilt with {@link SessionJournal#replay()}.
+	 * 
+	 * @return The journal, or null if the key is not one this journal made,
+	 *         its files are gone, or it is in use by a live session.
+	 */
+	public SessionJournal reopen(String key) {
+		if (closed || !SessionKeys.isKey(key)) {
+			return null;
+		}
+		final SessionJournal journal = new SessionJournal(this, key);
+		if (!journal.exists() || journals.putIfAbsent(key, journal) != null) {
+			return null;
+		}
+		return journal;
+	}
+
+	/**
+	 * Deletes the files of journals not in use that have not been written to
+	 * within the given time, being those of sessions that were never
+	 * rebuilt.
+	 * 
+	 * @return Number of journals deleted.
+	 */
+	public int purge(long maxAgeMillis) {
+		final long oldest = System.currentTimeMillis() - maxAgeMillis;
+		final File[] files = dir.listFiles();
+		int count = 0;
+		if (files == null) {
+			return 0;
+		}
+		for (int i = 0; i < files.length; i++) {
+			final String name = files[i].getName();
+			if (!name.endsWith(SessionJournal.JOURNAL_SUFFIX)) {
+				continue;
+			}
+			final String key = name.substring(0, name.length()
+					- SessionJournal.JOURNAL_SUFFIX.length());
+			if (SessionKeys.isKey(key) && !journals.containsKey(key)
+					&& files[i].lastModified() < oldest) {
+				new SessionJournal(this, key).delete();
+				count++;
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * Forces what has been written to all open journals to disk.
+	 */
+	public void flush() {
+		for (Iterator i = journals.values().iterator(); i.hasNext();) {
+			if (((SessionJournal) i.next()).flush()) {
+				numFlushes.incrementAndGet();
+			}
+		}
+	}
+
+	/**
+	 * Forces and closes all open journals, keeping their files so that their
+	 * sessions can be rebuilt later. Sessions that end after this leave their
+	 * files as well.
+	 */
+	public void close() {
+		closed = true;
+		timer.cancel();
+		for (Iterator i = journals.values().iterator(); i.hasNext();) {
+			((SessionJournal) i.next()).close();
+		}
+		journals.clear();
+	}
+
+	private void assertOpen() throws IOException {
+		if (closed) {
+			throw new IOException("Journal is closed");
+		}
+	}
+
+	/*
+	 * Called by a session journal when it is done with, whether or not its
+	 * files are to be kept
+	 */
+	void closed(SessionJournal journal) {
+		journals.remove(journal.getKey(), journal);
+	}
+
+	boolean isClosed() {
+		return closed;
+	}
+
+	ApplicationFactory getApplicationFactory() {
+		return appFactory;
+	}
+
+	int getSnapshotInterval() {
+		return snapshotInterval;
+	}
+
+	void eventWritten() {
+		numEvents.incrementAndGet();
+	}
+
+	void snapshotTaken() {
+		numSnapshots.incrementAndGet();
+	}
+
+	void replayed(boolean succeeded, int numEvents) {
+		if (succeeded) {
+			numRecoveries.incrementAndGet();
+			numReplayed.addAndGet(numEvents);
+		} else {
+			numRecoveryFailures.incrementAndGet();
+		}
+	}
+
+	/**
+	 * Returns the directory holding the journal and snapshot files.
+	 */
+	public File getDirectory() {
+		return dir;
+	}
+
+	/**
+	 * Returns the number of journals in use by live sessions.
+	 */
+	public int getOpenCount() {
+		return journals.size();
+	}
+
+	/**
+	 * Returns the number of events written since the journal was created.
+	 */
+	public long getEventCount() {
+		return numEvents.get();
+	}
+
+	/**
+	 * Returns the number of times a session's journal was forced to disk.
+	 */
+	public long getFlushCount() {
+		return numFlushes.get();
+	}
+
+	/**
+	 * Returns the number of snapshots taken.
+	 */
+	public long getSnapshotCount() {
+		return numSnapshots.get();
+	}
+
+	/**
+	 * Returns the number of sessions rebuilt.
+	 */
+	public long getRecoveryCount() {
+		return numRecoveries.get();
+	}
+
+	/**
+	 * Returns the number of sessions that could not be rebuilt.
+	 */
+	public long getRecoveryFailureCount() {
+		return numRecoveryFailures.get();
+	}
+
+	/**
+	 * Returns the number of events fired while rebuilding sessions.
+	 */
+	public long getReplayedCount() {
+		return numReplayed.get();
+	}
+
+	private final ApplicationFactory appFactory;
+
+	private final File dir;
+
+	private final int snapshotInterval;
+
+	private final ConcurrentMap journals;
+
+	private final Timer timer;
+
+	private volatile boolean closed;
+
+	private final AtomicLong numEvents;
+
+	private final AtomicLong numFlushes;
+
+	private final AtomicLong numSnapshots;
+
+	private final AtomicLong numRecoveries;
+
+	private final AtomicLong numRecoveryFailures;
+
+	private final AtomicLong numReplayed;
+}
@@ -0,0 +1,277 @@
+/*
+ * Copyright (C) 2007 Lindsay S. Kay, All rights Reserved.
+ *
+ * This software is provided "as-is", without any express or implied warranty. In no event will the 
+ * author be held liable for any damages arising from the use of this software.
+ *
+ * Permission is granted to anyone to use this software for any purpose, including commercial 
+ * applications, and to alter it and redistribute if freely, subject to the following restrictions:
+ *
+ *  1. The origin of this software must not be misrepresented: you must not claim that you wrote 
+ * 	the original software. if you use this software in a product, an acknowledgement in the product 
+ * 	documentation would be appreciated but is not required.
+ * 
+ *  2. Altered source versions must be plainly marked as such, and must not be misrepresented 
+ * 	as the original software.
+ * 
+  * 3. This notice must not be removed or altered from any source distribution.
+ */
+package com.neocoders.jandal.ui.freemarker.session;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * {@link ApplicationSessionStore} that keeps each record in a file of its own
+ * in a directory, which the servlet instances of several JVMs on the same host
+ * can share.
+ * <p/>
+ * Each file holds the record's version followed by its data. A record is
+ * written to a temporary file that is then renamed over the old one, so that
+ * readers, which take no locks, always see a whole record. Writers lock a
+ * stripe of a lock file in the directory, chosen by the record's key, to
+ * check the version and rename as one step, so that writers in different JVMs
+ * are kept apart as well as those in this one.
+ * <p/>
+ * Records are not forced to disk as they are written, so they survive the
+ * servlet or its JVM stopping, but not necessarily the host crashing.
+ * 
+ * @author lindsay
+ * 
+ */
+public class FileSessionStore implements ApplicationSessionStore {
+
+	/**
+	 * Creates a store.
+	 * 
+	 * @param dir
+	 *            Directory for record files, created if need be.
+	 * @throws IOException
+	 *             Directory or lock file could not be created.
+	 */
+	public FileSessionStore(File dir) throws IOException {
+		if (!dir.isDirectory() && !dir.mkdirs()) {
+			throw new IOException("Cannot create session store directory: "
+					+ dir.getPath());
+		}
+		this.dir = dir;
+		this.lockFile = new RandomAccessFile(new File(dir, LOCK_FILE_NAME),
+				"rw");
+		this.lockChannel = lockFile.getChannel();
+		this.stripes = getStripes(dir);
+	}
+
+	/*
+	 * A JVM may hold only one lock on a region of a file, so stores on the
+	 * same directory in this JVM take turns through the same monitors
+	 */
+	private static Object[] getStripes(File dir) throws IOException {
+		final String path = dir.getCanonicalPath();
+		synchronized (allStripes) {
+			Object[] stripes = (Object[]) allStripes.get(path);
+			if (stripes == null) {
+				stripes = new Object[NUM_STRIPES];
+				for (int i = 0; i < NUM_STRIPES; i++) {
+					stripes[i] = new Object();
+				}
+				allStripes.put(path, stripes);
+			}
+			return stripes;
+		}
+	}
+
+	public long getVersion(String key) throws IOException {
+		final DataInputStream in = open(key);
+		if (in == null) {
+			return -1;
+		}
+		try {
+			return readVersion(in);
+		} finally {
+			in.close();
+		}
+	}
+
+	public StoredSession load(String key) throws IOException {
+		final DataInputStream in = open(key);
+		if (in == null) {
+			return null;
+		}
+		try {
+			final long version = readVersion(in);
+			final byte[] data = new byte[in.readInt()];
+			in.readFully(data);
+			return new StoredSession(version, data);
+		} catch (EOFException e) {
+			throw new IOException("Session record is damaged: " + key);
+		} finally {
+			in.close();
+		}
+	}
+
+	public long store(String key, long expectedVersion, byte[] data)
+			throws IOException {
+		final File file = getFile(key);
+		final int stripe = stripe(key);
+		synchronized (stripes[stripe]) {
+			final FileLock lock = lockChannel.lock(stripe, 1, false);
+			try {
+				final long version = getVersion(key);
+				if (version != (expectedVersion == 0 ? -1 : expectedVersion)) {
+					return -1;
+				}
+				final File tempFile = new File(dir, key + TEMP_SUFFIX);
+				final DataOutputStream out = new DataOutputStream(
+						new BufferedOutputStream(new FileOutputStream(tempFile)));
+				try {
+					out.writeInt(MAGIC);
+					out.writeLong(expectedVersion + 1);
+					out.writeInt(data.length);
+					out.write(data);
+				} finally {
+					out.close();
+				}
+				if (!tempFile.renameTo(file)) {
+					/*
+					 * Some platforms won't rename over an existing file
+					 */
+					file.delete();
+					if (!tempFile.renameTo(file)) {
+						tempFile.delete();
+						throw new IOException("Cannot write session record: "
+								+ key);
+					}
+				}
+				return expectedVersion + 1;
+			} finally {
+				lock.release();
+			}
+		}
+	}
+
+	public void touch(String key) throws IOException {
+		getFile(key).setLastModified(System.currentTimeMillis());
+	}
+
+	public void remove(String key) throws IOException {
+		final int stripe = stripe(key);
+		synchronized (stripes[stripe]) {
+			final FileLock lock = lockChannel.lock(stripe, 1, false);
+			try {
+				getFile(key).delete();
+			} finally {
+				lock.release();
+			}
+		}
+	}
+
+	public int purge(long maxIdleMillis) throws IOException {
+		final File[] files = dir.listFiles();
+		if (files == null) {
+			return 0;
+		}
+		final long oldest = System.currentTimeMillis() - maxIdleMillis;
+		int count = 0;
+		for (int i = 0; i < files.length; i++) {
+			final String name = files[i].getName();
+			if (!name.endsWith(RECORD_SUFFIX)
+					|| files[i].lastModified() >= oldest) {
+				continue;
+			}
+			final String key = name.substring(0, name.length()
+					- RECORD_SUFFIX.length());
+			if (!SessionKeys.isKey(key)) {
+				continue;
+			}
+			final int stripe = stripe(key);
+			synchronized (stripes[stripe]) {
+				final FileLock lock = lockChannel.lock(stripe, 1, false);
+				try {
+					/*
+					 * Check again, in case it was written meanwhile
+					 */
+					if (files[i].lastModified() < oldest && files[i].delete()) {
+						count++;
+					}
+				} finally {
+					lock.release();
+				}
+			}
+		}
+		return count;
+	}
+
+	public void close() {
+		try {
+			lockFile.close();
+		} catch (IOException e) {
+		}
+	}
+
+	/**
+	 * Returns the directory holding the record files.
+	 */
+	public File getDirectory() {
+		return dir;
+	}
+
+	private DataInputStream open(String key) throws IOException {
+		try {
+			return new DataInputStream(new BufferedInputStream(
+					new FileInputStream(getFile(key))));
+		} catch (FileNotFoundException e) {
+			return null;
+		}
+	}
+
+	private static long readVersion(DataInputStream in) throws IOException {
+		if (in.readInt() != MAGIC) {
+			throw new IOException("Not a session record");
+		}
+		return in.readLong();
+	}
+
+	private File getFile(String key) {
+		if (!SessionKeys.isKey(key)) {
+			throw new IllegalArgumentException("Invalid session key: " + key);
+		}
+		return new File(dir, key + RECORD_SUFFIX);
+	}
+
+	private static int stripe(String key) {
+		return (key.hashCode() & 0x7fffffff) % NUM_STRIPES;
+	}
+
+	private static final String LOCK_FILE_NAME = "store.lock";
+
+	private static final String RECORD_SUFFIX = ".session";
+
+	private static final String TEMP_SUFFIX = ".tmp";
+
+	private static final int MAGIC = 0x4a535352;
+
+	private static final int NUM_STRIPES = 64;
+
+	private static final Map allStripes = new HashMap();
+
+	private final File dir;
+
+	private final RandomAccessFile lockFile;
+
+	private final FileChannel lockChannel;
+
+	private final Object[] stripes;
+}
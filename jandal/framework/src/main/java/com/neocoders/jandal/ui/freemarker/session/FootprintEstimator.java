@@ -0,0 +1,362 @@
+/*
+ * Copyright (C) 2007 Lindsay S. Kay, All rights Reserved.
+ *
+ * This software is provided "as-is", without any express or implied warranty. In no event will the 
+ * author be held liable for any damages arising from the use of this software.
+ *
+ * Permission is granted to anyone to use this software for any purpose, including commercial 
+ * applications, and to alter it and redistribute if freely, subject to the following restrictions:
+ *
+ *  1. The origin of this software must not be misrepresented: you must not claim that you wrote 
+ * 	the original software. if you use this software in a product, an acknowledgement in the product 
+ * 	documentation would be appreciated but is not required.
+ * 
+ *  2. Altered source versions must be plainly marked as such, and must not be misrepresented 
+ * 	as the original software.
+ * 
+  * 3. This notice must not be removed or altered from any source distribution.
+ */
+package com.neocoders.jandal.ui.freemarker.session;
+
+import java.lang.reflect.Array;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.RandomAccess;
+import java.util.Set;
+import java.util.Timer;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+
+import com.neocoders.jandal.core.*;
+
+/**
+ * Estimates how much heap each {@link ApplicationSession} retains, by walking
+ * the objects reachable from it and adding up their sizes, so that the
+ * sessions and controllers holding the most can be found.
+ * <p/>
+ * The walk counts each object once, against the first part of the session
+ * that reaches it: the {@link Application} and what it holds apart from its
+ * {@link Controller}s, then for each {@link Controller}, parents before
+ * children, each of its outputs by name, then the {@link Controller} itself
+ * with its {@link State}s and {@link EventProcessor}s, then its
+ * {@link ControllerSession}, and lastly the session's fragment cache and the
+ * session itself. It does not follow references out of the session, such as
+ * to {@link Service}s, classes, threads or the servlet's shared components.
+ * <p/>
+ * Sizes are worked out from each class's fields, assuming the layout of a
+ * HotSpot JVM, so they are estimates. Maps, collections and strings are sized
+ * from their contents, which gives similar figures on any JVM, and objects
+ * whose fields cannot be read are counted without what they refer to. The
+ * walk does not stop the session, so a session that changes meanwhile may be
+ * miscounted a little.
+ * 
+ * @author lindsay
+ * 
+ */
+public class FootprintEstimator {
+
+	/**
+	 * Estimates the heap retained by a session. A passivated session is
+	 * estimated as it is, without activating it.
+	 */
+	public SessionFootprint estimate(ApplicationSession appSession) {
+		final long startNanos = System.nanoTime();
+		final IdentityHashMap seen = new IdentityHashMap();
+		SessionFootprint footprint;
+		synchronized (appSession) {
+			final Application app = appSession.getApplication();
+			if (app == null) {
+				footprint = new SessionFootprint(null, true, appSession
+						.getLastAccessTime());
+			} else {
+				footprint = new SessionFootprint(app.getId(), false,
+						appSession.getLastAccessTime());
+				footprint.setApplicationBytes(walk(app, app, seen));
+				try {
+					estimateControllers(appSession, app.getRootController(),
+							footprint, seen);
+				} catch (JandalCoreException e) {
+					/*
+					 * Application stopped meanwhile
+					 */
+				}
+			}
+			footprint.setFragmentBytes(walk(appSession.getFragmentCache(),
+					null, seen));
+			footprint.setSessionBytes(walk(appSession, appSession, seen));
+		}
+		footprint.setEstimateNanos(System.nanoTime() - startNanos);
+		return footprint;
+	}
+
+	/**
+	 * Estimates the heap retained by the given object and everything it
+	 * refers to, not counting the parts of other sessions nor the servlet's
+	 * shared components.
+	 */
+	public long sizeOf(Object object) {
+		return walk(object, object, new IdentityHashMap());
+	}
+
+	/*
+	 * Walks the controllers parents first, so that the states holding a
+	 * controller are counted against its parent
+	 */
+	private void estimateControllers(ApplicationSession appSession,
+			Controller root, SessionFootprint footprint, IdentityHashMap seen)
+			throws JandalCoreException {
+		final List stack = new ArrayList();
+		stack.add(root);
+		while (!stack.isEmpty()) {
+			final Controller controller = (Controller) stack.remove(stack
+					.size() - 1);
+			final ControllerFootprint controllerFootprint = new ControllerFootprint(
+					controller.getPath());
+			final OutputSnapshot snapshot = controller.getOutputSnapshot();
+			for (Iterator i = snapshot.getOutputNames().iterator(); i
+					.hasNext();) {
+				final String name = (String) i.next();
+				controllerFootprint.addOutput(name, walk(snapshot
+						.getOutput(name), null, seen));
+			}
+			controllerFootprint.setStructureBytes(walk(controller, controller,
+					seen));
+			final ControllerSession controllerSession = appSession
+					.getControllerSession(controller);
+			if (controllerSession != null) {
+				controllerFootprint.setSessionBytes(walk(controllerSession,
+						controllerSession, seen));
+			}
+			footprint.addController(controllerFootprint);
+			final List children = snapshot.getChildControllers();
+			for (int i = children.size() - 1; i >= 0; i--) {
+				stack.add(children.get(i));
+			}
+		}
+	}
+
+	/*
+	 * Adds up the sizes of the objects reachable from the given one that
+	 * have not been seen yet, stopping at boundaries other than the given
+	 * owner. Uses a stack rather than recursion, since lists may be long.
+	 */
+	private long walk(Object object, Object owner, IdentityHashMap seen) {
+		long bytes = 0;
+		final List stack = new ArrayList();
+		stack.add(object);
+		while (!stack.isEmpty()) {
+			final Object o = stack.remove(stack.size() - 1);
+			if (o == null || seen.containsKey(o)
+					|| (o != owner && isBoundary(o))) {
+				continue;
+			}
+			seen.put(o, o);
+			final Class c = o.getClass();
+			if (c.isArray()) {
+				final Class componentType = c.getComponentType();
+				final int length = Array.getLength(o);
+				bytes += arraySize(componentType, length);
+				if (!componentType.isPrimitive()) {
+					final Object[] elements = (Object[]) o;
+					for (int i = 0; i < length; i++) {
+						stack.add(elements[i]);
+					}
+				}
+			} else if (o instanceof String) {
+				bytes += getClassInfo(c).size
+						+ arraySize(char.class, ((String) o).length());
+			} else if (o instanceof Map) {
+				bytes += getClassInfo(c).size + mapSize((Map) o, stack);
+			} else if (o instanceof Collection) {
+				bytes += getClassInfo(c).size
+						+ collectionSize((Collection) o, stack);
+			} else {
+				final ClassInfo info = getClassInfo(c);
+				bytes += info.size;
+				if (info.referenceFields != null) {
+					for (int i = 0; i < info.referenceFields.length; i++) {
+						try {
+							stack.add(info.referenceFields[i].get(o));
+						} catch (IllegalAccessException e) {
+						}
+					}
+				}
+			}
+		}
+		return bytes;
+	}
+
+	/*
+	 * Objects that belong to no one session, or to another part of the
+	 * session that is counted separately
+	 */
+	private static boolean isBoundary(Object o) {
+		return o instanceof Controller || o instanceof ControllerSession
+				|| o instanceof ApplicationSession || o instanceof Application
+				|| o instanceof ApplicationSnapshot
+				|| o instanceof ApplicationFactory || o instanceof ServiceSet
+				|| o instanceof Service || o instanceof Class
+				|| o instanceof ClassLoader || o instanceof Thread
+				|| o instanceof ThreadGroup || o instanceof Executor
+				|| o instanceof Timer || o instanceof SessionRegistry
+				|| o instanceof SessionPassivator
+				|| o instanceof PassivationStore || o instanceof EventJournal
+				|| o instanceof SharedSessionCache
+				|| o instanceof ApplicationSessionStore;
+	}
+
+	/*
+	 * Entries and table of a hash map, with its keys and values to be walked
+	 */
+	private static long mapSize(Map map, List stack) {
+		final int size;
+		try {
+			for (Iterator i = map.entrySet().iterator(); i.hasNext();) {
+				final Map.Entry entry = (Map.Entry) i.next();
+				stack.add(entry.getKey());
+				stack.add(entry.getValue());
+			}
+			size = map.size();
+		} catch (RuntimeException e) {
+			/*
+			 * Changed while being walked
+			 */
+			return 0;
+		}
+		return size * MAP_ENTRY_SIZE
+				+ arraySize(Object.class, tableCapacity(size));
+	}
+
+	/*
+	 * Backing array or nodes of a collection, with its elements to be walked
+	 */
+	private static long collectionSize(Collection collection, List stack) {
+		final int size;
+		try {
+			for (Iterator i = collection.iterator(); i.hasNext();) {
+				stack.add(i.next());
+			}
+			size = collection.size();
+		} catch (RuntimeException e) {
+			return 0;
+		}
+		if (collection instanceof Set) {
+			return size * MAP_ENTRY_SIZE
+					+ arraySize(Object.class, tableCapacity(size));
+		}
+		if (collection instanceof RandomAccess) {
+			return arraySize(Object.class, size);
+		}
+		return size * LIST_NODE_SIZE;
+	}
+
+	private static int tableCapacity(int size) {
+		int capacity = 16;
+		while (capacity * 3 < size * 4) {
+			capacity <<= 1;
+		}
+		return capacity;
+	}
+
+	private static long arraySize(Class componentType, int length) {
+		return align(ARRAY_HEADER_SIZE + (long) length
+				* fieldSize(componentType));
+	}
+
+	private static int fieldSize(Class type) {
+		if (!type.isPrimitive()) {
+			return REFERENCE_SIZE;
+		}
+		if (type == long.class || type == double.class) {
+			return 8;
+		}
+		if (type == int.class || type == float.class) {
+			return 4;
+		}
+		if (type == char.class || type == short.class) {
+			return 2;
+		}
+		return 1;
+	}
+
+	private static long align(long size) {
+		return (size + 7) & ~7L;
+	}
+
+	private static ClassInfo getClassInfo(Class c) {
+		ClassInfo info = (ClassInfo) classInfos.get(c);
+		if (info == null) {
+			info = new ClassInfo(c);
+			classInfos.put(c, info);
+		}
+		return info;
+	}
+
+	/*
+	 * Size of a class's instances, and the fields through which they refer
+	 * to other objects, or null if they cannot be read
+	 */
+	private static class ClassInfo {
+
+		ClassInfo(Class c) {
+			long fieldBytes = 0;
+			List fields = new ArrayList();
+			for (Class k = c; k != null; k = k.getSuperclass()) {
+				final Field[] declared = k.getDeclaredFields();
+				for (int i = 0; i < declared.length; i++) {
+					if (Modifier.isStatic(declared[i].getModifiers())) {
+						continue;
+					}
+					fieldBytes += fieldSize(declared[i].getType());
+					if (fields != null && !declared[i].getType().isPrimitive()) {
+						try {
+							declared[i].setAccessible(true);
+							fields.add(declared[i]);
+						} catch (RuntimeException e) {
+							fields = null;
+						}
+					}
+				}
+			}
+			this.size = align(OBJECT_HEADER_SIZE + fieldBytes);
+			this.referenceFields = (fields == null) ? null : (Field[]) fields
+					.toArray(new Field[fields.size()]);
+		}
+
+		final long size;
+
+		final Field[] referenceFields;
+	}
+
+	private static final Map classInfos = new ConcurrentHashMap();
+
+	/*
+	 * Layout of a HotSpot JVM, with compressed references on a 64-bit JVM
+	 * whose heap is small enough for them
+	 */
+	private static final boolean WIDE = !"32".equals(System
+			.getProperty("sun.arch.data.model"));
+
+	private static final boolean COMPRESSED = WIDE
+			&& Runtime.getRuntime().maxMemory() < 32L * 1024 * 1024 * 1024;
+
+	private static final int REFERENCE_SIZE = (WIDE && !COMPRESSED) ? 8 : 4;
+
+	private static final int OBJECT_HEADER_SIZE = WIDE ? (COMPRESSED ? 12
+			: 16) : 8;
+
+	private static final int ARRAY_HEADER_SIZE = WIDE ? (COMPRESSED ? 16 : 24)
+			: 12;
+
+	private static final long MAP_ENTRY_SIZE = align(OBJECT_HEADER_SIZE + 4
+			+ 3 * REFERENCE_SIZE);
+
+	private static final long LIST_NODE_SIZE = align(OBJECT_HEADER_SIZE + 3
+			* REFERENCE_SIZE);
+}
@@ -0,0 +1,248 @@
+/*
+ * Copyright (C) 2007 Lindsay S. Kay, All rights Reserved.
+ *
+ * This software is provided "as-is", without any express or implied warranty. In no event will the 
+ * author be held liable for any damages arising from the use of this software.
+ *
+ * Permission is granted to anyone to use this software for any purpose, including commercial 
+ * applications, and to alter it and redistribute if freely, subject to the following restrictions:
+ *
+ *  1. The origin of this software must not be misrepresented: you must not claim that you wrote 
+ * 	the original software. if you use this software in a product, an acknowledgement in the product 
+ * 	documentation would be appreciated but is not required.
+ * 
+ *  2. Altered source versions must be plainly marked as such, and must not be misrepresented 
+ * 	as the original software.
+ * 
+  * 3. This notice must not be removed or altered from any source distribution.
+ */
+package com.neocoders.jandal.ui.freemarker.session;
+
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import com.neocoders.jandal.core.*;
+
+/**
+ * Rendered view fragments of the {@link ControllerSession}s of one
+ * {@link ApplicationSession}, so that views of controllers whose outputs have
+ * not changed since they were last rendered can be reused as they are instead
+ * of processing their templates again.
+ * <p/>
+ * Each fragment is stamped with the version of the controller's output
+ * snapshot it was rendered from, and with the fragments of the child
+ * controllers that it embeds. A fragment is only reused while its controller
+ * is still at that version and each embedded fragment is still current, so a
+ * change anywhere in a subtree invalidates the fragments of all the
+ * controllers above it.
+ * <p/>
+ * The total number of characters held is capped. Once over the cap, the least
+ * recently used fragments are evicted, which in turn invalidates the
+ * fragments of controllers that embed them.
+ * <p/>
+ * Caching is opt-in, since every fragment rendered must be copied to be
+ * cached, which only pays off for views that re-render much the same subtrees
+ * many times over. A fragment longer than the whole cap is never cached, so
+ * it need not be copied beyond that length.
+ * 
+ * @author lindsay
+ * 
+ */
+public class FragmentCache {
+
+	/**
+	 * A cap worth starting from when enabling the cache.
+	 */
+	public static final int DEFAULT_MAX_CHARS = 256 * 1024;
+
+	/**
+	 * Creates a fragment cache.
+	 * 
+	 * @param maxChars
+	 *            Maximum total length of fragments held; zero disables the
+	 *            cache.
+	 */
+	public FragmentCache(int maxChars) {
+		if (maxChars < 0) {
+			throw new IllegalArgumentException("Max chars is negative");
+		}
+		this.maxChars = maxChars;
+		this.fragments = new LinkedHashMap(16, 0.75f, true);
+	}
+
+	/**
+	 * Returns true if this cache holds fragments at all.
+	 */
+	public boolean isEnabled() {
+		return maxChars > 0;
+	}
+
+	/**
+	 * Returns the fragment last rendered for the given controller session if
+	 * it is current as of the given application snapshot, otherwise null.
+	 */
+	public synchronized String get(ControllerSession controllerSession,
+			ApplicationSnapshot appSnapshot) {
+		if (!isEnabled()) {
+			return null;
+		}
+		Fragment fragment = (Fragment) fragments.get(controllerSession);
+		if (fragment != null
+				&& isCurrent(controllerSession, fragment, appSnapshot)) {
+			hits++;
+			return fragment.text;
+		}
+		misses++;
+		return null;
+	}
+
+	private boolean isCurrent(ControllerSession controllerSession,
+			Fragment fragment, ApplicationSnapshot appSnapshot) {
+		if (fragment.version != appSnapshot.getOutputSnapshot(
+				controllerSession.getController()).getVersion()) {
+			return false;
+		}
+		for (int i = 0; i < fragment.children.length; i++) {
+			if (fragments.get(fragment.children[i]) != fragment.childFragments[i]
+					|| !isCurrent(fragment.children[i],
+							fragment.childFragments[i], appSnapshot)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Records the fragment rendered for the given controller session.
+	 * 
+	 * @param controllerSession
+	 *            Session of the rendered controller.
+	 * @param text
+	 *            The rendered fragment.
+	 * @param version
+	 *            Version of the output snapshot the fragment was rendered
+	 *            from.
+	 * @param children
+	 *            Sessions of the child controllers whose views the fragment
+	 *            embeds, which must have had their own fragments recorded.
+	 */
+	public synchronized void put(ControllerSession controllerSession,
+			String text, long version, Collection children) {
+		remove(controllerSession);
+		if (!isEnabled() || text.length() > maxChars) {
+			return;
+		}
+		Fragment fragment = new Fragment(text, version, children.size());
+		int j = 0;
+		for (Iterator i = children.iterator(); i.hasNext(); j++) {
+			ControllerSession child = (ControllerSession) i.next();
+			Fragment childFragment = (Fragment) fragments.get(child);
+			if (childFragment == null) {
+				/*
+				 * Embedded fragment was not cached or has been evicted, so
+				 * there would be no telling when it changes
+				 */
+				return;
+			}
+			fragment.children[j] = child;
+			fragment.childFragments[j] = childFragment;
+		}
+		fragments.put(controllerSession, fragment);
+		numChars += text.length();
+		for (Iterator i = fragments.values().iterator(); numChars > maxChars
+				&& i.hasNext();) {
+			Fragment eldest = (Fragment) i.next();
+			i.remove();
+			numChars -= eldest.text.length();
+			evictions++;
+		}
+	}
+
+	/**
+	 * Discards the fragment of the given controller session, if any.
+	 */
+	public synchronized void remove(ControllerSession controllerSession) {
+		Fragment fragment = (Fragment) fragments.remove(controllerSession);
+		if (fragment != null) {
+			numChars -= fragment.text.length();
+		}
+	}
+
+	/**
+	 * Discards every fragment.
+	 */
+	public synchronized void clear() {
+		fragments.clear();
+		numChars = 0;
+	}
+
+	/**
+	 * Returns the number of fragments held.
+	 */
+	public synchronized int getCount() {
+		return fragments.size();
+	}
+
+	/**
+	 * Returns the total length of the fragments held.
+	 */
+	public synchronized long getChars() {
+		return numChars;
+	}
+
+	public int getMaxChars() {
+		return maxChars;
+	}
+
+	/**
+	 * Returns the number of lookups that found a current fragment.
+	 */
+	public synchronized long getHits() {
+		return hits;
+	}
+
+	/**
+	 * Returns the number of lookups that found no fragment, or a stale one.
+	 */
+	public synchronized long getMisses() {
+		return misses;
+	}
+
+	/**
+	 * Returns the number of fragments evicted to stay within the cap.
+	 */
+	public synchronized long getEvictions() {
+		return evictions;
+	}
+
+	private static final class Fragment {
+		Fragment(String text, long version, int numChildren) {
+			this.text = text;
+			this.version = version;
+			this.children = new ControllerSession[numChildren];
+			this.childFragments = new Fragment[numChildren];
+		}
+
+		final String text;
+
+		final long version;
+
+		final ControllerSession[] children;
+
+		final Fragment[] childFragments;
+	}
+
+	private final int maxChars;
+
+	private final Map fragments;
+
+	private long numChars;
+
+	private long hits;
+
+	private long misses;
+
+	private long evictions;
+}
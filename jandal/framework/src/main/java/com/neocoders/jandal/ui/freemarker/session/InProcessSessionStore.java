@@ -0,0 +1,141 @@
+/*
+ * Copyright (C) 2007 Lindsay S. Kay, All rights Reserved.
+ *
+ * This software is provided "as-is", without any express or implied warranty. In no event will the 
+ * author be held liable for any damages arising from the use of this software.
+ *
+ * Permission is granted to anyone to use this software for any purpose, including commercial 
+ * applications, and to alter it and redistribute if freely, subject to the following restrictions:
+ *
+ *  1. The origin of this software must not be misrepresented: you must not claim that you wrote 
+ * 	the original software. if you use this software in a product, an acknowledgement in the product 
+ * 	documentation would be appreciated but is not required.
+ * 
+ *  2. Altered source versions must be plainly marked as such, and must not be misrepresented 
+ * 	as the original software.
+ * 
+  * 3. This notice must not be removed or altered from any source distribution.
+ */
+package com.neocoders.jandal.ui.freemarker.session;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * {@link ApplicationSessionStore} that keeps its records in memory, shared by
+ * the servlet instances within one JVM that name the same store.
+ * <p/>
+ * Records are lost when the JVM stops, so this is meant for running one node,
+ * or for standing in for a shared store when trying out hand-offs between
+ * several servlet instances in one container.
+ * 
+ * @author lindsay
+ * 
+ */
+public class InProcessSessionStore implements ApplicationSessionStore {
+
+	/**
+	 * Returns the store with the given name, creating it if need be.
+	 */
+	public static InProcessSessionStore forName(String name) {
+		synchronized (stores) {
+			InProcessSessionStore store = (InProcessSessionStore) stores
+					.get(name);
+			if (store == null) {
+				store = new InProcessSessionStore();
+				stores.put(name, store);
+			}
+			return store;
+		}
+	}
+
+	/**
+	 * Creates a store of its own, not found by name.
+	 */
+	public InProcessSessionStore() {
+		this.records = new ConcurrentHashMap();
+	}
+
+	public long getVersion(String key) {
+		final Record record = (Record) records.get(key);
+		return (record == null) ? -1 : record.session.getVersion();
+	}
+
+	public StoredSession load(String key) {
+		final Record record = (Record) records.get(key);
+		return (record == null) ? null : record.session;
+	}
+
+	public long store(String key, long expectedVersion, byte[] data) {
+		final Record newRecord = new Record(new StoredSession(
+				expectedVersion + 1, data));
+		if (expectedVersion == 0) {
+			return (records.putIfAbsent(key, newRecord) == null) ? expectedVersion + 1
+					: -1;
+		}
+		final Record record = (Record) records.get(key);
+		if (record == null || record.session.getVersion() != expectedVersion
+				|| !records.replace(key, record, newRecord)) {
+			return -1;
+		}
+		return expectedVersion + 1;
+	}
+
+	public void touch(String key) {
+		final Record record = (Record) records.get(key);
+		if (record != null) {
+			record.time = System.currentTimeMillis();
+		}
+	}
+
+	public void remove(String key) {
+		records.remove(key);
+	}
+
+	public int purge(long maxIdleMillis) {
+		final long oldest = System.currentTimeMillis() - maxIdleMillis;
+		int count = 0;
+		for (Iterator i = records.entrySet().iterator(); i.hasNext();) {
+			final Map.Entry entry = (Map.Entry) i.next();
+			final Record record = (Record) entry.getValue();
+			if (record.time < oldest
+					&& records.remove(entry.getKey(), record)) {
+				count++;
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * Does nothing, since other servlet instances may still be using the
+	 * records.
+	 */
+	public void close() {
+	}
+
+	/**
+	 * Returns the number of records in the store.
+	 */
+	public int getRecordCount() {
+		return records.size();
+	}
+
+	private static class Record {
+
+		Record(StoredSession session) {
+			this.session = session;
+			this.time = System.currentTimeMillis();
+		}
+
+		final StoredSession session;
+
+		volatile long time;
+	}
+
+	private static final Map stores = new HashMap();
+
+	private final ConcurrentMap records;
+}
@@ -19,7 +19,7 @@ public class JandalFreeMarkerAttributeListener implements
 	public void attributeRemoved(HttpSessionBindingEvent sbe) {
 		String skey = sbe.getName();
 
-		if (skey.equals("appSession")) {
+		if (skey.equals(ApplicationSession.HTTP_SESSION_ATTRIBUTE)) {
 			ApplicationSession appSession = (ApplicationSession) sbe.getValue();
 			if (appSession != null) {
 				/*
@@ -0,0 +1,411 @@
+/*
+ * Copyright (C) 2007 Lindsay S. Kay, All rights Reserved.
+ *
+ * This software is provided "as-is", without any express or implied warranty. In no event will the 
+ * author be held liable for any damages arising from the use of this software.
+ *
+ * Permission is granted to anyone to use this software for any purpose, including commercial 
+ * applications, and to alter it and redistribute if freely, subject to the following restrictions:
+ *
+ *  1. The origin of this software must not be misrepresented: you must not claim that you wrote 
+ * 	the original software. if you use this software in a product, an acknowledgement in the product 
+ * 	documentation would be appreciated but is not required.
+ * 
+ *  2. Altered source versions must be plainly marked as such, and must not be misrepresented 
+ * 	as the original software.
+ * 
+  * 3. This notice must not be removed or altered from any source distribution.
+ */
+package com.neocoders.jandal.ui.freemarker.session;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * Local disk store for passivated sessions, made of segment files that are
+ * mapped into memory and only ever appended to.
+ * <p/>
+ * Each record is written at the end of the current segment, as its length
+ * followed by its bytes, so writing and reading a record each take a single
+ * copy to or from the mapped segment. When the current segment has no room
+ * left, a new one is started. Records are found by a key that the store maps
+ * to where they are, and are never overwritten; removing one just counts it
+ * out of its segment. A segment is deleted once all of its records have been
+ * removed, or once so few remain that they are copied to the current segment
+ * instead, so that a handful of long-passivated sessions can't keep many
+ * mostly empty segments on disk.
+ * <p/>
+ * A deleted segment's file goes at once, but its mapping is only let go when
+ * the collector gets to it, so it holds address space until then - this is
+ * reported apart from the bytes on disk.
+ * <p/>
+ * The store is not durable - it holds sessions only for as long as the
+ * servlet runs, and its files are deleted when it is closed.
+ * 
+ * @author lindsay
+ * 
+ */
+public class PassivationStore {
+
+	/**
+	 * Default size of a segment file in bytes.
+	 */
+	public static final int DEFAULT_SEGMENT_SIZE = 16 * 1024 * 1024;
+
+	/*
+	 * A segment other than the current one is compacted once less than one
+	 * in this many of its bytes are live
+	 */
+	private static final int COMPACTION_RATIO = 4;
+
+	/**
+	 * Creates a store.
+	 * 
+	 * @param dir
+	 *            Directory for segment files, created if need be.
+	 * @param segmentSize
+	 *            Size of each segment file in bytes. Records bigger than this
+	 *            get a segment of their own.
+	 * @throws IOException
+	 *             Directory could not be created.
+	 */
+	public PassivationStore(File dir, int segmentSize) throws IOException {
+		if (segmentSize < 1) {
+			throw new IllegalArgumentException("Segment size is less than one");
+		}
+		if (!dir.isDirectory() && !dir.mkdirs()) {
+			throw new IOException("Cannot create passivation directory: "
+					+ dir.getPath());
+		}
+		this.dir = dir;
+		this.segmentSize = segmentSize;
+		this.segments = new HashMap();
+		this.index = new HashMap();
+		this.releasedMappings = new HashMap();
+		this.collectedMappings = new ReferenceQueue();
+	}
+
+	/**
+	 * Appends a record.
+	 * 
+	 * @return Key of the record, by which it is read and removed.
+	 * @throws IOException
+	 *             Failed to create a new segment.
+	 */
+	public synchronized long append(byte[] record) throws IOException {
+		final Long key = Long.valueOf(nextRecord++);
+		write(key, record);
+		liveBytes += 4 + record.length;
+		numRecords++;
+		return key.longValue();
+	}
+
+	/**
+	 * Reads a record.
+	 * 
+	 * @throws IOException
+	 *             No record with the given key.
+	 */
+	public synchronized byte[] read(long key) throws IOException {
+		final Long recordKey = Long.valueOf(key);
+		final Segment segment = (Segment) index.get(recordKey);
+		if (segment == null) {
+			throw new IOException("No passivation record " + key);
+		}
+		return read(segment, ((Integer) segment.records.get(recordKey))
+				.intValue());
+	}
+
+	/**
+	 * Removes a record, deleting its segment if that was the last record in
+	 * it, or compacting it if few records are left.
+	 */
+	public synchronized void remove(long key) {
+		final Long recordKey = Long.valueOf(key);
+		final Segment segment = (Segment) index.remove(recordKey);
+		if (segment == null) {
+			return;
+		}
+		final Integer offset = (Integer) segment.records.remove(recordKey);
+		final int length = 4 + segment.buffer.getInt(offset.intValue());
+		segment.liveBytes -= length;
+		liveBytes -= length;
+		numRecords--;
+		if (segment == current) {
+			return;
+		}
+		if (segment.records.isEmpty()) {
+			release(segment);
+		} else if ((long) segment.liveBytes * COMPACTION_RATIO < segment.size) {
+			compact(segment);
+		}
+	}
+
+	/**
+	 * Deletes every segment.
+	 */
+	public synchronized void close() {
+		for (Iterator i = segments.values().iterator(); i.hasNext();) {
+			final Segment segment = (Segment) i.next();
+			i.remove();
+			segment.close();
+			bytesOnDisk -= segment.size;
+		}
+		index.clear();
+		current = null;
+		liveBytes = 0;
+		numRecords = 0;
+	}
+
+	/*
+	 * Writes a record at the end of the current segment under the given key
+	 */
+	private void write(Long key, byte[] record) throws IOException {
+		final int length = 4 + record.length;
+		if (current == null || current.buffer.remaining() < length) {
+			roll(length);
+		}
+		final int offset = current.buffer.position();
+		current.buffer.putInt(record.length);
+		current.buffer.put(record);
+		current.records.put(key, Integer.valueOf(offset));
+		current.liveBytes += length;
+		index.put(key, current);
+	}
+
+	/*
+	 * Reads the record at the given offset in a segment
+	 */
+	private byte[] read(Segment segment, int offset) throws IOException {
+		if (offset < 0 || offset + 4 > segment.buffer.position()) {
+			throw new IOException("No passivation record at " + offset
+					+ " in segment " + segment.number);
+		}
+		final ByteBuffer buffer = segment.buffer.duplicate();
+		buffer.position(offset);
+		buffer.limit(segment.buffer.position());
+		final int length = buffer.getInt();
+		if (length < 0 || length > buffer.remaining()) {
+			throw new IOException("Corrupt passivation record at " + offset
+					+ " in segment " + segment.number);
+		}
+		final byte[] record = new byte[length];
+		buffer.get(record);
+		return record;
+	}
+
+	/*
+	 * Copies the records left in a segment to the current one, then deletes
+	 * it. A record that can't be copied leaves the segment where it is.
+	 */
+	private void compact(Segment segment) {
+		final Map.Entry[] entries = (Map.Entry[]) segment.records.entrySet()
+				.toArray(new Map.Entry[segment.records.size()]);
+		try {
+			for (int i = 0; i < entries.length; i++) {
+				final Long key = (Long) entries[i].getKey();
+				final byte[] record = read(segment, ((Integer) entries[i]
+						.getValue()).intValue());
+				write(key, record);
+				segment.records.remove(key);
+				segment.liveBytes -= 4 + record.length;
+			}
+		} catch (IOException e) {
+			return;
+		}
+		release(segment);
+		numCompactions++;
+	}
+
+	/*
+	 * Starts a new segment with room for at least the given number of bytes,
+	 * deleting the current one if nothing in it is live
+	 */
+	private void roll(int length) throws IOException {
+		if (current != null && current.records.isEmpty()) {
+			release(current);
+		}
+		current = null;
+		final int size = Math.max(segmentSize, length);
+		final int number = nextSegment++;
+		final File file = new File(dir, "segment-" + number + ".dat");
+		final RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		try {
+			raf.setLength(size);
+			final MappedByteBuffer buffer = raf.getChannel().map(
+					FileChannel.MapMode.READ_WRITE, 0, size);
+			current = new Segment(number, file, raf, buffer, size);
+		} catch (IOException e) {
+			raf.close();
+			file.delete();
+			throw e;
+		}
+		segments.put(Integer.valueOf(number), current);
+		bytesOnDisk += size;
+		mappedBytes += size;
+	}
+
+	/*
+	 * Deletes a segment's file, and watches for its mapping to be collected
+	 */
+	private void release(Segment segment) {
+		segments.remove(Integer.valueOf(segment.number));
+		segment.close();
+		bytesOnDisk -= segment.size;
+		releasedMappings.put(new WeakReference(segment.buffer,
+				collectedMappings), Integer.valueOf(segment.size));
+	}
+
+	/*
+	 * Stops counting the mappings of deleted segments that have been
+	 * collected
+	 */
+	private void reclaimMappings() {
+		Reference ref;
+		while ((ref = collectedMappings.poll()) != null) {
+			final Integer size = (Integer) releasedMappings.remove(ref);
+			if (size != null) {
+				mappedBytes -= size.intValue();
+			}
+		}
+	}
+
+	/**
+	 * Returns the directory holding the segment files.
+	 */
+	public File getDirectory() {
+		return dir;
+	}
+
+	/**
+	 * Returns the number of records held.
+	 */
+	public synchronized int getRecordCount() {
+		return numRecords;
+	}
+
+	/**
+	 * Returns the number of segment files.
+	 */
+	public synchronized int getSegmentCount() {
+		return segments.size();
+	}
+
+	/**
+	 * Returns the total size of the segment files in bytes.
+	 */
+	public synchronized long getBytesOnDisk() {
+		return bytesOnDisk;
+	}
+
+	/**
+	 * Returns the total size of the segments still mapped into memory in
+	 * bytes, which includes deleted segments whose mappings have yet to be
+	 * collected.
+	 */
+	public synchronized long getMappedBytes() {
+		reclaimMappings();
+		return mappedBytes;
+	}
+
+	/**
+	 * Returns the total size of the records held in bytes. The rest of the
+	 * bytes on disk are taken by removed records and by room not yet used.
+	 */
+	public synchronized long getLiveBytes() {
+		return liveBytes;
+	}
+
+	/**
+	 * Returns the number of segments deleted after copying their few
+	 * remaining records to the current segment.
+	 */
+	public synchronized long getCompactionCount() {
+		return numCompactions;
+	}
+
+	private static final class Segment {
+		Segment(int number, File file, RandomAccessFile raf,
+				MappedByteBuffer buffer, int size) {
+			this.number = number;
+			this.file = file;
+			this.raf = raf;
+			this.buffer = buffer;
+			this.size = size;
+			this.records = new HashMap();
+		}
+
+		/*
+		 * The mapping itself goes when the buffer is collected
+		 */
+		void close() {
+			try {
+				raf.close();
+			} catch (IOException e) {
+			}
+			file.delete();
+		}
+
+		final int number;
+
+		final File file;
+
+		final RandomAccessFile raf;
+
+		final MappedByteBuffer buffer;
+
+		final int size;
+
+		/*
+		 * Offsets of the live records in the segment, by key
+		 */
+		final Map records;
+
+		int liveBytes;
+	}
+
+	private final File dir;
+
+	private final int segmentSize;
+
+	private final Map segments;
+
+	/*
+	 * Segment holding each live record, by key
+	 */
+	private final Map index;
+
+	/*
+	 * Sizes of deleted segments whose mappings are not yet collected, by
+	 * weak reference to the mapping
+	 */
+	private final Map releasedMappings;
+
+	private final ReferenceQueue collectedMappings;
+
+	private Segment current;
+
+	private int nextSegment;
+
+	private long nextRecord;
+
+	private int numRecords;
+
+	private long liveBytes;
+
+	private long bytesOnDisk;
+
+	private long mappedBytes;
+
+	private long numCompactions;
+}
@@ -0,0 +1,152 @@
+/*
+ * Copyright (C) 2007 Lindsay S. Kay, All rights Reserved.
+ *
+ * This software is provided "as-is", without any express or implied warranty. In no event will the 
+ * author be held liable for any damages arising from the use of this software.
+ *
+ * Permission is granted to anyone to use this software for any purpose, including commercial 
+ * applications, and to alter it and redistribute if freely, subject to the following restrictions:
+ *
+ *  1. The origin of this software must not be misrepresented: you must not claim that you wrote 
+ * 	the original software. if you use this software in a product, an acknowledgement in the product 
+ * 	documentation would be appreciated but is not required.
+ * 
+ *  2. Altered source versions must be plainly marked as such, and must not be misrepresented 
+ * 	as the original software.
+ * 
+  * 3. This notice must not be removed or altered from any source distribution.
+ */
+package com.neocoders.jandal.ui.freemarker.session;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Estimated heap retained by an {@link ApplicationSession}, broken down by
+ * controller, as found by {@link FootprintEstimator}.
+ * 
+ * @author lindsay
+ * 
+ */
+public class SessionFootprint {
+
+	SessionFootprint(String id, boolean passivated, long lastAccessTime) {
+		this.id = id;
+		this.passivated = passivated;
+		this.lastAccessTime = lastAccessTime;
+		this.controllers = new ArrayList();
+	}
+
+	/**
+	 * Returns the ID of the session's application, or null if it is
+	 * passivated.
+	 */
+	public String getId() {
+		return id;
+	}
+
+	/**
+	 * Returns true if the session was passivated, in which case only what
+	 * the session itself holds was counted.
+	 */
+	public boolean isPassivated() {
+		return passivated;
+	}
+
+	/**
+	 * Returns the time the session was last used, in milliseconds since the
+	 * epoch.
+	 */
+	public long getLastAccessTime() {
+		return lastAccessTime;
+	}
+
+	/**
+	 * Returns the {@link ControllerFootprint}s of the session's controllers,
+	 * parents before children.
+	 */
+	public List getControllerFootprints() {
+		return Collections.unmodifiableList(controllers);
+	}
+
+	/**
+	 * Returns the estimated bytes retained by the application apart from its
+	 * controllers, such as its parameters and the registry of its
+	 * controllers.
+	 */
+	public long getApplicationBytes() {
+		return applicationBytes;
+	}
+
+	/**
+	 * Returns the estimated bytes retained by the session's cache of rendered
+	 * view fragments.
+	 */
+	public long getFragmentBytes() {
+		return fragmentBytes;
+	}
+
+	/**
+	 * Returns the estimated bytes retained by the session itself, apart from
+	 * its application, controller sessions and fragment cache.
+	 */
+	public long getSessionBytes() {
+		return sessionBytes;
+	}
+
+	/**
+	 * Returns the estimated bytes retained by the session altogether.
+	 */
+	public long getTotalBytes() {
+		long total = applicationBytes + fragmentBytes + sessionBytes;
+		for (Iterator i = controllers.iterator(); i.hasNext();) {
+			total += ((ControllerFootprint) i.next()).getTotalBytes();
+		}
+		return total;
+	}
+
+	/**
+	 * Returns the time taken to make the estimate, in nanoseconds.
+	 */
+	public long getEstimateNanos() {
+		return estimateNanos;
+	}
+
+	void addController(ControllerFootprint controller) {
+		controllers.add(controller);
+	}
+
+	void setApplicationBytes(long applicationBytes) {
+		this.applicationBytes = applicationBytes;
+	}
+
+	void setFragmentBytes(long fragmentBytes) {
+		this.fragmentBytes = fragmentBytes;
+	}
+
+	void setSessionBytes(long sessionBytes) {
+		this.sessionBytes = sessionBytes;
+	}
+
+	void setEstimateNanos(long estimateNanos) {
+		this.estimateNanos = estimateNanos;
+	}
+
+	private final String id;
+
+	private final boolean passivated;
+
+	private final long lastAccessTime;
+
+	private final List controllers;
+
+	private long applicationBytes;
+
+	private long fragmentBytes;
+
+	private long sessionBytes;
+
+	private long estimateNanos;
+}
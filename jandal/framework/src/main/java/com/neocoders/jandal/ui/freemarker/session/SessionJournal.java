@@ -0,0 +1,619 @@
+/*
+ * Copyright (C) 2007 Lindsay S. Kay, All rights Reserved.
+ *
+ * This software is provided "as-is", without any express or implied warranty. In no event will the 
+ * author be held liable for any damages arising from the use of this software.
+ *
+ * Permission is granted to anyone to use this software for any purpose, including commercial 
+ * applications, and to alter it and redistribute if freely, subject to the following restrictions:
+ *
+ *  1. The origin of this software must not be misrepresented: you must not claim that you wrote 
+ * 	the original software. if you use this software in a product, an acknowledgement in the product 
+ * 	documentation would be appreciated but is not required.
+ * 
+ *  2. Altered source versions must be plainly marked as such, and must not be misrepresented 
+ * 	as the original software.
+ * 
+  * 3. This notice must not be removed or altered from any source distribution.
+ */
+package com.neocoders.jandal.ui.freemarker.session;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Iterator;
+import java.util.Set;
+import java.util.zip.CRC32;
+
+import com.neocoders.jandal.core.*;
+
+/**
+ * Journal of the view events processed by the {@link Application} of one
+ * {@link ApplicationSession}, kept by an {@link EventJournal}.
+ * <p/>
+ * The journal file starts with the journal's epoch and the parameters the
+ * {@link Application} was started with, followed by a record for each event:
+ * the path of the {@link Controller} it was fired at, its name and its
+ * parameters. Each record is written with its length and checksum, so a
+ * record cut short by a crash is found and dropped when the journal is
+ * replayed. Only events whose parameters are all strings can be journalled;
+ * any other event, eg. one carrying an {@link Upload}, is kept by taking a
+ * snapshot straight after it instead.
+ * <p/>
+ * A snapshot is written to a file of its own, marked with the next epoch, and
+ * then the journal file is replaced by one of that epoch with no events. A
+ * crash between the two leaves a journal of an older epoch than its snapshot,
+ * whose events are then ignored since the snapshot already holds them.
+ * 
+ * @author lindsay
+ * 
+ */
+public class SessionJournal implements ViewEventListener {
+
+	static final String JOURNAL_SUFFIX = ".journal";
+
+	static final String SNAPSHOT_SUFFIX = ".snapshot";
+
+	SessionJournal(EventJournal owner, String key) {
+		this.owner = owner;
+		this.key = key;
+		this.journalFile = new File(owner.getDirectory(), key
+				+ JOURNAL_SUFFIX);
+		this.snapshotFile = new File(owner.getDirectory(), key
+				+ SNAPSHOT_SUFFIX);
+		this.nextSnapshot = owner.getSnapshotInterval();
+	}
+
+	/**
+	 * Returns the key that names this journal, by which the client can find
+	 * its session again with {@link EventJournal#reopen(String)}.
+	 */
+	public String getKey() {
+		return key;
+	}
+
+	/**
+	 * Returns true until the journal is closed or given up on.
+	 */
+	public synchronized boolean isOpen() {
+		return channel != null;
+	}
+
+	/**
+	 * Returns the number of events written since the last snapshot, being the
+	 * number that would be replayed to rebuild the session now.
+	 */
+	public synchronized int getEventsSinceSnapshot() {
+		return eventsSinceSnapshot;
+	}
+
+	boolean exists() {
+		return journalFile.exists();
+	}
+
+	/*
+	 * Writes the journal file for a new session
+	 */
+	synchronized void create(Params startParams) throws JandalCoreException,
+			IOException {
+		this.startParams = encodeParams(startParams);
+		this.epoch = 0;
+		writeJournalFile();
+	}
+
+	/**
+	 * Rebuilds the session's {@link Application} from the latest snapshot, or
+	 * by starting a new one, then firing each journalled event at it. The
+	 * journal is left open for the events that follow.
+	 * 
+	 * @param startParams
+	 *            Parameters the client asks for the {@link Application} to be
+	 *            started with, which must be those the journal's was started
+	 *            with.
+	 * @return The rebuilt {@link Application}, not yet attached to a session.
+	 * @throws JandalCoreException
+	 *             The journal was started with other parameters, the journal
+	 *             or snapshot could not be read, or an event could not be
+	 *             fired as it was before. The journal is closed and its files
+	 *             deleted.
+	 */
+	public synchronized Application replay(Params startParams)
+			throws JandalCoreException {
+		Application app = null;
+		int numEvents = 0;
+		try {
+			final DataInputStream in = new DataInputStream(
+					new BufferedInputStream(new FileInputStream(journalFile)));
+			try {
+				if (in.readInt() != JOURNAL_MAGIC || in.readInt() != VERSION) {
+					throw new IOException("Not a journal file");
+				}
+				epoch = in.readLong();
+				this.startParams = readRecord(in);
+				if (this.startParams == null) {
+					throw new IOException("Journal header is damaged");
+				}
+				if (!equal(decodeParams(this.startParams), startParams)) {
+					throw new JandalCoreException(
+							"Journal was started with other parameters");
+				}
+				long snapshotEpoch = -1;
+				if (snapshotFile.exists()) {
+					final DataInputStream snapshotIn = new DataInputStream(
+							new BufferedInputStream(new FileInputStream(
+									snapshotFile)));
+					try {
+						if (snapshotIn.readInt() != SNAPSHOT_MAGIC
+								|| snapshotIn.readInt() != VERSION) {
+							throw new IOException("Not a snapshot file");
+						}
+						snapshotEpoch = snapshotIn.readLong();
+						if (snapshotEpoch < epoch) {
+							throw new IOException("Snapshot is older than journal");
+						}
+						app = owner.getApplicationFactory()
+								.activateApplication(snapshotIn);
+					} finally {
+						snapshotIn.close();
+					}
+				} else if (epoch > 0) {
+					throw new IOException("Snapshot is missing");
+				} else {
+					app = owner.getApplicationFactory().startApplication(
+							startParams);
+				}
+				if (snapshotEpoch > epoch) {
+					/*
+					 * Crashed while compacting - the snapshot holds all of
+					 * the events, so finish compacting
+					 */
+					in.close();
+					epoch = snapshotEpoch;
+					writeJournalFile();
+				} else {
+					long end = HEADER_SIZE + RECORD_HEADER_SIZE
+							+ this.startParams.length;
+					byte[] record;
+					while ((record = readRecord(in)) != null) {
+						fire(app, record);
+						end += RECORD_HEADER_SIZE + record.length;
+						numEvents++;
+					}
+					in.close();
+					/*
+					 * Drop whatever follows the last whole record
+					 */
+					openChannel();
+					channel.truncate(end);
+					channel.position(end);
+				}
+			} finally {
+				in.close();
+			}
+		} catch (Exception e) {
+			if (app != null) {
+				app.destroy();
+			}
+			closeChannel();
+			delete();
+			owner.closed(this);
+			owner.replayed(false, numEvents);
+			if (e instanceof JandalCoreException) {
+				throw (JandalCoreException) e;
+			}
+			throw new JandalCoreException("Failed to replay journal: "
+					+ e.getMessage(), e);
+		}
+		eventsSinceSnapshot = numEvents;
+		owner.replayed(true, numEvents);
+		return app;
+	}
+
+	/*
+	 * Fires a journalled event at the rebuilt application
+	 */
+	private static void fire(Application app, byte[] record)
+			throws IOException, JandalCoreException {
+		final DataInputStream in = new DataInputStream(
+				new ByteArrayInputStream(record));
+		final String path = readString(in);
+		final String eventName = readString(in);
+		final Controller controller = app.getControllerOnPath(path);
+		if (controller == null) {
+			throw new JandalCoreException("Journal does not match application"
+					+ " - no controller on path \"" + path + "\"");
+		}
+		controller.fireViewEvent(eventName, readParams(in));
+	}
+
+	/**
+	 * Writes a processed view event to the journal file. It reaches the disk
+	 * when the {@link EventJournal} is next flushed.
+	 */
+	public synchronized void viewEventProcessed(String controllerPath,
+			String eventName, Params params) {
+		if (channel == null) {
+			return;
+		}
+		final byte[] record;
+		try {
+			final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			final DataOutputStream out = new DataOutputStream(bytes);
+			writeString(out, controllerPath);
+			writeString(out, eventName);
+			writeParams(out, params);
+			out.flush();
+			record = bytes.toByteArray();
+		} catch (Exception e) {
+			/*
+			 * Can't be replayed, so must be snapshotted
+			 */
+			snapshotNeeded = true;
+			return;
+		}
+		try {
+			writeRecord(record);
+		} catch (IOException e) {
+			giveUp();
+			return;
+		}
+		dirty = true;
+		eventsSinceSnapshot++;
+		owner.eventWritten();
+	}
+
+	/**
+	 * Takes a snapshot of the session's {@link Application} if enough events
+	 * have been written since the last one, or the last event could not be
+	 * journalled. To be called once an event has been processed, while no
+	 * other is.
+	 * <p/>
+	 * An {@link Application} that cannot be written is tried again after
+	 * another interval's worth of events, unless an event could not be
+	 * journalled, in which case the journal can no longer rebuild the session
+	 * and is given up on.
+	 */
+	public void snapshotIfDue(ApplicationSession appSession) {
+		synchronized (appSession) {
+			synchronized (this) {
+				if (channel == null
+						|| !snapshotNeeded
+						&& (nextSnapshot <= 0 || eventsSinceSnapshot < nextSnapshot)) {
+					return;
+				}
+				if (appSession.isPassivated() || appSession.isDestroyed()) {
+					return;
+				}
+				try {
+					writeSnapshot(appSession.getApplication());
+				} catch (Exception e) {
+					snapshotFailed();
+					return;
+				}
+				nextSnapshot = owner.getSnapshotInterval();
+				eventsSinceSnapshot = 0;
+				snapshotNeeded = false;
+				owner.snapshotTaken();
+			}
+		}
+	}
+
+	private void snapshotFailed() {
+		new File(owner.getDirectory(), key + SNAPSHOT_SUFFIX + TEMP_SUFFIX)
+				.delete();
+		if (snapshotNeeded) {
+			giveUp();
+		} else if (owner.getSnapshotInterval() > 0) {
+			nextSnapshot = eventsSinceSnapshot + owner.getSnapshotInterval();
+		}
+	}
+
+	/*
+	 * Writes the application to the snapshot file for the next epoch, then
+	 * starts a journal file of that epoch
+	 */
+	private void writeSnapshot(Application app) throws JandalCoreException,
+			IOException {
+		final File tempFile = new File(owner.getDirectory(), key
+				+ SNAPSHOT_SUFFIX + TEMP_SUFFIX);
+		final FileOutputStream fileOut = new FileOutputStream(tempFile);
+		try {
+			final DataOutputStream out = new DataOutputStream(
+					new BufferedOutputStream(fileOut));
+			out.writeInt(SNAPSHOT_MAGIC);
+			out.writeInt(VERSION);
+			out.writeLong(epoch + 1);
+			owner.getApplicationFactory().passivateApplication(app, out);
+			out.flush();
+			fileOut.getFD().sync();
+		} finally {
+			fileOut.close();
+		}
+		replace(tempFile, snapshotFile);
+		epoch++;
+		writeJournalFile();
+	}
+
+	/*
+	 * Writes the header of a journal file of the current epoch, with no
+	 * events, in place of the current one, and opens it for appending
+	 */
+	private void writeJournalFile() throws IOException {
+		closeChannel();
+		final File tempFile = new File(owner.getDirectory(), key
+				+ JOURNAL_SUFFIX + TEMP_SUFFIX);
+		final FileOutputStream fileOut = new FileOutputStream(tempFile);
+		try {
+			final DataOutputStream out = new DataOutputStream(
+					new BufferedOutputStream(fileOut));
+			out.writeInt(JOURNAL_MAGIC);
+			out.writeInt(VERSION);
+			out.writeLong(epoch);
+			out.writeInt(startParams.length);
+			out.writeInt(checksum(startParams));
+			out.write(startParams);
+			out.flush();
+			fileOut.getFD().sync();
+		} finally {
+			fileOut.close();
+		}
+		replace(tempFile, journalFile);
+		openChannel();
+		channel.position(channel.size());
+		dirty = false;
+	}
+
+	private static void replace(File from, File to) throws IOException {
+		if (!from.renameTo(to)) {
+			/*
+			 * Some platforms won't rename over an existing file
+			 */
+			to.delete();
+			if (!from.renameTo(to)) {
+				from.delete();
+				throw new IOException("Cannot rename " + from.getPath()
+						+ " to " + to.getPath());
+			}
+		}
+	}
+
+	private void writeRecord(byte[] record) throws IOException {
+		final ByteBuffer buffer = ByteBuffer.allocate(RECORD_HEADER_SIZE
+				+ record.length);
+		buffer.putInt(record.length);
+		buffer.putInt(checksum(record));
+		buffer.put(record);
+		buffer.flip();
+		while (buffer.hasRemaining()) {
+			channel.write(buffer);
+		}
+	}
+
+	/*
+	 * Reads the next record, or returns null at the end of the file or at a
+	 * record that was not written whole
+	 */
+	private static byte[] readRecord(DataInputStream in) throws IOException {
+		try {
+			final int length = in.readInt();
+			final int checksum = in.readInt();
+			if (length < 0 || length > MAX_RECORD_SIZE) {
+				return null;
+			}
+			final byte[] record = new byte[length];
+			in.readFully(record);
+			return checksum(record) == checksum ? record : null;
+		} catch (EOFException e) {
+			return null;
+		}
+	}
+
+	private static int checksum(byte[] bytes) {
+		final CRC32 crc = new CRC32();
+		crc.update(bytes);
+		return (int) crc.getValue();
+	}
+
+	private static byte[] encodeParams(Params params)
+			throws JandalCoreException {
+		try {
+			final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			final DataOutputStream out = new DataOutputStream(bytes);
+			writeParams(out, params);
+			out.flush();
+			return bytes.toByteArray();
+		} catch (IOException e) {
+			throw new JandalCoreException("Failed to encode params: "
+					+ e.getMessage(), e);
+		}
+	}
+
+	private static Params decodeParams(byte[] bytes) throws IOException,
+			JandalCoreException {
+		return readParams(new DataInputStream(new ByteArrayInputStream(
+				bytes)));
+	}
+
+	private static boolean equal(Params a, Params b)
+			throws JandalCoreException {
+		if (!a.getNames().equals(b.getNames())) {
+			return false;
+		}
+		for (Iterator i = a.getNames().iterator(); i.hasNext();) {
+			final String name = (String) i.next();
+			if (!a.get(name).equals(b.get(name))) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static void writeParams(DataOutputStream out, Params params)
+			throws IOException, JandalCoreException {
+		final Set names = params.getNames();
+		out.writeInt(names.size());
+		for (Iterator i = names.iterator(); i.hasNext();) {
+			final String name = (String) i.next();
+			final Object value = params.get(name);
+			if (!(value instanceof String)) {
+				throw new JandalCoreException("Parameter \"" + name
+						+ "\" is not a string");
+			}
+			writeString(out, name);
+			writeString(out, (String) value);
+		}
+	}
+
+	private static Params readParams(DataInputStream in) throws IOException,
+			JandalCoreException {
+		final Params params = new Params();
+		for (int n = in.readInt(); n > 0; n--) {
+			final String name = readString(in);
+			params.add(name, readString(in));
+		}
+		return params;
+	}
+
+	/*
+	 * Strings are written as UTF-8 with an int length, since parameter values
+	 * may be longer than writeUTF allows
+	 */
+	private static void writeString(DataOutputStream out, String s)
+			throws IOException {
+		final byte[] bytes = s.getBytes("UTF-8");
+		out.writeInt(bytes.length);
+		out.write(bytes);
+	}
+
+	private static String readString(DataInputStream in) throws IOException {
+		final byte[] bytes = new byte[in.readInt()];
+		in.readFully(bytes);
+		return new String(bytes, "UTF-8");
+	}
+
+	private void openChannel() throws IOException {
+		channel = new RandomAccessFile(journalFile, "rw").getChannel();
+	}
+
+	private void closeChannel() {
+		if (channel != null) {
+			try {
+				channel.close();
+			} catch (IOException e) {
+			}
+			channel = null;
+		}
+	}
+
+	/*
+	 * Forces written events to disk - returns true if there were any
+	 */
+	synchronized boolean flush() {
+		if (channel == null || !dirty) {
+			return false;
+		}
+		try {
+			channel.force(false);
+			dirty = false;
+			return true;
+		} catch (IOException e) {
+			giveUp();
+			return false;
+		}
+	}
+
+	/*
+	 * The journal can no longer rebuild the session, so stop writing it and
+	 * delete its files
+	 */
+	private void giveUp() {
+		closeChannel();
+		delete();
+		owner.closed(this);
+	}
+
+	/*
+	 * Closes the journal when the servlet stops, keeping its files
+	 */
+	synchronized void close() {
+		if (channel != null) {
+			try {
+				channel.force(false);
+			} catch (IOException e) {
+			}
+			closeChannel();
+		}
+	}
+
+	/**
+	 * Closes the journal when its session has ended, deleting its files unless
+	 * the {@link EventJournal} has been closed, in which case the session is
+	 * only ending because the servlet is stopping, and can be rebuilt when it
+	 * starts again.
+	 */
+	public synchronized void discard() {
+		closeChannel();
+		if (!owner.isClosed()) {
+			delete();
+		}
+		owner.closed(this);
+	}
+
+	void delete() {
+		journalFile.delete();
+		snapshotFile.delete();
+	}
+
+	private static final int JOURNAL_MAGIC = 0x4a4e4c4a;
+
+	private static final int SNAPSHOT_MAGIC = 0x4a4e4c53;
+
+	private static final int VERSION = 1;
+
+	private static final String TEMP_SUFFIX = ".tmp";
+
+	/*
+	 * Magic number, version and epoch
+	 */
+	private static final int HEADER_SIZE = 16;
+
+	/*
+	 * Length and checksum
+	 */
+	private static final int RECORD_HEADER_SIZE = 8;
+
+	private static final int MAX_RECORD_SIZE = 64 * 1024 * 1024;
+
+	private final EventJournal owner;
+
+	private final String key;
+
+	private final File journalFile;
+
+	private final File snapshotFile;
+
+	private FileChannel channel;
+
+	private byte[] startParams;
+
+	private long epoch;
+
+	private boolean dirty;
+
+	private int eventsSinceSnapshot;
+
+	private int nextSnapshot;
+
+	private boolean snapshotNeeded;
+}
@@ -0,0 +1,60 @@
+/*
+ * Copyright (C) 2007 Lindsay S. Kay, All rights Reserved.
+ *
+ * This software is provided "as-is", without any express or implied warranty. In no event will the 
+ * author be held liable for any damages arising from the use of this software.
+ *
+ * Permission is granted to anyone to use this software for any purpose, including commercial 
+ * applications, and to alter it and redistribute if freely, subject to the following restrictions:
+ *
+ *  1. The origin of this software must not be misrepresented: you must not claim that you wrote 
+ * 	the original software. if you use this software in a product, an acknowledgement in the product 
+ * 	documentation would be appreciated but is not required.
+ * 
+ *  2. Altered source versions must be plainly marked as such, and must not be misrepresented 
+ * 	as the original software.
+ * 
+  * 3. This notice must not be removed or altered from any source distribution.
+ */
+package com.neocoders.jandal.ui.freemarker.session;
+
+import java.security.SecureRandom;
+
+/*
+ * Random keys by which clients name their sessions' journals and stored
+ * records. Keys become file names, so only keys of the form made here are
+ * accepted from clients.
+ */
+final class SessionKeys {
+
+	private SessionKeys() {
+	}
+
+	static String newKey() {
+		final byte[] bytes = new byte[KEY_BYTES];
+		random.nextBytes(bytes);
+		final StringBuffer sb = new StringBuffer(KEY_BYTES * 2);
+		for (int i = 0; i < bytes.length; i++) {
+			sb.append(Character.forDigit((bytes[i] >> 4) & 0xf, 16));
+			sb.append(Character.forDigit(bytes[i] & 0xf, 16));
+		}
+		return sb.toString();
+	}
+
+	static boolean isKey(String key) {
+		if (key == null || key.length() != KEY_BYTES * 2) {
+			return false;
+		}
+		for (int i = 0; i < key.length(); i++) {
+			if (Character.digit(key.charAt(i), 16) < 0
+					|| Character.isUpperCase(key.charAt(i))) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static final int KEY_BYTES = 16;
+
+	private static final SecureRandom random = new SecureRandom();
+}
@@ -0,0 +1,392 @@
+/*
+ * Copyright (C) 2007 Lindsay S. Kay, All rights Reserved.
+ *
+ * This software is provided "as-is", without any express or implied warranty. In no event will the 
+ * author be held liable for any damages arising from the use of this software.
+ *
+ * Permission is granted to anyone to use this software for any purpose, including commercial 
+ * applications, and to alter it and redistribute if freely, subject to the following restrictions:
+ *
+ *  1. The origin of this software must not be misrepresented: you must not claim that you wrote 
+ * 	the original software. if you use this software in a product, an acknowledgement in the product 
+ * 	documentation would be appreciated but is not required.
+ * 
+ *  2. Altered source versions must be plainly marked as such, and must not be misrepresented 
+ * 	as the original software.
+ * 
+  * 3. This notice must not be removed or altered from any source distribution.
+ */
+package com.neocoders.jandal.ui.freemarker.session;
+
+import java.util.Queue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.neocoders.jandal.ui.freemarker.servlet.internalExceptions.ServerAdminBusyException;
+
+/**
+ * Runs the requests of one {@link ApplicationSession} one at a time, in the
+ * order they arrive, on a worker pool shared by all sessions.
+ * <p/>
+ * Nothing in an {@link ApplicationSession} or its controller tree is
+ * synchronized, so every request that touches them goes through the session's
+ * mailbox. A session's tasks are never run concurrently, while tasks of
+ * different sessions run in parallel on the pool. A mailbox is only scheduled
+ * onto a worker while it has tasks, and gives up its worker after each task
+ * so that busy sessions cannot starve the others. Workers made by
+ * {@link #newWorkerPool} that wait for a service lock lend their place in the
+ * pool to another thread meanwhile, so that the request releasing the lock is
+ * not held up behind those waiting for it.
+ * <p/>
+ * The number of tasks waiting or running in a mailbox is bounded; once the
+ * bound is reached further tasks are refused with a
+ * {@link ServerAdminBusyException}. The thread queueing a task waits for it,
+ * since Servlet 2.5 has no way to finish a request on another thread; if it
+ * is interrupted while the task is still queued, the task is withdrawn. A
+ * task can be given a callback to run once it is done, however it ends, so
+ * that the waiting thread can be handed what the task produces as it goes
+ * rather than only at the end. Each mailbox records how long tasks waited
+ * before they ran, and totals across all mailboxes are kept as well.
+ * 
+ * @author lindsay
+ * 
+ */
+public class SessionMailbox {
+
+	public static final int DEFAULT_MAX_DEPTH = 16;
+
+	/**
+	 * Creates a mailbox.
+	 * 
+	 * @param executor
+	 *            Worker pool, shared with other mailboxes.
+	 * @param maxDepth
+	 *            Maximum number of tasks waiting or running at once.
+	 */
+	public SessionMailbox(Executor executor, int maxDepth) {
+		if (executor == null) {
+			throw new IllegalArgumentException("Executor is null");
+		}
+		if (maxDepth < 1) {
+			throw new IllegalArgumentException("Max depth is less than one");
+		}
+		this.executor = executor;
+		this.maxDepth = maxDepth;
+		this.queue = new ConcurrentLinkedQueue();
+		this.depth = new AtomicInteger();
+		this.scheduled = new AtomicBoolean(false);
+		this.numRun = new AtomicLong();
+		this.numRejected = new AtomicLong();
+		this.totalQueueNanos = new AtomicLong();
+		this.maxQueueNanos = new AtomicLong();
+		this.drainer = new Runnable() {
+			public void run() {
+				drain();
+			}
+		};
+	}
+
+	/**
+	 * Creates a mailbox on the pool shared by all mailboxes that are not given
+	 * one.
+	 */
+	public SessionMailbox() {
+		this(getSharedExecutor(), DEFAULT_MAX_DEPTH);
+	}
+
+	/**
+	 * Queues the given task, waits for it to run and returns its result.
+	 * 
+	 * @throws ServerAdminBusyException
+	 *             Mailbox is full.
+	 * @throws InterruptedException
+	 *             Interrupted while waiting - the task is withdrawn if it has
+	 *             not started, otherwise it runs on but its result is lost.
+	 * @throws Exception
+	 *             Exception thrown by the task.
+	 */
+	public Object run(Callable task) throws Exception {
+		return await(submit(task, null));
+	}
+
+	/**
+	 * Queues the given task without waiting for it.
+	 * 
+	 * @param whenDone
+	 *            Run once the task has run, failed or been withdrawn, or null.
+	 * @return The task's future, to be given to {@link #await(Future)}.
+	 * @throws ServerAdminBusyException
+	 *             Mailbox is full.
+	 */
+	public Future submit(Callable task, Runnable whenDone)
+			throws ServerAdminBusyException {
+		if (depth.incrementAndGet() > maxDepth) {
+			depth.decrementAndGet();
+			numRejected.incrementAndGet();
+			totalRejected.incrementAndGet();
+			throw new ServerAdminBusyException(
+					"Server busy - too many requests pending for this session, please try again");
+		}
+		final Envelope envelope = new Envelope(task, whenDone);
+		queue.offer(envelope);
+		schedule();
+		return envelope;
+	}
+
+	/**
+	 * Withdraws a task queued with {@link #submit}, if it has not started,
+	 * otherwise lets it run on with its result lost.
+	 */
+	public void withdraw(Future future) {
+		future.cancel(false);
+		if (queue.remove(future)) {
+			/*
+			 * Never reached a worker, which would have counted it out
+			 */
+			depth.decrementAndGet();
+		}
+	}
+
+	/**
+	 * Waits for a task queued with {@link #submit} and returns its result.
+	 * 
+	 * @throws InterruptedException
+	 *             Interrupted while waiting - the task is withdrawn as by
+	 *             {@link #withdraw(Future)}.
+	 * @throws Exception
+	 *             Exception thrown by the task.
+	 */
+	public Object await(Future future) throws Exception {
+		try {
+			return future.get();
+		} catch (InterruptedException e) {
+			withdraw(future);
+			throw e;
+		} catch (ExecutionException e) {
+			final Throwable cause = e.getCause();
+			if (cause instanceof Exception) {
+				throw (Exception) cause;
+			}
+			if (cause instanceof Error) {
+				throw (Error) cause;
+			}
+			throw e;
+		}
+	}
+
+	/**
+	 * Returns the number of tasks currently waiting or running.
+	 */
+	public int getDepth() {
+		return depth.get();
+	}
+
+	public int getMaxDepth() {
+		return maxDepth;
+	}
+
+	/**
+	 * Returns the number of tasks this mailbox has run.
+	 */
+	public long getRunCount() {
+		return numRun.get();
+	}
+
+	/**
+	 * Returns the number of tasks this mailbox has refused because it was
+	 * full.
+	 */
+	public long getRejectedCount() {
+		return numRejected.get();
+	}
+
+	/**
+	 * Returns the mean time tasks waited in this mailbox before running, in
+	 * nanoseconds.
+	 */
+	public long getMeanQueueNanos() {
+		final long count = numRun.get();
+		return (count == 0L) ? 0L : totalQueueNanos.get() / count;
+	}
+
+	/**
+	 * Returns the longest time a task waited in this mailbox before running,
+	 * in nanoseconds.
+	 */
+	public long getMaxQueueNanos() {
+		return maxQueueNanos.get();
+	}
+
+	/**
+	 * Returns the number of tasks run by all mailboxes.
+	 */
+	public static long getTotalRunCount() {
+		return totalRun.get();
+	}
+
+	/**
+	 * Returns the number of tasks refused by all mailboxes.
+	 */
+	public static long getTotalRejectedCount() {
+		return totalRejected.get();
+	}
+
+	/**
+	 * Returns the mean time tasks waited before running, over all mailboxes,
+	 * in nanoseconds.
+	 */
+	public static long getTotalMeanQueueNanos() {
+		final long count = totalRun.get();
+		return (count == 0L) ? 0L : totalQueueNanosAll.get() / count;
+	}
+
+	/**
+	 * Creates a worker pool for mailboxes, of daemon threads, which lets as
+	 * many threads wait for service locks at once as it has threads.
+	 */
+	public static ExecutorService newWorkerPool(int numThreads) {
+		return newWorkerPool(numThreads, numThreads);
+	}
+
+	/**
+	 * Creates a worker pool for mailboxes, of daemon threads, which adds a
+	 * thread for each one waiting for a service lock, so that waits cannot
+	 * hold up the request that would release the lock.
+	 * 
+	 * @param maxLockWaiters
+	 *            Maximum number of threads waiting for service locks at once,
+	 *            beyond which threads give up on locks rather than wait.
+	 */
+	public static ExecutorService newWorkerPool(int numThreads,
+			int maxLockWaiters) {
+		return new SessionWorkerPool(numThreads, maxLockWaiters);
+	}
+
+	private static synchronized Executor getSharedExecutor() {
+		if (sharedExecutor == null) {
+			sharedExecutor = newWorkerPool(Runtime.getRuntime()
+					.availableProcessors() * 4);
+		}
+		return sharedExecutor;
+	}
+
+	/*
+	 * Puts this mailbox onto a worker unless it is already on one
+	 */
+	private void schedule() {
+		if (!queue.isEmpty() && scheduled.compareAndSet(false, true)) {
+			try {
+				executor.execute(drainer);
+			} catch (RuntimeException e) {
+				scheduled.set(false);
+				failQueued(e);
+			}
+		}
+	}
+
+	/*
+	 * Runs the next task, then hands the worker back to the pool and
+	 * reschedules if more tasks have arrived
+	 */
+	private void drain() {
+		try {
+			final Envelope envelope = (Envelope) queue.poll();
+			if (envelope != null) {
+				final long queueNanos = System.nanoTime()
+						- envelope.enqueueNanos;
+				record(queueNanos);
+				try {
+					envelope.run();
+				} finally {
+					depth.decrementAndGet();
+				}
+			}
+		} finally {
+			scheduled.set(false);
+			schedule();
+		}
+	}
+
+	/*
+	 * Worker pool refused us - fail everything waiting rather than leave
+	 * callers blocked
+	 */
+	private void failQueued(RuntimeException e) {
+		Envelope envelope;
+		while ((envelope = (Envelope) queue.poll()) != null) {
+			envelope.fail(e);
+			depth.decrementAndGet();
+		}
+	}
+
+	private void record(long queueNanos) {
+		numRun.incrementAndGet();
+		totalRun.incrementAndGet();
+		totalQueueNanos.addAndGet(queueNanos);
+		totalQueueNanosAll.addAndGet(queueNanos);
+		for (long max = maxQueueNanos.get(); queueNanos > max; max = maxQueueNanos
+				.get()) {
+			if (maxQueueNanos.compareAndSet(max, queueNanos)) {
+				break;
+			}
+		}
+	}
+
+	private static class Envelope extends FutureTask {
+		Envelope(Callable task, Runnable whenDone) {
+			super(task);
+			this.whenDone = whenDone;
+			this.enqueueNanos = System.nanoTime();
+		}
+
+		void fail(Throwable t) {
+			setException(t);
+		}
+
+		protected void done() {
+			if (whenDone != null) {
+				whenDone.run();
+			}
+		}
+
+		private final Runnable whenDone;
+
+		final long enqueueNanos;
+	}
+
+	private static final AtomicLong totalRun = new AtomicLong();
+
+	private static final AtomicLong totalRejected = new AtomicLong();
+
+	private static final AtomicLong totalQueueNanosAll = new AtomicLong();
+
+	private static Executor sharedExecutor;
+
+	private final Executor executor;
+
+	private final int maxDepth;
+
+	private final Queue queue;
+
+	private final AtomicInteger depth;
+
+	private final AtomicBoolean scheduled;
+
+	private final Runnable drainer;
+
+	private final AtomicLong numRun;
+
+	private final AtomicLong numRejected;
+
+	private final AtomicLong totalQueueNanos;
+
+	private final AtomicLong maxQueueNanos;
+}
@@ -0,0 +1,307 @@
+/*
+ * Copyright (C) 2007 Lindsay S. Kay, All rights Reserved.
+ *
+ * This software is provided "as-is", without any express or implied warranty. In no event will the 
+ * author be held liable for any damages arising from the use of this software.
+ *
+ * Permission is granted to anyone to use this software for any purpose, including commercial 
+ * applications, and to alter it and redistribute if freely, subject to the following restrictions:
+ *
+ *  1. The origin of this software must not be misrepresented: you must not claim that you wrote 
+ * 	the original software. if you use this software in a product, an acknowledgement in the product 
+ * 	documentation would be appreciated but is not required.
+ * 
+ *  2. Altered source versions must be plainly marked as such, and must not be misrepresented 
+ * 	as the original software.
+ * 
+  * 3. This notice must not be removed or altered from any source distribution.
+ */
+package com.neocoders.jandal.ui.freemarker.session;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+import com.neocoders.jandal.core.*;
+
+/**
+ * Writes the {@link Application}s of idle {@link ApplicationSession}s to a
+ * {@link PassivationStore} and drops them from memory, then reads them back
+ * when their sessions are next used.
+ * <p/>
+ * A passivated session stays bound to its HTTP session, holding only its
+ * position in the store. Each record is the continuation key and rendered
+ * flag of each {@link ControllerSession}, so that the view the client holds
+ * remains valid, followed by the {@link Application} as written by
+ * {@link ApplicationFactory#passivateApplication(Application, java.io.OutputStream)},
+ * all deflated. Rendered view fragments are not kept.
+ * <p/>
+ * Passivation and activation lock the session, and a session with requests in
+ * its mailbox is never passivated. An {@link Application} that cannot be
+ * written - because something in it is not serializable, or it holds
+ * {@link Service} locks - stays in memory, and is not tried again until its
+ * session has been used.
+ * 
+ * @author lindsay
+ * 
+ */
+public class SessionPassivator {
+
+	/**
+	 * Default seconds a session may be idle before it is passivated.
+	 */
+	public static final int DEFAULT_PASSIVATE_AFTER = 300;
+
+	/**
+	 * Creates a passivator.
+	 * 
+	 * @param appFactory
+	 *            Factory that makes the sessions' {@link Application}s.
+	 * @param store
+	 *            Store to passivate into.
+	 */
+	public SessionPassivator(ApplicationFactory appFactory,
+			PassivationStore store) {
+		this.appFactory = appFactory;
+		this.store = store;
+		this.numPassivated = new AtomicLong();
+		this.numPassivations = new AtomicLong();
+		this.numActivations = new AtomicLong();
+		this.numFailures = new AtomicLong();
+		this.totalActivationNanos = new AtomicLong();
+		this.maxActivationNanos = new AtomicLong();
+	}
+
+	/**
+	 * Passivates a session, unless it is already passivated, destroyed, busy
+	 * with requests in progress or in its mailbox, or its {@link Application}
+	 * could not be written last time and it has not been used since.
+	 * 
+	 * @return True if the session was passivated.
+	 */
+	public boolean passivate(ApplicationSession appSession) {
+		synchronized (appSession) {
+			if (appSession.isPassivated() || appSession.isDestroyed()
+					|| appSession.getActiveRequestCount() > 0
+					|| appSession.getMailbox().getDepth() > 0
+					|| appSession.getPassivationRefusedTime() == appSession
+							.getLastAccessTime()) {
+				return false;
+			}
+			final long record;
+			try {
+				final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+				write(appFactory, appSession, bytes);
+				record = store.append(bytes.toByteArray());
+			} catch (Exception e) {
+				numFailures.incrementAndGet();
+				appSession.setPassivationRefusedTime(appSession
+						.getLastAccessTime());
+				return false;
+			}
+			appSession.passivated(this, record);
+			numPassivated.incrementAndGet();
+			numPassivations.incrementAndGet();
+			return true;
+		}
+	}
+
+	/**
+	 * Activates a session if it is passivated.
+	 * 
+	 * @return False if the session's {@link Application} could not be read
+	 *         back, in which case the session can only be destroyed.
+	 */
+	public boolean activate(ApplicationSession appSession) {
+		synchronized (appSession) {
+			if (!appSession.isPassivated()) {
+				return true;
+			}
+			final long startNanos = System.nanoTime();
+			final long record = appSession.getPassivatedRecord();
+			try {
+				read(appFactory, appSession, new ByteArrayInputStream(store
+						.read(record)));
+			} catch (Exception e) {
+				numFailures.incrementAndGet();
+				return false;
+			}
+			store.remove(record);
+			numPassivated.decrementAndGet();
+			numActivations.incrementAndGet();
+			final long nanos = System.nanoTime() - startNanos;
+			totalActivationNanos.addAndGet(nanos);
+			for (long max = maxActivationNanos.get(); nanos > max; max = maxActivationNanos
+					.get()) {
+				if (maxActivationNanos.compareAndSet(max, nanos)) {
+					break;
+				}
+			}
+			return true;
+		}
+	}
+
+	/*
+	 * Drops the record of a passivated session that is being destroyed -
+	 * called with the session locked
+	 */
+	void discard(ApplicationSession appSession) {
+		store.remove(appSession.getPassivatedRecord());
+		numPassivated.decrementAndGet();
+	}
+
+	/*
+	 * Writes the session's record, deflated, to the given stream, which is
+	 * left open. Also used to write sessions to an ApplicationSessionStore.
+	 */
+	static void write(ApplicationFactory appFactory,
+			ApplicationSession appSession, OutputStream bytes)
+			throws JandalCoreException, IOException {
+		final Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+		try {
+			final DeflaterOutputStream deflaterOut = new DeflaterOutputStream(
+					bytes, deflater);
+			final DataOutputStream out = new DataOutputStream(deflaterOut);
+			final Collection controllerSessions = appSession
+					.getControllerSessions();
+			out.writeInt(controllerSessions.size());
+			for (Iterator i = controllerSessions.iterator(); i.hasNext();) {
+				final ControllerSession controllerSession = (ControllerSession) i
+						.next();
+				out.writeLong(controllerSession.getController()
+						.getNumericId());
+				out.writeLong(controllerSession.getSynchKeyNumber());
+				out.writeBoolean(controllerSession.getRendered());
+			}
+			appFactory.passivateApplication(appSession.getApplication(), out);
+			out.flush();
+			deflaterOut.finish();
+		} finally {
+			deflater.end();
+		}
+	}
+
+	/*
+	 * Reads a record written by write, giving the application in it to the
+	 * session, which has none
+	 */
+	static void read(ApplicationFactory appFactory,
+			ApplicationSession appSession, InputStream record)
+			throws JandalCoreException, IOException {
+		final DataInputStream in = new DataInputStream(new InflaterInputStream(
+				record));
+		try {
+			final int numControllers = in.readInt();
+			final long[] ids = new long[numControllers];
+			final long[] synchKeys = new long[numControllers];
+			final boolean[] rendered = new boolean[numControllers];
+			for (int i = 0; i < numControllers; i++) {
+				ids[i] = in.readLong();
+				synchKeys[i] = in.readLong();
+				rendered[i] = in.readBoolean();
+			}
+			appSession.activated(appFactory.activateApplication(in));
+			for (int i = 0; i < numControllers; i++) {
+				final ControllerSession controllerSession = appSession
+						.getControllerSessionWithId(Long.toString(ids[i]));
+				if (controllerSession != null) {
+					controllerSession.restore(synchKeys[i], rendered[i]);
+				}
+			}
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Returns the store sessions are passivated into.
+	 */
+	public PassivationStore getStore() {
+		return store;
+	}
+
+	/**
+	 * Returns the number of sessions currently passivated.
+	 */
+	public long getPassivatedCount() {
+		return numPassivated.get();
+	}
+
+	/**
+	 * Returns the number of times a session has been passivated.
+	 */
+	public long getPassivationCount() {
+		return numPassivations.get();
+	}
+
+	/**
+	 * Returns the number of times a session has been activated.
+	 */
+	public long getActivationCount() {
+		return numActivations.get();
+	}
+
+	/**
+	 * Returns the number of times a session could not be passivated or
+	 * activated.
+	 */
+	public long getFailureCount() {
+		return numFailures.get();
+	}
+
+	/**
+	 * Returns the mean time taken to activate a session, in nanoseconds.
+	 */
+	public long getMeanActivationNanos() {
+		final long count = numActivations.get();
+		return (count == 0L) ? 0L : totalActivationNanos.get() / count;
+	}
+
+	/**
+	 * Returns the longest time taken to activate a session, in nanoseconds.
+	 */
+	public long getMaxActivationNanos() {
+		return maxActivationNanos.get();
+	}
+
+	/**
+	 * Returns the size of the store's files in bytes.
+	 */
+	public long getBytesOnDisk() {
+		return store.getBytesOnDisk();
+	}
+
+	/**
+	 * Returns the size of the store's segments still mapped into memory in
+	 * bytes, including deleted ones whose mappings have yet to be collected.
+	 */
+	public long getMappedBytes() {
+		return store.getMappedBytes();
+	}
+
+	private final ApplicationFactory appFactory;
+
+	private final PassivationStore store;
+
+	private final AtomicLong numPassivated;
+
+	private final AtomicLong numPassivations;
+
+	private final AtomicLong numActivations;
+
+	private final AtomicLong numFailures;
+
+	private final AtomicLong totalActivationNanos;
+
+	private final AtomicLong maxActivationNanos;
+}
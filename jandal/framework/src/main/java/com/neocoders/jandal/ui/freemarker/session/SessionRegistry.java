@@ -0,0 +1,587 @@
+/*
+ * Copyright (C) 2007 Lindsay S. Kay, All rights Reserved.
+ *
+ * This software is provided "as-is", without any express or implied warranty. In no event will the 
+ * author be held liable for any damages arising from the use of this software.
+ *
+ * Permission is granted to anyone to use this software for any purpose, including commercial 
+ * applications, and to alter it and redistribute if freely, subject to the following restrictions:
+ *
+ *  1. The origin of this software must not be misrepresented: you must not claim that you wrote 
+ * 	the original software. if you use this software in a product, an acknowledgement in the product 
+ * 	documentation would be appreciated but is not required.
+ * 
+ *  2. Altered source versions must be plainly marked as such, and must not be misrepresented 
+ * 	as the original software.
+ * 
+  * 3. This notice must not be removed or altered from any source distribution.
+ */
+package com.neocoders.jandal.ui.freemarker.session;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.MemoryUsage;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Timer;
+import java.util.TimerTask;
+
+import javax.servlet.http.HttpSession;
+
+import com.neocoders.jandal.ui.freemarker.servlet.internalExceptions.ServerAdminBusyException;
+
+/**
+ * Keeps track of every live {@link ApplicationSession}, in order of last use,
+ * and decides whether there is room to start another.
+ * <p/>
+ * A new session is admitted only while the number of live sessions is under
+ * a limit and while the heap in use is under a budget, expressed as a
+ * percentage of the maximum heap. Heap in use is measured as it was left by
+ * the last garbage collection, so that garbage awaiting collection does not
+ * count. When either is exceeded, sessions that have sat idle for longest are
+ * evicted to make room; sessions used within a minimum idle time, or with
+ * requests in progress, are never evicted for this. If no session can be
+ * evicted the new one is refused with a {@link ServerAdminBusyException}.
+ * Since heap freed by evicting isn't seen until the collector next runs, new
+ * sessions are refused after evicting for heap until it has, rather than
+ * evicting more for each one. Sessions idle for longer than an optional
+ * timeout are evicted whenever a new one is admitted, without waiting for
+ * their HTTP sessions to time out.
+ * <p/>
+ * An evicted session is destroyed and removed from its HTTP session, so that
+ * its user's next request starts afresh - unless a {@link SessionPassivator}
+ * is set, in which case it is passivated instead, and activated again when its
+ * user returns. Passivated sessions don't count towards the limit. With a
+ * passivator, sessions are also passivated once idle for a given time.
+ * <p/>
+ * Idle timeouts and passivation are applied whenever a session is admitted,
+ * and also periodically once the sweeper is started.
+ * 
+ * @author lindsay
+ * 
+ */
+public class SessionRegistry {
+
+	/**
+	 * Default seconds a session must have been idle before it may be evicted
+	 * to make room for a new one.
+	 */
+	public static final int DEFAULT_MIN_IDLE = 30;
+
+	/**
+	 * Creates a registry.
+	 * 
+	 * @param maxSessions
+	 *            Maximum number of live sessions, zero or less for no limit.
+	 * @param maxHeapPercent
+	 *            Percentage of the maximum heap that may be in use when a
+	 *            session is admitted, zero or less for no budget.
+	 * @param idleTimeout
+	 *            Seconds after which an idle session is evicted, zero or less
+	 *            to leave idle sessions to time out with their HTTP sessions.
+	 * @param minIdle
+	 *            Seconds a session must have been idle before it may be
+	 *            evicted to make room for a new one.
+	 */
+	public SessionRegistry(int maxSessions, int maxHeapPercent,
+			int idleTimeout, int minIdle) {
+		this.maxSessions = maxSessions;
+		this.maxHeapPercent = maxHeapPercent;
+		this.idleTimeoutMillis = idleTimeout * 1000L;
+		this.minIdleMillis = minIdle * 1000L;
+		this.sessions = new LinkedHashMap(16, 0.75f, true);
+		this.passivatedSessions = new LinkedHashMap(16, 0.75f, true);
+		this.heapPools = new ArrayList();
+		for (Iterator i = ManagementFactory.getMemoryPoolMXBeans().iterator(); i
+				.hasNext();) {
+			final MemoryPoolMXBean pool = (MemoryPoolMXBean) i.next();
+			if (pool.getType() == MemoryType.HEAP) {
+				heapPools.add(pool);
+			}
+		}
+		this.collectors = ManagementFactory.getGarbageCollectorMXBeans();
+		this.heapEvictionCollections = -1;
+	}
+
+	/**
+	 * Sets the passivator through which sessions are to be evicted, instead of
+	 * being destroyed.
+	 * 
+	 * @param passivateAfter
+	 *            Seconds after which an idle session is passivated, zero or
+	 *            less to passivate only to make room.
+	 */
+	public synchronized void setPassivator(SessionPassivator passivator,
+			int passivateAfter) {
+		this.passivator = passivator;
+		this.passivateAfterMillis = passivateAfter * 1000L;
+	}
+
+	/**
+	 * Sets the cache of sessions shared with other servlet instances, whose
+	 * sessions count against the limits on sessions and heap along with the
+	 * ones registered here, and may be dropped from it to make room.
+	 */
+	public synchronized void setSharedSessions(SharedSessionCache sharedSessions) {
+		this.sharedSessions = sharedSessions;
+	}
+
+	/**
+	 * Starts a daemon thread that applies idle timeouts and passivation
+	 * periodically.
+	 */
+	public synchronized void startSweeper(long periodMillis) {
+		if (sweeper != null) {
+			return;
+		}
+		sweeper = new Timer("jandal-session-sweeper", true);
+		sweeper.schedule(new TimerTask() {
+			public void run() {
+				try {
+					sweep();
+				} catch (RuntimeException e) {
+					e.printStackTrace();
+				}
+			}
+		}, periodMillis, periodMillis);
+	}
+
+	/**
+	 * Stops the sweeper.
+	 */
+	public synchronized void shutdown() {
+		if (sweeper != null) {
+			sweeper.cancel();
+			sweeper = null;
+		}
+	}
+
+	/**
+	 * Applies idle timeouts and passivation.
+	 */
+	public void sweep() {
+		final long now = System.currentTimeMillis();
+		final List victims = new ArrayList();
+		final List passivating = new ArrayList();
+		try {
+			synchronized (this) {
+				expire(now, victims);
+				if (passivator != null && passivateAfterMillis > 0) {
+					Victim victim;
+					while ((victim = takeOldest(now, passivateAfterMillis)) != null) {
+						passivatedSessions.put(victim.appSession,
+								victim.httpSession);
+						passivating.add(victim.appSession);
+					}
+				}
+			}
+		} finally {
+			destroy(victims);
+			passivate(passivating);
+		}
+	}
+
+	/**
+	 * Reserves room for a new session, evicting idle sessions if need be. The
+	 * caller must follow up with either {@link #add} or {@link #cancel}.
+	 * 
+	 * @throws ServerAdminBusyException
+	 *             No room could be made.
+	 */
+	public void admit() throws ServerAdminBusyException {
+		final long now = System.currentTimeMillis();
+		final List victims = new ArrayList();
+		final List passivating = new ArrayList();
+		try {
+			synchronized (this) {
+				expire(now, victims);
+				if (maxSessions > 0) {
+					while (sessions.size() + getSharedCount()
+							+ numAdmitting >= maxSessions) {
+						if (!evictOldest(now, victims, passivating)) {
+							numRefused++;
+							throw new ServerAdminBusyException(
+									"Server busy - too many users, please try again later");
+						}
+						numEvicted++;
+					}
+				}
+				if (isHeapOverBudget()) {
+					/*
+					 * Memory isn't given back until the collector runs, so we
+					 * can't tell how much evicting frees - evict a batch in
+					 * proportion to the number of sessions and hope for the
+					 * best. Heap in use still looks the same until then, so
+					 * refuse rather than evict another batch for each session
+					 * admitted meanwhile
+					 */
+					final long collections = getCollectionCount();
+					if (collections == heapEvictionCollections) {
+						numRefused++;
+						throw new ServerAdminBusyException(
+								"Server busy - out of memory for new users, please try again later");
+					}
+					final int batch = Math.max(1,
+							(sessions.size() + getSharedCount())
+									/ HEAP_EVICTION_DIVISOR);
+					int nEvicted = 0;
+					while (nEvicted < batch
+							&& evictOldest(now, victims, passivating)) {
+						nEvicted++;
+					}
+					if (nEvicted == 0) {
+						numRefused++;
+						throw new ServerAdminBusyException(
+								"Server busy - out of memory for new users, please try again later");
+					}
+					numEvicted += nEvicted;
+					heapEvictionCollections = collections;
+				}
+				numAdmitting++;
+				numAdmitted++;
+			}
+		} finally {
+			destroy(victims);
+			passivate(passivating);
+		}
+	}
+
+	/**
+	 * Registers a session for which room was reserved by {@link #admit}.
+	 * 
+	 * @param appSession
+	 *            The new session.
+	 * @param httpSession
+	 *            HTTP session it is bound to.
+	 */
+	public synchronized void add(ApplicationSession appSession,
+			HttpSession httpSession) {
+		numAdmitting--;
+		sessions.put(appSession, httpSession);
+		appSession.setRegistry(this);
+	}
+
+	/**
+	 * Gives back room reserved by {@link #admit} for a session that could not
+	 * be started.
+	 */
+	public synchronized void cancel() {
+		numAdmitting--;
+	}
+
+	/**
+	 * Notes that a session is in use, moving it to the back of the eviction
+	 * order, and activates it if it is passivated. The request using it
+	 * should have begun with {@link ApplicationSession#beginRequest} already,
+	 * so that it cannot be evicted once this returns true.
+	 * 
+	 * @return False if the session has been destroyed or is about to be, or
+	 *         could not be activated and so has been destroyed now.
+	 */
+	public boolean touch(ApplicationSession appSession) {
+		final SessionPassivator passivator;
+		synchronized (this) {
+			if (appSession.isEvicting()) {
+				return false;
+			}
+			appSession.touch();
+			if (sessions.get(appSession) == null) {
+				final Object httpSession = passivatedSessions
+						.remove(appSession);
+				if (httpSession != null) {
+					sessions.put(appSession, httpSession);
+				}
+			}
+			passivator = this.passivator;
+		}
+		if (passivator != null && !passivator.activate(appSession)) {
+			appSession.destroy();
+			return false;
+		}
+		return !appSession.isDestroyed();
+	}
+
+	/**
+	 * Forgets a session, which is called when it is destroyed.
+	 */
+	synchronized void remove(ApplicationSession appSession) {
+		if (sessions.remove(appSession) == null) {
+			passivatedSessions.remove(appSession);
+		}
+	}
+
+	/*
+	 * Takes sessions idle for longer than the timeout, passivated or not
+	 */
+	private void expire(long now, List victims) {
+		if (idleTimeoutMillis <= 0) {
+			return;
+		}
+		Victim victim;
+		while ((victim = takeOldest(now, idleTimeoutMillis)) != null) {
+			victim.appSession.setEvicting();
+			victims.add(victim);
+			numExpired++;
+		}
+		for (Iterator i = passivatedSessions.entrySet().iterator(); i
+				.hasNext();) {
+			final Map.Entry entry = (Map.Entry) i.next();
+			final ApplicationSession appSession = (ApplicationSession) entry
+					.getKey();
+			if (now - appSession.getLastAccessTime() < idleTimeoutMillis) {
+				break;
+			}
+			if (appSession.getActiveRequestCount() > 0) {
+				continue;
+			}
+			i.remove();
+			appSession.setEvicting();
+			victims.add(new Victim(appSession, (HttpSession) entry.getValue()));
+			numExpired++;
+		}
+	}
+
+	private int getSharedCount() {
+		return (sharedSessions == null) ? 0 : sharedSessions.getCachedCount();
+	}
+
+	/*
+	 * Takes the least recently used session that may be evicted to make
+	 * room, to be passivated if there is a passivator, otherwise destroyed.
+	 * Failing that, drops a shared session from the near-cache, which loses
+	 * nothing since it lives on in the store
+	 */
+	private boolean evictOldest(long now, List victims, List passivating) {
+		final Victim victim = takeOldest(now, minIdleMillis);
+		if (victim == null) {
+			return sharedSessions != null
+					&& sharedSessions.evictOldest(now, minIdleMillis);
+		}
+		if (passivator != null) {
+			passivatedSessions.put(victim.appSession, victim.httpSession);
+			passivating.add(victim.appSession);
+		} else {
+			victim.appSession.setEvicting();
+			victims.add(victim);
+		}
+		return true;
+	}
+
+	/*
+	 * Takes the least recently used live session that has been idle for at
+	 * least the given time and has no request in progress or in its mailbox
+	 */
+	private Victim takeOldest(long now, long minIdleMillis) {
+		for (Iterator i = sessions.entrySet().iterator(); i.hasNext();) {
+			final Map.Entry entry = (Map.Entry) i.next();
+			final ApplicationSession appSession = (ApplicationSession) entry
+					.getKey();
+			if (now - appSession.getLastAccessTime() < minIdleMillis) {
+				/*
+				 * The rest were used more recently still
+				 */
+				return null;
+			}
+			if (appSession.getMailbox().getDepth() == 0
+					&& appSession.getActiveRequestCount() == 0) {
+				i.remove();
+				return new Victim(appSession, (HttpSession) entry.getValue());
+			}
+		}
+		return null;
+	}
+
+	/*
+	 * Destroys evicted sessions outside the lock, since that runs listeners
+	 * in the application and in the container
+	 */
+	private void destroy(List victims) {
+		for (Iterator i = victims.iterator(); i.hasNext();) {
+			final Victim victim = (Victim) i.next();
+			try {
+				victim.httpSession
+						.removeAttribute(ApplicationSession.HTTP_SESSION_ATTRIBUTE);
+			} catch (IllegalStateException e) {
+				/*
+				 * HTTP session already invalidated
+				 */
+			}
+			victim.appSession.destroy();
+		}
+	}
+
+	/*
+	 * Passivates sessions outside the lock, putting any that could not be
+	 * passivated back among the live ones
+	 */
+	private void passivate(List passivating) {
+		for (Iterator i = passivating.iterator(); i.hasNext();) {
+			final ApplicationSession appSession = (ApplicationSession) i.next();
+			if (!passivator.passivate(appSession)) {
+				synchronized (this) {
+					final Object httpSession = passivatedSessions
+							.remove(appSession);
+					if (httpSession != null && !appSession.isPassivated()) {
+						sessions.put(appSession, httpSession);
+					} else if (httpSession != null) {
+						passivatedSessions.put(appSession, httpSession);
+					}
+				}
+			}
+		}
+	}
+
+	/*
+	 * Package-private for tests
+	 */
+	boolean isHeapOverBudget() {
+		if (maxHeapPercent <= 0) {
+			return false;
+		}
+		return getHeapUsedAfterCollection() * 100 > Runtime.getRuntime()
+				.maxMemory()
+				* maxHeapPercent;
+	}
+
+	/*
+	 * Heap in use as the last collection of each heap pool left it - pools
+	 * that don't report that count as they are now
+	 */
+	private long getHeapUsedAfterCollection() {
+		long used = 0;
+		for (Iterator i = heapPools.iterator(); i.hasNext();) {
+			final MemoryPoolMXBean pool = (MemoryPoolMXBean) i.next();
+			MemoryUsage usage = pool.getCollectionUsage();
+			if (usage == null) {
+				usage = pool.getUsage();
+			}
+			used += usage.getUsed();
+		}
+		return used;
+	}
+
+	/*
+	 * Number of collections run by all the collectors so far. Package-private
+	 * for tests
+	 */
+	long getCollectionCount() {
+		long count = 0;
+		for (Iterator i = collectors.iterator(); i.hasNext();) {
+			count += Math.max(0, ((GarbageCollectorMXBean) i.next())
+					.getCollectionCount());
+		}
+		return count;
+	}
+
+	/**
+	 * Returns the sessions registered, live and passivated, as they are now.
+	 */
+	public synchronized List getSessions() {
+		final List list = new ArrayList(sessions.keySet());
+		list.addAll(passivatedSessions.keySet());
+		return list;
+	}
+
+	/**
+	 * Returns the number of live sessions, not counting passivated ones.
+	 */
+	public synchronized int getLiveCount() {
+		return sessions.size();
+	}
+
+	/**
+	 * Returns the number of passivated sessions.
+	 */
+	public synchronized int getPassivatedCount() {
+		return passivatedSessions.size();
+	}
+
+	/**
+	 * Returns the number of sessions admitted.
+	 */
+	public synchronized long getAdmittedCount() {
+		return numAdmitted;
+	}
+
+	/**
+	 * Returns the number of sessions refused for lack of room.
+	 */
+	public synchronized long getRefusedCount() {
+		return numRefused;
+	}
+
+	/**
+	 * Returns the number of sessions evicted to make room for new ones,
+	 * whether destroyed or passivated.
+	 */
+	public synchronized long getEvictedCount() {
+		return numEvicted;
+	}
+
+	/**
+	 * Returns the number of sessions evicted for exceeding the idle timeout.
+	 */
+	public synchronized long getExpiredCount() {
+		return numExpired;
+	}
+
+	private static final class Victim {
+		Victim(ApplicationSession appSession, HttpSession httpSession) {
+			this.appSession = appSession;
+			this.httpSession = httpSession;
+		}
+
+		final ApplicationSession appSession;
+
+		final HttpSession httpSession;
+	}
+
+	/*
+	 * Under heap pressure, evict one in this many sessions at a time
+	 */
+	private static final int HEAP_EVICTION_DIVISOR = 16;
+
+	private final int maxSessions;
+
+	private final int maxHeapPercent;
+
+	private final long idleTimeoutMillis;
+
+	private final long minIdleMillis;
+
+	private final Map sessions;
+
+	private final Map passivatedSessions;
+
+	private final List heapPools;
+
+	private final List collectors;
+
+	/*
+	 * Collection count when sessions were last evicted for heap, or -1
+	 */
+	private long heapEvictionCollections;
+
+	private SessionPassivator passivator;
+
+	private SharedSessionCache sharedSessions;
+
+	private long passivateAfterMillis;
+
+	private Timer sweeper;
+
+	private int numAdmitting;
+
+	private long numAdmitted;
+
+	private long numRefused;
+
+	private long numEvicted;
+
+	private long numExpired;
+}
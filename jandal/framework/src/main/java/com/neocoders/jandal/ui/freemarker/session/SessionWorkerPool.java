@@ -0,0 +1,134 @@
+/*
+ * Copyright (C) 2007 Lindsay S. Kay, All rights Reserved.
+ *
+ * This software is provided "as-is", without any express or implied warranty. In no event will the 
+ * author be held liable for any damages arising from the use of this software.
+ *
+ * Permission is granted to anyone to use this software for any purpose, including commercial 
+ * applications, and to alter it and redistribute if freely, subject to the following restrictions:
+ *
+ *  1. The origin of this software must not be misrepresented: you must not claim that you wrote 
+ * 	the original software. if you use this software in a product, an acknowledgement in the product 
+ * 	documentation would be appreciated but is not required.
+ * 
+ *  2. Altered source versions must be plainly marked as such, and must not be misrepresented 
+ * 	as the original software.
+ * 
+  * 3. This notice must not be removed or altered from any source distribution.
+ */
+package com.neocoders.jandal.ui.freemarker.session;
+
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.neocoders.jandal.core.LockWaitHandler;
+
+/**
+ * Fixed pool of daemon threads that run {@link SessionMailbox}es, which
+ * makes up for threads blocked waiting on {@link com.neocoders.jandal.core.Service}
+ * locks.
+ * <p/>
+ * An application may hold a service lock from one request to the next, and
+ * the request that releases it runs on this pool like any other. If threads
+ * waiting for the lock could fill the pool, that request would queue behind
+ * them until their waits timed out. So each thread that is about to wait for
+ * a lock first adds a thread to the pool, which goes again once the wait is
+ * over. The number of threads waiting at once is bounded - beyond that, a
+ * thread gives up on the lock at once rather than wait, as if it had timed
+ * out.
+ * 
+ * @author lindsay
+ * 
+ */
+class SessionWorkerPool extends ThreadPoolExecutor {
+
+	/**
+	 * Creates a pool.
+	 * 
+	 * @param numThreads
+	 *            Threads running mailboxes, not counting those added while
+	 *            others wait for locks.
+	 * @param maxLockWaiters
+	 *            Maximum number of threads waiting for locks at once.
+	 */
+	SessionWorkerPool(int numThreads, int maxLockWaiters) {
+		super(numThreads, numThreads, 0L, TimeUnit.MILLISECONDS,
+				new LinkedBlockingQueue());
+		this.numThreads = numThreads;
+		this.maxLockWaiters = maxLockWaiters;
+		this.handler = new LockWaitHandler() {
+			public boolean beginWait() {
+				return beginLockWait();
+			}
+
+			public void endWait() {
+				endLockWait();
+			}
+		};
+		setThreadFactory(new ThreadFactory() {
+			public Thread newThread(final Runnable r) {
+				final Thread thread = new Thread(new Runnable() {
+					public void run() {
+						LockWaitHandler.setCurrent(handler);
+						r.run();
+					}
+				}, "jandal-session-worker-" + threadCount.incrementAndGet());
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+	}
+
+	private synchronized boolean beginLockWait() {
+		if (numLockWaiters >= maxLockWaiters) {
+			numRefusedWaits++;
+			return false;
+		}
+		numLockWaiters++;
+		/*
+		 * Raising the core size starts a thread for any mailbox queued
+		 */
+		setMaximumPoolSize(numThreads + numLockWaiters);
+		setCorePoolSize(numThreads + numLockWaiters);
+		return true;
+	}
+
+	private synchronized void endLockWait() {
+		numLockWaiters--;
+		/*
+		 * A thread over the core size goes once it is idle
+		 */
+		setCorePoolSize(numThreads + numLockWaiters);
+		setMaximumPoolSize(numThreads + numLockWaiters);
+	}
+
+	/**
+	 * Returns the number of threads waiting for locks now.
+	 */
+	synchronized int getLockWaiterCount() {
+		return numLockWaiters;
+	}
+
+	/**
+	 * Returns the number of lock waits refused because too many threads were
+	 * waiting already.
+	 */
+	synchronized long getRefusedWaitCount() {
+		return numRefusedWaits;
+	}
+
+	private static final AtomicLong threadCount = new AtomicLong();
+
+	private final int numThreads;
+
+	private final int maxLockWaiters;
+
+	private final LockWaitHandler handler;
+
+	private int numLockWaiters;
+
+	private long numRefusedWaits;
+}
@@ -0,0 +1,512 @@
+/*
+ * Copyright (C) 2007 Lindsay S. Kay, All rights Reserved.
+ *
+ * This software is provided "as-is", without any express or implied warranty. In no event will the 
+ * author be held liable for any damages arising from the use of this software.
+ *
+ * Permission is granted to anyone to use this software for any purpose, including commercial 
+ * applications, and to alter it and redistribute if freely, subject to the following restrictions:
+ *
+ *  1. The origin of this software must not be misrepresented: you must not claim that you wrote 
+ * 	the original software. if you use this software in a product, an acknowledgement in the product 
+ * 	documentation would be appreciated but is not required.
+ * 
+ *  2. Altered source versions must be plainly marked as such, and must not be misrepresented 
+ * 	as the original software.
+ * 
+  * 3. This notice must not be removed or altered from any source distribution.
+ */
+package com.neocoders.jandal.ui.freemarker.session;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.neocoders.jandal.core.*;
+
+/**
+ * Shares {@link ApplicationSession}s between servlet instances through an
+ * {@link ApplicationSessionStore}, keeping a bounded near-cache of the
+ * sessions read from it so that each request need not read its session
+ * afresh.
+ * <p/>
+ * On each request, the version of the session in the store is checked against
+ * that of the cached copy, which is used if it is still current, and read
+ * again otherwise. Once the request's view is rendered, and before it is
+ * sent, the session is written back if it has changed - a view event that
+ * updated a {@link Controller}, or a render that moved on a continuation key -
+ * naming the version it was read as. If another instance wrote the session
+ * meanwhile, the write is refused and the copy is dropped, and the servlet
+ * tells the client to start again from the other instance's version instead
+ * of sending the view.
+ * <p/>
+ * Sessions are written in the form {@link SessionPassivator} writes them, so
+ * only those whose {@link Application}s can be passivated can be shared.
+ * Sessions dropped from the cache are not destroyed, since they live on in
+ * the store. The sessions cached count against the servlet's limits on
+ * sessions and heap, and idle ones are dropped to make room for new ones.
+ * 
+ * @author lindsay
+ * 
+ */
+public class SharedSessionCache {
+
+	/**
+	 * Default greatest number of sessions kept in the near-cache.
+	 */
+	public static final int DEFAULT_MAX_CACHED = 1000;
+
+	/**
+	 * Creates a cache.
+	 * 
+	 * @param appFactory
+	 *            Factory that makes the sessions' {@link Application}s.
+	 * @param store
+	 *            Store the sessions are shared through.
+	 * @param maxCached
+	 *            Greatest number of sessions to keep in the near-cache.
+	 * @param workers
+	 *            Threads for the mailboxes of sessions read from the store.
+	 * @param queueDepth
+	 *            Depth of their mailboxes.
+	 * @param fragmentCacheSize
+	 *            Size of their fragment caches, in characters.
+	 */
+	public SharedSessionCache(ApplicationFactory appFactory,
+			ApplicationSessionStore store, int maxCached,
+			ExecutorService workers, int queueDepth, int fragmentCacheSize) {
+		if (maxCached < 1) {
+			throw new IllegalArgumentException(
+					"Cache size is less than one");
+		}
+		this.appFactory = appFactory;
+		this.store = store;
+		this.maxCached = maxCached;
+		this.workers = workers;
+		this.queueDepth = queueDepth;
+		this.fragmentCacheSize = fragmentCacheSize;
+		this.cache = new LinkedHashMap(16, 0.75f, true);
+		this.numHits = new AtomicLong();
+		this.numLoads = new AtomicLong();
+		this.numWrites = new AtomicLong();
+		this.numCleanRequests = new AtomicLong();
+		this.numConflicts = new AtomicLong();
+		this.bytesWritten = new AtomicLong();
+		this.numFailures = new AtomicLong();
+		this.numEvicted = new AtomicLong();
+	}
+
+	/**
+	 * Shares a new session, adding it to the store under a new key.
+	 * 
+	 * @return The key, by which the client names the session from then on.
+	 * @throws JandalCoreException
+	 *             The session's {@link Application} could not be written.
+	 * @throws IOException
+	 *             The store could not be written.
+	 */
+	public String add(ApplicationSession appSession)
+			throws JandalCoreException, IOException {
+		synchronized (appSession) {
+			final byte[] data = write(appSession);
+			String key;
+			long version;
+			do {
+				key = SessionKeys.newKey();
+				version = store.store(key, 0, data);
+			} while (version < 0);
+			appSession.setShared(this, key, version);
+			appSession.setDirty(false);
+			numWrites.incrementAndGet();
+			bytesWritten.addAndGet(data.length);
+			synchronized (cache) {
+				cache.put(key, appSession);
+				trim();
+			}
+			return key;
+		}
+	}
+
+	/**
+	 * Returns the current version of the session with the given key, from the
+	 * near-cache if the copy there is current, otherwise read from the store.
+	 * 
+	 * @param key
+	 *            Key the client names the session by.
+	 * @param url
+	 *            URL of this servlet, for a session read from the store.
+	 * @return The session, or null if the store has none with the key, or has
+	 *         one that could not be read, which is then removed.
+	 * @throws IOException
+	 *             The store could not be read.
+	 */
+	public ApplicationSession get(String key, String url) throws IOException {
+		if (!SessionKeys.isKey(key)) {
+			return null;
+		}
+		final long version = store.getVersion(key);
+		ApplicationSession appSession;
+		synchronized (cache) {
+			appSession = (ApplicationSession) cache.get(key);
+			if (version < 0 && appSession != null) {
+				cache.remove(key);
+			}
+		}
+		if (version < 0) {
+			return null;
+		}
+		if (appSession != null && appSession.getStoreVersion() == version) {
+			numHits.incrementAndGet();
+			appSession.touch();
+			touchIfDue(appSession);
+			return appSession;
+		}
+		final StoredSession stored = store.load(key);
+		if (stored == null) {
+			return null;
+		}
+		try {
+			appSession = read(key, url, stored);
+		} catch (Exception e) {
+			/*
+			 * Can never be read, so the client must start afresh
+			 */
+			numFailures.incrementAndGet();
+			store.remove(key);
+			return null;
+		}
+		numLoads.incrementAndGet();
+		synchronized (cache) {
+			/*
+			 * Another thread may have read it meanwhile
+			 */
+			final ApplicationSession cached = (ApplicationSession) cache
+					.get(key);
+			if (cached != null
+					&& cached.getStoreVersion() >= stored.getVersion()) {
+				cached.touch();
+				return cached;
+			}
+			cache.put(key, appSession);
+			trim();
+		}
+		return appSession;
+	}
+
+	/**
+	 * Drops from the near-cache the least recently used session that has been
+	 * idle for at least the given time, has nothing in its mailbox and has
+	 * been written back, to make room for another. Its version in the store is
+	 * untouched, to be read again when next used.
+	 * 
+	 * @return False if no session could be dropped.
+	 */
+	public boolean evictOldest(long now, long minIdleMillis) {
+		synchronized (cache) {
+			for (Iterator i = cache.values().iterator(); i.hasNext();) {
+				final ApplicationSession appSession = (ApplicationSession) i
+						.next();
+				if (now - appSession.getLastAccessTime() < minIdleMillis) {
+					/*
+					 * The rest were used more recently still
+					 */
+					return false;
+				}
+				if (appSession.getMailbox().getDepth() == 0
+						&& appSession.getActiveRequestCount() == 0
+						&& !appSession.isDirty()) {
+					i.remove();
+					numEvicted.incrementAndGet();
+					return true;
+				}
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Writes a shared session back to the store if it has changed since it
+	 * was last read or written. To be called once a request on it is done,
+	 * while no other is.
+	 * 
+	 * @return False if another servlet instance wrote the session first, in
+	 *         which case this copy has been dropped.
+	 * @throws JandalCoreException
+	 *             The session's {@link Application} could not be written.
+	 * @throws IOException
+	 *             The store could not be written.
+	 */
+	public boolean writeBack(ApplicationSession appSession)
+			throws JandalCoreException, IOException {
+		if (appSession.getSharedSessions() != this) {
+			return true;
+		}
+		if (!appSession.isDirty()) {
+			numCleanRequests.incrementAndGet();
+			return true;
+		}
+		synchronized (appSession) {
+			if (appSession.isDestroyed()) {
+				return true;
+			}
+			/*
+			 * Cleared first, so that changes made while writing are caught
+			 * next time
+			 */
+			appSession.setDirty(false);
+			final byte[] data;
+			try {
+				data = write(appSession);
+			} catch (JandalCoreException e) {
+				appSession.setDirty(true);
+				throw e;
+			}
+			final long version = store.store(appSession.getStoreKey(),
+					appSession.getStoreVersion(), data);
+			if (version < 0) {
+				numConflicts.incrementAndGet();
+				drop(appSession);
+				return false;
+			}
+			appSession.setStoreVersion(version);
+			numWrites.incrementAndGet();
+			bytesWritten.addAndGet(data.length);
+			return true;
+		}
+	}
+
+	/*
+	 * Removes a destroyed session from the cache and the store
+	 */
+	void remove(ApplicationSession appSession) {
+		drop(appSession);
+		try {
+			store.remove(appSession.getStoreKey());
+		} catch (IOException e) {
+			/*
+			 * Purged later
+			 */
+		}
+	}
+
+	private void drop(ApplicationSession appSession) {
+		synchronized (cache) {
+			if (cache.get(appSession.getStoreKey()) == appSession) {
+				cache.remove(appSession.getStoreKey());
+			}
+		}
+	}
+
+	/*
+	 * Drops the least recently used sessions beyond the cache's size - called
+	 * with the cache locked
+	 */
+	private void trim() {
+		while (cache.size() > maxCached) {
+			cache.remove(cache.keySet().iterator().next());
+		}
+	}
+
+	/*
+	 * Keeps a session that is used but not changed from being purged
+	 */
+	private void touchIfDue(ApplicationSession appSession) throws IOException {
+		final long interval = touchInterval;
+		final long now = System.currentTimeMillis();
+		if (interval > 0 && now - appSession.getStoreTime() > interval) {
+			appSession.setStoreTime(now);
+			store.touch(appSession.getStoreKey());
+		}
+	}
+
+	private byte[] write(ApplicationSession appSession)
+			throws JandalCoreException {
+		final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		try {
+			bytes.write(appSession.getEmbedded() ? 1 : 0);
+			SessionPassivator.write(appFactory, appSession, bytes);
+		} catch (IOException e) {
+			throw new JandalCoreException("Failed to write session: "
+					+ e.getMessage(), e);
+		}
+		return bytes.toByteArray();
+	}
+
+	private ApplicationSession read(String key, String url,
+			StoredSession stored) throws JandalCoreException, IOException {
+		final ByteArrayInputStream in = new ByteArrayInputStream(stored
+				.getData());
+		final ApplicationSession appSession = new ApplicationSession(url, in
+				.read() == 1, new SessionMailbox(workers, queueDepth),
+				new FragmentCache(fragmentCacheSize));
+		SessionPassivator.read(appFactory, appSession, in);
+		appSession.touch();
+		appSession.setShared(this, key, stored.getVersion());
+		appSession.setDirty(false);
+		return appSession;
+	}
+
+	/**
+	 * Starts a daemon thread that periodically removes from the store the
+	 * sessions that have not been used within the given time, by this or any
+	 * other servlet instance sharing the store.
+	 */
+	public synchronized void startPurger(final long maxIdleMillis) {
+		if (purger != null) {
+			return;
+		}
+		touchInterval = maxIdleMillis / 4;
+		purger = new Timer("jandal-session-purger", true);
+		purger.schedule(new TimerTask() {
+			public void run() {
+				try {
+					store.purge(maxIdleMillis);
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+			}
+		}, maxIdleMillis / 2, maxIdleMillis / 2);
+	}
+
+	/**
+	 * Stops the purger and closes the store, dropping the cached sessions
+	 * without destroying them.
+	 */
+	public synchronized void shutdown() {
+		if (purger != null) {
+			purger.cancel();
+			purger = null;
+		}
+		synchronized (cache) {
+			cache.clear();
+		}
+		store.close();
+	}
+
+	/**
+	 * Returns the store the sessions are shared through.
+	 */
+	public ApplicationSessionStore getStore() {
+		return store;
+	}
+
+	/**
+	 * Returns the sessions in the near-cache, as they are now.
+	 */
+	public List getSessions() {
+		synchronized (cache) {
+			return new ArrayList(cache.values());
+		}
+	}
+
+	/**
+	 * Returns the number of sessions dropped from the near-cache to make room
+	 * for new sessions.
+	 */
+	public long getEvictedCount() {
+		return numEvicted.get();
+	}
+
+	/**
+	 * Returns the number of sessions in the near-cache.
+	 */
+	public int getCachedCount() {
+		synchronized (cache) {
+			return cache.size();
+		}
+	}
+
+	/**
+	 * Returns the number of times a current session was found in the
+	 * near-cache.
+	 */
+	public long getHitCount() {
+		return numHits.get();
+	}
+
+	/**
+	 * Returns the number of times a session was read from the store.
+	 */
+	public long getLoadCount() {
+		return numLoads.get();
+	}
+
+	/**
+	 * Returns the number of times a session was written to the store.
+	 */
+	public long getWriteCount() {
+		return numWrites.get();
+	}
+
+	/**
+	 * Returns the number of requests after which a session did not need
+	 * writing back.
+	 */
+	public long getCleanRequestCount() {
+		return numCleanRequests.get();
+	}
+
+	/**
+	 * Returns the number of write-backs refused because another servlet
+	 * instance wrote the session first.
+	 */
+	public long getConflictCount() {
+		return numConflicts.get();
+	}
+
+	/**
+	 * Returns the number of sessions in the store that could not be read.
+	 */
+	public long getFailureCount() {
+		return numFailures.get();
+	}
+
+	/**
+	 * Returns the number of bytes written to the store.
+	 */
+	public long getBytesWritten() {
+		return bytesWritten.get();
+	}
+
+	private final ApplicationFactory appFactory;
+
+	private final ApplicationSessionStore store;
+
+	private final int maxCached;
+
+	private final ExecutorService workers;
+
+	private final int queueDepth;
+
+	private final int fragmentCacheSize;
+
+	private final LinkedHashMap cache;
+
+	private Timer purger;
+
+	private volatile long touchInterval;
+
+	private final AtomicLong numEvicted;
+
+	private final AtomicLong numHits;
+
+	private final AtomicLong numLoads;
+
+	private final AtomicLong numWrites;
+
+	private final AtomicLong numCleanRequests;
+
+	private final AtomicLong numConflicts;
+
+	private final AtomicLong bytesWritten;
+
+	private final AtomicLong numFailures;
+}
@@ -0,0 +1,92 @@
+/*
+ * Copyright (C) 2007 Lindsay S. Kay, All rights Reserved.
+ *
+ * This software is provided "as-is", without any express or implied warranty. In no event will the 
+ * author be held liable for any damages arising from the use of this software.
+ *
+ * Permission is granted to anyone to use this software for any purpose, including commercial 
+ * applications, and to alter it and redistribute if freely, subject to the following restrictions:
+ *
+ *  1. The origin of this software must not be misrepresented: you must not claim that you wrote 
+ * 	the original software. if you use this software in a product, an acknowledgement in the product 
+ * 	documentation would be appreciated but is not required.
+ * 
+ *  2. Altered source versions must be plainly marked as such, and must not be misrepresented 
+ * 	as the original software.
+ * 
+  * 3. This notice must not be removed or altered from any source distribution.
+ */
+package com.neocoders.jandal.core;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests publishing of {@link ApplicationSnapshot}s.
+ * 
+ * @author lindsay
+ * 
+ */
+public class ApplicationSnapshotTest extends TestCase {
+
+	/**
+	 * Stopping a subtree outside any event publishes once for the whole
+	 * subtree, not once for each {@link Controller} in it.
+	 */
+	public void testSubtreeStopPublishesOnce() throws Exception {
+		final Application app = newApplication();
+		app.start();
+		final long version = app.getApplicationSnapshot().getVersion();
+		final Controller leaf = app.getControllerOnPath("root.branch.leaf");
+		app.stop();
+		assertEquals(version + 1, app.getApplicationSnapshot().getVersion());
+		assertSame(leaf.getOutputSnapshot(), app.getApplicationSnapshot()
+				.getOutputSnapshot(leaf));
+	}
+
+	/**
+	 * Starting an {@link Application} publishes its whole tree together.
+	 */
+	public void testStartPublishesOnce() throws Exception {
+		final Application app = newApplication();
+		final long version = app.getApplicationSnapshot().getVersion();
+		app.start();
+		assertEquals(version + 1, app.getApplicationSnapshot().getVersion());
+	}
+
+	private static Application newApplication() {
+		final Application app = new TreeApplication();
+		app.init(new ServiceSet(), new Params());
+		return app;
+	}
+
+	private static class TreeApplication extends Application {
+
+		protected void onStart() throws JandalCoreException {
+			setRootController(new NodeController("root", 2));
+		}
+	}
+
+	private static class NodeController extends Controller {
+
+		NodeController(String name, int depth) throws JandalCoreException {
+			super(name);
+			this.depth = depth;
+		}
+
+		protected void onStart() throws JandalCoreException {
+			addInitialState(new State("running") {
+				protected void onEntry() throws JandalCoreException {
+					setOutput("depth", Integer.valueOf(depth));
+					if (depth > 0) {
+						addChildController(new NodeController(
+								(depth == 2) ? "branch" : "leaf", depth - 1));
+						addChildController(new NodeController("other",
+								depth - 1));
+					}
+				}
+			});
+		}
+
+		private final int depth;
+	}
+}
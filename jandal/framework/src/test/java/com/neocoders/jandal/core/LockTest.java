@@ -0,0 +1,208 @@
+/*
+ * Copyright (C) 2007 Lindsay S. Kay, All rights Reserved.
+ *
+ * This software is provided "as-is", without any express or implied warranty. In no event will the 
+ * author be held liable for any damages arising from the use of this software.
+ *
+ * Permission is granted to anyone to use this software for any purpose, including commercial 
+ * applications, and to alter it and redistribute if freely, subject to the following restrictions:
+ *
+ *  1. The origin of this software must not be misrepresented: you must not claim that you wrote 
+ * 	the original software. if you use this software in a product, an acknowledgement in the product 
+ * 	documentation would be appreciated but is not required.
+ * 
+ *  2. Altered source versions must be plainly marked as such, and must not be misrepresented 
+ * 	as the original software.
+ * 
+  * 3. This notice must not be removed or altered from any source distribution.
+ */
+package com.neocoders.jandal.core;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests for {@link Lock}: exclusive and shared holds, the order waiters are
+ * granted in, writer preference, timeouts and interruption.
+ * 
+ * @author lindsay
+ * 
+ */
+public class LockTest extends TestCase {
+
+	public void testExclusiveIsReentrant() {
+		final Lock lock = new Lock();
+		assertTrue(lock.tryAcquire("a"));
+		assertTrue(lock.tryAcquire("a"));
+		assertFalse(lock.tryAcquire("b"));
+		assertFalse(lock.tryAcquireShared("b"));
+		lock.release();
+		assertFalse(lock.isLocked());
+		assertTrue(lock.tryAcquire("b"));
+	}
+
+	public void testSharedHolds() {
+		final Lock lock = new Lock();
+		assertTrue(lock.tryAcquireShared("a"));
+		assertTrue(lock.tryAcquireShared("a"));
+		assertTrue(lock.tryAcquireShared("b"));
+		assertEquals(2, lock.getSharedHolderCount());
+		assertFalse(lock.tryAcquire("c"));
+
+		lock.releaseShared("b");
+		lock.releaseShared("a");
+		assertFalse("Granted while a reader is in", lock.tryAcquire("c"));
+		assertTrue(lock.tryAcquire("a"));
+		lock.release();
+		lock.releaseShared("a");
+		assertFalse(lock.isLocked());
+	}
+
+	public void testReleaseIfHeld() {
+		final Lock lock = new Lock();
+		lock.tryAcquireShared("a");
+		lock.tryAcquireShared("a");
+		lock.releaseIfHeld("a");
+		assertFalse(lock.isLocked());
+		lock.tryAcquire("b");
+		lock.releaseIfHeld("a");
+		assertTrue(lock.isLocked());
+		lock.releaseIfHeld("b");
+		assertFalse(lock.isLocked());
+	}
+
+	public void testTimeout() {
+		final Lock lock = new Lock();
+		lock.tryAcquire("a");
+		final long start = System.currentTimeMillis();
+		assertFalse(lock.acquire("b", 100L));
+		assertTrue(System.currentTimeMillis() - start >= 90L);
+		assertFalse(lock.acquireShared("b", 20L));
+		assertEquals(0, lock.getQueueLength());
+		lock.release();
+		assertTrue(lock.acquire("b", 100L));
+	}
+
+	public void testInterruptGivesUp() throws Exception {
+		final Lock lock = new Lock();
+		lock.tryAcquire("a");
+		final Acquirer waiter = new Acquirer(lock, "b", false, null);
+		waiter.start();
+		awaitQueueLength(lock, 1);
+		waiter.interrupt();
+		waiter.join(5000L);
+		assertFalse(waiter.acquired);
+		assertTrue(waiter.interrupted);
+		assertEquals(0, lock.getQueueLength());
+	}
+
+	/**
+	 * A fair lock is granted to queued writers in the order they arrived.
+	 */
+	public void testFairGrantsInOrder() throws Exception {
+		final Lock lock = new Lock(true);
+		lock.tryAcquire("holder");
+		final List order = Collections.synchronizedList(new ArrayList());
+		final Acquirer[] waiters = new Acquirer[4];
+		for (int i = 0; i < waiters.length; i++) {
+			waiters[i] = new Acquirer(lock, "w" + i, false, order);
+			waiters[i].start();
+			awaitQueueLength(lock, i + 1);
+		}
+		assertFalse("Fair lock granted ahead of the queue", lock
+				.tryAcquire("late"));
+		lock.release();
+		for (int i = 0; i < waiters.length; i++) {
+			waiters[i].join(5000L);
+			assertTrue(waiters[i].acquired);
+		}
+		assertEquals(Arrays.asList(new String[] { "w0", "w1", "w2",
+				"w3" }), order);
+	}
+
+	/**
+	 * Once a writer is queued, new readers wait behind it while readers
+	 * already in may come back in, and the writer gets the lock as soon as
+	 * the last of them leaves.
+	 */
+	public void testWriterPreferred() throws Exception {
+		final Lock lock = new Lock();
+		lock.tryAcquireShared("r1");
+		final List order = Collections.synchronizedList(new ArrayList());
+		final Acquirer writer = new Acquirer(lock, "w", false, order);
+		writer.start();
+		awaitQueueLength(lock, 1);
+
+		assertFalse("New reader admitted ahead of queued writer", lock
+				.tryAcquireShared("r2"));
+		final Acquirer reader = new Acquirer(lock, "r2", true, order);
+		reader.start();
+		awaitQueueLength(lock, 2);
+		assertTrue(lock.tryAcquireShared("r1"));
+
+		lock.releaseShared("r1");
+		assertTrue(writer.isAlive());
+		lock.releaseShared("r1");
+		writer.join(5000L);
+		reader.join(5000L);
+		assertTrue(writer.acquired);
+		assertTrue(reader.acquired);
+		assertEquals("w", order.get(0));
+		assertEquals("r2", order.get(1));
+	}
+
+	private static void awaitQueueLength(Lock lock, int length)
+			throws InterruptedException {
+		final long deadline = System.currentTimeMillis() + 5000L;
+		while (lock.getQueueLength() < length) {
+			assertTrue("Waiter never queued",
+					System.currentTimeMillis() < deadline);
+			Thread.sleep(5L);
+		}
+	}
+
+	/*
+	 * Waits for the lock, notes its ID in the given list once it gets it,
+	 * then releases it
+	 */
+	private static class Acquirer extends Thread {
+
+		Acquirer(Lock lock, String appId, boolean shared, List order) {
+			this.lock = lock;
+			this.appId = appId;
+			this.shared = shared;
+			this.order = order;
+		}
+
+		public void run() {
+			acquired = shared ? lock.acquireShared(appId, 10000L) : lock
+					.acquire(appId);
+			interrupted = Thread.currentThread().isInterrupted();
+			if (!acquired) {
+				return;
+			}
+			order.add(appId);
+			if (shared) {
+				lock.releaseShared(appId);
+			} else {
+				lock.release();
+			}
+		}
+
+		private final Lock lock;
+
+		private final String appId;
+
+		private final boolean shared;
+
+		private final List order;
+
+		volatile boolean acquired;
+
+		volatile boolean interrupted;
+	}
+}
@@ -0,0 +1,130 @@
+/*
+ * Copyright (C) 2007 Lindsay S. Kay, All rights Reserved.
+ *
+ * This software is provided "as-is", without any express or implied warranty. In no event will the 
+ * author be held liable for any damages arising from the use of this software.
+ *
+ * Permission is granted to anyone to use this software for any purpose, including commercial 
+ * applications, and to alter it and redistribute if freely, subject to the following restrictions:
+ *
+ *  1. The origin of this software must not be misrepresented: you must not claim that you wrote 
+ * 	the original software. if you use this software in a product, an acknowledgement in the product 
+ * 	documentation would be appreciated but is not required.
+ * 
+ *  2. Altered source versions must be plainly marked as such, and must not be misrepresented 
+ * 	as the original software.
+ * 
+  * 3. This notice must not be removed or altered from any source distribution.
+ */
+package com.neocoders.jandal.core;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests for writing whole {@link Resource}s and ranges of them, from a file
+ * channel, from an array and from a plain stream.
+ * 
+ * @author lindsay
+ * 
+ */
+public class ResourceTest extends TestCase {
+
+	protected void setUp() throws Exception {
+		content = new byte[200 * 1024 + 17];
+		for (int i = 0; i < content.length; i++) {
+			content[i] = (byte) (i * 31);
+		}
+		file = File.createTempFile("jandal", ".resource");
+		final FileOutputStream out = new FileOutputStream(file);
+		try {
+			out.write(content);
+		} finally {
+			out.close();
+		}
+	}
+
+	protected void tearDown() throws Exception {
+		file.delete();
+	}
+
+	public void testFileToStream() throws Exception {
+		checkRanges(new FileResource(file));
+	}
+
+	public void testByteArray() throws Exception {
+		checkRanges(new ByteArrayResource("r.bin", content));
+	}
+
+	public void testInputStream() throws Exception {
+		checkRanges(new Resource("r.bin") {
+			public InputStream getInputStream() throws JandalCoreException {
+				try {
+					return new FileInputStream(file);
+				} catch (IOException e) {
+					throw new JandalCoreException("", e);
+				}
+			}
+		});
+	}
+
+	public void testFileToFile() throws Exception {
+		final File copy = File.createTempFile("jandal", ".copy");
+		try {
+			final FileOutputStream out = new FileOutputStream(copy);
+			try {
+				new FileResource(file).write(out, 100, 70000);
+			} finally {
+				out.close();
+			}
+			assertEquals(70000, copy.length());
+			final byte[] copied = new byte[70000];
+			final FileInputStream in = new FileInputStream(copy);
+			try {
+				int n = 0;
+				while (n < copied.length) {
+					n += in.read(copied, n, copied.length - n);
+				}
+			} finally {
+				in.close();
+			}
+			assertTrue(Arrays.equals(slice(100, 70000), copied));
+		} finally {
+			copy.delete();
+		}
+	}
+
+	private void checkRanges(Resource resource) throws Exception {
+		assertTrue(Arrays.equals(content, write(resource, 0, -1)));
+		assertTrue(Arrays.equals(slice(0, 10), write(resource, 0, 10)));
+		assertTrue(Arrays.equals(slice(65530, 65550),
+				write(resource, 65530, 65550)));
+		assertTrue(Arrays.equals(slice(content.length - 5, 5), write(resource,
+				content.length - 5, 1000)));
+		assertEquals(0, write(resource, content.length, -1).length);
+	}
+
+	private static byte[] write(Resource resource, long offset, long length)
+			throws JandalCoreException {
+		final ByteArrayOutputStream out = new ByteArrayOutputStream();
+		resource.write(out, offset, length);
+		return out.toByteArray();
+	}
+
+	private byte[] slice(int offset, int length) {
+		final byte[] slice = new byte[length];
+		System.arraycopy(content, offset, slice, 0, length);
+		return slice;
+	}
+
+	private byte[] content;
+
+	private File file;
+}
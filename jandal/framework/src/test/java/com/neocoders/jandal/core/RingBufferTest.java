@@ -0,0 +1,125 @@
+/*
+ * Copyright (C) 2007 Lindsay S. Kay, All rights Reserved.
+ *
+ * This software is provided "as-is", without any express or implied warranty. In no event will the 
+ * author be held liable for any damages arising from the use of this software.
+ *
+ * Permission is granted to anyone to use this software for any purpose, including commercial 
+ * applications, and to alter it and redistribute if freely, subject to the following restrictions:
+ *
+ *  1. The origin of this software must not be misrepresented: you must not claim that you wrote 
+ * 	the original software. if you use this software in a product, an acknowledgement in the product 
+ * 	documentation would be appreciated but is not required.
+ * 
+ *  2. Altered source versions must be plainly marked as such, and must not be misrepresented 
+ * 	as the original software.
+ * 
+  * 3. This notice must not be removed or altered from any source distribution.
+ */
+package com.neocoders.jandal.core;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests for {@link RingBuffer}, single-threaded and with concurrent producers
+ * and consumers.
+ * 
+ * @author lindsay
+ * 
+ */
+public class RingBufferTest extends TestCase {
+
+	public void testCapacityRoundsUpToPowerOfTwo() {
+		assertEquals(1, new RingBuffer(1).capacity());
+		assertEquals(4, new RingBuffer(3).capacity());
+		assertEquals(8, new RingBuffer(8).capacity());
+		assertEquals(1024, new RingBuffer(1000).capacity());
+		try {
+			new RingBuffer(0);
+			fail("Zero capacity accepted");
+		} catch (IllegalArgumentException e) {
+		}
+	}
+
+	public void testFifoAndFull() {
+		final RingBuffer ring = new RingBuffer(4);
+		assertTrue(ring.isEmpty());
+		assertNull(ring.poll());
+		for (int i = 0; i < 4; i++) {
+			assertTrue(ring.offer(Integer.valueOf(i)));
+		}
+		assertEquals(4, ring.size());
+		assertFalse("Offered to a full ring", ring.offer("x"));
+		for (int i = 0; i < 4; i++) {
+			assertEquals(Integer.valueOf(i), ring.poll());
+		}
+		assertNull(ring.poll());
+		assertTrue(ring.isEmpty());
+	}
+
+	public void testWrapsAround() {
+		final RingBuffer ring = new RingBuffer(4);
+		for (int i = 0; i < 1000; i++) {
+			assertTrue(ring.offer(Integer.valueOf(i)));
+			assertTrue(ring.offer(Integer.valueOf(-i)));
+			assertEquals(Integer.valueOf(i), ring.poll());
+			assertEquals(Integer.valueOf(-i), ring.poll());
+		}
+		assertEquals(0, ring.size());
+	}
+
+	/*
+	 * Every element offered by several producers is polled exactly once by
+	 * several consumers
+	 */
+	public void testConcurrentProducersAndConsumers() throws Exception {
+		final int producers = 4;
+		final int perProducer = 20000;
+		final RingBuffer ring = new RingBuffer(64);
+		final List polled = Collections.synchronizedList(new ArrayList());
+		final Thread[] threads = new Thread[producers * 2];
+		for (int p = 0; p < producers; p++) {
+			final int base = p * perProducer;
+			threads[p] = new Thread() {
+				public void run() {
+					for (int i = 0; i < perProducer; i++) {
+						final Integer element = Integer.valueOf(base + i);
+						while (!ring.offer(element)) {
+							Thread.yield();
+						}
+					}
+				}
+			};
+			threads[producers + p] = new Thread() {
+				public void run() {
+					for (int i = 0; i < perProducer; i++) {
+						Object element;
+						while ((element = ring.poll()) == null) {
+							Thread.yield();
+						}
+						polled.add(element);
+					}
+				}
+			};
+		}
+		for (int i = 0; i < threads.length; i++) {
+			threads[i].start();
+		}
+		for (int i = 0; i < threads.length; i++) {
+			threads[i].join(60000L);
+			assertFalse("Thread stuck", threads[i].isAlive());
+		}
+		assertTrue(ring.isEmpty());
+		assertEquals(producers * perProducer, polled.size());
+		final boolean[] seen = new boolean[producers * perProducer];
+		for (int i = 0; i < seen.length; i++) {
+			final int element = ((Integer) polled.get(i)).intValue();
+			assertFalse("Polled twice: " + element, seen[element]);
+			seen[element] = true;
+		}
+	}
+}
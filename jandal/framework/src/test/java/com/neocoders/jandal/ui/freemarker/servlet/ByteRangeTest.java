@@ -0,0 +1,76 @@
+/*
+ * Copyright (C) 2007 Lindsay S. Kay, All rights Reserved.
+ *
+ * This software is provided "as-is", without any express or implied warranty. In no event will the 
+ * author be held liable for any damages arising from the use of this software.
+ *
+ * Permission is granted to anyone to use this software for any purpose, including commercial 
+ * applications, and to alter it and redistribute if freely, subject to the following restrictions:
+ *
+ *  1. The origin of this software must not be misrepresented: you must not claim that you wrote 
+ * 	the original software. if you use this software in a product, an acknowledgement in the product 
+ * 	documentation would be appreciated but is not required.
+ * 
+ *  2. Altered source versions must be plainly marked as such, and must not be misrepresented 
+ * 	as the original software.
+ * 
+  * 3. This notice must not be removed or altered from any source distribution.
+ */
+package com.neocoders.jandal.ui.freemarker.servlet;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests for {@link ByteRange}.
+ * 
+ * @author lindsay
+ * 
+ */
+public class ByteRangeTest extends TestCase {
+
+	public void testIgnored() {
+		assertNull(ByteRange.parse(null, 100));
+		assertNull(ByteRange.parse("items=0-9", 100));
+		assertNull(ByteRange.parse("bytes=0-9,20-29", 100));
+		assertNull(ByteRange.parse("bytes=9", 100));
+		assertNull(ByteRange.parse("bytes=-", 100));
+		assertNull(ByteRange.parse("bytes=a-9", 100));
+		assertNull(ByteRange.parse("bytes=9-0", 100));
+	}
+
+	public void testFirstToLast() {
+		assertRange(0, 9, ByteRange.parse("bytes=0-9", 100));
+		assertRange(10, 99, ByteRange.parse(" bytes=10- ", 100));
+		assertRange(90, 99, ByteRange.parse("bytes=90-500", 100));
+		assertRange(99, 99, ByteRange.parse("bytes=99-99", 100));
+		assertEquals(10, ByteRange.parse("bytes=0-9", 100).getLength());
+	}
+
+	public void testSuffix() {
+		assertRange(90, 99, ByteRange.parse("bytes=-10", 100));
+		assertRange(0, 99, ByteRange.parse("bytes=-500", 100));
+		assertSame(ByteRange.UNSATISFIABLE, ByteRange.parse("bytes=-0", 100));
+	}
+
+	public void testUnsatisfiable() {
+		assertSame(ByteRange.UNSATISFIABLE, ByteRange.parse("bytes=100-", 100));
+		assertSame(ByteRange.UNSATISFIABLE, ByteRange.parse("bytes=200-300",
+				100));
+	}
+
+	/*
+	 * Nothing of empty content can be sent, suffix range or not
+	 */
+	public void testEmptyContent() {
+		assertSame(ByteRange.UNSATISFIABLE, ByteRange.parse("bytes=0-", 0));
+		assertSame(ByteRange.UNSATISFIABLE, ByteRange.parse("bytes=0-9", 0));
+		assertSame(ByteRange.UNSATISFIABLE, ByteRange.parse("bytes=-10", 0));
+	}
+
+	private static void assertRange(long first, long last, ByteRange range) {
+		assertNotNull(range);
+		assertNotSame(ByteRange.UNSATISFIABLE, range);
+		assertEquals(first, range.getFirst());
+		assertEquals(last, range.getLast());
+	}
+}
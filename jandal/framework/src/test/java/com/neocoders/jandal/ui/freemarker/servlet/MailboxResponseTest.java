@@ -0,0 +1,269 @@
+/*
+ * Copyright (C) 2007 Lindsay S. Kay, All rights Reserved.
+ *
+ * This software is provided "as-is", without any express or implied warranty. In no event will the 
+ * author be held liable for any damages arising from the use of this software.
+ *
+ * Permission is granted to anyone to use this software for any purpose, including commercial 
+ * applications, and to alter it and redistribute if freely, subject to the following restrictions:
+ *
+ *  1. The origin of this software must not be misrepresented: you must not claim that you wrote 
+ * 	the original software. if you use this software in a product, an acknowledgement in the product 
+ * 	documentation would be appreciated but is not required.
+ * 
+ *  2. Altered source versions must be plainly marked as such, and must not be misrepresented 
+ * 	as the original software.
+ * 
+  * 3. This notice must not be removed or altered from any source distribution.
+ */
+package com.neocoders.jandal.ui.freemarker.servlet;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import javax.servlet.ServletOutputStream;
+import javax.servlet.http.HttpServletResponse;
+
+import junit.framework.TestCase;
+
+import com.neocoders.jandal.ui.freemarker.session.SessionMailbox;
+
+/**
+ * Runs work in a {@link SessionMailbox} against a {@link MailboxResponse},
+ * checking that only the waiting thread writes the real response.
+ * 
+ * @author lindsay
+ * 
+ */
+public class MailboxResponseTest extends TestCase {
+
+	protected void setUp() {
+		workers = SessionMailbox.newWorkerPool(1);
+		mailbox = new SessionMailbox(workers, 4);
+		real = new MockResponse();
+	}
+
+	protected void tearDown() {
+		workers.shutdown();
+	}
+
+	/**
+	 * A flush reaches the client while the work is still running, and the
+	 * rest goes once it is done.
+	 */
+	public void testFlushStreams() throws Exception {
+		final Object result = run(new Work() {
+			Object run(HttpServletResponse response) throws Exception {
+				response.setContentType("text/html");
+				final OutputStream out = response.getOutputStream();
+				out.write("head".getBytes());
+				out.flush();
+				assertTrue(response.isCommitted());
+				final long deadline = System.currentTimeMillis() + 5000L;
+				while (!"head".equals(real.getBody())) {
+					assertTrue("Flush not forwarded",
+							System.currentTimeMillis() < deadline);
+					Thread.sleep(5L);
+				}
+				out.write("tail".getBytes());
+				return "done";
+			}
+		});
+		assertEquals("done", result);
+		assertEquals("headtail", real.getBody());
+		assertEquals("text/html", real.headers.get("Content-Type"));
+		assertOnlyThisThread();
+	}
+
+	public void testLargeBodyGoesInChunks() throws Exception {
+		final byte[] bytes = new byte[8 * 1024];
+		run(new Work() {
+			Object run(HttpServletResponse response) throws Exception {
+				for (int i = 0; i < 25; i++) {
+					response.getOutputStream().write(bytes);
+				}
+				return null;
+			}
+		});
+		assertEquals(25 * bytes.length, real.body.size());
+		assertTrue(real.numWrites > 1);
+		assertOnlyThisThread();
+	}
+
+	/**
+	 * What a failed piece of work left unsent is dropped, so that an error
+	 * can be sent in its place.
+	 */
+	public void testUncommittedDroppedOnFailure() throws Exception {
+		try {
+			run(new Work() {
+				Object run(HttpServletResponse response) throws Exception {
+					response.setContentType("text/html");
+					response.getWriter().print("partial");
+					throw new IllegalStateException("Render failed");
+				}
+			});
+			fail("Failure not passed on");
+		} catch (IllegalStateException e) {
+			assertEquals("Render failed", e.getMessage());
+		}
+		assertEquals("", real.getBody());
+		assertTrue(real.headers.isEmpty());
+	}
+
+	public void testWriterFlushedAtEnd() throws Exception {
+		run(new Work() {
+			Object run(HttpServletResponse response) throws Exception {
+				response.setContentType("text/plain; charset=UTF-8");
+				response.getWriter().print("caf\u00e9");
+				return null;
+			}
+		});
+		assertEquals("caf\u00e9", new String(real.body.toByteArray(),
+				"UTF-8"));
+	}
+
+	/**
+	 * Once the waiting thread is interrupted, work that runs on can no
+	 * longer write, and the real response is left alone.
+	 */
+	public void testInterruptAbandons() throws Exception {
+		final CountDownLatch started = new CountDownLatch(1);
+		final CountDownLatch resume = new CountDownLatch(1);
+		final CountDownLatch finished = new CountDownLatch(1);
+		final Throwable[] writeFailure = new Throwable[1];
+		final MailboxResponse response = new MailboxResponse(real.proxy);
+		final Future future = mailbox.submit(new Callable() {
+			public Object call() throws Exception {
+				started.countDown();
+				resume.await();
+				try {
+					response.getOutputStream().write(new byte[64 * 1024]);
+				} catch (IOException e) {
+					writeFailure[0] = e;
+				}
+				finished.countDown();
+				return null;
+			}
+		}, new Runnable() {
+			public void run() {
+				response.finish();
+			}
+		});
+		assertTrue(started.await(5, TimeUnit.SECONDS));
+		Thread.currentThread().interrupt();
+		try {
+			response.forward(mailbox, future);
+			fail("Interrupt ignored");
+		} catch (InterruptedException e) {
+		}
+		resume.countDown();
+		assertTrue(finished.await(5, TimeUnit.SECONDS));
+		assertNotNull("Abandoned response still written", writeFailure[0]);
+		assertEquals(0, real.body.size());
+		assertTrue(real.threads.isEmpty());
+	}
+
+	private Object run(final Work work) throws Exception {
+		final MailboxResponse response = new MailboxResponse(real.proxy);
+		final Future future = mailbox.submit(new Callable() {
+			public Object call() throws Exception {
+				return work.run(response);
+			}
+		}, new Runnable() {
+			public void run() {
+				response.finish();
+			}
+		});
+		return response.forward(mailbox, future);
+	}
+
+	private void assertOnlyThisThread() {
+		assertEquals(Collections.singleton(Thread.currentThread()),
+				real.threads);
+	}
+
+	private static abstract class Work {
+		abstract Object run(HttpServletResponse response) throws Exception;
+	}
+
+	/*
+	 * Records the headers and body written to a response, and the threads
+	 * that wrote them
+	 */
+	private static final class MockResponse implements InvocationHandler {
+
+		MockResponse() {
+			this.headers = new HashMap();
+			this.body = new ByteArrayOutputStream();
+			this.threads = Collections.synchronizedSet(new HashSet());
+			this.out = new ServletOutputStream() {
+				public void write(int b) {
+					write(new byte[] { (byte) b }, 0, 1);
+				}
+
+				public void write(byte[] b, int off, int len) {
+					threads.add(Thread.currentThread());
+					synchronized (body) {
+						body.write(b, off, len);
+					}
+					numWrites++;
+				}
+			};
+			this.proxy = (HttpServletResponse) Proxy.newProxyInstance(
+					HttpServletResponse.class.getClassLoader(),
+					new Class[] { HttpServletResponse.class }, this);
+		}
+
+		public Object invoke(Object proxy, Method method, Object[] args) {
+			threads.add(Thread.currentThread());
+			final String name = method.getName();
+			if (name.equals("getOutputStream")) {
+				return out;
+			} else if (name.equals("setContentType")) {
+				headers.put("Content-Type", args[0]);
+			} else if (name.equals("setHeader")) {
+				headers.put(args[0], args[1]);
+			}
+			return null;
+		}
+
+		String getBody() {
+			synchronized (body) {
+				return body.toString();
+			}
+		}
+
+		final Map headers;
+
+		final ByteArrayOutputStream body;
+
+		final Set threads;
+
+		final HttpServletResponse proxy;
+
+		private final ServletOutputStream out;
+
+		volatile int numWrites;
+	}
+
+	private ExecutorService workers;
+
+	private SessionMailbox mailbox;
+
+	private MockResponse real;
+}
@@ -0,0 +1,251 @@
+/*
+ * Copyright (C) 2007 Lindsay S. Kay, All rights Reserved.
+ *
+ * This software is provided "as-is", without any express or implied warranty. In no event will the 
+ * author be held liable for any damages arising from the use of this software.
+ *
+ * Permission is granted to anyone to use this software for any purpose, including commercial 
+ * applications, and to alter it and redistribute if freely, subject to the following restrictions:
+ *
+ *  1. The origin of this software must not be misrepresented: you must not claim that you wrote 
+ * 	the original software. if you use this software in a product, an acknowledgement in the product 
+ * 	documentation would be appreciated but is not required.
+ * 
+ *  2. Altered source versions must be plainly marked as such, and must not be misrepresented 
+ * 	as the original software.
+ * 
+  * 3. This notice must not be removed or altered from any source distribution.
+ */
+package com.neocoders.jandal.ui.freemarker.servlet;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
+
+import javax.servlet.ServletOutputStream;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import junit.framework.TestCase;
+
+import com.neocoders.jandal.core.Resource;
+
+/**
+ * Tests the framing and pooling of responses compressed by
+ * {@link ResponseCompressor}, against requests and responses that just record
+ * what is done to them.
+ * 
+ * @author lindsay
+ * 
+ */
+public class ResponseCompressorTest extends TestCase {
+
+	protected void setUp() {
+		compressor = new ResponseCompressor(ResponseCompressor.DEFAULT_MIN_SIZE,
+				6);
+		text = newText(8192);
+	}
+
+	protected void tearDown() {
+		compressor.shutdown();
+	}
+
+	public void testGzipFraming() throws Exception {
+		final MockResponse response = new MockResponse();
+		write(request("gzip, deflate"), response, text);
+		assertEquals("gzip", response.headers.get("Content-Encoding"));
+		assertTrue(response.body.size() < text.length);
+		assertBytes(text, new GZIPInputStream(new ByteArrayInputStream(
+				response.body.toByteArray())));
+	}
+
+	public void testDeflateFraming() throws Exception {
+		final MockResponse response = new MockResponse();
+		write(request("deflate"), response, text);
+		assertEquals("deflate", response.headers.get("Content-Encoding"));
+		assertBytes(text, new InflaterInputStream(new ByteArrayInputStream(
+				response.body.toByteArray())));
+	}
+
+	public void testSmallResponseGoesAsIs() throws Exception {
+		final byte[] small = newText(ResponseCompressor.DEFAULT_MIN_SIZE - 1);
+		final MockResponse response = new MockResponse();
+		write(request("gzip"), response, small);
+		assertNull(response.headers.get("Content-Encoding"));
+		assertEquals(new Integer(small.length), response.headers
+				.get("Content-Length"));
+		assertBytes(small, new ByteArrayInputStream(response.body
+				.toByteArray()));
+	}
+
+	public void testFlushedResponseGoesUncompressed() throws Exception {
+		final MockResponse response = new MockResponse();
+		final OutputStream out = compressor.getOutputStream(request("gzip"),
+				response.proxy, "text/html");
+		out.write(text, 0, 10);
+		out.flush();
+		out.write(text, 10, text.length - 10);
+		out.close();
+		assertNull(response.headers.get("Content-Encoding"));
+		assertBytes(text, new ByteArrayInputStream(response.body
+				.toByteArray()));
+	}
+
+	/**
+	 * A response abandoned part way gives back its Deflater, reset, for the
+	 * next response to use.
+	 */
+	public void testReleaseAbandonedResponse() throws Exception {
+		final OutputStream abandoned = compressor.getOutputStream(
+				request("gzip"), new MockResponse().proxy, "text/html");
+		abandoned.write(text, 0, text.length / 2);
+		compressor.release(abandoned);
+		compressor.release(abandoned);
+
+		final MockResponse response = new MockResponse();
+		write(request("gzip"), response, text);
+		assertBytes(text, new GZIPInputStream(new ByteArrayInputStream(
+				response.body.toByteArray())));
+	}
+
+	/**
+	 * A bundled resource is compressed once, and again when its content
+	 * changes.
+	 */
+	public void testResourceCompressedOncePerVersion() throws Exception {
+		final BytesResource resource = new BytesResource(text);
+		writeResource(resource);
+		assertEquals(0, compressor.getPrecompressedHits());
+		writeResource(resource);
+		assertEquals(1, compressor.getPrecompressedHits());
+
+		resource.bytes = newText(4096);
+		final MockResponse response = writeResource(resource);
+		assertEquals(1, compressor.getPrecompressedHits());
+		assertBytes(resource.bytes, new GZIPInputStream(
+				new ByteArrayInputStream(response.body.toByteArray())));
+	}
+
+	private MockResponse writeResource(Resource resource) throws Exception {
+		final MockResponse response = new MockResponse();
+		compressor.writeResource(request("gzip"), response.proxy,
+				"Controller/page.html", resource);
+		return response;
+	}
+
+	private void write(HttpServletRequest request, MockResponse response,
+			byte[] bytes) throws IOException {
+		final OutputStream out = compressor.getOutputStream(request,
+				response.proxy, "text/html");
+		out.write(bytes);
+		out.close();
+	}
+
+	private static void assertBytes(byte[] expected, InputStream in)
+			throws IOException {
+		final ByteArrayOutputStream actual = new ByteArrayOutputStream();
+		final byte[] buf = new byte[1024];
+		int n;
+		while ((n = in.read(buf)) >= 0) {
+			actual.write(buf, 0, n);
+		}
+		assertEquals(new String(expected, "ISO-8859-1"), new String(actual
+				.toByteArray(), "ISO-8859-1"));
+	}
+
+	/*
+	 * Markup-like text, which compresses well
+	 */
+	private static byte[] newText(int length) {
+		final String row = "<div class=\"row\">0123456789</div>\n";
+		final byte[] bytes = new byte[length];
+		for (int i = 0; i < length; i++) {
+			bytes[i] = (byte) row.charAt(i % row.length());
+		}
+		return bytes;
+	}
+
+	private static HttpServletRequest request(final String acceptEncoding) {
+		return (HttpServletRequest) Proxy.newProxyInstance(
+				HttpServletRequest.class.getClassLoader(),
+				new Class[] { HttpServletRequest.class },
+				new InvocationHandler() {
+					public Object invoke(Object proxy, Method method,
+							Object[] args) {
+						if (method.getName().equals("getHeader")
+								&& "Accept-Encoding".equals(args[0])) {
+							return acceptEncoding;
+						}
+						return null;
+					}
+				});
+	}
+
+	/*
+	 * Records the headers and body written to a response
+	 */
+	private static final class MockResponse implements InvocationHandler {
+
+		MockResponse() {
+			this.headers = new HashMap();
+			this.body = new ByteArrayOutputStream();
+			this.out = new ServletOutputStream() {
+				public void write(int b) {
+					body.write(b);
+				}
+			};
+			this.proxy = (HttpServletResponse) Proxy.newProxyInstance(
+					HttpServletResponse.class.getClassLoader(),
+					new Class[] { HttpServletResponse.class }, this);
+		}
+
+		public Object invoke(Object proxy, Method method, Object[] args) {
+			final String name = method.getName();
+			if (name.equals("getOutputStream")) {
+				return out;
+			} else if (name.equals("setHeader")) {
+				headers.put(args[0], args[1]);
+			} else if (name.equals("setContentLength")) {
+				headers.put("Content-Length", args[0]);
+			} else if (name.equals("setContentType")) {
+				headers.put("Content-Type", args[0]);
+			}
+			return null;
+		}
+
+		final Map headers;
+
+		final ByteArrayOutputStream body;
+
+		final HttpServletResponse proxy;
+
+		private final ServletOutputStream out;
+	}
+
+	private static final class BytesResource extends Resource {
+
+		BytesResource(byte[] bytes) {
+			super("page.html");
+			this.bytes = bytes;
+		}
+
+		public InputStream getInputStream() {
+			return new ByteArrayInputStream(bytes);
+		}
+
+		byte[] bytes;
+	}
+
+	private ResponseCompressor compressor;
+
+	private byte[] text;
+}
@@ -0,0 +1,52 @@
+/*
+ * Copyright (C) 2007 Lindsay S. Kay, All rights Reserved.
+ *
+ * This software is provided "as-is", without any express or implied warranty. In no event will the 
+ * author be held liable for any damages arising from the use of this software.
+ *
+ * Permission is granted to anyone to use this software for any purpose, including commercial 
+ * applications, and to alter it and redistribute if freely, subject to the following restrictions:
+ *
+ *  1. The origin of this software must not be misrepresented: you must not claim that you wrote 
+ * 	the original software. if you use this software in a product, an acknowledgement in the product 
+ * 	documentation would be appreciated but is not required.
+ * 
+ *  2. Altered source versions must be plainly marked as such, and must not be misrepresented 
+ * 	as the original software.
+ * 
+  * 3. This notice must not be removed or altered from any source distribution.
+ */
+package com.neocoders.jandal.ui.freemarker.servlet;
+
+import java.io.StringWriter;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests for {@link TeeWriter}.
+ * 
+ * @author lindsay
+ * 
+ */
+public class TeeWriterTest extends TestCase {
+
+	public void testCopiesWithinLimit() throws Exception {
+		final StringWriter out = new StringWriter();
+		final TeeWriter tee = new TeeWriter(out, 6);
+		tee.write("abc");
+		tee.write('d');
+		tee.write("xefx".toCharArray(), 1, 2);
+		assertEquals("abcdef", out.toString());
+		assertEquals("abcdef", tee.getCopy());
+	}
+
+	public void testStopsCopyingPastLimit() throws Exception {
+		final StringWriter out = new StringWriter();
+		final TeeWriter tee = new TeeWriter(out, 6);
+		tee.write("abcd");
+		tee.write("efg");
+		tee.write("h");
+		assertEquals("abcdefgh", out.toString());
+		assertNull(tee.getCopy());
+	}
+}
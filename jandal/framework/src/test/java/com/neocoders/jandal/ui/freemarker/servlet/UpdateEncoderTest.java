@@ -0,0 +1,148 @@
+/*
+ * Copyright (C) 2007 Lindsay S. Kay, All rights Reserved.
+ *
+ * This software is provided "as-is", without any express or implied warranty. In no event will the 
+ * author be held liable for any damages arising from the use of this software.
+ *
+ * Permission is granted to anyone to use this software for any purpose, including commercial 
+ * applications, and to alter it and redistribute if freely, subject to the following restrictions:
+ *
+ *  1. The origin of this software must not be misrepresented: you must not claim that you wrote 
+ * 	the original software. if you use this software in a product, an acknowledgement in the product 
+ * 	documentation would be appreciated but is not required.
+ * 
+ *  2. Altered source versions must be plainly marked as such, and must not be misrepresented 
+ * 	as the original software.
+ * 
+  * 3. This notice must not be removed or altered from any source distribution.
+ */
+package com.neocoders.jandal.ui.freemarker.servlet;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.Writer;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests for the JSON and XML {@link UpdateEncoder}s, including the size of
+ * the payload each makes of the same update.
+ * 
+ * @author lindsay
+ * 
+ */
+public class UpdateEncoderTest extends TestCase {
+
+	/*
+	 * View of one re-rendered child of the demo tree
+	 */
+	private static final String VIEW = "<div id=\"50331650\"> <span><span id=\"jandal.50331650.n\">6</span></span> </div>";
+
+	public void testJSONUpdate() throws Exception {
+		final StringWriter out = new StringWriter();
+		encode(new JSONUpdateEncoder(out), "c", "<p class=\"a\">x & ]]> y</p>\n", 1);
+		assertEquals("{\"updates\":[{\"id\":\"c\",\"content\":"
+				+ "\"<p class=\\\"a\\\">x & ]]> y</p>\\n\"},"
+				+ "{\"id\":\"c.o0\",\"value\":\"0\"}]}", out.toString());
+	}
+
+	public void testXMLUpdate() throws Exception {
+		final StringWriter out = new StringWriter();
+		encode(new XMLUpdateEncoder(out), "c", "<p>x ]]> y</p>", 1);
+		assertEquals("<?xml version=\"1.0\" encoding=\"ISO-8859-1\"?>\n"
+				+ "<update><controller><id>c</id><content>"
+				+ "<![CDATA[<p>x ]]]]><![CDATA[> y</p>]]></content></controller>"
+				+ "<output><id>c.o0</id><value><![CDATA[0]]></value></output>"
+				+ "</update>", out.toString());
+	}
+
+	public void testErrors() throws Exception {
+		StringWriter out = new StringWriter();
+		new JSONUpdateEncoder(out).error("reset", "Page has \"expired\"");
+		assertEquals("{\"response\":{\"code\":\"reset\","
+				+ "\"message\":\"Page has \\\"expired\\\"\"}}", out.toString());
+		out = new StringWriter();
+		new XMLUpdateEncoder(out).error("alert", "Busy");
+		assertEquals("<?xml version=\"1.0\" encoding=\"ISO-8859-1\"?>\n"
+				+ "<response><code>alert</code><message>Busy</message>"
+				+ "</response>", out.toString());
+	}
+
+	/*
+	 * Characters in the payloads of a re-render of one child of the demo
+	 * tree, and of patches to ten of its bound outputs. The expected sizes
+	 * are worked out from the markup each format puts around an ID and a
+	 * value, so the JSON view is one character longer for each quote that
+	 * gets escaped
+	 */
+	public void testPayloadSize() throws Exception {
+		assertPayloadSizes("50331650", VIEW, 0);
+		assertPayloadSizes("jandal.50331650", null, 10);
+	}
+
+	private static void assertPayloadSizes(String id, String view,
+			int numOutputs) throws IOException {
+		int jsonSize = "{\"updates\":[]}".length();
+		int xmlSize = "<?xml version=\"1.0\" encoding=\"ISO-8859-1\"?>\n<update></update>"
+				.length();
+		int numItems = 0;
+		if (view != null) {
+			int numQuotes = 0;
+			for (int i = view.indexOf('"'); i >= 0; i = view.indexOf('"', i + 1)) {
+				numQuotes++;
+			}
+			jsonSize += "{\"id\":\"\",\"content\":\"\"}".length() + id.length()
+					+ view.length() + numQuotes;
+			xmlSize += "<controller><id></id><content><![CDATA[]]></content></controller>"
+					.length()
+					+ id.length() + view.length();
+			numItems++;
+		}
+		for (int i = 0; i < numOutputs; i++) {
+			final int length = (id + ".o" + i).length()
+					+ Integer.toString(i * 7).length();
+			jsonSize += "{\"id\":\"\",\"value\":\"\"}".length() + length;
+			xmlSize += "<output><id></id><value><![CDATA[]]></value></output>"
+					.length()
+					+ length;
+			numItems++;
+		}
+		if (numItems > 1) {
+			jsonSize += numItems - 1;
+		}
+
+		final StringWriter json = new StringWriter();
+		encode(new JSONUpdateEncoder(json), id, view, numOutputs);
+		final StringWriter xml = new StringWriter();
+		encode(new XMLUpdateEncoder(xml), id, view, numOutputs);
+		assertEquals(jsonSize, json.toString().length());
+		assertEquals(xmlSize, xml.toString().length());
+		assertTrue(json.toString().length() < xml.toString().length());
+	}
+
+	public void testCharsets() {
+		final StringWriter out = new StringWriter();
+		assertEquals("application/json; charset=UTF-8", new JSONUpdateEncoder(
+				out).getContentType());
+		assertEquals("UTF-8", new JSONUpdateEncoder(out).getCharset());
+		assertEquals("ISO-8859-1", new XMLUpdateEncoder(out).getCharset());
+	}
+
+	/*
+	 * Encodes the given view of a controller, if any, followed by values for
+	 * the given number of its outputs
+	 */
+	private static void encode(UpdateEncoder encoder, String id, String view,
+			int numOutputs) throws IOException {
+		encoder.begin();
+		if (view != null) {
+			final Writer out = encoder.beginController(id);
+			out.write(view);
+			encoder.endController();
+		}
+		for (int i = 0; i < numOutputs; i++) {
+			encoder.output(id + ".o" + i, Integer.toString(i * 7));
+		}
+		encoder.end();
+	}
+}
@@ -0,0 +1,76 @@
+/*
+ * Copyright (C) 2007 Lindsay S. Kay, All rights Reserved.
+ *
+ * This software is provided "as-is", without any express or implied warranty. In no event will the 
+ * author be held liable for any damages arising from the use of this software.
+ *
+ * Permission is granted to anyone to use this software for any purpose, including commercial 
+ * applications, and to alter it and redistribute if freely, subject to the following restrictions:
+ *
+ *  1. The origin of this software must not be misrepresented: you must not claim that you wrote 
+ * 	the original software. if you use this software in a product, an acknowledgement in the product 
+ * 	documentation would be appreciated but is not required.
+ * 
+ *  2. Altered source versions must be plainly marked as such, and must not be misrepresented 
+ * 	as the original software.
+ * 
+  * 3. This notice must not be removed or altered from any source distribution.
+ */
+package com.neocoders.jandal.ui.freemarker.session;
+
+import com.neocoders.jandal.core.*;
+
+/**
+ * Application for tests, whose root controller counts up by the amount given
+ * to its "add" event, in its "count" output.
+ * 
+ * @author lindsay
+ * 
+ */
+public class CounterApplication extends Application {
+
+	protected void onStart() throws JandalCoreException {
+		setRootController(new CounterController());
+	}
+
+	/**
+	 * Returns the count of the given session's application.
+	 */
+	static int getCount(ApplicationSession appSession)
+			throws JandalCoreException {
+		return ((Integer) appSession.getApplication().getRootController()
+				.getOutputSnapshot().getOutput("count")).intValue();
+	}
+
+	/**
+	 * Adds to the count of the given session's application.
+	 */
+	static void add(ApplicationSession appSession, int n)
+			throws JandalCoreException {
+		appSession.getApplication().getRootController().fireViewEvent("add",
+				new Params("n", Integer.toString(n)));
+	}
+
+	public static class CounterController extends Controller {
+
+		public CounterController() throws JandalCoreException {
+			super("counter");
+		}
+
+		protected void onStart() throws JandalCoreException {
+			addInitialState(new State("counting") {
+				protected void onEntry() throws JandalCoreException {
+					setOutput("count", Integer.valueOf(count));
+					addViewEventProcessor(new EventProcessor("add") {
+						protected void onEvent() throws JandalCoreException {
+							count += Integer.parseInt(getStringParam("n"));
+							setOutput("count", Integer.valueOf(count));
+						}
+					});
+				}
+			});
+		}
+
+		private int count;
+	}
+}
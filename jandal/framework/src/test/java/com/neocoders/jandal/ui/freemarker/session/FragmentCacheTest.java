@@ -0,0 +1,191 @@
+/*
+ * Copyright (C) 2007 Lindsay S. Kay, All rights Reserved.
+ *
+ * This software is provided "as-is", without any express or implied warranty. In no event will the 
+ * author be held liable for any damages arising from the use of this software.
+ *
+ * Permission is granted to anyone to use this software for any purpose, including commercial 
+ * applications, and to alter it and redistribute if freely, subject to the following restrictions:
+ *
+ *  1. The origin of this software must not be misrepresented: you must not claim that you wrote 
+ * 	the original software. if you use this software in a product, an acknowledgement in the product 
+ * 	documentation would be appreciated but is not required.
+ * 
+ *  2. Altered source versions must be plainly marked as such, and must not be misrepresented 
+ * 	as the original software.
+ * 
+  * 3. This notice must not be removed or altered from any source distribution.
+ */
+package com.neocoders.jandal.ui.freemarker.session;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+
+import junit.framework.TestCase;
+
+import com.neocoders.jandal.core.*;
+
+/**
+ * Tests when fragments held by a {@link FragmentCache} stop being current, on
+ * a root controller whose view embeds those of two children.
+ * 
+ * @author lindsay
+ * 
+ */
+public class FragmentCacheTest extends TestCase {
+
+	protected void setUp() throws Exception {
+		appFactory = new ApplicationFactory(TreeApplication.class.getName(),
+				new ServiceSet());
+		workers = SessionMailbox.newWorkerPool(1);
+		appSession = new ApplicationSession("u", false, appFactory
+				.startApplication(new Params()), new SessionMailbox(workers, 4),
+				new FragmentCache(0));
+		final Application app = appSession.getApplication();
+		root = appSession.getControllerSession(app.getRootController());
+		a = appSession.getControllerSession(app.getControllerOnPath("root.a"));
+		b = appSession.getControllerSession(app.getControllerOnPath("root.b"));
+	}
+
+	protected void tearDown() throws Exception {
+		workers.shutdown();
+		appFactory.shutdown();
+	}
+
+	public void testStaleOnceSubtreeChanges() throws Exception {
+		final FragmentCache cache = new FragmentCache(1024);
+		putTree(cache, "aaaa", "bbbb", "root");
+		ApplicationSnapshot snapshot = getSnapshot();
+		assertEquals("root", cache.get(root, snapshot));
+		assertEquals("aaaa", cache.get(a, snapshot));
+
+		a.getController().fireViewEvent("add", new Params());
+		snapshot = getSnapshot();
+		assertNull(cache.get(a, snapshot));
+		assertNull("Embedding fragment still current", cache.get(root,
+				snapshot));
+		assertEquals("bbbb", cache.get(b, snapshot));
+	}
+
+	/**
+	 * A fragment is checked against the snapshot it is asked for, not the
+	 * latest one.
+	 */
+	public void testCurrentAsOfGivenSnapshot() throws Exception {
+		final FragmentCache cache = new FragmentCache(1024);
+		putTree(cache, "aaaa", "bbbb", "root");
+		final ApplicationSnapshot before = getSnapshot();
+		a.getController().fireViewEvent("add", new Params());
+		assertEquals("root", cache.get(root, before));
+	}
+
+	public void testEvictionInvalidatesEmbeddingFragments() throws Exception {
+		final FragmentCache cache = new FragmentCache(30);
+		putTree(cache, "aaaaaaaaaa", "bbbbbbbbbb", "rootrootro");
+		assertEquals(30, cache.getChars());
+		put(cache, b, "bbbbbbbbbbbbbbb");
+		assertEquals(1, cache.getEvictions());
+		final ApplicationSnapshot snapshot = getSnapshot();
+		assertNull(cache.get(a, snapshot));
+		assertNull("Fragment embedding an evicted one still current", cache
+				.get(root, snapshot));
+	}
+
+	public void testEmbeddingUncachedFragmentNotCached() throws Exception {
+		final FragmentCache cache = new FragmentCache(1024);
+		put(cache, a, "aaaa");
+		put(cache, root, "root", Arrays.asList(new ControllerSession[] { a,
+				b }));
+		assertNull(cache.get(root, getSnapshot()));
+		assertEquals(1, cache.getCount());
+	}
+
+	public void testTooBigOrDisabledNotCached() throws Exception {
+		FragmentCache cache = new FragmentCache(3);
+		put(cache, a, "aaaa");
+		assertEquals(0, cache.getCount());
+		cache = new FragmentCache(0);
+		assertFalse(cache.isEnabled());
+		put(cache, a, "a");
+		assertNull(cache.get(a, getSnapshot()));
+	}
+
+	private void putTree(FragmentCache cache, String aText, String bText,
+			String rootText) throws JandalCoreException {
+		put(cache, a, aText);
+		put(cache, b, bText);
+		put(cache, root, rootText, Arrays
+				.asList(new ControllerSession[] { a, b }));
+	}
+
+	private void put(FragmentCache cache, ControllerSession controllerSession,
+			String text) throws JandalCoreException {
+		put(cache, controllerSession, text, Collections.EMPTY_LIST);
+	}
+
+	private void put(FragmentCache cache, ControllerSession controllerSession,
+			String text, List children) throws JandalCoreException {
+		cache.put(controllerSession, text, getSnapshot().getOutputSnapshot(
+				controllerSession.getController()).getVersion(), children);
+	}
+
+	private ApplicationSnapshot getSnapshot() {
+		return appSession.getApplication().getApplicationSnapshot();
+	}
+
+	/**
+	 * Application whose root controller has two children, each counting its
+	 * "add" events in its "count" output.
+	 */
+	public static class TreeApplication extends Application {
+
+		protected void onStart() throws JandalCoreException {
+			setRootController(new Controller("root") {
+				protected void onStart() throws JandalCoreException {
+					addInitialState(new State("running") {
+						protected void onEntry() throws JandalCoreException {
+							addChildController(new LeafController("a"));
+							addChildController(new LeafController("b"));
+						}
+					});
+				}
+			});
+		}
+	}
+
+	private static class LeafController extends Controller {
+
+		LeafController(String name) throws JandalCoreException {
+			super(name);
+		}
+
+		protected void onStart() throws JandalCoreException {
+			addInitialState(new State("counting") {
+				protected void onEntry() throws JandalCoreException {
+					setOutput("count", Integer.valueOf(count));
+					addViewEventProcessor(new EventProcessor("add") {
+						protected void onEvent() throws JandalCoreException {
+							setOutput("count", Integer.valueOf(++count));
+						}
+					});
+				}
+			});
+		}
+
+		private int count;
+	}
+
+	private ApplicationFactory appFactory;
+
+	private ExecutorService workers;
+
+	private ApplicationSession appSession;
+
+	private ControllerSession root;
+
+	private ControllerSession a;
+
+	private ControllerSession b;
+}
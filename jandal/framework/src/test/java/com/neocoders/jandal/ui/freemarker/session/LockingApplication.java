@@ -0,0 +1,97 @@
+/*
+ * Copyright (C) 2007 Lindsay S. Kay, All rights Reserved.
+ *
+ * This software is provided "as-is", without any express or implied warranty. In no event will the 
+ * author be held liable for any damages arising from the use of this software.
+ *
+ * Permission is granted to anyone to use this software for any purpose, including commercial 
+ * applications, and to alter it and redistribute if freely, subject to the following restrictions:
+ *
+ *  1. The origin of this software must not be misrepresented: you must not claim that you wrote 
+ * 	the original software. if you use this software in a product, an acknowledgement in the product 
+ * 	documentation would be appreciated but is not required.
+ * 
+ *  2. Altered source versions must be plainly marked as such, and must not be misrepresented 
+ * 	as the original software.
+ * 
+  * 3. This notice must not be removed or altered from any source distribution.
+ */
+package com.neocoders.jandal.ui.freemarker.session;
+
+import com.neocoders.jandal.core.*;
+
+/**
+ * Application for tests, whose root controller locks the "store" service on
+ * its "lock" event, waiting as long as the event's "timeout" says, and
+ * unlocks it on its "unlock" event. Its "locked" output says whether it holds
+ * the lock.
+ * 
+ * @author lindsay
+ * 
+ */
+public class LockingApplication extends Application {
+
+	/**
+	 * Returns a service set with a lockable "store" service.
+	 */
+	static ServiceSet newServiceSet() {
+		final ServiceSet serviceSet = new ServiceSet();
+		final Service store = new Service("store");
+		store.setSynchronized(true);
+		serviceSet.addService("store", store);
+		return serviceSet;
+	}
+
+	protected void onStart() throws JandalCoreException {
+		setRootController(new LockingController());
+	}
+
+	/**
+	 * Locks the store for the given application, returning true if it got
+	 * the lock within the given timeout.
+	 */
+	static boolean lock(Application app, long timeout)
+			throws JandalCoreException {
+		final Controller root = app.getRootController();
+		root.fireViewEvent("lock", new Params("timeout", Long
+				.toString(timeout)));
+		return ((Boolean) root.getOutputSnapshot().getOutput("locked"))
+				.booleanValue();
+	}
+
+	/**
+	 * Unlocks the store for the given application.
+	 */
+	static void unlock(Application app) throws JandalCoreException {
+		app.getRootController().fireViewEvent("unlock", new Params());
+	}
+
+	public static class LockingController extends Controller {
+
+		public LockingController() throws JandalCoreException {
+			super("locking");
+		}
+
+		protected void onStart() throws JandalCoreException {
+			addInitialState(new State("idle") {
+				protected void onEntry() throws JandalCoreException {
+					setOutput("locked", Boolean.FALSE);
+					addViewEventProcessor(new EventProcessor("lock") {
+						protected void onEvent() throws JandalCoreException {
+							final long timeout = Long
+									.parseLong(getStringParam("timeout"));
+							setOutput("locked", Boolean.valueOf(lockService(
+									"store", timeout) != null));
+						}
+					});
+					addViewEventProcessor(new EventProcessor("unlock") {
+						protected void onEvent() throws JandalCoreException {
+							unlockService("store");
+							setOutput("locked", Boolean.FALSE);
+						}
+					});
+				}
+			});
+		}
+	}
+}
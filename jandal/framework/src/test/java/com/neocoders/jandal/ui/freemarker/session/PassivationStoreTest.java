@@ -0,0 +1,129 @@
+/*
+ * Copyright (C) 2007 Lindsay S. Kay, All rights Reserved.
+ *
+ * This software is provided "as-is", without any express or implied warranty. In no event will the 
+ * author be held liable for any damages arising from the use of this software.
+ *
+ * Permission is granted to anyone to use this software for any purpose, including commercial 
+ * applications, and to alter it and redistribute if freely, subject to the following restrictions:
+ *
+ *  1. The origin of this software must not be misrepresented: you must not claim that you wrote 
+ * 	the original software. if you use this software in a product, an acknowledgement in the product 
+ * 	documentation would be appreciated but is not required.
+ * 
+ *  2. Altered source versions must be plainly marked as such, and must not be misrepresented 
+ * 	as the original software.
+ * 
+  * 3. This notice must not be removed or altered from any source distribution.
+ */
+package com.neocoders.jandal.ui.freemarker.session;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests for {@link PassivationStore}, in particular that records outlive the
+ * compaction of the segments they were written to.
+ * 
+ * @author lindsay
+ * 
+ */
+public class PassivationStoreTest extends TestCase {
+
+	protected void setUp() throws Exception {
+		dir = File.createTempFile("jandal", ".passivation");
+		dir.delete();
+		store = new PassivationStore(dir, 1024);
+	}
+
+	protected void tearDown() throws Exception {
+		store.close();
+		dir.delete();
+	}
+
+	public void testAppendReadRemove() throws Exception {
+		final long a = store.append(record(1, 100));
+		final long b = store.append(record(2, 2000));
+		assertTrue(Arrays.equals(record(1, 100), store.read(a)));
+		assertTrue(Arrays.equals(record(2, 2000), store.read(b)));
+		assertEquals(2, store.getRecordCount());
+		assertEquals(2, store.getSegmentCount());
+		assertEquals(4 + 100 + 4 + 2000, store.getLiveBytes());
+		store.remove(b);
+		store.remove(b);
+		assertEquals(1, store.getRecordCount());
+		try {
+			store.read(b);
+			fail("Removed record read");
+		} catch (IOException e) {
+		}
+	}
+
+	public void testEmptySegmentDeleted() throws Exception {
+		final long[] keys = appendAll(8, 200);
+		assertEquals(2, store.getSegmentCount());
+		for (int i = 0; i < 4; i++) {
+			store.remove(keys[i]);
+		}
+		assertEquals(1, store.getSegmentCount());
+		assertEquals(1024, store.getBytesOnDisk());
+	}
+
+	/*
+	 * A segment left with a single record is deleted once that record is
+	 * copied to the current segment
+	 */
+	public void testSparseSegmentCompacted() throws Exception {
+		final long[] keys = appendAll(6, 200);
+		assertEquals(2, store.getSegmentCount());
+		for (int i = 0; i < 3; i++) {
+			store.remove(keys[i]);
+		}
+		assertEquals(0, store.getCompactionCount());
+		store.remove(keys[3]);
+		assertEquals(1, store.getCompactionCount());
+		assertEquals(1, store.getSegmentCount());
+		assertEquals(2, store.getRecordCount());
+		for (int i = 4; i < keys.length; i++) {
+			assertTrue(Arrays.equals(record(i, 200), store.read(keys[i])));
+		}
+		assertEquals(2 * (4 + 200), store.getLiveBytes());
+		for (int i = 4; i < keys.length; i++) {
+			store.remove(keys[i]);
+		}
+		assertEquals(0, store.getRecordCount());
+		assertEquals(0, store.getLiveBytes());
+	}
+
+	public void testMappedBytesCoverDeletedSegments() throws Exception {
+		final long[] keys = appendAll(8, 200);
+		for (int i = 0; i < 4; i++) {
+			store.remove(keys[i]);
+		}
+		assertTrue(store.getMappedBytes() >= store.getBytesOnDisk());
+		assertTrue(store.getMappedBytes() <= 2048);
+	}
+
+	private long[] appendAll(int n, int size) throws IOException {
+		final long[] keys = new long[n];
+		for (int i = 0; i < n; i++) {
+			keys[i] = store.append(record(i, size));
+		}
+		return keys;
+	}
+
+	private static byte[] record(int seed, int size) {
+		final byte[] record = new byte[size];
+		for (int i = 0; i < size; i++) {
+			record[i] = (byte) (seed + i);
+		}
+		return record;
+	}
+
+	private File dir;
+
+	private PassivationStore store;
+}
@@ -0,0 +1,228 @@
+/*
+ * Copyright (C) 2007 Lindsay S. Kay, All rights Reserved.
+ *
+ * This software is provided "as-is", without any express or implied warranty. In no event will the 
+ * author be held liable for any damages arising from the use of this software.
+ *
+ * Permission is granted to anyone to use this software for any purpose, including commercial 
+ * applications, and to alter it and redistribute if freely, subject to the following restrictions:
+ *
+ *  1. The origin of this software must not be misrepresented: you must not claim that you wrote 
+ * 	the original software. if you use this software in a product, an acknowledgement in the product 
+ * 	documentation would be appreciated but is not required.
+ * 
+ *  2. Altered source versions must be plainly marked as such, and must not be misrepresented 
+ * 	as the original software.
+ * 
+  * 3. This notice must not be removed or altered from any source distribution.
+ */
+package com.neocoders.jandal.ui.freemarker.session;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+
+import com.neocoders.jandal.core.Application;
+import com.neocoders.jandal.core.ApplicationFactory;
+import com.neocoders.jandal.core.Params;
+import com.neocoders.jandal.ui.freemarker.servlet.internalExceptions.ServerAdminBusyException;
+
+/**
+ * Tests ordering, withdrawal and bounds of {@link SessionMailbox}, and that
+ * workers waiting for service locks do not hold up the request that would
+ * release the lock.
+ * 
+ * @author lindsay
+ * 
+ */
+public class SessionMailboxTest extends TestCase {
+
+	private static final long LOCK_TIMEOUT = 10000L;
+
+	protected void setUp() throws Exception {
+		appFactory = new ApplicationFactory(LockingApplication.class
+				.getName(), LockingApplication.newServiceSet());
+	}
+
+	protected void tearDown() throws Exception {
+		if (workers != null) {
+			workers.shutdownNow();
+		}
+		appFactory.shutdown();
+	}
+
+	public void testRunsTasksInOrder() throws Exception {
+		workers = SessionMailbox.newWorkerPool(4);
+		final SessionMailbox mailbox = new SessionMailbox(workers, 16);
+		final List order = new ArrayList();
+		final Future[] futures = new Future[10];
+		for (int i = 0; i < futures.length; i++) {
+			final Integer n = new Integer(i);
+			futures[i] = mailbox.submit(new Callable() {
+				public Object call() throws Exception {
+					Thread.sleep(1);
+					order.add(n);
+					return n;
+				}
+			}, null);
+		}
+		for (int i = 0; i < futures.length; i++) {
+			assertEquals(new Integer(i), mailbox.await(futures[i]));
+		}
+		for (int i = 0; i < futures.length; i++) {
+			assertEquals(new Integer(i), order.get(i));
+		}
+		waitForDepth(mailbox, 0);
+		assertEquals(10, mailbox.getRunCount());
+	}
+
+	public void testRejectsWhenFull() throws Exception {
+		workers = SessionMailbox.newWorkerPool(1);
+		final SessionMailbox mailbox = new SessionMailbox(workers, 2);
+		final CountDownLatch release = new CountDownLatch(1);
+		final Future first = mailbox.submit(block(release), null);
+		final Future second = mailbox.submit(block(release), null);
+		try {
+			mailbox.submit(block(release), null);
+			fail("Third task accepted by a mailbox of two");
+		} catch (ServerAdminBusyException e) {
+		}
+		assertEquals(1, mailbox.getRejectedCount());
+		release.countDown();
+		mailbox.await(first);
+		mailbox.await(second);
+		waitForDepth(mailbox, 0);
+	}
+
+	public void testWithdrawsQueuedTask() throws Exception {
+		workers = SessionMailbox.newWorkerPool(1);
+		final SessionMailbox mailbox = new SessionMailbox(workers, 4);
+		final CountDownLatch release = new CountDownLatch(1);
+		final Future first = mailbox.submit(block(release), null);
+		final boolean[] ran = new boolean[1];
+		final CountDownLatch done = new CountDownLatch(1);
+		final Future second = mailbox.submit(new Callable() {
+			public Object call() throws Exception {
+				ran[0] = true;
+				return null;
+			}
+		}, new Runnable() {
+			public void run() {
+				done.countDown();
+			}
+		});
+		mailbox.withdraw(second);
+		assertTrue(done.await(1, TimeUnit.SECONDS));
+		assertEquals(1, mailbox.getDepth());
+		release.countDown();
+		mailbox.await(first);
+		try {
+			mailbox.await(second);
+			fail("Withdrawn task gave a result");
+		} catch (CancellationException e) {
+		}
+		assertFalse(ran[0]);
+		waitForDepth(mailbox, 0);
+	}
+
+	/*
+	 * One worker, application A holding the lock across requests and B
+	 * waiting for it - A's next request must not wait for B's timeout
+	 */
+	public void testLockWaitDoesNotHoldUpRelease() throws Exception {
+		workers = SessionMailbox.newWorkerPool(1, 1);
+		final Application a = appFactory.startApplication(new Params());
+		final Application b = appFactory.startApplication(new Params());
+		final SessionMailbox mailboxA = new SessionMailbox(workers, 4);
+		final SessionMailbox mailboxB = new SessionMailbox(workers, 4);
+		assertEquals(Boolean.TRUE, mailboxA.run(lock(a)));
+
+		final Future waiting = mailboxB.submit(lock(b), null);
+		waitForLockWaiters(1);
+		final long start = System.currentTimeMillis();
+		mailboxA.run(unlock(a));
+		assertEquals(Boolean.TRUE, mailboxB.await(waiting));
+		assertTrue(System.currentTimeMillis() - start < LOCK_TIMEOUT / 2);
+		assertEquals(0, ((SessionWorkerPool) workers).getLockWaiterCount());
+		mailboxB.run(unlock(b));
+	}
+
+	public void testLockWaitRefusedBeyondBound() throws Exception {
+		workers = SessionMailbox.newWorkerPool(2, 1);
+		final Application a = appFactory.startApplication(new Params());
+		final Application b = appFactory.startApplication(new Params());
+		final Application c = appFactory.startApplication(new Params());
+		final SessionMailbox mailboxA = new SessionMailbox(workers, 4);
+		final SessionMailbox mailboxB = new SessionMailbox(workers, 4);
+		final SessionMailbox mailboxC = new SessionMailbox(workers, 4);
+		assertEquals(Boolean.TRUE, mailboxA.run(lock(a)));
+
+		final Future waiting = mailboxB.submit(lock(b), null);
+		waitForLockWaiters(1);
+		final long start = System.currentTimeMillis();
+		assertEquals(Boolean.FALSE, mailboxC.run(lock(c)));
+		assertTrue(System.currentTimeMillis() - start < LOCK_TIMEOUT / 2);
+		assertEquals(1, ((SessionWorkerPool) workers).getRefusedWaitCount());
+
+		mailboxA.run(unlock(a));
+		assertEquals(Boolean.TRUE, mailboxB.await(waiting));
+		mailboxB.run(unlock(b));
+	}
+
+	private static Callable lock(final Application app) {
+		return new Callable() {
+			public Object call() throws Exception {
+				return Boolean.valueOf(LockingApplication.lock(app,
+						LOCK_TIMEOUT));
+			}
+		};
+	}
+
+	private static Callable unlock(final Application app) {
+		return new Callable() {
+			public Object call() throws Exception {
+				LockingApplication.unlock(app);
+				return null;
+			}
+		};
+	}
+
+	private static Callable block(final CountDownLatch release) {
+		return new Callable() {
+			public Object call() throws Exception {
+				release.await();
+				return null;
+			}
+		};
+	}
+
+	/*
+	 * A worker counts a task out just after its result is handed over
+	 */
+	private static void waitForDepth(SessionMailbox mailbox, int depth)
+			throws InterruptedException {
+		for (int i = 0; i < 1000 && mailbox.getDepth() != depth; i++) {
+			Thread.sleep(5);
+		}
+		assertEquals(depth, mailbox.getDepth());
+	}
+
+	private void waitForLockWaiters(int n) throws InterruptedException {
+		final SessionWorkerPool pool = (SessionWorkerPool) workers;
+		for (int i = 0; i < 1000 && pool.getLockWaiterCount() < n; i++) {
+			Thread.sleep(5);
+		}
+		assertEquals(n, pool.getLockWaiterCount());
+	}
+
+	private ApplicationFactory appFactory;
+
+	private ExecutorService workers;
+}
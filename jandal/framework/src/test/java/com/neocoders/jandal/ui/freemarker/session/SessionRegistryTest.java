@@ -0,0 +1,165 @@
+/*
+ * Copyright (C) 2007 Lindsay S. Kay, All rights Reserved.
+ *
+ * This software is provided "as-is", without any express or implied warranty. In no event will the 
+ * author be held liable for any damages arising from the use of this software.
+ *
+ * Permission is granted to anyone to use this software for any purpose, including commercial 
+ * applications, and to alter it and redistribute if freely, subject to the following restrictions:
+ *
+ *  1. The origin of this software must not be misrepresented: you must not claim that you wrote 
+ * 	the original software. if you use this software in a product, an acknowledgement in the product 
+ * 	documentation would be appreciated but is not required.
+ * 
+ *  2. Altered source versions must be plainly marked as such, and must not be misrepresented 
+ * 	as the original software.
+ * 
+  * 3. This notice must not be removed or altered from any source distribution.
+ */
+package com.neocoders.jandal.ui.freemarker.session;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.concurrent.ExecutorService;
+
+import javax.servlet.http.HttpSession;
+
+import junit.framework.TestCase;
+
+import com.neocoders.jandal.core.*;
+import com.neocoders.jandal.ui.freemarker.servlet.internalExceptions.ServerAdminBusyException;
+
+/**
+ * Tests admission and eviction by {@link SessionRegistry}.
+ * 
+ * @author lindsay
+ * 
+ */
+public class SessionRegistryTest extends TestCase {
+
+	protected void setUp() throws Exception {
+		appFactory = new ApplicationFactory(CounterApplication.class.getName(),
+				new ServiceSet());
+		workers = SessionMailbox.newWorkerPool(1);
+	}
+
+	protected void tearDown() throws Exception {
+		workers.shutdown();
+		appFactory.shutdown();
+	}
+
+	public void testEvictsLeastRecentlyUsed() throws Exception {
+		final SessionRegistry registry = new SessionRegistry(2, 0, 0, 0);
+		final ApplicationSession first = addSession(registry);
+		final ApplicationSession second = addSession(registry);
+		registry.touch(first);
+		addSession(registry);
+		assertFalse(first.isDestroyed());
+		assertTrue(second.isDestroyed());
+		assertEquals(1, registry.getEvictedCount());
+		assertEquals(2, registry.getLiveCount());
+	}
+
+	public void testNeverEvictsSessionInUse() throws Exception {
+		final SessionRegistry registry = new SessionRegistry(2, 0, 0, 0);
+		final ApplicationSession first = addSession(registry);
+		final ApplicationSession second = addSession(registry);
+		first.beginRequest();
+		try {
+			addSession(registry);
+		} finally {
+			first.endRequest();
+		}
+		assertFalse(first.isDestroyed());
+		assertTrue(second.isDestroyed());
+	}
+
+	public void testRefusesWhenNoneIdleLongEnough() throws Exception {
+		final SessionRegistry registry = new SessionRegistry(1, 0, 0,
+				SessionRegistry.DEFAULT_MIN_IDLE);
+		final ApplicationSession first = addSession(registry);
+		try {
+			registry.admit();
+			fail("Admitted over the limit");
+		} catch (ServerAdminBusyException e) {
+		}
+		assertFalse(first.isDestroyed());
+		assertEquals(1, registry.getRefusedCount());
+	}
+
+	/**
+	 * After evicting for heap, new sessions are refused until the collector
+	 * has run, instead of each evicting another batch.
+	 */
+	public void testHeapEvictionWaitsForCollection() throws Exception {
+		final HeapRegistry registry = new HeapRegistry();
+		final ApplicationSession first = addSession(registry);
+		final ApplicationSession second = addSession(registry);
+		final ApplicationSession third = addSession(registry);
+		registry.overBudget = true;
+		registry.admit();
+		registry.cancel();
+		assertTrue(first.isDestroyed());
+		try {
+			registry.admit();
+			fail("Evicted again before a collection");
+		} catch (ServerAdminBusyException e) {
+		}
+		assertFalse(second.isDestroyed());
+		registry.collections++;
+		registry.admit();
+		registry.cancel();
+		assertTrue(second.isDestroyed());
+		assertFalse(third.isDestroyed());
+		assertEquals(2, registry.getEvictedCount());
+		assertEquals(1, registry.getRefusedCount());
+	}
+
+	private ApplicationSession addSession(SessionRegistry registry)
+			throws Exception {
+		registry.admit();
+		final ApplicationSession appSession = new ApplicationSession("u",
+				false, appFactory.startApplication(new Params()),
+				new SessionMailbox(workers, 4), new FragmentCache(0));
+		registry.add(appSession, newHttpSession());
+		return appSession;
+	}
+
+	private static HttpSession newHttpSession() {
+		return (HttpSession) Proxy.newProxyInstance(HttpSession.class
+				.getClassLoader(), new Class[] { HttpSession.class },
+				new InvocationHandler() {
+					public Object invoke(Object proxy, Method method,
+							Object[] args) {
+						return null;
+					}
+				});
+	}
+
+	/*
+	 * Registry whose heap budget and collector are set by the test
+	 */
+	private static class HeapRegistry extends SessionRegistry {
+
+		HeapRegistry() {
+			super(0, 50, 0, 0);
+		}
+
+		boolean isHeapOverBudget() {
+			return overBudget;
+		}
+
+		long getCollectionCount() {
+			return collections;
+		}
+
+		boolean overBudget;
+
+		long collections;
+	}
+
+	private ApplicationFactory appFactory;
+
+	private ExecutorService workers;
+}
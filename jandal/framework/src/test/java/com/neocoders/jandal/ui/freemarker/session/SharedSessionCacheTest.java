@@ -0,0 +1,180 @@
+/*
+ * Copyright (C) 2007 Lindsay S. Kay, All rights Reserved.
+ *
+ * This software is provided "as-is", without any express or implied warranty. In no event will the 
+ * author be held liable for any damages arising from the use of this software.
+ *
+ * Permission is granted to anyone to use this software for any purpose, including commercial 
+ * applications, and to alter it and redistribute if freely, subject to the following restrictions:
+ *
+ *  1. The origin of this software must not be misrepresented: you must not claim that you wrote 
+ * 	the original software. if you use this software in a product, an acknowledgement in the product 
+ * 	documentation would be appreciated but is not required.
+ * 
+ *  2. Altered source versions must be plainly marked as such, and must not be misrepresented 
+ * 	as the original software.
+ * 
+  * 3. This notice must not be removed or altered from any source distribution.
+ */
+package com.neocoders.jandal.ui.freemarker.session;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.ExecutorService;
+
+import junit.framework.TestCase;
+
+import com.neocoders.jandal.core.*;
+
+/**
+ * Hands sessions between two {@link SharedSessionCache}s sharing one store,
+ * standing in for two servlet instances, with both an
+ * {@link InProcessSessionStore} and a {@link FileSessionStore}.
+ * 
+ * @author lindsay
+ * 
+ */
+public class SharedSessionCacheTest extends TestCase {
+
+	protected void setUp() throws Exception {
+		appFactory = new ApplicationFactory(CounterApplication.class.getName(),
+				new ServiceSet());
+		workers = SessionMailbox.newWorkerPool(2);
+		dir = File.createTempFile("jandal", ".store");
+		dir.delete();
+		dir.mkdirs();
+	}
+
+	protected void tearDown() throws Exception {
+		workers.shutdown();
+		appFactory.shutdown();
+		final File[] files = dir.listFiles();
+		for (int i = 0; files != null && i < files.length; i++) {
+			files[i].delete();
+		}
+		dir.delete();
+	}
+
+	public void testHandoffInProcess() throws Exception {
+		final InProcessSessionStore store = new InProcessSessionStore();
+		checkHandoff(newCache(store), newCache(store));
+	}
+
+	public void testHandoffFile() throws Exception {
+		checkHandoff(newCache(new FileSessionStore(dir)), newCache(new FileSessionStore(dir)));
+	}
+
+	public void testConflictInProcess() throws Exception {
+		final InProcessSessionStore store = new InProcessSessionStore();
+		checkConflict(newCache(store), newCache(store));
+	}
+
+	public void testConflictFile() throws Exception {
+		checkConflict(newCache(new FileSessionStore(dir)), newCache(new FileSessionStore(dir)));
+	}
+
+	public void testEvictOnlyIdleCleanSessions() throws Exception {
+		final SharedSessionCache cache = newCache(new InProcessSessionStore());
+		final ApplicationSession appSession = newSession();
+		cache.add(appSession);
+		CounterApplication.add(appSession, 1);
+		final long later = System.currentTimeMillis() + 60000L;
+		assertFalse("Dirty session evicted", cache.evictOldest(later, 0));
+		assertTrue(cache.writeBack(appSession));
+		assertFalse("Recent session evicted", cache.evictOldest(
+				System.currentTimeMillis(), 60000L));
+		assertTrue(cache.evictOldest(later, 0));
+		assertEquals(0, cache.getCachedCount());
+		assertEquals(1, cache.getEvictedCount());
+		final ApplicationSession reloaded = cache.get(appSession.getStoreKey(),
+				"u");
+		assertNotSame(appSession, reloaded);
+		assertEquals(1, CounterApplication.getCount(reloaded));
+		cache.shutdown();
+	}
+
+	public void testUnknownKeys() throws Exception {
+		final SharedSessionCache cache = newCache(new InProcessSessionStore());
+		assertNull(cache.get(null, "u"));
+		assertNull(cache.get("../../etc/passwd", "u"));
+		assertNull(cache.get(SessionKeys.newKey(), "u"));
+		cache.shutdown();
+	}
+
+	/*
+	 * A session changed on one instance is picked up by the other, and
+	 * handed back again
+	 */
+	private void checkHandoff(SharedSessionCache a, SharedSessionCache b)
+			throws Exception {
+		final ApplicationSession onA = newSession();
+		final String key = a.add(onA);
+		assertSame("Near-cache miss", onA, a.get(key, "u"));
+		assertEquals(1, a.getHitCount());
+
+		final ApplicationSession onB = b.get(key, "u");
+		assertNotNull(onB);
+		assertEquals(1, b.getLoadCount());
+		assertEquals(0, CounterApplication.getCount(onB));
+
+		CounterApplication.add(onB, 5);
+		assertTrue(b.writeBack(onB));
+		assertTrue("Clean session written", b.writeBack(onB));
+		assertEquals(1, b.getCleanRequestCount());
+
+		final ApplicationSession backOnA = a.get(key, "u");
+		assertNotSame("Stale copy used", onA, backOnA);
+		assertEquals(5, CounterApplication.getCount(backOnA));
+		CounterApplication.add(backOnA, 2);
+		assertTrue(a.writeBack(backOnA));
+		assertEquals(7, CounterApplication.getCount(b.get(key, "u")));
+
+		backOnA.destroy();
+		assertNull(a.get(key, "u"));
+		assertNull(b.get(key, "u"));
+		a.shutdown();
+		b.shutdown();
+	}
+
+	/*
+	 * Of two instances changing the same version, the second to write back
+	 * loses its copy and takes on the first one's
+	 */
+	private void checkConflict(SharedSessionCache a, SharedSessionCache b)
+			throws Exception {
+		final ApplicationSession onA = newSession();
+		final String key = a.add(onA);
+		final ApplicationSession onB = b.get(key, "u");
+
+		CounterApplication.add(onA, 1);
+		CounterApplication.add(onB, 10);
+		assertTrue(a.writeBack(onA));
+		assertFalse("Conflicting write accepted", b.writeBack(onB));
+		assertEquals(1, b.getConflictCount());
+
+		final ApplicationSession winner = b.get(key, "u");
+		assertNotSame("Losing copy kept", onB, winner);
+		assertEquals(1, CounterApplication.getCount(winner));
+		assertSame(onA, a.get(key, "u"));
+		a.shutdown();
+		b.shutdown();
+	}
+
+	private SharedSessionCache newCache(ApplicationSessionStore store) {
+		return new SharedSessionCache(appFactory, store,
+				SharedSessionCache.DEFAULT_MAX_CACHED, workers, 4, 0);
+	}
+
+	private ApplicationSession newSession() throws JandalCoreException,
+			IOException {
+		return new ApplicationSession("u", false, appFactory
+				.startApplication(new Params()), new SessionMailbox(workers, 4),
+				new FragmentCache(0));
+	}
+
+	private ApplicationFactory appFactory;
+
+	private ExecutorService workers;
+
+	private File dir;
+}